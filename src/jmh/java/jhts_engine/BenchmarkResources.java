@@ -0,0 +1,119 @@
+package jhts_engine;
+
+// Stream
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Collections
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Resources shared by the benchmarks: the voice and the labels of the test resources.
+ *
+ *  The voice (and its compiled image) are extracted once per JVM in temporary files deleted at
+ *  exit. The label sequences of any length are built by cycling over the labels of test.lab.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+final class BenchmarkResources
+{
+    /** The extracted voice, null if not extracted yet */
+    private static Path voice = null;
+
+    /** The compiled image of the voice, null if not compiled yet */
+    private static Path voice_image = null;
+
+    /** The labels of test.lab */
+    private static String[] labels = null;
+
+    /**
+     *  No instance, only static utilities
+     *
+     */
+    private BenchmarkResources() {
+    }
+
+    /**
+     *  Get the path of the test voice
+     *
+     *  @return the path of the extracted voice
+     *  @throws IOException if the voice can't be extracted
+     */
+    static synchronized Path getVoice() throws IOException {
+        if (voice == null) {
+            Path path = Files.createTempFile("jhts_engine_bench", ".htsvoice");
+            path.toFile().deleteOnExit();
+            try (InputStream is = JHTSEngineWrapper.class.getResourceAsStream("arctic_slt.htsvoice")) {
+                Files.copy(is, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            voice = path;
+        }
+
+        return voice;
+    }
+
+    /**
+     *  Get the path of the compiled image of the test voice
+     *
+     *  @return the path of the image
+     *  @throws IOException if the voice can't be extracted
+     *  @throws HTSEngineException if the voice can't be compiled
+     */
+    static synchronized Path getVoiceImage() throws IOException, HTSEngineException {
+        if (voice_image == null) {
+            Path path = Files.createTempFile("jhts_engine_bench", ".jhtsimg");
+            path.toFile().deleteOnExit();
+            VoiceImage.compile(getVoice(), path);
+            voice_image = path;
+        }
+
+        return voice_image;
+    }
+
+    /**
+     *  Get a label sequence of the given length, cycling over the labels of test.lab
+     *
+     *  @param nb_labels the number of labels
+     *  @return the label sequence
+     *  @throws IOException if test.lab can't be read
+     */
+    static synchronized String[] getLabels(int nb_labels) throws IOException {
+        if (labels == null) {
+            List<String> lines = new ArrayList<String>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(JHTSEngineWrapper.class.getResourceAsStream("test.lab"),
+                                                                                  StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    if (!line.trim().isEmpty())
+                        lines.add(line);
+            }
+            labels = lines.toArray(new String[0]);
+        }
+
+        String[] sequence = new String[nb_labels];
+        for (int i=0; i<nb_labels; i++)
+            sequence[i] = labels[i % labels.length];
+
+        return sequence;
+    }
+
+    /**
+     *  Create an engine with the test voice loaded
+     *
+     *  @return the engine
+     *  @throws IOException if the voice can't be extracted
+     *  @throws HTSEngineException if the voice can't be loaded
+     */
+    static JHTSEngineWrapper createEngine() throws IOException, HTSEngineException {
+        JHTSEngineWrapper engine = new JHTSEngineWrapper();
+        engine.setVoice(getVoice());
+        return engine;
+    }
+}
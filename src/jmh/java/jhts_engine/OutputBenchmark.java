@@ -0,0 +1,99 @@
+package jhts_engine;
+
+// Stream
+import java.nio.ByteBuffer;
+
+// Collections
+import java.util.ArrayList;
+
+// Concurrency
+import java.util.concurrent.TimeUnit;
+
+// Benchmark
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ *  Benchmark of the accessors to the result of a synthesis: durations, generated parameters and
+ *  conversion of the generated speech to PCM.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OutputBenchmark
+{
+    /** The number of labels of the utterance */
+    @Param({"1", "10", "71", "200"})
+    public int nb_labels;
+
+    /** The engine */
+    private JHTSEngineWrapper engine;
+
+    /** The destination of the PCM conversions */
+    private short[] pcm;
+
+    /** The destination of the PCM conversions (little endian bytes) */
+    private byte[] pcm_bytes;
+
+    /** The destination of the PCM conversions (direct buffer) */
+    private ByteBuffer pcm_buffer;
+
+    @Setup
+    public void setup() throws Exception {
+        engine = BenchmarkResources.createEngine();
+        engine.synthesize(BenchmarkResources.getLabels(nb_labels));
+
+        int nb_samples = engine.getNbSamples();
+        pcm = new short[nb_samples];
+        pcm_bytes = new byte[2 * nb_samples];
+        pcm_buffer = ByteBuffer.allocateDirect(2 * nb_samples);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.clear();
+    }
+
+    @Benchmark
+    public ArrayList<FilledLabel> getDurations() {
+        return engine.getDurations();
+    }
+
+    @Benchmark
+    public double[][] getGeneratedParameterSequence() throws Exception {
+        return engine.getGeneratedParameterSequence(0);
+    }
+
+    @Benchmark
+    public double[] getGeneratedParameters() throws Exception {
+        return engine.getGeneratedParameters(0);
+    }
+
+    @Benchmark
+    public short[] pcm16() {
+        engine.getGeneratedSpeech(pcm);
+        return pcm;
+    }
+
+    @Benchmark
+    public byte[] pcm16LittleEndian() {
+        engine.getGeneratedSpeech(pcm_bytes);
+        return pcm_bytes;
+    }
+
+    @Benchmark
+    public ByteBuffer pcm16Direct() {
+        pcm_buffer.clear();
+        engine.getGeneratedSpeech(pcm_buffer);
+        return pcm_buffer;
+    }
+}
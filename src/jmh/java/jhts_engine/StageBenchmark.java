@@ -0,0 +1,105 @@
+package jhts_engine;
+
+// Concurrency
+import java.util.concurrent.TimeUnit;
+
+// Audio
+import javax.sound.sampled.AudioInputStream;
+
+// Benchmark
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ *  Benchmark of each stage of the synthesis (state sequence, parameter generation and vocoder)
+ *  and of the whole synthesis, for utterances of different lengths.
+ *
+ *  The stages following the state sequence generation are measured on an engine prepared by the
+ *  previous stages before each invocation, so only the stage itself is measured.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StageBenchmark
+{
+    /** The number of labels of the utterance */
+    @Param({"1", "10", "71", "200"})
+    public int nb_labels;
+
+    /** The engine */
+    private JHTSEngineWrapper engine;
+
+    /** The labels of the utterance */
+    private String[] labels;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        engine = BenchmarkResources.createEngine();
+        labels = BenchmarkResources.getLabels(nb_labels);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.clear();
+    }
+
+    /**
+     *  Engine with the state sequence already generated
+     *
+     */
+    @State(Scope.Thread)
+    public static class StateSequenceGenerated
+    {
+        @Setup(Level.Invocation)
+        public void prepare(StageBenchmark bench) throws Exception {
+            bench.engine.refresh();
+            bench.engine.generateStateSequence(bench.labels);
+        }
+    }
+
+    /**
+     *  Engine with the parameter sequence already generated
+     *
+     */
+    @State(Scope.Thread)
+    public static class ParameterSequenceGenerated
+    {
+        @Setup(Level.Invocation)
+        public void prepare(StageBenchmark bench) throws Exception {
+            bench.engine.refresh();
+            bench.engine.generateStateSequence(bench.labels);
+            bench.engine.generateParameterSequence();
+        }
+    }
+
+    @Benchmark
+    public void stateSequence() throws Exception {
+        engine.refresh();
+        engine.generateStateSequence(labels);
+    }
+
+    @Benchmark
+    public void parameterSequence(StateSequenceGenerated generated) throws Exception {
+        engine.generateParameterSequence();
+    }
+
+    @Benchmark
+    public void vocoder(ParameterSequenceGenerated generated) throws Exception {
+        engine.generateSampleSequence();
+    }
+
+    @Benchmark
+    public AudioInputStream synthesize() throws Exception {
+        return engine.synthesize(labels);
+    }
+}
@@ -0,0 +1,87 @@
+package jhts_engine;
+
+// Concurrency
+import java.util.concurrent.TimeUnit;
+
+// Audio
+import javax.sound.sampled.AudioInputStream;
+
+// Benchmark
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ *  Benchmark of the synthesis throughput with one thread and with all the available processors
+ *  sharing a pool of engines.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ThroughputBenchmark
+{
+    /**
+     *  Pool shared by all the benchmark threads
+     *
+     */
+    @State(Scope.Benchmark)
+    public static class Pool
+    {
+        /** The number of labels of the utterance */
+        @Param({"10", "71"})
+        public int nb_labels;
+
+        /** The pool of engines */
+        private JHTSEnginePool pool;
+
+        /** The labels of the utterance */
+        private String[] labels;
+
+        @Setup
+        public void setup() throws Exception {
+            pool = new JHTSEnginePool(BenchmarkResources.getVoice().toString(), Runtime.getRuntime().availableProcessors());
+            labels = BenchmarkResources.getLabels(nb_labels);
+        }
+
+        @TearDown
+        public void tearDown() {
+            pool.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public AudioInputStream singleThread(Pool pool) throws Exception {
+        return synthesize(pool);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public AudioInputStream multiThread(Pool pool) throws Exception {
+        return synthesize(pool);
+    }
+
+    /**
+     *  Synthesize the utterance with an engine borrowed from the pool
+     *
+     *  @param pool the pool state
+     *  @return the synthesized audio
+     *  @throws Exception if the synthesis fails
+     */
+    private static AudioInputStream synthesize(Pool pool) throws Exception {
+        JHTSEngineWrapper engine = pool.pool.borrow();
+        try {
+            return engine.synthesize(pool.labels);
+        } finally {
+            pool.pool.release(engine);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package jhts_engine;
+
+// Concurrency
+import java.util.concurrent.TimeUnit;
+
+// Benchmark
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ *  Benchmark of the loading of the voice (setVoice), from the .htsvoice file and from its image
+ *  read in memory or mapped.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VoiceLoadingBenchmark
+{
+    /** The format of the loaded voice */
+    @Param({"htsvoice", "image", "image_mmap"})
+    public String format;
+
+    /** The engine loading the voice */
+    private JHTSEngineWrapper engine;
+
+    @Setup
+    public void setup() throws Exception {
+        engine = new JHTSEngineWrapper();
+        BenchmarkResources.getVoice();
+        BenchmarkResources.getVoiceImage();
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.clear();
+    }
+
+    @Benchmark
+    public JHTSEngineWrapper setVoice() throws Exception {
+        switch (format) {
+        case "image":
+            engine.setVoice(BenchmarkResources.getVoiceImage(), false);
+            break;
+        case "image_mmap":
+            engine.setVoice(BenchmarkResources.getVoiceImage(), true);
+            break;
+        default:
+            engine.setVoice(BenchmarkResources.getVoice());
+            break;
+        }
+        return engine;
+    }
+}
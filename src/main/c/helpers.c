@@ -11,24 +11,119 @@
 
 HELPERS_C_START;
 
-#include "../../../hts_engine/lib/HTS_hidden.h"
+#include <math.h>
+#include <string.h>
 
-/* Helper to provide just the parameter generation structure without the vocoder part */
-HTS_Boolean HTS_MinimalGStreamSet_create(HTS_GStreamSet * gss, HTS_PStreamSet * pss, size_t fperiod) {
-   size_t i, j, k;
-   size_t msd_frame;
+#include "jhts_helpers.h"
+
+/* alignment of the allocations of an arena */
+#define HTS_ARENA_ALIGN 16
+
+/* default size of the blocks of an arena */
+#define HTS_ARENA_BLOCK_SIZE 65536
+
+/* HTS_ARENA_ROUND: round a size to the alignment of the arena */
+#define HTS_ARENA_ROUND(size) (((size) + HTS_ARENA_ALIGN - 1) / HTS_ARENA_ALIGN * HTS_ARENA_ALIGN)
+
+/* HTS_ARENA_HEADER_SIZE: size of the header of a block, the allocations follow it */
+#define HTS_ARENA_HEADER_SIZE HTS_ARENA_ROUND(sizeof(HTS_ArenaBlock))
+
+/* HTS_pcm16_sample: clamp and round (half up) a generated sample to a signed 16-bit value */
+static short HTS_pcm16_sample(double x)
+{
+   double r;
+
+   if (x > 32767.0)
+      x = 32767.0;
+   else if (x < -32768.0)
+      x = -32768.0;
+
+   r = floor(x);
+   if (x - r >= 0.5)
+      r += 1.0;
+
+   return (short) r;
+}
+
+/* HTS_pcm16_le_encode: encode samples as 16-bit little endian bytes */
+static void HTS_pcm16_le_encode(const double *x, size_t nsample, unsigned char *bytes)
+{
+   size_t i;
+   int v;
+
+   for (i = 0; i < nsample; i++) {
+      v = HTS_pcm16_sample(x[i]);
+      bytes[2 * i] = (unsigned char) (v & 0xff);
+      bytes[2 * i + 1] = (unsigned char) ((v >> 8) & 0xff);
+   }
+}
+
+/* HTS_Arena_owns: check if a pointer has been allocated in the blocks currently used by an arena */
+static HTS_Boolean HTS_Arena_owns(HTS_Arena * arena, const void *p)
+{
+   HTS_ArenaBlock *block;
+   const char *begin;
+
+   if (arena == NULL || p == NULL)
+      return FALSE;
+
+   for (block = arena->head; block != NULL; block = block->next) {
+      begin = (const char *) block + HTS_ARENA_HEADER_SIZE;
+      if ((const char *) p >= begin && (const char *) p < begin + block->used)
+         return TRUE;
+   }
+
+   return FALSE;
+}
+
+/* HTS_utterance_calloc: allocate a per-utterance array in the arena of the engine if any, using HTS_calloc otherwise */
+static void *HTS_utterance_calloc(HTS_Arena * arena, size_t num, size_t size)
+{
+   if (arena != NULL)
+      return HTS_Arena_calloc(arena, num, size);
+
+   return HTS_calloc(num, size);
+}
+
+/* HTS_utterance_free: free a per-utterance array, the arrays of the arena are released with the arena */
+static void HTS_utterance_free(HTS_Arena * arena, void *p)
+{
+   if (p != NULL && HTS_Arena_owns(arena, p) == FALSE)
+      HTS_free(p);
+}
+
+/* Helper to allocate the contiguous generated streams of HTS_MinimalGStreamSet_create, the frames of each stream are stored
+   in one row-major block (par[j] points into par[0]). MSD streams are filled with HTS_NODATA if fill_nodata is TRUE */
+static void HTS_MinimalGStreamSet_allocate(HTS_GStreamSet * gss, HTS_PStreamSet * pss, size_t fperiod, HTS_Boolean fill_nodata, HTS_Arena * arena)
+{
+   size_t i, j;
 
-   /* initialize */
    gss->nstream = HTS_PStreamSet_get_nstream(pss);
    gss->total_frame = HTS_PStreamSet_get_total_frame(pss);
    gss->total_nsample = fperiod * gss->total_frame;
-   gss->gstream = (HTS_GStream *) HTS_calloc(gss->nstream, sizeof(HTS_GStream));
+   gss->gstream = (HTS_GStream *) HTS_utterance_calloc(arena, gss->nstream, sizeof(HTS_GStream));
    for (i = 0; i < gss->nstream; i++) {
       gss->gstream[i].vector_length = HTS_PStreamSet_get_vector_length(pss, i);
-      gss->gstream[i].par = (double **) HTS_calloc(gss->total_frame, sizeof(double *));
-      for (j = 0; j < gss->total_frame; j++)
-         gss->gstream[i].par[j] = (double *) HTS_calloc(gss->gstream[i].vector_length, sizeof(double));
+      gss->gstream[i].par = (double **) HTS_utterance_calloc(arena, gss->total_frame, sizeof(double *));
+      if (gss->total_frame > 0)
+         gss->gstream[i].par[0] = (double *) HTS_utterance_calloc(arena, gss->total_frame * gss->gstream[i].vector_length, sizeof(double));
+      for (j = 1; j < gss->total_frame; j++)
+         gss->gstream[i].par[j] = gss->gstream[i].par[0] + j * gss->gstream[i].vector_length;
+      if (fill_nodata == TRUE && HTS_PStreamSet_is_msd(pss, i))
+         for (j = 0; j < gss->total_frame * gss->gstream[i].vector_length; j++)
+            gss->gstream[i].par[0][j] = HTS_NODATA;
    }
+}
+
+/* Helper to provide just the parameter generation structure without the vocoder part.
+   The frames of each stream are stored in one contiguous row-major block (par[j] points into par[0]),
+   so the structure has to be released using HTS_MinimalGStreamSet_clear. The streams are allocated in the arena if one is given */
+HTS_Boolean HTS_MinimalGStreamSet_create(HTS_GStreamSet * gss, HTS_PStreamSet * pss, size_t fperiod, HTS_Arena * arena) {
+   size_t i, j, k;
+   size_t msd_frame;
+
+   /* initialize */
+   HTS_MinimalGStreamSet_allocate(gss, pss, fperiod, FALSE, arena);
 
    /* copy generated parameter */
    for (i = 0; i < gss->nstream; i++) {
@@ -51,5 +146,2550 @@ HTS_Boolean HTS_MinimalGStreamSet_create(HTS_GStreamSet * gss, HTS_PStreamSet *
    return TRUE;
 }
 
+/* Helper to free a structure created by HTS_MinimalGStreamSet_create, the parts allocated in the arena (if given) are
+   left to the arena */
+void HTS_MinimalGStreamSet_clear(HTS_GStreamSet * gss, HTS_Arena * arena)
+{
+   size_t i;
+
+   if (gss->gstream) {
+      for (i = 0; i < gss->nstream; i++) {
+         if (gss->gstream[i].par != NULL) {
+            if (gss->total_frame > 0)
+               HTS_utterance_free(arena, gss->gstream[i].par[0]);
+            HTS_utterance_free(arena, gss->gstream[i].par);
+         }
+      }
+      HTS_utterance_free(arena, gss->gstream);
+   }
+   HTS_utterance_free(arena, gss->gspeech);
+   HTS_GStreamSet_initialize(gss);
+}
+
+/* Helper to copy all the frames of a generated stream, row-major, in one call. Return the number of copied frames */
+size_t HTS_GStreamSet_get_parameters(HTS_GStreamSet * gss, size_t stream_index, double *par, size_t par_size)
+{
+   size_t j;
+   size_t vector_length;
+   size_t nframe;
+
+   if (gss->gstream == NULL || stream_index >= gss->nstream)
+      return 0;
+
+   vector_length = gss->gstream[stream_index].vector_length;
+   nframe = gss->total_frame;
+   if (vector_length == 0)
+      return 0;
+   if (nframe > par_size / vector_length)
+      nframe = par_size / vector_length;
+
+   for (j = 0; j < nframe; j++)
+      memcpy(&par[j * vector_length], gss->gstream[stream_index].par[j], vector_length * sizeof(double));
+
+   return nframe;
+}
+
+/* Helper to expose the contiguous block of a stream created by HTS_MinimalGStreamSet_create */
+HTS_DirectBuffer HTS_MinimalGStreamSet_get_parameter_buffer(HTS_GStreamSet * gss, size_t stream_index)
+{
+   HTS_DirectBuffer buffer;
+
+   buffer.data = NULL;
+   buffer.size = 0;
+   if (gss->gstream == NULL || stream_index >= gss->nstream || gss->total_frame == 0)
+      return buffer;
+
+   buffer.data = gss->gstream[stream_index].par[0];
+   buffer.size = gss->total_frame * gss->gstream[stream_index].vector_length * sizeof(double);
+
+   return buffer;
+}
+
+/* Helper to make an engine use the model set of an other engine. The model set is shared (read-only)
+   while the synthesis condition is copied so each engine can be configured independently */
+HTS_Boolean HTS_Engine_share_model(HTS_Engine * engine, HTS_Engine * model)
+{
+   size_t i, j;
+   size_t nstream = HTS_ModelSet_get_nstream(&model->ms);
+   size_t nvoices = HTS_ModelSet_get_nvoices(&model->ms);
+
+   if (nvoices == 0) {
+      HTS_error(1, "HTS_Engine_share_model: No voice is loaded in the model engine.\n");
+      return FALSE;
+   }
+
+   /* share model */
+   HTS_Engine_initialize(engine);
+   engine->ms = model->ms;
+
+   /* copy condition */
+   engine->condition = model->condition;
+   engine->condition.stop = FALSE;
+   engine->condition.msd_threshold = (double *) HTS_calloc(nstream, sizeof(double));
+   engine->condition.gv_weight = (double *) HTS_calloc(nstream, sizeof(double));
+   for (i = 0; i < nstream; i++) {
+      engine->condition.msd_threshold[i] = model->condition.msd_threshold[i];
+      engine->condition.gv_weight[i] = model->condition.gv_weight[i];
+   }
+   engine->condition.duration_iw = (double *) HTS_calloc(nvoices, sizeof(double));
+   engine->condition.parameter_iw = (double **) HTS_calloc(nvoices, sizeof(double *));
+   engine->condition.gv_iw = (double **) HTS_calloc(nvoices, sizeof(double *));
+   for (i = 0; i < nvoices; i++) {
+      engine->condition.duration_iw[i] = model->condition.duration_iw[i];
+      engine->condition.parameter_iw[i] = (double *) HTS_calloc(nstream, sizeof(double));
+      engine->condition.gv_iw[i] = (double *) HTS_calloc(nstream, sizeof(double));
+      for (j = 0; j < nstream; j++) {
+         engine->condition.parameter_iw[i][j] = model->condition.parameter_iw[i][j];
+         engine->condition.gv_iw[i][j] = model->condition.gv_iw[i][j];
+      }
+   }
+
+   return TRUE;
+}
+
+/* Helper to free an engine prepared by HTS_Engine_share_model without freeing the shared model set */
+void HTS_Engine_clear_shared(HTS_Engine * engine)
+{
+   size_t i;
+   size_t nvoices = HTS_ModelSet_get_nvoices(&engine->ms);
+
+   HTS_Engine_refresh(engine);
+
+   /* free the condition */
+   if (engine->condition.msd_threshold != NULL)
+      HTS_free(engine->condition.msd_threshold);
+   if (engine->condition.gv_weight != NULL)
+      HTS_free(engine->condition.gv_weight);
+   if (engine->condition.duration_iw != NULL)
+      HTS_free(engine->condition.duration_iw);
+   if (engine->condition.parameter_iw != NULL) {
+      for (i = 0; i < nvoices; i++)
+         HTS_free(engine->condition.parameter_iw[i]);
+      HTS_free(engine->condition.parameter_iw);
+   }
+   if (engine->condition.gv_iw != NULL) {
+      for (i = 0; i < nvoices; i++)
+         HTS_free(engine->condition.gv_iw[i]);
+      HTS_free(engine->condition.gv_iw);
+   }
+   engine->condition.msd_threshold = NULL;
+   engine->condition.gv_weight = NULL;
+   engine->condition.duration_iw = NULL;
+   engine->condition.parameter_iw = NULL;
+   engine->condition.gv_iw = NULL;
+
+   /* forget the shared model before clearing the rest of the engine */
+   HTS_ModelSet_initialize(&engine->ms);
+   HTS_Engine_clear(engine);
+}
+
+/* HTS_CONDITION_GLOBAL_SIZE: # of global values of a packed condition (sampling frequency, frame period, volume, speed,
+   alpha, beta and additional half tone) */
+#define HTS_CONDITION_GLOBAL_SIZE 7
+
+/* Helper to get the number of values of a packed synthesis condition: the global values, then the MSD thresholds and the
+   GV weights of each stream, the duration interpolation weight of each voice and finally the parameter and GV
+   interpolation weights of each voice and stream */
+size_t HTS_Engine_get_condition_size(HTS_Engine * engine)
+{
+   size_t nstream = HTS_ModelSet_get_nstream(&engine->ms);
+   size_t nvoices = HTS_ModelSet_get_nvoices(&engine->ms);
+
+   return HTS_CONDITION_GLOBAL_SIZE + 2 * nstream + nvoices + 2 * nvoices * nstream;
+}
+
+/* Helper to pack the synthesis condition of an engine (see HTS_Engine_get_condition_size) */
+HTS_Boolean HTS_Engine_get_condition(HTS_Engine * engine, double *condition, size_t condition_size)
+{
+   size_t i, j;
+   size_t nstream = HTS_ModelSet_get_nstream(&engine->ms);
+   size_t nvoices = HTS_ModelSet_get_nvoices(&engine->ms);
+
+   if (nvoices == 0 || condition_size != HTS_Engine_get_condition_size(engine))
+      return FALSE;
+
+   *condition++ = (double) HTS_Engine_get_sampling_frequency(engine);
+   *condition++ = (double) HTS_Engine_get_fperiod(engine);
+   *condition++ = HTS_Engine_get_volume(engine);
+   *condition++ = engine->condition.speed;
+   *condition++ = HTS_Engine_get_alpha(engine);
+   *condition++ = HTS_Engine_get_beta(engine);
+   *condition++ = engine->condition.additional_half_tone;
+   for (i = 0; i < nstream; i++)
+      *condition++ = HTS_Engine_get_msd_threshold(engine, i);
+   for (i = 0; i < nstream; i++)
+      *condition++ = HTS_Engine_get_gv_weight(engine, i);
+   for (i = 0; i < nvoices; i++)
+      *condition++ = HTS_Engine_get_duration_interpolation_weight(engine, i);
+   for (i = 0; i < nvoices; i++)
+      for (j = 0; j < nstream; j++)
+         *condition++ = HTS_Engine_get_parameter_interpolation_weight(engine, i, j);
+   for (i = 0; i < nvoices; i++)
+      for (j = 0; j < nstream; j++)
+         *condition++ = HTS_Engine_get_gv_interpolation_weight(engine, i, j);
+
+   return TRUE;
+}
+
+/* Helper to apply a packed synthesis condition (see HTS_Engine_get_condition_size) in one call. The values are applied
+   through the setters of the engine so they are converted and clamped as usual */
+HTS_Boolean HTS_Engine_set_condition(HTS_Engine * engine, double *condition, size_t condition_size)
+{
+   size_t i, j;
+   size_t nstream = HTS_ModelSet_get_nstream(&engine->ms);
+   size_t nvoices = HTS_ModelSet_get_nvoices(&engine->ms);
+
+   if (nvoices == 0 || condition_size != HTS_Engine_get_condition_size(engine))
+      return FALSE;
+   if (condition[0] < 1.0 || condition[1] < 1.0)
+      return FALSE;
+
+   HTS_Engine_set_sampling_frequency(engine, (size_t) condition[0]);
+   HTS_Engine_set_fperiod(engine, (size_t) condition[1]);
+   HTS_Engine_set_volume(engine, condition[2]);
+   HTS_Engine_set_speed(engine, condition[3]);
+   HTS_Engine_set_alpha(engine, condition[4]);
+   HTS_Engine_set_beta(engine, condition[5]);
+   HTS_Engine_add_half_tone(engine, condition[6]);
+   condition += HTS_CONDITION_GLOBAL_SIZE;
+   for (i = 0; i < nstream; i++)
+      HTS_Engine_set_msd_threshold(engine, i, *condition++);
+   for (i = 0; i < nstream; i++)
+      HTS_Engine_set_gv_weight(engine, i, *condition++);
+   for (i = 0; i < nvoices; i++)
+      HTS_Engine_set_duration_interpolation_weight(engine, i, *condition++);
+   for (i = 0; i < nvoices; i++)
+      for (j = 0; j < nstream; j++)
+         HTS_Engine_set_parameter_interpolation_weight(engine, i, j, *condition++);
+   for (i = 0; i < nvoices; i++)
+      for (j = 0; j < nstream; j++)
+         HTS_Engine_set_gv_interpolation_weight(engine, i, j, *condition++);
+
+   return TRUE;
+}
+
+/* Helper to know if the state sequence of the engine can be generated from label records: the records only depend on the
+   label so the duration, alignment, interpolation and pitch options have to be the default ones */
+HTS_Boolean HTS_Engine_use_label_records(HTS_Engine * engine)
+{
+   size_t i;
+
+   if (HTS_ModelSet_get_nvoices(&engine->ms) != 1)
+      return FALSE;
+   if (engine->condition.speed != 1.0 || engine->condition.phoneme_alignment_flag == TRUE || engine->condition.additional_half_tone != 0.0)
+      return FALSE;
+   if (engine->condition.duration_iw[0] != 1.0)
+      return FALSE;
+   for (i = 0; i < HTS_ModelSet_get_nstream(&engine->ms); i++)
+      if (engine->condition.parameter_iw[0][i] != 1.0 || engine->condition.gv_iw[0][i] != 1.0)
+         return FALSE;
+
+   return TRUE;
+}
+
+/* Helper to get the number of values of the record of one label: the state duration means, then for each stream and
+   state the mean and variance vectors (and the MSD weight), then for each stream the GV mean and variance and finally the
+   GV flag */
+size_t HTS_Engine_get_label_record_size(HTS_Engine * engine)
+{
+   size_t i;
+   size_t len;
+   HTS_ModelSet *ms = &engine->ms;
+   size_t nstate = HTS_ModelSet_get_nstate(ms);
+   size_t size = nstate + 1;
+
+   for (i = 0; i < HTS_ModelSet_get_nstream(ms); i++) {
+      len = HTS_ModelSet_get_vector_length(ms, i) * HTS_ModelSet_get_window_size(ms, i);
+      size += nstate * 2 * len;
+      if (HTS_ModelSet_is_msd(ms, i))
+         size += nstate;
+      if (HTS_ModelSet_use_gv(ms, i))
+         size += 2 * HTS_ModelSet_get_vector_length(ms, i);
+   }
+
+   return size;
+}
+
+/* Helper to load the labels in the engine without generating the state sequence */
+HTS_Boolean HTS_Engine_load_label_from_strings(HTS_Engine * engine, char **lines, size_t num_lines)
+{
+   HTS_Engine_refresh(engine);
+   HTS_Label_load_from_strings(&engine->label, engine->condition.sampling_frequency, engine->condition.fperiod, lines, num_lines);
+
+   return (HTS_Label_get_size(&engine->label) > 0) ? TRUE : FALSE;
+}
+
+/* Helper to fill the record of one loaded label by walking the decision trees (see HTS_Engine_get_label_record_size) */
+HTS_Boolean HTS_Engine_get_label_record(HTS_Engine * engine, size_t label_index, double *record, size_t record_size)
+{
+   size_t i, j;
+   size_t len;
+   double iw = 1.0;
+   double *duration_vari;
+   double **parameter_iw;
+   const char *string;
+   HTS_ModelSet *ms = &engine->ms;
+   size_t nstate = HTS_ModelSet_get_nstate(ms);
+   size_t nstream = HTS_ModelSet_get_nstream(ms);
+
+   if (label_index >= HTS_Label_get_size(&engine->label) || record_size < HTS_Engine_get_label_record_size(engine))
+      return FALSE;
+   string = HTS_Label_get_string(&engine->label, label_index);
+
+   /* interpolation weights of the only voice */
+   parameter_iw = (double **) HTS_calloc(1, sizeof(double *));
+   parameter_iw[0] = (double *) HTS_calloc(nstream, sizeof(double));
+   for (i = 0; i < nstream; i++)
+      parameter_iw[0][i] = 1.0;
+
+   /* duration */
+   duration_vari = (double *) HTS_calloc(nstate, sizeof(double));
+   HTS_ModelSet_get_duration(ms, string, &iw, record, duration_vari);
+   HTS_free(duration_vari);
+   record += nstate;
+
+   /* parameter */
+   for (i = 0; i < nstream; i++) {
+      len = HTS_ModelSet_get_vector_length(ms, i) * HTS_ModelSet_get_window_size(ms, i);
+      for (j = 2; j <= nstate + 1; j++) {
+         if (HTS_ModelSet_is_msd(ms, i)) {
+            HTS_ModelSet_get_parameter(ms, i, j, string, (const double *const *) parameter_iw, record, record + len, record + 2 * len);
+            record += 2 * len + 1;
+         } else {
+            HTS_ModelSet_get_parameter(ms, i, j, string, (const double *const *) parameter_iw, record, record + len, NULL);
+            record += 2 * len;
+         }
+      }
+   }
+
+   /* GV */
+   for (i = 0; i < nstream; i++) {
+      if (HTS_ModelSet_use_gv(ms, i)) {
+         len = HTS_ModelSet_get_vector_length(ms, i);
+         HTS_ModelSet_get_gv(ms, i, string, (const double *const *) parameter_iw, record, record + len);
+         record += 2 * len;
+      }
+   }
+   *record = (HTS_ModelSet_get_gv_flag(ms, string) == TRUE) ? 1.0 : 0.0;
+
+   HTS_free(parameter_iw[0]);
+   HTS_free(parameter_iw);
+
+   return TRUE;
+}
+
+/* Helper to generate the state sequence of the labels loaded by HTS_Engine_load_label_from_strings, as
+   HTS_Engine_generate_state_sequence_from_strings does once the labels are parsed. The additional half tone is not applied
+   here so it has to be 0 */
+HTS_Boolean HTS_Engine_generate_state_sequence_from_label(HTS_Engine * engine)
+{
+   if (engine->condition.additional_half_tone != 0.0)
+      return FALSE;
+
+   if (HTS_SStreamSet_create(&engine->sss, &engine->ms, &engine->label, engine->condition.phoneme_alignment_flag, engine->condition.speed, engine->condition.duration_iw, engine->condition.parameter_iw, engine->condition.gv_iw) != TRUE) {
+      HTS_Engine_refresh(engine);
+      return FALSE;
+   }
+
+   return TRUE;
+}
+
+/* Helper to free the parameter and generated streams of an engine but keep its labels and its state sequence, so the
+   parameters can be generated again (with an other condition or modified states) */
+void HTS_Engine_refresh_parameters(HTS_Engine * engine)
+{
+   HTS_GStreamSet_clear(&engine->gss);
+   HTS_PStreamSet_clear(&engine->pss);
+   engine->condition.stop = FALSE;
+}
+
+/* Helper to free the per-utterance structures of an engine as HTS_Engine_refresh. The structures allocated in the arena
+   (if given) are not freed one by one: the arena is reset instead, keeping up to max_size bytes of blocks for the next
+   utterances */
+void HTS_Engine_refresh_arena(HTS_Engine * engine, HTS_Arena * arena, size_t max_size)
+{
+   if (arena != NULL) {
+      if (HTS_Arena_owns(arena, engine->sss.sstream) == TRUE)
+         HTS_SStreamSet_initialize(&engine->sss);
+      if (HTS_Arena_owns(arena, engine->gss.gstream) == TRUE || HTS_Arena_owns(arena, engine->gss.gspeech) == TRUE)
+         HTS_MinimalGStreamSet_clear(&engine->gss, arena);
+   }
+
+   HTS_Engine_refresh(engine);
+
+   if (arena != NULL)
+      HTS_Arena_reset(arena, max_size);
+}
+
+/* Helper to override the duration of one state of the generated state sequence, the total number of frames following */
+HTS_Boolean HTS_Engine_set_state_duration(HTS_Engine * engine, size_t state_index, size_t duration)
+{
+   HTS_SStreamSet *sss = &engine->sss;
+
+   if (sss->duration == NULL || state_index >= sss->total_state || duration == 0)
+      return FALSE;
+
+   sss->total_frame = sss->total_frame - sss->duration[state_index] + duration;
+   sss->duration[state_index] = duration;
+
+   return TRUE;
+}
+
+/* Helper to estimate the number of bytes held by the per-utterance structures of an engine (labels, state, parameter and
+   generated streams). The allocator overhead and the temporary buffers of the generation are not counted */
+size_t HTS_Engine_get_utterance_memory(HTS_Engine * engine)
+{
+   size_t i, len;
+   size_t size = 0;
+   HTS_LabelString *ls;
+   HTS_SStream *sst;
+   HTS_PStream *pst;
+   HTS_SStreamSet *sss = &engine->sss;
+   HTS_PStreamSet *pss = &engine->pss;
+   HTS_GStreamSet *gss = &engine->gss;
+
+   /* labels */
+   for (ls = engine->label.head; ls != NULL; ls = ls->next)
+      size += sizeof(HTS_LabelString) + ((ls->name != NULL) ? strlen(ls->name) + 1 : 0);
+
+   /* state streams */
+   if (sss->sstream != NULL) {
+      size += sss->total_state * sizeof(size_t);
+      for (i = 0; i < sss->nstream; i++) {
+         sst = &sss->sstream[i];
+         len = sst->vector_length * sst->win_size;
+         if (sst->mean != NULL)
+            size += sss->total_state * 2 * (len * sizeof(double) + sizeof(double *));
+         if (sst->msd != NULL)
+            size += sss->total_state * sizeof(double);
+         if (sst->gv_switch != NULL)
+            size += sss->total_state * sizeof(HTS_Boolean);
+         if (sst->gv_mean != NULL)
+            size += 2 * sst->vector_length * sizeof(double);
+      }
+   }
+
+   /* parameter streams */
+   if (pss->pstream != NULL) {
+      for (i = 0; i < pss->nstream; i++) {
+         pst = &pss->pstream[i];
+         len = pst->vector_length * pst->win_size;
+         if (pst->par != NULL)
+            size += pst->length * (pst->vector_length * sizeof(double) + sizeof(double *));
+         if (pst->sm.mean != NULL)
+            size += pst->length * 2 * (len * sizeof(double) + sizeof(double *));
+         if (pst->sm.wuw != NULL)
+            size += pst->length * (pst->width * sizeof(double) + sizeof(double *));
+         if (pst->sm.g != NULL)
+            size += pst->length * sizeof(double);
+         if (pst->sm.wum != NULL)
+            size += pst->length * sizeof(double);
+         if (pst->msd_flag != NULL)
+            size += pss->total_frame * sizeof(HTS_Boolean);
+         if (pst->gv_switch != NULL)
+            size += pst->length * sizeof(HTS_Boolean);
+         if (pst->gv_mean != NULL)
+            size += 2 * pst->vector_length * sizeof(double);
+      }
+   }
+
+   /* generated streams */
+   if (gss->gstream != NULL) {
+      for (i = 0; i < gss->nstream; i++)
+         if (gss->gstream[i].par != NULL)
+            size += gss->total_frame * (gss->gstream[i].vector_length * sizeof(double) + sizeof(double *));
+      if (gss->gspeech != NULL)
+         size += gss->total_nsample * sizeof(double);
+   }
+
+   return size;
+}
+
+/* Helper to estimate, once the state sequence is generated, the number of bytes the engine is going to hold for the
+   utterance: the labels and the state streams, the parameter streams (with the band matrix of the MLPG), the generated
+   streams and the speech. The MSD streams are counted as if all the frames were voiced */
+size_t HTS_Engine_estimate_utterance_memory(HTS_Engine * engine)
+{
+   size_t i, len, width;
+   size_t size = HTS_Engine_get_utterance_memory(engine);
+   HTS_SStreamSet *sss = &engine->sss;
+   size_t nframe = sss->total_frame;
+
+   if (sss->sstream == NULL)
+      return size;
+
+   for (i = 0; i < sss->nstream; i++) {
+      len = sss->sstream[i].vector_length;
+      width = 2 * sss->sstream[i].win_max_width + 1;
+      /* parameter stream: means and inverse variances of each window, parameters and MLPG work space */
+      size += nframe * (2 * len * sss->sstream[i].win_size + len + width + 2) * sizeof(double);
+      /* generated stream */
+      size += nframe * (len * sizeof(double) + sizeof(double *));
+   }
+
+   /* speech */
+   size += nframe * engine->condition.fperiod * sizeof(double);
+
+   return size;
+}
+
+/* Helper to generate the state sequence of the loaded labels from their records (one after the other) instead of walking the
+   decision trees. The state stream set is built as by HTS_SStreamSet_create so it is freed by HTS_Engine_refresh, unless it
+   is allocated in an arena: it has then to be freed by HTS_Engine_refresh_arena */
+HTS_Boolean HTS_Engine_generate_state_sequence_from_records(HTS_Engine * engine, double *records, size_t records_size, HTS_Arena * arena)
+{
+   size_t i, j, k;
+   size_t len;
+   size_t state;
+   int shift;
+   double temp;
+   double *record;
+   HTS_SStream *sst;
+   HTS_ModelSet *ms = &engine->ms;
+   HTS_SStreamSet *sss = &engine->sss;
+   size_t nlabel = HTS_Label_get_size(&engine->label);
+   size_t record_size = HTS_Engine_get_label_record_size(engine);
+
+   if (nlabel == 0 || records_size < nlabel * record_size || sss->sstream != NULL)
+      return FALSE;
+
+   /* initialize state sequence */
+   sss->nstate = HTS_ModelSet_get_nstate(ms);
+   sss->total_state = nlabel * sss->nstate;
+   sss->total_frame = 0;
+   sss->duration = (size_t *) HTS_utterance_calloc(arena, sss->total_state, sizeof(size_t));
+   sss->nstream = HTS_ModelSet_get_nstream(ms);
+   sss->sstream = (HTS_SStream *) HTS_utterance_calloc(arena, sss->nstream, sizeof(HTS_SStream));
+   for (i = 0; i < sss->nstream; i++) {
+      sst = &sss->sstream[i];
+      sst->vector_length = HTS_ModelSet_get_vector_length(ms, i);
+      len = sst->vector_length * HTS_ModelSet_get_window_size(ms, i);
+      sst->msd = HTS_ModelSet_is_msd(ms, i) ? (double *) HTS_utterance_calloc(arena, sss->total_state, sizeof(double)) : NULL;
+      sst->mean = (double **) HTS_utterance_calloc(arena, sss->total_state, sizeof(double *));
+      sst->vari = (double **) HTS_utterance_calloc(arena, sss->total_state, sizeof(double *));
+      for (j = 0; j < sss->total_state; j++) {
+         sst->mean[j] = (double *) HTS_utterance_calloc(arena, len, sizeof(double));
+         sst->vari[j] = (double *) HTS_utterance_calloc(arena, len, sizeof(double));
+      }
+      if (HTS_ModelSet_use_gv(ms, i)) {
+         sst->gv_switch = (HTS_Boolean *) HTS_utterance_calloc(arena, sss->total_state, sizeof(HTS_Boolean));
+         for (j = 0; j < sss->total_state; j++)
+            sst->gv_switch[j] = TRUE;
+      } else {
+         sst->gv_switch = NULL;
+      }
+   }
+
+   /* duration (default rounding) and parameters */
+   for (i = 0, state = 0; i < nlabel; i++) {
+      record = records + i * record_size;
+      for (j = 0; j < sss->nstate; j++) {
+         temp = record[j] + 0.5;
+         sss->duration[state + j] = (temp < 1.0) ? 1 : (size_t) temp;
+         sss->total_frame += sss->duration[state + j];
+      }
+      record += sss->nstate;
+      for (k = 0; k < sss->nstream; k++) {
+         sst = &sss->sstream[k];
+         len = sst->vector_length * HTS_ModelSet_get_window_size(ms, k);
+         for (j = 0; j < sss->nstate; j++) {
+            memcpy(sst->mean[state + j], record, len * sizeof(double));
+            memcpy(sst->vari[state + j], record + len, len * sizeof(double));
+            record += 2 * len;
+            if (sst->msd != NULL)
+               sst->msd[state + j] = *record++;
+         }
+      }
+      for (k = 0; k < sss->nstream; k++) {
+         sst = &sss->sstream[k];
+         if (sst->gv_switch != NULL) {
+            /* the GV of the utterance is the one of the first label */
+            if (i == 0) {
+               sst->gv_mean = (double *) HTS_utterance_calloc(arena, sst->vector_length, sizeof(double));
+               sst->gv_vari = (double *) HTS_utterance_calloc(arena, sst->vector_length, sizeof(double));
+               memcpy(sst->gv_mean, record, sst->vector_length * sizeof(double));
+               memcpy(sst->gv_vari, record + sst->vector_length, sst->vector_length * sizeof(double));
+            }
+            record += 2 * sst->vector_length;
+         }
+      }
+      if (*record == 0.0)
+         for (k = 0; k < sss->nstream; k++)
+            if (sss->sstream[k].gv_switch != NULL)
+               for (j = 0; j < sss->nstate; j++)
+                  sss->sstream[k].gv_switch[state + j] = FALSE;
+      state += sss->nstate;
+   }
+
+   /* copy dynamic window */
+   for (i = 0; i < sss->nstream; i++) {
+      sst = &sss->sstream[i];
+      sst->win_size = HTS_ModelSet_get_window_size(ms, i);
+      sst->win_max_width = HTS_ModelSet_get_window_max_width(ms, i);
+      sst->win_l_width = (int *) HTS_utterance_calloc(arena, sst->win_size, sizeof(int));
+      sst->win_r_width = (int *) HTS_utterance_calloc(arena, sst->win_size, sizeof(int));
+      sst->win_coefficient = (double **) HTS_utterance_calloc(arena, sst->win_size, sizeof(double *));
+      for (j = 0; j < sst->win_size; j++) {
+         sst->win_l_width[j] = HTS_ModelSet_get_window_left_width(ms, i, j);
+         sst->win_r_width[j] = HTS_ModelSet_get_window_right_width(ms, i, j);
+         sst->win_coefficient[j] = (double *) HTS_utterance_calloc(arena, sst->win_r_width[j] - sst->win_l_width[j] + 1, sizeof(double));
+         sst->win_coefficient[j] -= sst->win_l_width[j];
+         for (shift = sst->win_l_width[j]; shift <= sst->win_r_width[j]; shift++)
+            sst->win_coefficient[j][shift] = HTS_ModelSet_get_window_coefficient(ms, i, j, shift);
+      }
+   }
+
+   return TRUE;
+}
+
+/* kinds of compiled patterns */
+#define HTS_PATTERN_EXACT     0 /* no wildcard */
+#define HTS_PATTERN_PREFIX    1 /* "xxx*" */
+#define HTS_PATTERN_SUFFIX    2 /* "*xxx" */
+#define HTS_PATTERN_SUBSTRING 3 /* "*xxx*" */
+#define HTS_PATTERN_GLOB      4 /* any other combination of '*' and '?' */
+
+/* HTS_QuestionTable: questions already compiled, indexed by name (open addressing) */
+typedef struct _HTS_QuestionTable {
+   size_t size;                 /* size of the table (power of 2) */
+   size_t *entry;               /* index + 1 of the compiled question, 0 if empty */
+   HTS_Question **question;     /* original question of each compiled question */
+} HTS_QuestionTable;
+
+/* HTS_string_hash: hash of a string (djb2) */
+static size_t HTS_string_hash(const char *string)
+{
+   size_t hash = 5381;
+
+   if (string == NULL)
+      return hash;
+   while (*string != '\0')
+      hash = hash * 33 + (unsigned char) *string++;
+
+   return hash;
+}
+
+/* HTS_Question_equal: check if two questions have the same name and patterns */
+static HTS_Boolean HTS_Question_equal(HTS_Question * q1, HTS_Question * q2)
+{
+   HTS_Pattern *p1, *p2;
+
+   if (q1 == q2)
+      return TRUE;
+   if (q1->string == NULL || q2->string == NULL || strcmp(q1->string, q2->string) != 0)
+      return FALSE;
+   for (p1 = q1->head, p2 = q2->head; p1 != NULL && p2 != NULL; p1 = p1->next, p2 = p2->next)
+      if (strcmp(p1->string, p2->string) != 0)
+         return FALSE;
+
+   return (p1 == NULL && p2 == NULL) ? TRUE : FALSE;
+}
+
+/* HTS_glob_match: match a string against a pattern containing '*' and '?' wildcards */
+static HTS_Boolean HTS_glob_match(const char *string, const char *pattern)
+{
+   const char *star = NULL;
+   const char *back = NULL;
+
+   while (*string != '\0') {
+      if (*pattern == '*') {
+         star = pattern++;
+         back = string;
+      } else if (*pattern == '?' || *pattern == *string) {
+         pattern++;
+         string++;
+      } else if (star != NULL) {
+         pattern = star + 1;
+         string = ++back;
+      } else {
+         return FALSE;
+      }
+   }
+   while (*pattern == '*')
+      pattern++;
+
+   return (*pattern == '\0') ? TRUE : FALSE;
+}
+
+/* HTS_CompiledTrees_add_pattern: compile a pattern into the kind of matching it requires */
+static void HTS_CompiledTrees_add_pattern(HTS_CompiledTrees * ct, const char *pattern)
+{
+   size_t i;
+   size_t nstar = 0;
+   size_t nquestion = 0;
+   size_t length = strlen(pattern);
+   size_t index = ct->npattern++;
+   const char *start = pattern;
+   int kind;
+
+   for (i = 0; i < length; i++) {
+      if (pattern[i] == '*')
+         nstar++;
+      else if (pattern[i] == '?')
+         nquestion++;
+   }
+
+   if (nstar == 0 && nquestion == 0) {
+      kind = HTS_PATTERN_EXACT;
+   } else if (nquestion == 0 && nstar == 2 && pattern[0] == '*' && pattern[length - 1] == '*') {
+      kind = HTS_PATTERN_SUBSTRING;
+      start = pattern + 1;
+      length -= 2;
+   } else if (nquestion == 0 && nstar == 1 && pattern[length - 1] == '*') {
+      kind = HTS_PATTERN_PREFIX;
+      length -= 1;
+   } else if (nquestion == 0 && nstar == 1 && pattern[0] == '*') {
+      kind = HTS_PATTERN_SUFFIX;
+      start = pattern + 1;
+      length -= 1;
+   } else {
+      kind = HTS_PATTERN_GLOB;
+   }
+
+   ct->pattern_kind[index] = kind;
+   ct->pattern_length[index] = length;
+   ct->pattern_string[index] = (char *) HTS_calloc(length + 1, sizeof(char));
+   memcpy(ct->pattern_string[index], start, length);
+   ct->pattern_string[index][length] = '\0';
+}
+
+/* HTS_CompiledTrees_match_pattern: match a label (of the given length) against a compiled pattern */
+static HTS_Boolean HTS_CompiledTrees_match_pattern(HTS_CompiledTrees * ct, size_t index, const char *string, size_t length)
+{
+   const char *pattern = ct->pattern_string[index];
+   size_t n = ct->pattern_length[index];
+
+   switch (ct->pattern_kind[index]) {
+   case HTS_PATTERN_EXACT:
+      return (n == length && memcmp(string, pattern, n) == 0) ? TRUE : FALSE;
+   case HTS_PATTERN_PREFIX:
+      return (n <= length && memcmp(string, pattern, n) == 0) ? TRUE : FALSE;
+   case HTS_PATTERN_SUFFIX:
+      return (n <= length && memcmp(string + length - n, pattern, n) == 0) ? TRUE : FALSE;
+   case HTS_PATTERN_SUBSTRING:
+      return (strstr(string, pattern) != NULL) ? TRUE : FALSE;
+   default:
+      return HTS_glob_match(string, pattern);
+   }
+}
+
+/* HTS_CompiledTrees_match_question: match a label against a compiled question, each question is only evaluated once per label (memo) */
+static HTS_Boolean HTS_CompiledTrees_match_question(HTS_CompiledTrees * ct, size_t index, const char *string, size_t length, char *memo)
+{
+   size_t i;
+
+   if (memo[index] == 0) {
+      memo[index] = 2;
+      for (i = 0; i < ct->question_npattern[index]; i++) {
+         if (HTS_CompiledTrees_match_pattern(ct, ct->question_pattern[index] + i, string, length) == TRUE) {
+            memo[index] = 1;
+            break;
+         }
+      }
+   }
+
+   return (memo[index] == 1) ? TRUE : FALSE;
+}
+
+/* HTS_CompiledTrees_add_question: compile a question if no identical question has been compiled yet, return its index */
+static size_t HTS_CompiledTrees_add_question(HTS_CompiledTrees * ct, HTS_QuestionTable * table, HTS_Question * question)
+{
+   size_t index;
+   size_t slot = HTS_string_hash(question->string) & (table->size - 1);
+   HTS_Pattern *pattern;
+
+   while (table->entry[slot] != 0) {
+      if (HTS_Question_equal(table->question[table->entry[slot] - 1], question) == TRUE)
+         return table->entry[slot] - 1;
+      slot = (slot + 1) & (table->size - 1);
+   }
+
+   index = ct->nquestion++;
+   table->entry[slot] = index + 1;
+   table->question[index] = question;
+   ct->question_pattern[index] = ct->npattern;
+   ct->question_npattern[index] = 0;
+   for (pattern = question->head; pattern != NULL; pattern = pattern->next) {
+      HTS_CompiledTrees_add_pattern(ct, pattern->string);
+      ct->question_npattern[index]++;
+   }
+
+   return index;
+}
+
+/* HTS_Node_count: count the nodes of a (sub)tree */
+static size_t HTS_Node_count(HTS_Node * node)
+{
+   if (node == NULL || node->quest == NULL)
+      return 1;
+
+   return 1 + HTS_Node_count(node->yes) + HTS_Node_count(node->no);
+}
+
+/* HTS_CompiledTrees_add_node: flatten a (sub)tree, return the index of its root */
+static size_t HTS_CompiledTrees_add_node(HTS_CompiledTrees * ct, HTS_QuestionTable * table, HTS_Node * node)
+{
+   size_t index = ct->nnode++;
+
+   ct->node_pdf[index] = (node != NULL) ? node->pdf : 0;
+   if (node == NULL || node->quest == NULL) {
+      ct->node_question[index] = -1;
+      ct->node_yes[index] = index;
+      ct->node_no[index] = index;
+   } else {
+      ct->node_question[index] = (int) HTS_CompiledTrees_add_question(ct, table, node->quest);
+      ct->node_yes[index] = HTS_CompiledTrees_add_node(ct, table, node->yes);
+      ct->node_no[index] = HTS_CompiledTrees_add_node(ct, table, node->no);
+   }
+
+   return index;
+}
+
+/* HTS_CompiledTrees_search: walk a flattened tree as done by HTS_Tree_search_node, return the pdf index */
+static size_t HTS_CompiledTrees_search(HTS_CompiledTrees * ct, size_t node, const char *string, size_t length, char *memo)
+{
+   while (ct->node_question[node] >= 0) {
+      if (HTS_CompiledTrees_match_question(ct, (size_t) ct->node_question[node], string, length, memo) == TRUE)
+         node = ct->node_yes[node];
+      else
+         node = ct->node_no[node];
+      if (ct->node_pdf[node] > 0)
+         return ct->node_pdf[node];
+   }
+
+   return ct->node_pdf[node];
+}
+
+/* HTS_CompiledTrees_get_index: select the tree and the pdf of a model as done by HTS_Model_get_index */
+static void HTS_CompiledTrees_get_index(HTS_CompiledTrees * ct, size_t model, size_t state_index, const char *string, size_t length, char *memo, size_t * tree_index, size_t * pdf_index)
+{
+   size_t i, t;
+   size_t first = ct->model_tree[model];
+   size_t last = first + ct->model_ntree[model];
+   HTS_Boolean find = FALSE;
+
+   (*tree_index) = 2;
+   (*pdf_index) = 1;
+   if (first == last)
+      return;
+
+   for (t = first; t < last; t++) {
+      if (ct->tree_state[t] == state_index) {
+         if (ct->tree_npattern[t] == 0)
+            find = TRUE;
+         for (i = 0; i < ct->tree_npattern[t] && find == FALSE; i++)
+            find = HTS_CompiledTrees_match_pattern(ct, ct->tree_pattern[t] + i, string, length);
+         if (find == TRUE)
+            break;
+      }
+      (*tree_index)++;
+   }
+
+   (*pdf_index) = HTS_CompiledTrees_search(ct, ct->tree_root[(find == TRUE) ? t : first], string, length, memo);
+}
+
+/* HTS_CompiledTrees_fill_record: fill the record of a label (see HTS_Engine_get_label_record_size) */
+static void HTS_CompiledTrees_fill_record(HTS_CompiledTrees * ct, HTS_ModelSet * ms, const char *string, char *memo, double *record, size_t record_size)
+{
+   size_t i, j, k;
+   size_t len;
+   size_t tree_index, pdf_index;
+   size_t length = strlen(string);
+   size_t nstate = HTS_ModelSet_get_nstate(ms);
+   size_t nstream = HTS_ModelSet_get_nstream(ms);
+   float *pdf;
+
+   /* the values are accumulated as by HTS_Model_add_parameter with a weight of 1 */
+   for (i = 0; i < record_size; i++)
+      record[i] = 0.0;
+   for (i = 0; i < ct->nquestion; i++)
+      memo[i] = 0;
+
+   /* duration */
+   HTS_CompiledTrees_get_index(ct, 0, 2, string, length, memo, &tree_index, &pdf_index);
+   pdf = ct->model[0]->pdf[tree_index][pdf_index];
+   for (k = 0; k < nstate; k++)
+      record[k] += 1.0 * pdf[k];
+   record += nstate;
+
+   /* parameter */
+   for (i = 0; i < nstream; i++) {
+      len = ct->model[1 + i]->vector_length * ct->model[1 + i]->num_windows;
+      for (j = 2; j <= nstate + 1; j++) {
+         HTS_CompiledTrees_get_index(ct, 1 + i, j, string, length, memo, &tree_index, &pdf_index);
+         pdf = ct->model[1 + i]->pdf[tree_index][pdf_index];
+         for (k = 0; k < len; k++) {
+            record[k] += 1.0 * pdf[k];
+            record[k + len] += 1.0 * pdf[k + len];
+         }
+         record += 2 * len;
+         if (HTS_ModelSet_is_msd(ms, i)) {
+            *record += 1.0 * pdf[len + len];
+            record++;
+         }
+      }
+   }
+
+   /* GV */
+   for (i = 0; i < nstream; i++) {
+      if (ct->model[1 + nstream + i] != NULL) {
+         len = ct->model[1 + nstream + i]->vector_length;
+         HTS_CompiledTrees_get_index(ct, 1 + nstream + i, 2, string, length, memo, &tree_index, &pdf_index);
+         pdf = ct->model[1 + nstream + i]->pdf[tree_index][pdf_index];
+         for (k = 0; k < len; k++) {
+            record[k] += 1.0 * pdf[k];
+            record[k + len] += 1.0 * pdf[k + len];
+         }
+         record += 2 * len;
+      }
+   }
+   if (ct->gv_off_context >= 0 && HTS_CompiledTrees_match_question(ct, (size_t) ct->gv_off_context, string, length, memo) == TRUE)
+      *record = 0.0;
+   else
+      *record = 1.0;
+}
+
+/* Helper to compile the decision trees of the (single) voice of an engine: the trees are flattened into arrays, each
+   pattern is compiled into the kind of matching it requires and identical questions of the different models are shared
+   so they are evaluated once per label. The model set has to stay loaded as long as the compiled trees are used */
+HTS_CompiledTrees *HTS_CompiledTrees_new(HTS_Engine * engine)
+{
+   size_t i, m;
+   size_t max_question = 0;
+   size_t max_pattern = 0;
+   size_t ntree = 0;
+   size_t nnode = 0;
+   HTS_CompiledTrees *ct;
+   HTS_QuestionTable table;
+   HTS_Question *question;
+   HTS_Pattern *pattern;
+   HTS_Tree *tree;
+   HTS_ModelSet *ms = &engine->ms;
+   size_t nstream = HTS_ModelSet_get_nstream(ms);
+
+   if (HTS_ModelSet_get_nvoices(ms) != 1) {
+      HTS_error(1, "HTS_CompiledTrees_new: The trees can only be compiled for a single voice.\n");
+      return NULL;
+   }
+
+   /* models: duration, streams and GV */
+   ct = (HTS_CompiledTrees *) HTS_calloc(1, sizeof(HTS_CompiledTrees));
+   ct->nmodel = 1 + 2 * nstream;
+   ct->model = (HTS_Model **) HTS_calloc(ct->nmodel, sizeof(HTS_Model *));
+   ct->model[0] = &ms->duration[0];
+   for (i = 0; i < nstream; i++) {
+      ct->model[1 + i] = &ms->stream[0][i];
+      ct->model[1 + nstream + i] = HTS_ModelSet_use_gv(ms, i) ? &ms->gv[0][i] : NULL;
+   }
+
+   /* count */
+   for (question = ms->gv_off_context; question != NULL; question = question->next) {
+      max_question++;
+      for (pattern = question->head; pattern != NULL; pattern = pattern->next)
+         max_pattern++;
+   }
+   for (m = 0; m < ct->nmodel; m++) {
+      if (ct->model[m] == NULL)
+         continue;
+      for (question = ct->model[m]->question; question != NULL; question = question->next) {
+         max_question++;
+         for (pattern = question->head; pattern != NULL; pattern = pattern->next)
+            max_pattern++;
+      }
+      for (tree = ct->model[m]->tree; tree != NULL; tree = tree->next) {
+         ntree++;
+         nnode += HTS_Node_count(tree->root);
+         for (pattern = tree->head; pattern != NULL; pattern = pattern->next)
+            max_pattern++;
+      }
+   }
+
+   /* allocate */
+   ct->pattern_kind = (int *) HTS_calloc(max_pattern + 1, sizeof(int));
+   ct->pattern_string = (char **) HTS_calloc(max_pattern + 1, sizeof(char *));
+   ct->pattern_length = (size_t *) HTS_calloc(max_pattern + 1, sizeof(size_t));
+   ct->question_pattern = (size_t *) HTS_calloc(max_question + 1, sizeof(size_t));
+   ct->question_npattern = (size_t *) HTS_calloc(max_question + 1, sizeof(size_t));
+   ct->tree_state = (size_t *) HTS_calloc(ntree + 1, sizeof(size_t));
+   ct->tree_pattern = (size_t *) HTS_calloc(ntree + 1, sizeof(size_t));
+   ct->tree_npattern = (size_t *) HTS_calloc(ntree + 1, sizeof(size_t));
+   ct->tree_root = (size_t *) HTS_calloc(ntree + 1, sizeof(size_t));
+   ct->node_question = (int *) HTS_calloc(nnode + 1, sizeof(int));
+   ct->node_yes = (size_t *) HTS_calloc(nnode + 1, sizeof(size_t));
+   ct->node_no = (size_t *) HTS_calloc(nnode + 1, sizeof(size_t));
+   ct->node_pdf = (size_t *) HTS_calloc(nnode + 1, sizeof(size_t));
+   ct->model_tree = (size_t *) HTS_calloc(ct->nmodel, sizeof(size_t));
+   ct->model_ntree = (size_t *) HTS_calloc(ct->nmodel, sizeof(size_t));
+   for (table.size = 16; table.size < 2 * max_question; table.size *= 2);
+   table.entry = (size_t *) HTS_calloc(table.size, sizeof(size_t));
+   table.question = (HTS_Question **) HTS_calloc(max_question + 1, sizeof(HTS_Question *));
+
+   /* compile */
+   ct->gv_off_context = (ms->gv_off_context != NULL) ? (int) HTS_CompiledTrees_add_question(ct, &table, ms->gv_off_context) : -1;
+   for (m = 0; m < ct->nmodel; m++) {
+      ct->model_tree[m] = ct->ntree;
+      if (ct->model[m] == NULL)
+         continue;
+      for (tree = ct->model[m]->tree; tree != NULL; tree = tree->next) {
+         ct->tree_state[ct->ntree] = tree->state;
+         ct->tree_pattern[ct->ntree] = ct->npattern;
+         for (pattern = tree->head; pattern != NULL; pattern = pattern->next) {
+            HTS_CompiledTrees_add_pattern(ct, pattern->string);
+            ct->tree_npattern[ct->ntree]++;
+         }
+         ct->tree_root[ct->ntree] = HTS_CompiledTrees_add_node(ct, &table, tree->root);
+         ct->ntree++;
+         ct->model_ntree[m]++;
+      }
+   }
+
+   HTS_free(table.entry);
+   HTS_free(table.question);
+
+   return ct;
+}
+
+/* Helper to fill the record of one loaded label using compiled trees (same values as HTS_Engine_get_label_record) */
+HTS_Boolean HTS_CompiledTrees_get_label_record(HTS_CompiledTrees * ct, HTS_Engine * engine, size_t label_index, double *record, size_t record_size)
+{
+   char *memo;
+
+   if (label_index >= HTS_Label_get_size(&engine->label) || record_size < HTS_Engine_get_label_record_size(engine))
+      return FALSE;
+
+   memo = (char *) HTS_calloc(ct->nquestion + 1, sizeof(char));
+   HTS_CompiledTrees_fill_record(ct, &engine->ms, HTS_Label_get_string(&engine->label, label_index), memo, record, record_size);
+   HTS_free(memo);
+
+   return TRUE;
+}
+
+/* Helper to generate the state sequence of the loaded labels using compiled trees instead of the decision trees of the model set.
+   If no compiled trees are given, the records are filled by walking the decision trees, so the state sequence can still be
+   allocated in the arena */
+HTS_Boolean HTS_CompiledTrees_generate_state_sequence(HTS_CompiledTrees * ct, HTS_Engine * engine, HTS_Arena * arena)
+{
+   size_t i;
+   HTS_Boolean result = TRUE;
+   double *records;
+   char *memo = NULL;
+   size_t nlabel = HTS_Label_get_size(&engine->label);
+   size_t record_size = HTS_Engine_get_label_record_size(engine);
+
+   if (nlabel == 0)
+      return FALSE;
+
+   records = (double *) HTS_calloc(nlabel * record_size, sizeof(double));
+   if (ct != NULL) {
+      memo = (char *) HTS_calloc(ct->nquestion + 1, sizeof(char));
+      for (i = 0; i < nlabel; i++)
+         HTS_CompiledTrees_fill_record(ct, &engine->ms, HTS_Label_get_string(&engine->label, i), memo, records + i * record_size, record_size);
+   } else {
+      for (i = 0; i < nlabel && result == TRUE; i++)
+         result = HTS_Engine_get_label_record(engine, i, records + i * record_size, record_size);
+   }
+   if (result == TRUE)
+      result = HTS_Engine_generate_state_sequence_from_records(engine, records, nlabel * record_size, arena);
+   if (memo != NULL)
+      HTS_free(memo);
+   HTS_free(records);
+
+   return result;
+}
+
+/* Helper to free compiled trees */
+void HTS_CompiledTrees_delete(HTS_CompiledTrees * ct)
+{
+   size_t i;
+
+   if (ct == NULL)
+      return;
+
+   for (i = 0; i < ct->npattern; i++)
+      HTS_free(ct->pattern_string[i]);
+   HTS_free(ct->pattern_kind);
+   HTS_free(ct->pattern_string);
+   HTS_free(ct->pattern_length);
+   HTS_free(ct->question_pattern);
+   HTS_free(ct->question_npattern);
+   HTS_free(ct->tree_state);
+   HTS_free(ct->tree_pattern);
+   HTS_free(ct->tree_npattern);
+   HTS_free(ct->tree_root);
+   HTS_free(ct->node_question);
+   HTS_free(ct->node_yes);
+   HTS_free(ct->node_no);
+   HTS_free(ct->node_pdf);
+   HTS_free(ct->model_tree);
+   HTS_free(ct->model_ntree);
+   HTS_free(ct->model);
+   HTS_free(ct);
+}
+
+/* Helper to create an arena, block_size = 0 uses the default block size */
+HTS_Arena *HTS_Arena_new(size_t block_size)
+{
+   HTS_Arena *arena = (HTS_Arena *) HTS_calloc(1, sizeof(HTS_Arena));
+
+   arena->head = NULL;
+   arena->spare = NULL;
+   arena->block_size = HTS_ARENA_ROUND((block_size > 0) ? block_size : HTS_ARENA_BLOCK_SIZE);
+   arena->allocated = 0;
+
+   return arena;
+}
+
+/* Helper to allocate a zeroed array in an arena. As HTS_calloc, NULL is returned for an empty array. The smallest block
+   kept by HTS_Arena_reset which is large enough is reused, a new block is allocated otherwise. An allocation larger than the block
+   size gets its own block which is put behind the current one so the rest of the current block is kept */
+void *HTS_Arena_calloc(HTS_Arena * arena, size_t num, size_t size)
+{
+   size_t total = HTS_ARENA_ROUND(num * size);
+   size_t block_size;
+   HTS_ArenaBlock *block = arena->head;
+   HTS_ArenaBlock **spare;
+   HTS_ArenaBlock **best;
+   char *p;
+
+   if (total == 0)
+      return NULL;
+
+   if (block == NULL || block->size - block->used < total) {
+      block_size = (total > arena->block_size) ? total : arena->block_size;
+
+      /* smallest spare block large enough */
+      best = NULL;
+      for (spare = &arena->spare; *spare != NULL; spare = &(*spare)->next)
+         if ((*spare)->size >= block_size && (best == NULL || (*spare)->size < (*best)->size))
+            best = spare;
+      if (best != NULL) {
+         block = *best;
+         *best = block->next;
+         block_size = block->size;
+      } else {
+         block = (HTS_ArenaBlock *) HTS_calloc(1, HTS_ARENA_HEADER_SIZE + block_size);
+         block->size = block_size;
+         arena->allocated += block_size;
+      }
+      block->used = 0;
+
+      if (block_size > arena->block_size && arena->head != NULL) {
+         block->next = arena->head->next;
+         arena->head->next = block;
+      } else {
+         block->next = arena->head;
+         arena->head = block;
+      }
+   }
+
+   p = (char *) block + HTS_ARENA_HEADER_SIZE + block->used;
+   block->used += total;
+   memset(p, 0, total);
+
+   return p;
+}
+
+/* Helper to release all the allocations of an arena at once but keep its blocks for the next allocations. The blocks
+   beyond max_size bytes are freed, the blocks larger than the block size (left by unusually large allocations) first */
+void HTS_Arena_reset(HTS_Arena * arena, size_t max_size)
+{
+   HTS_ArenaBlock *block;
+   HTS_ArenaBlock **spare;
+
+   /* all the blocks are spare */
+   while (arena->head != NULL) {
+      block = arena->head;
+      arena->head = block->next;
+      block->used = 0;
+      block->next = arena->spare;
+      arena->spare = block;
+   }
+
+   /* trim the large blocks then the others */
+   for (spare = &arena->spare; *spare != NULL && arena->allocated > max_size;) {
+      block = *spare;
+      if (block->size > arena->block_size) {
+         *spare = block->next;
+         arena->allocated -= block->size;
+         HTS_free(block);
+      } else {
+         spare = &block->next;
+      }
+   }
+   while (arena->spare != NULL && arena->allocated > max_size) {
+      block = arena->spare;
+      arena->spare = block->next;
+      arena->allocated -= block->size;
+      HTS_free(block);
+   }
+}
+
+/* Helper to get the number of bytes reserved by an arena */
+size_t HTS_Arena_get_size(HTS_Arena * arena)
+{
+   return arena->allocated;
+}
+
+/* Helper to free an arena and all its allocations */
+void HTS_Arena_delete(HTS_Arena * arena)
+{
+   if (arena == NULL)
+      return;
+
+   HTS_Arena_reset(arena, 0);
+   HTS_free(arena);
+}
+
+/* marker starting a voice image, it doesn't match for an image saved with an other word size or byte order */
+#define HTS_IMAGE_MARKER ((size_t) 0x48545331)
+
+/* value stored for a missing string or the question of a leaf */
+#define HTS_IMAGE_NONE ((size_t) -1)
+
+/* alignment of the sections of a voice image */
+#define HTS_IMAGE_ALIGN 8
+
+/* HTS_ImageWriter: cursor saving a voice image, only counting the bytes when data is NULL */
+typedef struct _HTS_ImageWriter {
+   char *data;                  /* image, NULL to compute its size */
+   size_t size;                 /* size of the image */
+   size_t pos;                  /* # of bytes already written */
+} HTS_ImageWriter;
+
+/* HTS_ImageReader: cursor loading a voice image */
+typedef struct _HTS_ImageReader {
+   char *data;                  /* image */
+   size_t size;                 /* size of the image */
+   size_t pos;                  /* # of bytes already read */
+   HTS_Boolean error;           /* set when the image is truncated or inconsistent */
+} HTS_ImageReader;
+
+/* HTS_ImageWriter_write: append bytes to the image */
+static void HTS_ImageWriter_write(HTS_ImageWriter * w, const void *p, size_t n)
+{
+   if (w->data != NULL && n > 0 && w->pos + n <= w->size)
+      memcpy(w->data + w->pos, p, n);
+   w->pos += n;
+}
+
+/* HTS_ImageWriter_align: pad the image to the alignment of the sections */
+static void HTS_ImageWriter_align(HTS_ImageWriter * w)
+{
+   static const char padding[HTS_IMAGE_ALIGN] = { 0 };
+
+   HTS_ImageWriter_write(w, padding, (HTS_IMAGE_ALIGN - w->pos % HTS_IMAGE_ALIGN) % HTS_IMAGE_ALIGN);
+}
+
+/* HTS_ImageWriter_write_size: append a size (or a signed value converted to a size) */
+static void HTS_ImageWriter_write_size(HTS_ImageWriter * w, size_t value)
+{
+   HTS_ImageWriter_write(w, &value, sizeof(size_t));
+}
+
+/* HTS_ImageWriter_write_string: append a string with its length and terminating character */
+static void HTS_ImageWriter_write_string(HTS_ImageWriter * w, const char *string)
+{
+   size_t length;
+
+   if (string == NULL) {
+      HTS_ImageWriter_write_size(w, HTS_IMAGE_NONE);
+      return;
+   }
+
+   length = strlen(string);
+   HTS_ImageWriter_write_size(w, length);
+   HTS_ImageWriter_write(w, string, length + 1);
+   HTS_ImageWriter_align(w);
+}
+
+/* HTS_ImageWriter_write_question: append the name and the patterns of a question */
+static void HTS_ImageWriter_write_question(HTS_ImageWriter * w, HTS_Question * question)
+{
+   size_t npattern = 0;
+   HTS_Pattern *pattern;
+
+   for (pattern = question->head; pattern != NULL; pattern = pattern->next)
+      npattern++;
+
+   HTS_ImageWriter_write_string(w, question->string);
+   HTS_ImageWriter_write_size(w, npattern);
+   for (pattern = question->head; pattern != NULL; pattern = pattern->next)
+      HTS_ImageWriter_write_string(w, pattern->string);
+}
+
+/* HTS_ImageWriter_write_node: append a (sub)tree in preorder, questions given by their index in the model */
+static HTS_Boolean HTS_ImageWriter_write_node(HTS_ImageWriter * w, HTS_Node * node, HTS_Question ** questions, size_t nquestion)
+{
+   size_t i;
+
+   if (node == NULL)
+      return FALSE;
+
+   HTS_ImageWriter_write_size(w, (size_t) node->index);
+   HTS_ImageWriter_write_size(w, node->pdf);
+   if (node->quest == NULL) {
+      HTS_ImageWriter_write_size(w, HTS_IMAGE_NONE);
+      return TRUE;
+   }
+
+   for (i = 0; i < nquestion && questions[i] != node->quest; i++);
+   if (i == nquestion)
+      return FALSE;
+   HTS_ImageWriter_write_size(w, i);
+
+   if (HTS_ImageWriter_write_node(w, node->yes, questions, nquestion) != TRUE)
+      return FALSE;
+   return HTS_ImageWriter_write_node(w, node->no, questions, nquestion);
+}
+
+/* HTS_ImageWriter_write_model: append the questions, the trees and the PDFs of a model */
+static HTS_Boolean HTS_ImageWriter_write_model(HTS_ImageWriter * w, HTS_Model * model)
+{
+   size_t i, j, nquestion = 0, ntree = 0, npattern, len;
+   HTS_Question *question, **questions = NULL;
+   HTS_Tree *tree;
+   HTS_Pattern *pattern;
+   HTS_Boolean result = TRUE;
+
+   HTS_ImageWriter_write_size(w, model->vector_length);
+   HTS_ImageWriter_write_size(w, model->num_windows);
+   HTS_ImageWriter_write_size(w, (model->is_msd == TRUE) ? 1 : 0);
+   HTS_ImageWriter_write_size(w, model->ntree);
+
+   /* questions */
+   for (question = model->question; question != NULL; question = question->next)
+      nquestion++;
+   HTS_ImageWriter_write_size(w, nquestion);
+   if (nquestion > 0)
+      questions = (HTS_Question **) HTS_calloc(nquestion, sizeof(HTS_Question *));
+   for (i = 0, question = model->question; question != NULL; question = question->next, i++) {
+      questions[i] = question;
+      HTS_ImageWriter_write_question(w, question);
+   }
+
+   /* trees */
+   for (tree = model->tree; tree != NULL && result == TRUE; tree = tree->next) {
+      npattern = 0;
+      for (pattern = tree->head; pattern != NULL; pattern = pattern->next)
+         npattern++;
+      HTS_ImageWriter_write_size(w, tree->state);
+      HTS_ImageWriter_write_size(w, npattern);
+      for (pattern = tree->head; pattern != NULL; pattern = pattern->next)
+         HTS_ImageWriter_write_string(w, pattern->string);
+      HTS_ImageWriter_write_size(w, HTS_Node_count(tree->root));
+      result = HTS_ImageWriter_write_node(w, tree->root, questions, nquestion);
+      ntree++;
+   }
+   if (questions != NULL)
+      HTS_free(questions);
+   if (result != TRUE || ntree != model->ntree)
+      return FALSE;
+
+   /* PDFs (trees and PDFs are indexed from 2 and 1 as in HTS_Model) */
+   len = model->vector_length * model->num_windows * 2 + ((model->is_msd == TRUE) ? 1 : 0);
+   for (i = 2; i <= model->ntree + 1; i++) {
+      HTS_ImageWriter_write_size(w, model->npdf[i]);
+      for (j = 1; j <= model->npdf[i]; j++)
+         HTS_ImageWriter_write(w, model->pdf[i][j], len * sizeof(float));
+      HTS_ImageWriter_align(w);
+   }
+
+   return TRUE;
+}
+
+/* HTS_ImageWriter_write_engine: append the model set and the default condition of the (single) voice of an engine */
+static HTS_Boolean HTS_ImageWriter_write_engine(HTS_ImageWriter * w, HTS_Engine * engine)
+{
+   size_t i, j;
+   int shift;
+   HTS_ModelSet *ms = &engine->ms;
+   HTS_Question *question;
+
+   if (ms->num_voices != 1 || ms->num_streams == 0)
+      return FALSE;
+
+   HTS_ImageWriter_write_size(w, HTS_IMAGE_MARKER);
+   HTS_ImageWriter_write_size(w, ms->sampling_frequency);
+   HTS_ImageWriter_write_size(w, ms->frame_period);
+   HTS_ImageWriter_write_size(w, ms->num_states);
+   HTS_ImageWriter_write_size(w, ms->num_streams);
+   HTS_ImageWriter_write_string(w, ms->hts_voice_version);
+   HTS_ImageWriter_write_string(w, ms->stream_type);
+   HTS_ImageWriter_write_string(w, ms->fullcontext_format);
+   HTS_ImageWriter_write_string(w, ms->fullcontext_version);
+
+   /* GV switch */
+   i = 0;
+   for (question = ms->gv_off_context; question != NULL; question = question->next)
+      i++;
+   HTS_ImageWriter_write_size(w, i);
+   for (question = ms->gv_off_context; question != NULL; question = question->next)
+      HTS_ImageWriter_write_question(w, question);
+
+   /* options and windows */
+   for (i = 0; i < ms->num_streams; i++)
+      HTS_ImageWriter_write_string(w, ms->option[i]);
+   for (i = 0; i < ms->num_streams; i++) {
+      HTS_ImageWriter_write_size(w, ms->window[i].size);
+      HTS_ImageWriter_write_size(w, ms->window[i].max_width);
+      for (j = 0; j < ms->window[i].size; j++) {
+         HTS_ImageWriter_write_size(w, (size_t) ms->window[i].l_width[j]);
+         HTS_ImageWriter_write_size(w, (size_t) ms->window[i].r_width[j]);
+         HTS_ImageWriter_align(w);
+         for (shift = ms->window[i].l_width[j]; shift <= ms->window[i].r_width[j]; shift++)
+            HTS_ImageWriter_write(w, &ms->window[i].coefficient[j][shift], sizeof(double));
+      }
+   }
+
+   /* models */
+   if (HTS_ImageWriter_write_model(w, &ms->duration[0]) != TRUE)
+      return FALSE;
+   for (i = 0; i < ms->num_streams; i++)
+      if (HTS_ImageWriter_write_model(w, &ms->stream[0][i]) != TRUE)
+         return FALSE;
+   for (i = 0; i < ms->num_streams; i++)
+      if (HTS_ImageWriter_write_model(w, &ms->gv[0][i]) != TRUE)
+         return FALSE;
+
+   /* condition set by HTS_Engine_load from the options of the voice */
+   HTS_ImageWriter_write_size(w, engine->condition.stage);
+   HTS_ImageWriter_write_size(w, (engine->condition.use_log_gain == TRUE) ? 1 : 0);
+   HTS_ImageWriter_write(w, &engine->condition.alpha, sizeof(double));
+   HTS_ImageWriter_write(w, engine->condition.msd_threshold, ms->num_streams * sizeof(double));
+   HTS_ImageWriter_write(w, engine->condition.gv_weight, ms->num_streams * sizeof(double));
+
+   return TRUE;
+}
+
+/* HTS_ImageReader_read: get the next bytes of the image (in place), NULL if the image is too short */
+static void *HTS_ImageReader_read(HTS_ImageReader * r, size_t n)
+{
+   void *p;
+
+   if (r->error == TRUE || n > r->size - r->pos) {
+      r->error = TRUE;
+      return NULL;
+   }
+
+   p = r->data + r->pos;
+   r->pos += n;
+
+   return p;
+}
+
+/* HTS_ImageReader_align: skip the padding of a section */
+static void HTS_ImageReader_align(HTS_ImageReader * r)
+{
+   HTS_ImageReader_read(r, (HTS_IMAGE_ALIGN - r->pos % HTS_IMAGE_ALIGN) % HTS_IMAGE_ALIGN);
+}
+
+/* HTS_ImageReader_read_size: read a size, 0 if the image is too short */
+static size_t HTS_ImageReader_read_size(HTS_ImageReader * r)
+{
+   size_t value = 0;
+   void *p = HTS_ImageReader_read(r, sizeof(size_t));
+
+   if (p != NULL)
+      memcpy(&value, p, sizeof(size_t));
+
+   return value;
+}
+
+/* HTS_ImageReader_read_double: read a double, 0 if the image is too short */
+static double HTS_ImageReader_read_double(HTS_ImageReader * r)
+{
+   double value = 0.0;
+   void *p = HTS_ImageReader_read(r, sizeof(double));
+
+   if (p != NULL)
+      memcpy(&value, p, sizeof(double));
+
+   return value;
+}
+
+/* HTS_ImageReader_read_count: read a number of items stored on at least item_size bytes each */
+static size_t HTS_ImageReader_read_count(HTS_ImageReader * r, size_t item_size)
+{
+   size_t count = HTS_ImageReader_read_size(r);
+
+   if (r->error == TRUE || (item_size > 0 && count > (r->size - r->pos) / item_size)) {
+      r->error = TRUE;
+      return 0;
+   }
+
+   return count;
+}
+
+/* HTS_ImageReader_read_string: get the next string of the image (in place) */
+static char *HTS_ImageReader_read_string(HTS_ImageReader * r)
+{
+   size_t length = HTS_ImageReader_read_size(r);
+   char *string;
+
+   if (r->error == TRUE || length == HTS_IMAGE_NONE)
+      return NULL;
+
+   string = (char *) HTS_ImageReader_read(r, length + 1);
+   if (string != NULL && string[length] != '\0')
+      r->error = TRUE;
+   HTS_ImageReader_align(r);
+
+   return (r->error == TRUE) ? NULL : string;
+}
+
+/* HTS_ImageReader_read_patterns: read a list of patterns */
+static HTS_Pattern *HTS_ImageReader_read_patterns(HTS_ImageReader * r, HTS_Arena * arena)
+{
+   size_t i;
+   size_t npattern = HTS_ImageReader_read_count(r, sizeof(size_t));
+   HTS_Pattern *patterns = (HTS_Pattern *) HTS_Arena_calloc(arena, npattern, sizeof(HTS_Pattern));
+
+   for (i = 0; i < npattern; i++) {
+      patterns[i].string = HTS_ImageReader_read_string(r);
+      patterns[i].next = (i + 1 < npattern) ? &patterns[i + 1] : NULL;
+   }
+
+   return patterns;
+}
+
+/* HTS_ImageReader_read_questions: read a list of questions */
+static HTS_Question *HTS_ImageReader_read_questions(HTS_ImageReader * r, HTS_Arena * arena, size_t nquestion)
+{
+   size_t i;
+   HTS_Question *questions = (HTS_Question *) HTS_Arena_calloc(arena, nquestion, sizeof(HTS_Question));
+
+   for (i = 0; i < nquestion; i++) {
+      questions[i].string = HTS_ImageReader_read_string(r);
+      questions[i].head = HTS_ImageReader_read_patterns(r, arena);
+      questions[i].next = (i + 1 < nquestion) ? &questions[i + 1] : NULL;
+   }
+
+   return questions;
+}
+
+/* HTS_ImageReader_read_node: read a (sub)tree stored in preorder into the next nodes of the tree */
+static HTS_Node *HTS_ImageReader_read_node(HTS_ImageReader * r, HTS_Node * nodes, size_t nnode, size_t * next, HTS_Question * questions, size_t nquestion)
+{
+   HTS_Node *node;
+   size_t question;
+
+   if (r->error == TRUE || *next >= nnode) {
+      r->error = TRUE;
+      return NULL;
+   }
+
+   node = &nodes[(*next)++];
+   node->index = (int) HTS_ImageReader_read_size(r);
+   node->pdf = HTS_ImageReader_read_size(r);
+   node->next = (*next < nnode) ? &nodes[*next] : NULL;
+   question = HTS_ImageReader_read_size(r);
+   if (question == HTS_IMAGE_NONE) {
+      node->quest = NULL;
+      node->yes = NULL;
+      node->no = NULL;
+      return node;
+   }
+   if (question >= nquestion) {
+      r->error = TRUE;
+      return NULL;
+   }
+
+   node->quest = &questions[question];
+   node->yes = HTS_ImageReader_read_node(r, nodes, nnode, next, questions, nquestion);
+   node->no = HTS_ImageReader_read_node(r, nodes, nnode, next, questions, nquestion);
+
+   return node;
+}
+
+/* HTS_Node_check_pdf: check that the leaves of a (sub)tree refer to existing PDFs */
+static HTS_Boolean HTS_Node_check_pdf(HTS_Node * node, size_t npdf)
+{
+   if (node == NULL)
+      return FALSE;
+   if (node->quest == NULL)
+      return (node->pdf >= 1 && node->pdf <= npdf) ? TRUE : FALSE;
+
+   return (HTS_Node_check_pdf(node->yes, npdf) == TRUE && HTS_Node_check_pdf(node->no, npdf) == TRUE) ? TRUE : FALSE;
+}
+
+/* HTS_ImageReader_read_model: read a model, the PDFs are kept in the image */
+static void HTS_ImageReader_read_model(HTS_ImageReader * r, HTS_Arena * arena, HTS_Model * model)
+{
+   size_t i, j, nquestion, nnode, next, len;
+   HTS_Tree *trees;
+   HTS_Node *nodes;
+   float *pdf;
+
+   model->vector_length = HTS_ImageReader_read_size(r);
+   model->num_windows = HTS_ImageReader_read_size(r);
+   model->is_msd = (HTS_ImageReader_read_size(r) != 0) ? TRUE : FALSE;
+   model->ntree = HTS_ImageReader_read_count(r, sizeof(size_t));
+
+   /* questions */
+   nquestion = HTS_ImageReader_read_count(r, sizeof(size_t));
+   model->question = HTS_ImageReader_read_questions(r, arena, nquestion);
+
+   /* trees */
+   trees = (HTS_Tree *) HTS_Arena_calloc(arena, model->ntree, sizeof(HTS_Tree));
+   for (i = 0; i < model->ntree && r->error != TRUE; i++) {
+      trees[i].state = HTS_ImageReader_read_size(r);
+      trees[i].head = HTS_ImageReader_read_patterns(r, arena);
+      nnode = HTS_ImageReader_read_count(r, sizeof(size_t));
+      nodes = (HTS_Node *) HTS_Arena_calloc(arena, nnode, sizeof(HTS_Node));
+      next = 0;
+      trees[i].root = HTS_ImageReader_read_node(r, nodes, nnode, &next, model->question, nquestion);
+      if (next != nnode)
+         r->error = TRUE;
+      trees[i].next = (i + 1 < model->ntree) ? &trees[i + 1] : NULL;
+   }
+   model->tree = trees;
+   if (r->error == TRUE || model->ntree == 0) {
+      model->npdf = NULL;
+      model->pdf = NULL;
+      return;
+   }
+
+   /* PDFs (trees and PDFs are indexed from 2 and 1 as in HTS_Model) */
+   len = model->vector_length * model->num_windows * 2 + ((model->is_msd == TRUE) ? 1 : 0);
+   model->npdf = (size_t *) HTS_Arena_calloc(arena, model->ntree, sizeof(size_t));
+   model->npdf -= 2;
+   model->pdf = (float ***) HTS_Arena_calloc(arena, model->ntree, sizeof(float **));
+   model->pdf -= 2;
+   for (i = 2; i <= model->ntree + 1 && r->error != TRUE; i++) {
+      model->npdf[i] = HTS_ImageReader_read_count(r, len * sizeof(float));
+      pdf = (float *) HTS_ImageReader_read(r, model->npdf[i] * len * sizeof(float));
+      HTS_ImageReader_align(r);
+      if (model->npdf[i] == 0 || pdf == NULL || HTS_Node_check_pdf(trees[i - 2].root, model->npdf[i]) != TRUE) {
+         r->error = TRUE;
+         break;
+      }
+      model->pdf[i] = (float **) HTS_Arena_calloc(arena, model->npdf[i], sizeof(float *));
+      model->pdf[i]--;
+      for (j = 1; j <= model->npdf[i]; j++)
+         model->pdf[i][j] = pdf + (j - 1) * len;
+   }
+}
+
+/* HTS_ImageReader_read_model_set: read the model set of a voice image */
+static void HTS_ImageReader_read_model_set(HTS_ImageReader * r, HTS_Arena * arena, HTS_ModelSet * ms)
+{
+   size_t i, j, n;
+   int shift;
+   double *coefficient;
+
+   if (HTS_ImageReader_read_size(r) != HTS_IMAGE_MARKER) {
+      r->error = TRUE;
+      return;
+   }
+
+   ms->num_voices = 1;
+   ms->sampling_frequency = HTS_ImageReader_read_size(r);
+   ms->frame_period = HTS_ImageReader_read_size(r);
+   ms->num_states = HTS_ImageReader_read_size(r);
+   ms->num_streams = HTS_ImageReader_read_count(r, sizeof(size_t));
+   ms->hts_voice_version = HTS_ImageReader_read_string(r);
+   ms->stream_type = HTS_ImageReader_read_string(r);
+   ms->fullcontext_format = HTS_ImageReader_read_string(r);
+   ms->fullcontext_version = HTS_ImageReader_read_string(r);
+   if (r->error == TRUE || ms->num_streams == 0 || ms->num_states == 0) {
+      r->error = TRUE;
+      return;
+   }
+
+   /* GV switch */
+   n = HTS_ImageReader_read_count(r, sizeof(size_t));
+   ms->gv_off_context = HTS_ImageReader_read_questions(r, arena, n);
+
+   /* options and windows */
+   ms->option = (char **) HTS_Arena_calloc(arena, ms->num_streams, sizeof(char *));
+   for (i = 0; i < ms->num_streams; i++)
+      ms->option[i] = HTS_ImageReader_read_string(r);
+   ms->window = (HTS_Window *) HTS_Arena_calloc(arena, ms->num_streams, sizeof(HTS_Window));
+   for (i = 0; i < ms->num_streams && r->error != TRUE; i++) {
+      ms->window[i].size = HTS_ImageReader_read_count(r, 2 * sizeof(size_t));
+      ms->window[i].max_width = HTS_ImageReader_read_size(r);
+      ms->window[i].l_width = (int *) HTS_Arena_calloc(arena, ms->window[i].size, sizeof(int));
+      ms->window[i].r_width = (int *) HTS_Arena_calloc(arena, ms->window[i].size, sizeof(int));
+      ms->window[i].coefficient = (double **) HTS_Arena_calloc(arena, ms->window[i].size, sizeof(double *));
+      for (j = 0; j < ms->window[i].size && r->error != TRUE; j++) {
+         ms->window[i].l_width[j] = (int) HTS_ImageReader_read_size(r);
+         ms->window[i].r_width[j] = (int) HTS_ImageReader_read_size(r);
+         if (ms->window[i].r_width[j] < ms->window[i].l_width[j]) {
+            r->error = TRUE;
+            break;
+         }
+         HTS_ImageReader_align(r);
+         shift = ms->window[i].r_width[j] - ms->window[i].l_width[j];
+         coefficient = (double *) HTS_ImageReader_read(r, ((size_t) shift + 1) * sizeof(double));
+         if (coefficient != NULL)
+            ms->window[i].coefficient[j] = coefficient - ms->window[i].l_width[j];
+      }
+   }
+   if (r->error == TRUE)
+      return;
+
+   /* models */
+   ms->duration = (HTS_Model *) HTS_Arena_calloc(arena, 1, sizeof(HTS_Model));
+   HTS_ImageReader_read_model(r, arena, &ms->duration[0]);
+   ms->stream = (HTS_Model **) HTS_Arena_calloc(arena, 1, sizeof(HTS_Model *));
+   ms->stream[0] = (HTS_Model *) HTS_Arena_calloc(arena, ms->num_streams, sizeof(HTS_Model));
+   for (i = 0; i < ms->num_streams; i++)
+      HTS_ImageReader_read_model(r, arena, &ms->stream[0][i]);
+   ms->gv = (HTS_Model **) HTS_Arena_calloc(arena, 1, sizeof(HTS_Model *));
+   ms->gv[0] = (HTS_Model *) HTS_Arena_calloc(arena, ms->num_streams, sizeof(HTS_Model));
+   for (i = 0; i < ms->num_streams; i++)
+      HTS_ImageReader_read_model(r, arena, &ms->gv[0][i]);
+}
+
+/* Helper to get the size of the binary image of the voice loaded in an engine. Only an engine with a single voice can be
+   saved. The image is specific to the word size and the byte order of the platform */
+size_t HTS_Engine_get_image_size(HTS_Engine * engine)
+{
+   HTS_ImageWriter w;
+
+   w.data = NULL;
+   w.size = 0;
+   w.pos = 0;
+   if (HTS_ImageWriter_write_engine(&w, engine) != TRUE)
+      return 0;
+
+   return w.pos;
+}
+
+/* Helper to save the binary image of the voice loaded in an engine, the buffer size should be given by
+   HTS_Engine_get_image_size */
+size_t HTS_Engine_write_image(HTS_Engine * engine, char *image, size_t image_size)
+{
+   HTS_ImageWriter w;
+
+   w.data = image;
+   w.size = image_size;
+   w.pos = 0;
+   if (HTS_ImageWriter_write_engine(&w, engine) != TRUE || w.pos > image_size)
+      return 0;
+
+   return w.pos;
+}
+
+/* Helper to load a voice from its binary image without parsing anything. The PDFs, the window coefficients and the strings
+   are used in place: the image has to stay valid (and unchanged) until HTS_Engine_clear_image. The other structures of the
+   model set are allocated in the returned arena. The condition is the one HTS_Engine_load would have set for the voice */
+HTS_Arena *HTS_Engine_load_image(HTS_Engine * engine, char *image, size_t image_size)
+{
+   size_t i, nstream, stage;
+   HTS_Boolean use_log_gain;
+   double alpha;
+   void *msd_threshold, *gv_weight;
+   HTS_ImageReader r;
+   HTS_Arena *arena;
+
+   HTS_Engine_clear(engine);
+   if (image == NULL || ((size_t) image) % HTS_IMAGE_ALIGN != 0)
+      return NULL;
+
+   r.data = image;
+   r.size = image_size;
+   r.pos = 0;
+   r.error = FALSE;
+   arena = HTS_Arena_new(0);
+   HTS_ImageReader_read_model_set(&r, arena, &engine->ms);
+
+   /* condition */
+   nstream = engine->ms.num_streams;
+   stage = HTS_ImageReader_read_size(&r);
+   use_log_gain = (HTS_ImageReader_read_size(&r) != 0) ? TRUE : FALSE;
+   alpha = HTS_ImageReader_read_double(&r);
+   msd_threshold = HTS_ImageReader_read(&r, nstream * sizeof(double));
+   gv_weight = HTS_ImageReader_read(&r, nstream * sizeof(double));
+
+   if (r.error == TRUE) {
+      HTS_ModelSet_initialize(&engine->ms);
+      HTS_Arena_delete(arena);
+      return NULL;
+   }
+
+   engine->condition.sampling_frequency = engine->ms.sampling_frequency;
+   engine->condition.fperiod = engine->ms.frame_period;
+   engine->condition.stage = stage;
+   engine->condition.use_log_gain = use_log_gain;
+   engine->condition.alpha = alpha;
+   engine->condition.msd_threshold = (double *) HTS_calloc(nstream, sizeof(double));
+   engine->condition.gv_weight = (double *) HTS_calloc(nstream, sizeof(double));
+   memcpy(engine->condition.msd_threshold, msd_threshold, nstream * sizeof(double));
+   memcpy(engine->condition.gv_weight, gv_weight, nstream * sizeof(double));
+   engine->condition.duration_iw = (double *) HTS_calloc(1, sizeof(double));
+   engine->condition.duration_iw[0] = 1.0;
+   engine->condition.parameter_iw = (double **) HTS_calloc(1, sizeof(double *));
+   engine->condition.parameter_iw[0] = (double *) HTS_calloc(nstream, sizeof(double));
+   engine->condition.gv_iw = (double **) HTS_calloc(1, sizeof(double *));
+   engine->condition.gv_iw[0] = (double *) HTS_calloc(nstream, sizeof(double));
+   for (i = 0; i < nstream; i++) {
+      engine->condition.parameter_iw[0][i] = 1.0;
+      engine->condition.gv_iw[0][i] = 1.0;
+   }
+
+   return arena;
+}
+
+/* Helper to free an engine loaded by HTS_Engine_load_image: the model set lives in the arena and in the image so it
+   is forgotten before clearing the rest of the engine */
+void HTS_Engine_clear_image(HTS_Engine * engine, HTS_Arena * arena)
+{
+   HTS_Engine_clear_shared(engine);
+   HTS_Arena_delete(arena);
+}
+
+/* Helper to prepare the block-wise generation of the parameters of the state sequence of an engine. The parameter stream
+   set of the engine is prepared to only hold the generated parameters and the MSD flags (the matrices of the solver only
+   get their row pointers), so it is still freed by HTS_Engine_refresh. If fill_gss is TRUE, the generated stream set is
+   also allocated as by HTS_MinimalGStreamSet_create (so it has to be released using HTS_MinimalGStreamSet_clear) and
+   filled block after block */
+HTS_PStreamWindow *HTS_PStreamWindow_new(HTS_Engine * engine, size_t block_frame, size_t lookahead_frame, HTS_Boolean fill_gss)
+{
+   size_t i, j;
+   HTS_PStreamWindow *pw;
+   HTS_PStream *pst;
+   HTS_SStreamSet *sss = &engine->sss;
+   HTS_PStreamSet *pss = &engine->pss;
+
+   /* check */
+   if (sss->sstream == NULL) {
+      HTS_error(1, "HTS_PStreamWindow_new: No state sequence has been generated.\n");
+      return NULL;
+   }
+   if (pss->nstream != 0 || (fill_gss == TRUE && engine->gss.gstream != NULL)) {
+      HTS_error(1, "HTS_PStreamWindow_new: The parameters have already been generated.\n");
+      return NULL;
+   }
+   if (block_frame == 0) {
+      HTS_error(1, "HTS_PStreamWindow_new: The number of frames per block should be strictly positive.\n");
+      return NULL;
+   }
+
+   /* initialize */
+   pw = (HTS_PStreamWindow *) HTS_calloc(1, sizeof(HTS_PStreamWindow));
+   pw->block_frame = block_frame;
+   pw->lookahead_frame = lookahead_frame;
+   pw->state = 0;
+   pw->frame = 0;
+   pw->msd_frame = (size_t *) HTS_calloc(sss->nstream, sizeof(size_t));
+   pw->sstream = (HTS_SStream *) HTS_calloc(sss->nstream, sizeof(HTS_SStream));
+   pw->fill_gss = fill_gss;
+
+   /* parameter stream set holding the generated parameters only */
+   pss->nstream = sss->nstream;
+   pss->total_frame = sss->total_frame;
+   pss->pstream = (HTS_PStream *) HTS_calloc(pss->nstream, sizeof(HTS_PStream));
+   for (i = 0; i < pss->nstream; i++) {
+      pst = &pss->pstream[i];
+      pst->vector_length = sss->sstream[i].vector_length;
+      if (sss->sstream[i].msd != NULL) {        /* for MSD */
+         pst->length = 0;
+         for (j = 0; j < sss->total_state; j++)
+            if (sss->sstream[i].msd[j] > engine->condition.msd_threshold[i])
+               pst->length += sss->duration[j];
+         pst->msd_flag = (HTS_Boolean *) HTS_calloc(pss->total_frame, sizeof(HTS_Boolean));
+         for (j = 0; j < pss->total_frame; j++)
+            pst->msd_flag[j] = FALSE;
+      } else {                  /* for non MSD */
+         pst->length = pss->total_frame;
+      }
+      if (pst->length > 0) {
+         pst->par = HTS_alloc_matrix(pst->length, pst->vector_length);
+         /* HTS_PStreamSet_clear frees length rows of these matrices, empty rows are enough */
+         pst->sm.mean = (double **) HTS_calloc(pst->length, sizeof(double *));
+         pst->sm.ivar = (double **) HTS_calloc(pst->length, sizeof(double *));
+         pst->sm.wuw = (double **) HTS_calloc(pst->length, sizeof(double *));
+      }
+   }
+
+   if (fill_gss == TRUE)
+      HTS_MinimalGStreamSet_allocate(&engine->gss, pss, engine->condition.fperiod, TRUE, NULL);
+
+   return pw;
+}
+
+/* Helper to generate the parameters of the next block (whole states covering at least block_frame frames). The MLPG
+   is solved by HTS_PStreamSet_create on the block extended by at least lookahead_frame frames of context on each side
+   and only the frames of the block are kept. The global variance, if any, is applied per window */
+HTS_Boolean HTS_PStreamWindow_generate(HTS_PStreamWindow * pw, HTS_Engine * engine)
+{
+   size_t i, j;
+   size_t first, last;          /* states of the window */
+   size_t end;                  /* state following the block */
+   size_t nframe;
+   size_t first_frame;          /* frame index of the beginning of the window */
+   size_t end_frame;            /* frame index following the block */
+   size_t msd_frame;
+   size_t frame;
+   double *par;
+   HTS_SStreamSet view;
+   HTS_PStreamSet local;
+   HTS_PStream *pst;
+   HTS_SStreamSet *sss = &engine->sss;
+   HTS_PStreamSet *pss = &engine->pss;
+
+   if (pw->state >= sss->total_state)
+      return TRUE;
+
+   /* block */
+   for (end = pw->state, nframe = 0; end < sss->total_state && (end == pw->state || nframe < pw->block_frame); end++)
+      nframe += sss->duration[end];
+   end_frame = pw->frame + nframe;
+
+   /* context */
+   for (first = pw->state, nframe = 0; first > 0 && nframe < pw->lookahead_frame;)
+      nframe += sss->duration[--first];
+   first_frame = pw->frame - nframe;
+   for (last = end, nframe = 0; last < sss->total_state && nframe < pw->lookahead_frame; last++)
+      nframe += sss->duration[last];
+
+   /* state stream set restricted to the window (the state data are shared) */
+   view = *sss;
+   view.sstream = pw->sstream;
+   view.duration = sss->duration + first;
+   view.total_state = last - first;
+   view.total_frame = 0;
+   for (j = first; j < last; j++)
+      view.total_frame += sss->duration[j];
+   for (i = 0; i < sss->nstream; i++) {
+      pw->sstream[i] = sss->sstream[i];
+      pw->sstream[i].mean = sss->sstream[i].mean + first;
+      pw->sstream[i].vari = sss->sstream[i].vari + first;
+      if (sss->sstream[i].msd != NULL)
+         pw->sstream[i].msd = sss->sstream[i].msd + first;
+      if (sss->sstream[i].gv_switch != NULL)
+         pw->sstream[i].gv_switch = sss->sstream[i].gv_switch + first;
+   }
+
+   /* solve the window */
+   HTS_PStreamSet_initialize(&local);
+   if (HTS_PStreamSet_create(&local, &view, engine->condition.msd_threshold, engine->condition.gv_weight) != TRUE) {
+      HTS_PStreamSet_clear(&local);
+      return FALSE;
+   }
+
+   /* keep the frames of the block */
+   for (i = 0; i < pss->nstream; i++) {
+      pst = &pss->pstream[i];
+      for (j = 0, msd_frame = 0; j < local.total_frame; j++) {
+         if (pst->msd_flag != NULL && local.pstream[i].msd_flag[j] != TRUE)
+            continue;
+         frame = first_frame + j;
+         if (frame >= pw->frame && frame < end_frame) {
+            if (pst->msd_flag != NULL) {        /* for MSD */
+               par = local.pstream[i].par[msd_frame];
+               pst->msd_flag[frame] = TRUE;
+               memcpy(pst->par[pw->msd_frame[i]++], par, pst->vector_length * sizeof(double));
+            } else {            /* for non MSD */
+               par = local.pstream[i].par[j];
+               memcpy(pst->par[frame], par, pst->vector_length * sizeof(double));
+            }
+            if (pw->fill_gss == TRUE)
+               memcpy(engine->gss.gstream[i].par[frame], par, pst->vector_length * sizeof(double));
+         }
+         msd_frame++;
+      }
+   }
+   HTS_PStreamSet_clear(&local);
+
+   pw->state = end;
+   pw->frame = end_frame;
+
+   return TRUE;
+}
+
+/* Helper to know if all the blocks have been generated */
+HTS_Boolean HTS_PStreamWindow_is_finished(HTS_PStreamWindow * pw, HTS_Engine * engine)
+{
+   return (pw->state >= engine->sss.total_state) ? TRUE : FALSE;
+}
+
+/* Helper to get the number of frames already generated */
+size_t HTS_PStreamWindow_get_frame(HTS_PStreamWindow * pw)
+{
+   return pw->frame;
+}
+
+/* Helper to free a block-wise generation. The generated parameters stay in the engine */
+void HTS_PStreamWindow_delete(HTS_PStreamWindow * pw)
+{
+   if (pw == NULL)
+      return;
+
+   HTS_free(pw->msd_frame);
+   HTS_free(pw->sstream);
+   HTS_free(pw);
+}
+
+/* Helper to generate the whole parameter sequence block after block instead of solving the MLPG over the whole
+   utterance. The result is stored in the parameter stream set of the engine as by HTS_Engine_generate_parameter_sequence.
+   The stop flag of the engine is checked between two blocks, the generation fails if it is set */
+HTS_Boolean HTS_Engine_generate_parameter_sequence_windowed(HTS_Engine * engine, size_t block_frame, size_t lookahead_frame)
+{
+   HTS_Boolean result = TRUE;
+   HTS_PStreamWindow *pw = HTS_PStreamWindow_new(engine, block_frame, lookahead_frame, FALSE);
+
+   if (pw == NULL)
+      return FALSE;
+   while (result == TRUE && HTS_PStreamWindow_is_finished(pw, engine) == FALSE) {
+      if (engine->condition.stop == TRUE)
+         result = FALSE;
+      else
+         result = HTS_PStreamWindow_generate(pw, engine);
+   }
+   HTS_PStreamWindow_delete(pw);
+
+   return result;
+}
+
+/* Helper to prepare the generation of the parameter streams one by one (see HTS_Engine_generate_parameter_stream): the
+   parameter stream set gets one empty stream per state stream, so it is still freed by HTS_Engine_refresh */
+HTS_Boolean HTS_Engine_prepare_parameter_streams(HTS_Engine * engine)
+{
+   HTS_SStreamSet *sss = &engine->sss;
+   HTS_PStreamSet *pss = &engine->pss;
+
+   if (sss->sstream == NULL) {
+      HTS_error(1, "HTS_Engine_prepare_parameter_streams: No state sequence has been generated.\n");
+      return FALSE;
+   }
+   if (pss->nstream != 0) {
+      HTS_error(1, "HTS_Engine_prepare_parameter_streams: The parameters have already been generated.\n");
+      return FALSE;
+   }
+
+   pss->nstream = sss->nstream;
+   pss->total_frame = sss->total_frame;
+   pss->pstream = (HTS_PStream *) HTS_calloc(pss->nstream, sizeof(HTS_PStream));
+
+   return TRUE;
+}
+
+/* Helper to generate the parameters of one stream as HTS_Engine_generate_parameter_sequence does for all of them. The MLPG
+   (and the GV) of a stream only depends on this stream, so it is solved on a state stream set restricted to it and the
+   result is the same. The state streams are only read, so different streams can be generated concurrently by different
+   threads, each one filling its own parameter stream */
+HTS_Boolean HTS_Engine_generate_parameter_stream(HTS_Engine * engine, size_t stream_index)
+{
+   HTS_SStreamSet view;
+   HTS_PStreamSet local;
+   HTS_SStreamSet *sss = &engine->sss;
+   HTS_PStreamSet *pss = &engine->pss;
+
+   if (pss->pstream == NULL || stream_index >= pss->nstream || pss->pstream[stream_index].vector_length != 0)
+      return FALSE;
+   if (engine->condition.stop == TRUE)
+      return FALSE;
+
+   /* state stream set restricted to the stream (the state data are shared) */
+   view = *sss;
+   view.nstream = 1;
+   view.sstream = sss->sstream + stream_index;
+
+   /* solve the stream */
+   HTS_PStreamSet_initialize(&local);
+   if (HTS_PStreamSet_create(&local, &view, engine->condition.msd_threshold + stream_index, engine->condition.gv_weight + stream_index) != TRUE) {
+      HTS_PStreamSet_clear(&local);
+      return FALSE;
+   }
+
+   /* move the parameter stream into the set of the engine */
+   pss->pstream[stream_index] = local.pstream[0];
+   HTS_free(local.pstream);
+
+   return TRUE;
+}
+
+/* Helper to prepare the incremental vocoding of the parameters generated by HTS_MinimalGStreamSet_create.
+   The checks and the vocoder initialization are the ones achieved by HTS_GStreamSet_create */
+HTS_VocoderStream *HTS_VocoderStream_new(HTS_Engine * engine)
+{
+   HTS_VocoderStream *vs;
+   HTS_GStreamSet *gss = &engine->gss;
+
+   /* check */
+   if (gss->gstream == NULL) {
+      HTS_error(1, "HTS_VocoderStream_new: No parameter has been generated.\n");
+      return NULL;
+   }
+   if (gss->nstream != 2 && gss->nstream != 3) {
+      HTS_error(1, "HTS_VocoderStream_new: The number of streams should be 2 or 3.\n");
+      return NULL;
+   }
+   if (gss->gstream[1].vector_length != 1) {
+      HTS_error(1, "HTS_VocoderStream_new: The size of lf0 static vector should be 1.\n");
+      return NULL;
+   }
+   if (gss->nstream >= 3 && gss->gstream[2].vector_length % 2 == 0) {
+      HTS_error(1, "HTS_VocoderStream_new: The number of low-pass filter coefficient should be odd numbers.");
+      return NULL;
+   }
+
+   /* initialize */
+   vs = (HTS_VocoderStream *) HTS_calloc(1, sizeof(HTS_VocoderStream));
+   vs->frame = 0;
+   vs->end_frame = gss->total_frame;
+   vs->fperiod = engine->condition.fperiod;
+   vs->speech = (double *) HTS_calloc(vs->fperiod, sizeof(double));
+   HTS_Vocoder_initialize(&vs->vocoder, gss->gstream[0].vector_length - 1, engine->condition.stage, engine->condition.use_log_gain, engine->condition.sampling_frequency, engine->condition.fperiod);
+
+   return vs;
+}
+
+/* Helper to vocode as many whole (available) frames as the buffer can hold. Return the number of written samples, 0 at the end */
+size_t HTS_VocoderStream_synthesize_pcm16_le(HTS_VocoderStream * vs, HTS_Engine * engine, char *bytes, size_t bytes_size)
+{
+   size_t nsample = 0;
+   size_t nlpf = 0;
+   double *lpf = NULL;
+   HTS_GStreamSet *gss = &engine->gss;
+
+   if (gss->nstream >= 3)
+      nlpf = gss->gstream[2].vector_length;
+
+   while (vs->frame < vs->end_frame && (nsample + vs->fperiod) * 2 <= bytes_size && engine->condition.stop == FALSE) {
+      if (gss->nstream >= 3)
+         lpf = &gss->gstream[2].par[vs->frame][0];
+      HTS_Vocoder_synthesize(&vs->vocoder, gss->gstream[0].vector_length - 1, gss->gstream[1].par[vs->frame][0], &gss->gstream[0].par[vs->frame][0], nlpf, lpf, engine->condition.alpha, engine->condition.beta, engine->condition.volume, vs->speech, NULL);
+      HTS_pcm16_le_encode(vs->speech, vs->fperiod, (unsigned char *) &bytes[2 * nsample]);
+      nsample += vs->fperiod;
+      vs->frame++;
+   }
+
+   return nsample;
+}
+
+/* Helper to limit the vocoding to the frames which have already been generated */
+void HTS_VocoderStream_set_end_frame(HTS_VocoderStream * vs, HTS_Engine * engine, size_t end_frame)
+{
+   if (end_frame > engine->gss.total_frame)
+      end_frame = engine->gss.total_frame;
+   vs->end_frame = end_frame;
+}
+
+/* Helper to get the number of samples still to be vocoded */
+size_t HTS_VocoderStream_get_remaining_nsample(HTS_VocoderStream * vs, HTS_Engine * engine)
+{
+   if (vs->frame >= engine->gss.total_frame)
+      return 0;
+
+   return (engine->gss.total_frame - vs->frame) * vs->fperiod;
+}
+
+/* Helper to free an incremental vocoder */
+void HTS_VocoderStream_delete(HTS_VocoderStream * vs)
+{
+   if (vs == NULL)
+      return;
+
+   HTS_Vocoder_clear(&vs->vocoder);
+   HTS_free(vs->speech);
+   HTS_free(vs);
+}
+
+/* Helper to prepare the vocoder-only resynthesis of nframe frames: the generated stream set is allocated as by
+   HTS_MinimalGStreamSet_create (so it has to be released by HTS_MinimalGStreamSet_clear) using the vector lengths of the
+   model set, the MSD streams being filled with HTS_NODATA. The streams are allocated in the arena if one is given */
+HTS_Boolean HTS_Engine_prepare_resynthesis(HTS_Engine * engine, size_t nframe, HTS_Arena * arena)
+{
+   size_t i, j;
+   HTS_ModelSet *ms = &engine->ms;
+   HTS_GStreamSet *gss = &engine->gss;
+
+   if (HTS_ModelSet_get_nvoices(ms) == 0 || HTS_ModelSet_get_nstream(ms) < 2 || nframe == 0 || gss->gstream != NULL)
+      return FALSE;
+
+   gss->nstream = HTS_ModelSet_get_nstream(ms);
+   gss->total_frame = nframe;
+   gss->total_nsample = engine->condition.fperiod * nframe;
+   gss->gstream = (HTS_GStream *) HTS_utterance_calloc(arena, gss->nstream, sizeof(HTS_GStream));
+   for (i = 0; i < gss->nstream; i++) {
+      gss->gstream[i].vector_length = HTS_ModelSet_get_vector_length(ms, i);
+      gss->gstream[i].par = (double **) HTS_utterance_calloc(arena, nframe, sizeof(double *));
+      gss->gstream[i].par[0] = (double *) HTS_utterance_calloc(arena, nframe * gss->gstream[i].vector_length, sizeof(double));
+      for (j = 1; j < nframe; j++)
+         gss->gstream[i].par[j] = gss->gstream[i].par[0] + j * gss->gstream[i].vector_length;
+      if (HTS_ModelSet_is_msd(ms, i))
+         for (j = 0; j < nframe * gss->gstream[i].vector_length; j++)
+            gss->gstream[i].par[0][j] = HTS_NODATA;
+   }
+
+   return TRUE;
+}
+
+/* Helper to fill the frames of a generated stream, row-major, in one call (see HTS_GStreamSet_get_parameters). Return the
+   number of filled frames */
+size_t HTS_GStreamSet_set_parameters(HTS_GStreamSet * gss, size_t stream_index, double *par, size_t par_size)
+{
+   size_t j;
+   size_t vector_length;
+   size_t nframe;
+
+   if (gss->gstream == NULL || stream_index >= gss->nstream)
+      return 0;
+
+   vector_length = gss->gstream[stream_index].vector_length;
+   nframe = gss->total_frame;
+   if (vector_length == 0)
+      return 0;
+   if (nframe > par_size / vector_length)
+      nframe = par_size / vector_length;
+
+   for (j = 0; j < nframe; j++)
+      memcpy(gss->gstream[stream_index].par[j], &par[j * vector_length], vector_length * sizeof(double));
+
+   return nframe;
+}
+
+/* Helper to fill the frames of a generated stream from a direct buffer of native doubles (see HTS_GStreamSet_set_parameters).
+   The rows are copied bytewise so the buffer doesn't have to be aligned */
+size_t HTS_GStreamSet_set_parameters_direct(HTS_GStreamSet * gss, size_t stream_index, char *bytes, size_t bytes_size)
+{
+   size_t j;
+   size_t row_size;
+   size_t nframe;
+
+   if (gss->gstream == NULL || stream_index >= gss->nstream)
+      return 0;
+
+   row_size = gss->gstream[stream_index].vector_length * sizeof(double);
+   nframe = gss->total_frame;
+   if (row_size == 0)
+      return 0;
+   if (nframe > bytes_size / row_size)
+      nframe = bytes_size / row_size;
+
+   for (j = 0; j < nframe; j++)
+      memcpy(gss->gstream[stream_index].par[j], &bytes[j * row_size], row_size);
+
+   return nframe;
+}
+
+/* Helper to run only the vocoder over the generated stream set, as HTS_Engine_generate_sample_sequence does once the
+   parameters are generated (without the audio output). The speech is allocated in the arena if one is given */
+HTS_Boolean HTS_Engine_resynthesize(HTS_Engine * engine, HTS_Arena * arena)
+{
+   size_t i;
+   size_t nlpf = 0;
+   double *lpf = NULL;
+   HTS_Vocoder v;
+   HTS_Condition *condition = &engine->condition;
+   HTS_GStreamSet *gss = &engine->gss;
+
+   if (gss->gstream == NULL || gss->nstream < 2 || gss->total_frame == 0 || gss->gstream[0].vector_length == 0)
+      return FALSE;
+
+   HTS_utterance_free(arena, gss->gspeech);
+   gss->total_nsample = condition->fperiod * gss->total_frame;
+   gss->gspeech = (double *) HTS_utterance_calloc(arena, gss->total_nsample, sizeof(double));
+
+   HTS_Vocoder_initialize(&v, gss->gstream[0].vector_length - 1, condition->stage, condition->use_log_gain, condition->sampling_frequency, condition->fperiod);
+   if (gss->nstream >= 3)
+      nlpf = gss->gstream[2].vector_length;
+   for (i = 0; i < gss->total_frame && condition->stop == FALSE; i++) {
+      if (gss->nstream >= 3)
+         lpf = &gss->gstream[2].par[i][0];
+      HTS_Vocoder_synthesize(&v, gss->gstream[0].vector_length - 1, gss->gstream[1].par[i][0], &gss->gstream[0].par[i][0], nlpf, lpf, condition->alpha, condition->beta, condition->volume, &gss->gspeech[i * condition->fperiod], NULL);
+   }
+   HTS_Vocoder_clear(&v);
+
+   return TRUE;
+}
+
+/* Helper to export the generated speech as 16-bit samples in one call */
+size_t HTS_GStreamSet_get_speech_pcm16(HTS_GStreamSet * gss, short *pcm, size_t pcm_size)
+{
+   size_t i;
+   size_t nsample = gss->total_nsample;
+
+   if (gss->gspeech == NULL)
+      return 0;
+   if (nsample > pcm_size)
+      nsample = pcm_size;
+
+   for (i = 0; i < nsample; i++)
+      pcm[i] = HTS_pcm16_sample(gss->gspeech[i]);
+
+   return nsample;
+}
+
+/* Helper to export the generated speech as 16-bit little endian bytes in one call */
+size_t HTS_GStreamSet_get_speech_pcm16_le(HTS_GStreamSet * gss, unsigned char *bytes, size_t bytes_size)
+{
+   size_t nsample = gss->total_nsample;
+
+   if (gss->gspeech == NULL)
+      return 0;
+   if (nsample > bytes_size / 2)
+      nsample = bytes_size / 2;
+
+   HTS_pcm16_le_encode(gss->gspeech, nsample, bytes);
+
+   return nsample;
+}
+
+/* Helper to export the generated speech as 16-bit little endian bytes into a direct buffer */
+size_t HTS_GStreamSet_get_speech_pcm16_le_direct(HTS_GStreamSet * gss, char *bytes, size_t bytes_size)
+{
+   return HTS_GStreamSet_get_speech_pcm16_le(gss, (unsigned char *) bytes, bytes_size);
+}
+
+/* HTS_RESAMPLE_PI: pi */
+#define HTS_RESAMPLE_PI 3.14159265358979323846
+
+/* HTS_RESAMPLE_ZEROS: number of zero crossings of the windowed sinc on each side of its center */
+#define HTS_RESAMPLE_ZEROS 16
+
+/* HTS_RESAMPLE_PHASES: number of points of the tabulated filter between two zero crossings */
+#define HTS_RESAMPLE_PHASES 256
+
+/* HTS_RESAMPLE_BETA: shape of the Kaiser window of the sinc (about 80 dB of stop band attenuation) */
+#define HTS_RESAMPLE_BETA 8.0
+
+/* HTS_bessel_i0: modified Bessel function of the first kind of order 0 */
+static double HTS_bessel_i0(double x)
+{
+   size_t k;
+   double y = x * x / 4.0;
+   double term = 1.0;
+   double sum = 1.0;
+
+   for (k = 1; k < 64 && term > 1.0e-12 * sum; k++) {
+      term *= y / ((double) k * (double) k);
+      sum += term;
+   }
+
+   return sum;
+}
+
+/* HTS_resample_table: tabulate one side of the Kaiser windowed sinc, HTS_RESAMPLE_PHASES points per zero crossing */
+static double *HTS_resample_table(void)
+{
+   size_t i;
+   size_t size = HTS_RESAMPLE_ZEROS * HTS_RESAMPLE_PHASES;
+   double norm = HTS_bessel_i0(HTS_RESAMPLE_BETA);
+   double *table = (double *) HTS_calloc(size + 2, sizeof(double));
+   double u, r;
+
+   table[0] = 1.0;
+   for (i = 1; i <= size; i++) {
+      u = (double) i / HTS_RESAMPLE_PHASES;
+      r = u / HTS_RESAMPLE_ZEROS;
+      table[i] = sin(HTS_RESAMPLE_PI * u) / (HTS_RESAMPLE_PI * u) * HTS_bessel_i0(HTS_RESAMPLE_BETA * sqrt(1.0 - r * r)) / norm;
+   }
+
+   return table;
+}
+
+/* HTS_resample_sample: compute the sample at time t (in input samples) with a low pass filter of cutoff fc (relative to the
+   input Nyquist frequency) */
+static double HTS_resample_sample(const double *x, size_t nsample, const double *table, double t, double fc)
+{
+   double width = HTS_RESAMPLE_ZEROS / fc;
+   double sum = 0.0;
+   double d, frac;
+   long k, first, last;
+   size_t index;
+
+   first = (long) ceil(t - width);
+   last = (long) floor(t + width);
+   if (first < 0)
+      first = 0;
+   if (last > (long) nsample - 1)
+      last = (long) nsample - 1;
+
+   for (k = first; k <= last; k++) {
+      d = fabs(t - k) * fc * HTS_RESAMPLE_PHASES;
+      index = (size_t) d;
+      if (index >= HTS_RESAMPLE_ZEROS * HTS_RESAMPLE_PHASES)
+         continue;
+      frac = d - index;
+      sum += x[k] * (table[index] + frac * (table[index + 1] - table[index]));
+   }
+
+   return sum * fc;
+}
+
+/* HTS_encoding_size: get the number of bytes of a sample for an encoding, 0 if the encoding is unknown */
+static size_t HTS_encoding_size(int encoding)
+{
+   switch (encoding) {
+   case HTS_ENCODING_PCM16:
+      return 2;
+   case HTS_ENCODING_FLOAT32:
+      return 4;
+   case HTS_ENCODING_ULAW:
+   case HTS_ENCODING_ALAW:
+      return 1;
+   default:
+      return 0;
+   }
+}
+
+/* HTS_ulaw_sample: encode a 16-bit sample as G.711 mu-law */
+static unsigned char HTS_ulaw_sample(int pcm)
+{
+   static const int seg_end[8] = { 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF };
+   int mask, seg;
+
+   pcm = pcm >> 2;
+   if (pcm < 0) {
+      pcm = -pcm;
+      mask = 0x7F;
+   } else {
+      mask = 0xFF;
+   }
+   if (pcm > 8159)
+      pcm = 8159;
+   pcm += 0x21;
+
+   for (seg = 0; seg < 8 && pcm > seg_end[seg]; seg++);
+   if (seg >= 8)
+      return (unsigned char) (0x7F ^ mask);
+
+   return (unsigned char) (((seg << 4) | ((pcm >> (seg + 1)) & 0xF)) ^ mask);
+}
+
+/* HTS_alaw_sample: encode a 16-bit sample as G.711 A-law */
+static unsigned char HTS_alaw_sample(int pcm)
+{
+   static const int seg_end[8] = { 0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF };
+   int mask, seg, aval;
+
+   pcm = pcm >> 3;
+   if (pcm >= 0) {
+      mask = 0xD5;
+   } else {
+      mask = 0x55;
+      pcm = -pcm - 1;
+   }
+
+   for (seg = 0; seg < 8 && pcm > seg_end[seg]; seg++);
+   if (seg >= 8)
+      return (unsigned char) (0x7F ^ mask);
+
+   aval = seg << 4;
+   if (seg < 2)
+      aval |= (pcm >> 1) & 0xF;
+   else
+      aval |= (pcm >> seg) & 0xF;
+
+   return (unsigned char) (aval ^ mask);
+}
+
+/* HTS_encode_sample: encode a generated sample, return the number of written bytes */
+static size_t HTS_encode_sample(double x, int encoding, unsigned char *bytes)
+{
+   int v;
+   float f;
+   unsigned int u;
+
+   switch (encoding) {
+   case HTS_ENCODING_PCM16:
+      v = HTS_pcm16_sample(x);
+      bytes[0] = (unsigned char) (v & 0xff);
+      bytes[1] = (unsigned char) ((v >> 8) & 0xff);
+      return 2;
+   case HTS_ENCODING_FLOAT32:
+      f = (float) (x / 32768.0);
+      memcpy(&u, &f, sizeof(float));
+      bytes[0] = (unsigned char) (u & 0xff);
+      bytes[1] = (unsigned char) ((u >> 8) & 0xff);
+      bytes[2] = (unsigned char) ((u >> 16) & 0xff);
+      bytes[3] = (unsigned char) ((u >> 24) & 0xff);
+      return 4;
+   case HTS_ENCODING_ULAW:
+      bytes[0] = HTS_ulaw_sample(HTS_pcm16_sample(x));
+      return 1;
+   case HTS_ENCODING_ALAW:
+      bytes[0] = HTS_alaw_sample(HTS_pcm16_sample(x));
+      return 1;
+   default:
+      return 0;
+   }
+}
+
+/* Helper to get the number of samples of the generated speech resampled to out_rate (the duration is truncated to a whole
+   number of output samples) */
+size_t HTS_Engine_get_converted_nsample(HTS_Engine * engine, size_t out_rate)
+{
+   size_t in_rate = engine->condition.sampling_frequency;
+   size_t nsample = engine->gss.total_nsample;
+
+   if (engine->gss.gspeech == NULL || in_rate == 0)
+      return 0;
+
+   return (nsample / in_rate) * out_rate + (nsample % in_rate) * out_rate / in_rate;
+}
+
+/* Helper to export the generated speech resampled and encoded in one call. The resampling uses a Kaiser windowed sinc whose
+   cutoff follows the lowest of the two Nyquist frequencies, so the speech is not aliased when it is downsampled. The
+   speech is exported unchanged when the rates are the same */
+size_t HTS_Engine_get_speech_converted(HTS_Engine * engine, size_t out_rate, int encoding, unsigned char *bytes, size_t bytes_size)
+{
+   size_t i;
+   size_t in_rate = engine->condition.sampling_frequency;
+   size_t sample_size = HTS_encoding_size(encoding);
+   size_t nsample = HTS_Engine_get_converted_nsample(engine, out_rate);
+   double *table;
+   double fc;
+
+   if (sample_size == 0 || nsample == 0)
+      return 0;
+   if (nsample > bytes_size / sample_size)
+      nsample = bytes_size / sample_size;
+
+   if (out_rate == in_rate) {
+      for (i = 0; i < nsample; i++)
+         HTS_encode_sample(engine->gss.gspeech[i], encoding, &bytes[i * sample_size]);
+      return nsample;
+   }
+
+   table = HTS_resample_table();
+   fc = (out_rate < in_rate) ? (double) out_rate / in_rate : 1.0;
+   for (i = 0; i < nsample; i++)
+      HTS_encode_sample(HTS_resample_sample(engine->gss.gspeech, engine->gss.total_nsample, table, (double) i * in_rate / out_rate, fc), encoding, &bytes[i * sample_size]);
+   HTS_free(table);
+
+   return nsample;
+}
+
+/* Helper to export the generated speech resampled and encoded into a direct buffer */
+size_t HTS_Engine_get_speech_converted_direct(HTS_Engine * engine, size_t out_rate, int encoding, char *bytes, size_t bytes_size)
+{
+   return HTS_Engine_get_speech_converted(engine, out_rate, encoding, (unsigned char *) bytes, bytes_size);
+}
+
+/* Helper to export the duration (in frames) of each state of the generated state sequence in one call */
+size_t HTS_Engine_get_state_durations(HTS_Engine * engine, int *durations, size_t durations_size)
+{
+   size_t i;
+   size_t nstate = HTS_SStreamSet_get_total_state(&engine->sss);
+
+   if (engine->sss.duration == NULL)
+      return 0;
+   if (nstate > durations_size)
+      nstate = durations_size;
+
+   for (i = 0; i < nstate; i++)
+      durations[i] = (int) engine->sss.duration[i];
+
+   return nstate;
+}
+
+/* Helper to export the names of the loaded labels in one walk of the label list. The names still belong to the engine */
+size_t HTS_Engine_get_label_names(HTS_Engine * engine, char **names, size_t names_size)
+{
+   size_t i = 0;
+   HTS_LabelString *ls;
+
+   for (ls = engine->label.head; ls != NULL && i < names_size; ls = ls->next)
+      names[i++] = ls->name;
+
+   return i;
+}
+
+HELPERS_C_END;
 
 #endif                          /* !HELPERS_C */
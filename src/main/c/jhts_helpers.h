@@ -0,0 +1,271 @@
+#ifndef JHTS_HELPERS_H
+#define JHTS_HELPERS_H
+
+#ifdef __cplusplus
+#define JHTS_HELPERS_H_START extern "C" {
+#define JHTS_HELPERS_H_END   }
+#else
+#define JHTS_HELPERS_H_START
+#define JHTS_HELPERS_H_END
+#endif                          /* __CPLUSPLUS */
+
+JHTS_HELPERS_H_START;
+
+#include "../../../hts_engine/lib/HTS_hidden.h"
+
+/* HTS_DirectBuffer: native memory block exposed as a direct java buffer */
+typedef struct _HTS_DirectBuffer {
+   void *data;                  /* pointer to the first byte */
+   size_t size;                 /* size in bytes */
+} HTS_DirectBuffer;
+
+/* HTS_VocoderStream: incremental vocoder over a generated stream set */
+typedef struct _HTS_VocoderStream {
+   HTS_Vocoder vocoder;         /* vocoder state kept between two calls */
+   size_t frame;                /* index of the next frame to synthesize */
+   size_t end_frame;            /* index following the last frame available */
+   size_t fperiod;              /* frame period */
+   double *speech;              /* samples of the current frame */
+} HTS_VocoderStream;
+
+/* HTS_ENCODING_PCM16: 16-bit signed little endian samples */
+#define HTS_ENCODING_PCM16 0
+
+/* HTS_ENCODING_FLOAT32: 32-bit float little endian samples in [-1, 1] */
+#define HTS_ENCODING_FLOAT32 1
+
+/* HTS_ENCODING_ULAW: 8-bit G.711 mu-law samples */
+#define HTS_ENCODING_ULAW 2
+
+/* HTS_ENCODING_ALAW: 8-bit G.711 A-law samples */
+#define HTS_ENCODING_ALAW 3
+
+/* HTS_PStreamWindow: block-wise parameter generation over overlapping state windows */
+typedef struct _HTS_PStreamWindow {
+   size_t block_frame;          /* minimal number of frames generated per block */
+   size_t lookahead_frame;      /* minimal number of context frames on each side of a block */
+   size_t state;                /* first state of the next block */
+   size_t frame;                /* first frame of the next block */
+   size_t *msd_frame;           /* number of MSD frames already generated per stream */
+   HTS_SStream *sstream;        /* state streams restricted to the current window */
+   HTS_Boolean fill_gss;        /* fill the generated stream set as well */
+} HTS_PStreamWindow;
+
+/* HTS_CompiledTrees: decision trees of a single voice flattened into arrays with precompiled patterns */
+typedef struct _HTS_CompiledTrees {
+   size_t npattern;             /* # of patterns */
+   int *pattern_kind;           /* kind of matching of each pattern */
+   char **pattern_string;       /* string to match (without the leading/trailing wildcards) */
+   size_t *pattern_length;      /* length of the string to match */
+   size_t nquestion;            /* # of questions (shared between the models) */
+   size_t *question_pattern;    /* first pattern of each question */
+   size_t *question_npattern;   /* # of patterns of each question */
+   size_t ntree;                /* # of trees */
+   size_t *tree_state;          /* state index of each tree */
+   size_t *tree_pattern;        /* first pattern of each tree */
+   size_t *tree_npattern;       /* # of patterns of each tree */
+   size_t *tree_root;           /* root node of each tree */
+   size_t nnode;                /* # of nodes */
+   int *node_question;          /* question of each node, -1 for the leaves */
+   size_t *node_yes;            /* child node (yes) */
+   size_t *node_no;             /* child node (no) */
+   size_t *node_pdf;            /* index of PDF of each node */
+   size_t nmodel;               /* # of models: duration, streams, GV of the streams */
+   HTS_Model **model;           /* models (NULL for a stream without GV) */
+   size_t *model_tree;          /* first tree of each model */
+   size_t *model_ntree;         /* # of trees of each model */
+   int gv_off_context;          /* question of the GV switch, -1 if none */
+} HTS_CompiledTrees;
+
+/* HTS_ArenaBlock: memory block of an arena, the allocations follow the header */
+typedef struct _HTS_ArenaBlock {
+   struct _HTS_ArenaBlock *next;        /* previously used block */
+   size_t size;                 /* # of usable bytes */
+   size_t used;                 /* # of bytes already allocated */
+} HTS_ArenaBlock;
+
+/* HTS_Arena: allocator releasing all its allocations at once */
+typedef struct _HTS_Arena {
+   HTS_ArenaBlock *head;        /* block currently filled */
+   HTS_ArenaBlock *spare;       /* blocks kept by HTS_Arena_reset for the next allocations */
+   size_t block_size;           /* default size of a block */
+   size_t allocated;            /* total # of bytes reserved by the blocks */
+} HTS_Arena;
+
+/* HTS_MinimalGStreamSet_create: provide just the parameter generation structure (contiguous per stream) without the vocoder part */
+HTS_Boolean HTS_MinimalGStreamSet_create(HTS_GStreamSet * gss, HTS_PStreamSet * pss, size_t fperiod, HTS_Arena * arena);
+
+/* HTS_MinimalGStreamSet_clear: free a structure created by HTS_MinimalGStreamSet_create (except its parts allocated in the arena) */
+void HTS_MinimalGStreamSet_clear(HTS_GStreamSet * gss, HTS_Arena * arena);
+
+/* HTS_MinimalGStreamSet_get_parameter_buffer: expose the contiguous parameters of a stream created by HTS_MinimalGStreamSet_create */
+HTS_DirectBuffer HTS_MinimalGStreamSet_get_parameter_buffer(HTS_GStreamSet * gss, size_t stream_index);
+
+/* HTS_GStreamSet_get_parameters: copy the frames of a generated stream row-major, return the number of copied frames */
+size_t HTS_GStreamSet_get_parameters(HTS_GStreamSet * gss, size_t stream_index, double *par, size_t par_size);
+
+/* HTS_Engine_share_model: make engine use the (read-only) model set of model with its own copy of the synthesis condition */
+HTS_Boolean HTS_Engine_share_model(HTS_Engine * engine, HTS_Engine * model);
+
+/* HTS_Engine_clear_shared: free an engine prepared by HTS_Engine_share_model without freeing the shared model set */
+void HTS_Engine_clear_shared(HTS_Engine * engine);
+
+/* HTS_Engine_get_condition_size: get the number of values of a packed synthesis condition */
+size_t HTS_Engine_get_condition_size(HTS_Engine * engine);
+
+/* HTS_Engine_get_condition: pack the synthesis condition of engine */
+HTS_Boolean HTS_Engine_get_condition(HTS_Engine * engine, double *condition, size_t condition_size);
+
+/* HTS_Engine_set_condition: apply a packed synthesis condition in one call */
+HTS_Boolean HTS_Engine_set_condition(HTS_Engine * engine, double *condition, size_t condition_size);
+
+/* HTS_Engine_use_label_records: check if the state sequence can be generated from label records */
+HTS_Boolean HTS_Engine_use_label_records(HTS_Engine * engine);
+
+/* HTS_Engine_get_label_record_size: get the number of values of the record of one label */
+size_t HTS_Engine_get_label_record_size(HTS_Engine * engine);
+
+/* HTS_Engine_load_label_from_strings: load the labels without generating the state sequence */
+HTS_Boolean HTS_Engine_load_label_from_strings(HTS_Engine * engine, char **lines, size_t num_lines);
+
+/* HTS_Engine_generate_state_sequence_from_label: generate the state sequence of the labels loaded by HTS_Engine_load_label_from_strings */
+HTS_Boolean HTS_Engine_generate_state_sequence_from_label(HTS_Engine * engine);
+
+/* HTS_Engine_refresh_parameters: free the parameter and generated streams but keep the labels and the state sequence */
+void HTS_Engine_refresh_parameters(HTS_Engine * engine);
+
+/* HTS_Engine_refresh_arena: free the per-utterance structures, resetting the arena (keeping up to max_size bytes) instead of freeing its allocations */
+void HTS_Engine_refresh_arena(HTS_Engine * engine, HTS_Arena * arena, size_t max_size);
+
+/* HTS_Engine_set_state_duration: override the duration (in frames, at least 1) of one state of the state sequence */
+HTS_Boolean HTS_Engine_set_state_duration(HTS_Engine * engine, size_t state_index, size_t duration);
+
+/* HTS_Engine_get_utterance_memory: estimate the number of bytes held by the per-utterance structures */
+size_t HTS_Engine_get_utterance_memory(HTS_Engine * engine);
+
+/* HTS_Engine_estimate_utterance_memory: estimate the number of bytes held for the utterance once its state sequence is generated */
+size_t HTS_Engine_estimate_utterance_memory(HTS_Engine * engine);
+
+/* HTS_Engine_get_label_record: fill the record (durations, state and GV pdfs) of one loaded label */
+HTS_Boolean HTS_Engine_get_label_record(HTS_Engine * engine, size_t label_index, double *record, size_t record_size);
+
+/* HTS_Engine_generate_state_sequence_from_records: generate the state sequence of the loaded labels from their records */
+HTS_Boolean HTS_Engine_generate_state_sequence_from_records(HTS_Engine * engine, double *records, size_t records_size, HTS_Arena * arena);
+
+/* HTS_CompiledTrees_new: compile the decision trees of the (single) voice of engine */
+HTS_CompiledTrees *HTS_CompiledTrees_new(HTS_Engine * engine);
+
+/* HTS_CompiledTrees_get_label_record: fill the record of one loaded label using compiled trees */
+HTS_Boolean HTS_CompiledTrees_get_label_record(HTS_CompiledTrees * ct, HTS_Engine * engine, size_t label_index, double *record, size_t record_size);
+
+/* HTS_CompiledTrees_generate_state_sequence: generate the state sequence of the loaded labels using compiled trees (or the decision trees if NULL) */
+HTS_Boolean HTS_CompiledTrees_generate_state_sequence(HTS_CompiledTrees * ct, HTS_Engine * engine, HTS_Arena * arena);
+
+/* HTS_CompiledTrees_delete: free compiled trees */
+void HTS_CompiledTrees_delete(HTS_CompiledTrees * ct);
+
+/* HTS_Arena_new: create an arena allocating blocks of (at least) block_size bytes */
+HTS_Arena *HTS_Arena_new(size_t block_size);
+
+/* HTS_Arena_calloc: allocate a zeroed array in an arena, NULL if empty */
+void *HTS_Arena_calloc(HTS_Arena * arena, size_t num, size_t size);
+
+/* HTS_Arena_get_size: get the number of bytes reserved by an arena */
+size_t HTS_Arena_get_size(HTS_Arena * arena);
+
+/* HTS_Arena_reset: release all the allocations of an arena, keeping up to max_size bytes of blocks for the next ones */
+void HTS_Arena_reset(HTS_Arena * arena, size_t max_size);
+
+/* HTS_Arena_delete: free an arena and all its allocations */
+void HTS_Arena_delete(HTS_Arena * arena);
+
+/* HTS_Engine_get_image_size: get the size of the binary image of the (single) voice of engine, 0 if it can't be saved */
+size_t HTS_Engine_get_image_size(HTS_Engine * engine);
+
+/* HTS_Engine_write_image: save the binary image of the (single) voice of engine, return the number of written bytes (0 if failed) */
+size_t HTS_Engine_write_image(HTS_Engine * engine, char *image, size_t image_size);
+
+/* HTS_Engine_load_image: load a voice from its binary image which has to stay valid until HTS_Engine_clear_image */
+HTS_Arena *HTS_Engine_load_image(HTS_Engine * engine, char *image, size_t image_size);
+
+/* HTS_Engine_clear_image: free an engine loaded by HTS_Engine_load_image */
+void HTS_Engine_clear_image(HTS_Engine * engine, HTS_Arena * arena);
+
+/* HTS_PStreamWindow_new: prepare the block-wise parameter generation of the state sequence of engine */
+HTS_PStreamWindow *HTS_PStreamWindow_new(HTS_Engine * engine, size_t block_frame, size_t lookahead_frame, HTS_Boolean fill_gss);
+
+/* HTS_PStreamWindow_generate: generate the parameters of the next block */
+HTS_Boolean HTS_PStreamWindow_generate(HTS_PStreamWindow * pw, HTS_Engine * engine);
+
+/* HTS_PStreamWindow_is_finished: check if all the blocks have been generated */
+HTS_Boolean HTS_PStreamWindow_is_finished(HTS_PStreamWindow * pw, HTS_Engine * engine);
+
+/* HTS_PStreamWindow_get_frame: get the number of frames already generated */
+size_t HTS_PStreamWindow_get_frame(HTS_PStreamWindow * pw);
+
+/* HTS_PStreamWindow_delete: free a block-wise parameter generation */
+void HTS_PStreamWindow_delete(HTS_PStreamWindow * pw);
+
+/* HTS_Engine_generate_parameter_sequence_windowed: generate the parameter sequence block after block */
+HTS_Boolean HTS_Engine_generate_parameter_sequence_windowed(HTS_Engine * engine, size_t block_frame, size_t lookahead_frame);
+
+/* HTS_Engine_prepare_parameter_streams: prepare the generation of the parameter streams one by one */
+HTS_Boolean HTS_Engine_prepare_parameter_streams(HTS_Engine * engine);
+
+/* HTS_Engine_generate_parameter_stream: generate the parameters of one stream, the streams can be generated concurrently */
+HTS_Boolean HTS_Engine_generate_parameter_stream(HTS_Engine * engine, size_t stream_index);
+
+/* HTS_VocoderStream_new: prepare the incremental vocoding of the parameters generated by HTS_MinimalGStreamSet_create */
+HTS_VocoderStream *HTS_VocoderStream_new(HTS_Engine * engine);
+
+/* HTS_VocoderStream_synthesize_pcm16_le: vocode the next frames as 16-bit little endian bytes, return the number of written samples (0 at the end) */
+size_t HTS_VocoderStream_synthesize_pcm16_le(HTS_VocoderStream * vs, HTS_Engine * engine, char *bytes, size_t bytes_size);
+
+/* HTS_VocoderStream_set_end_frame: limit the vocoding to the frames already generated */
+void HTS_VocoderStream_set_end_frame(HTS_VocoderStream * vs, HTS_Engine * engine, size_t end_frame);
+
+/* HTS_VocoderStream_get_remaining_nsample: get the number of samples still to be vocoded */
+size_t HTS_VocoderStream_get_remaining_nsample(HTS_VocoderStream * vs, HTS_Engine * engine);
+
+/* HTS_VocoderStream_delete: free an incremental vocoder */
+void HTS_VocoderStream_delete(HTS_VocoderStream * vs);
+
+/* HTS_Engine_prepare_resynthesis: allocate (as HTS_MinimalGStreamSet_create) the generated streams of nframe frames to be vocoded */
+HTS_Boolean HTS_Engine_prepare_resynthesis(HTS_Engine * engine, size_t nframe, HTS_Arena * arena);
+
+/* HTS_GStreamSet_set_parameters: fill the frames of a generated stream row-major, return the number of filled frames */
+size_t HTS_GStreamSet_set_parameters(HTS_GStreamSet * gss, size_t stream_index, double *par, size_t par_size);
+
+/* HTS_GStreamSet_set_parameters_direct: same as HTS_GStreamSet_set_parameters but reading native doubles from a direct buffer */
+size_t HTS_GStreamSet_set_parameters_direct(HTS_GStreamSet * gss, size_t stream_index, char *bytes, size_t bytes_size);
+
+/* HTS_Engine_resynthesize: run only the vocoder over the generated streams */
+HTS_Boolean HTS_Engine_resynthesize(HTS_Engine * engine, HTS_Arena * arena);
+
+/* HTS_GStreamSet_get_speech_pcm16: export the generated speech as 16-bit samples, return the number of written samples */
+size_t HTS_GStreamSet_get_speech_pcm16(HTS_GStreamSet * gss, short *pcm, size_t pcm_size);
+
+/* HTS_GStreamSet_get_speech_pcm16_le: export the generated speech as 16-bit little endian bytes, return the number of written samples */
+size_t HTS_GStreamSet_get_speech_pcm16_le(HTS_GStreamSet * gss, unsigned char *bytes, size_t bytes_size);
+
+/* HTS_GStreamSet_get_speech_pcm16_le_direct: same as HTS_GStreamSet_get_speech_pcm16_le but targetting a direct buffer */
+size_t HTS_GStreamSet_get_speech_pcm16_le_direct(HTS_GStreamSet * gss, char *bytes, size_t bytes_size);
+
+/* HTS_Engine_get_converted_nsample: get the number of samples of the generated speech resampled to out_rate */
+size_t HTS_Engine_get_converted_nsample(HTS_Engine * engine, size_t out_rate);
+
+/* HTS_Engine_get_speech_converted: export the generated speech resampled to out_rate and encoded (HTS_ENCODING_*), return the number of written samples */
+size_t HTS_Engine_get_speech_converted(HTS_Engine * engine, size_t out_rate, int encoding, unsigned char *bytes, size_t bytes_size);
+
+/* HTS_Engine_get_speech_converted_direct: same as HTS_Engine_get_speech_converted but targetting a direct buffer */
+size_t HTS_Engine_get_speech_converted_direct(HTS_Engine * engine, size_t out_rate, int encoding, char *bytes, size_t bytes_size);
+
+/* HTS_Engine_get_state_durations: export the duration (in frames) of each generated state, return the number of written durations */
+size_t HTS_Engine_get_state_durations(HTS_Engine * engine, int *durations, size_t durations_size);
+
+/* HTS_Engine_get_label_names: export the names of the loaded labels (owned by the engine), return the number of names */
+size_t HTS_Engine_get_label_names(HTS_Engine * engine, char **names, size_t names_size);
+
+JHTS_HELPERS_H_END;
+
+#endif                          /* !JHTS_HELPERS_H */
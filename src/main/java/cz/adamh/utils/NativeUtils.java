@@ -24,11 +24,16 @@
 package cz.adamh.utils;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.ProviderNotFoundException;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * A simple library class which helps with loading dynamic libraries stored in the
@@ -47,22 +52,58 @@ public class NativeUtils {
     private static final int MIN_PREFIX_LENGTH = 3;
     public static final String NATIVE_FOLDER_PATH_PREFIX = "nativeutils";
 
+    /**
+     * System property giving the persistent cache directory of the extracted libraries.
+     */
+    public static final String CACHE_DIR_PROPERTY = "nativeutils.cache.dir";
+
     /**
      * Temporary directory which will contain the DLLs.
      */
     private static File temporaryDir;
 
+    /**
+     * Persistent cache directory set by {@link #setCacheDirectory(File)}, null to use the system property.
+     */
+    private static File cacheDir;
+
     /**
      * Private constructor - this class will never be instanced
      */
     private NativeUtils() {
     }
 
+    /**
+     * Sets the persistent cache directory of the extracted libraries. This overrides the {@value #CACHE_DIR_PROPERTY}
+     * system property.
+     *
+     * @param directory The cache directory, null to use the system property (no cache if the property is not set)
+     */
+    public static synchronized void setCacheDirectory(File directory) {
+        cacheDir = directory;
+    }
+
+    /**
+     * Gets the persistent cache directory of the extracted libraries
+     *
+     * @return The cache directory or null if the libraries are extracted in a new temporary directory
+     */
+    public static synchronized File getCacheDirectory() {
+        if (cacheDir != null)
+            return cacheDir;
+
+        String property = System.getProperty(CACHE_DIR_PROPERTY);
+        return (property == null || property.isEmpty()) ? null : new File(property);
+    }
+
     /**
      * Loads library from current JAR archive
      *
      * The file from JAR is copied into system temporary directory and then loaded. The temporary file is deleted after
      * exiting.
+     * If a cache directory is configured (see {@link #setCacheDirectory(File)}), the library is instead extracted once
+     * in a subdirectory named after the SHA-256 of its content and reused, after verification, by the next processes.
+     * See {@link #extractToCache(String, File)}.
      * Method uses String as filename because the pathname is "abstract", not system-dependent.
      *
      * @param path The path of file inside JAR as absolute path (beginning with '/'), e.g. /package/File.ext
@@ -87,6 +128,13 @@ public class NativeUtils {
             throw new IllegalArgumentException("The filename has to be at least 3 characters long.");
         }
 
+        // Reuse the library extracted in the persistent cache
+        File cache = getCacheDirectory();
+        if (cache != null) {
+            System.load(extractToCache(path, cache).getAbsolutePath());
+            return;
+        }
+
         // Prepare temporary file
         if (temporaryDir == null) {
             temporaryDir = createTempDirectory(NATIVE_FOLDER_PATH_PREFIX);
@@ -118,6 +166,102 @@ public class NativeUtils {
         }
     }
 
+    /**
+     * Extracts a library from current JAR archive into a persistent cache directory, unless an identical copy is
+     * already there.
+     *
+     * The library is stored as {@code <cache>/<sha256 of the content>/<filename>} so different versions of the library
+     * never collide. An existing copy is only reused if its content has the expected checksum. Otherwise the library is
+     * written to a temporary file which is atomically moved to its final name while holding a file lock, so processes
+     * starting concurrently never load a partially written library. The cached files are never deleted.
+     *
+     * @param path The path of file inside JAR as absolute path (beginning with '/'), e.g. /package/File.ext
+     * @param cache The cache directory (created if needed)
+     * @return The cached library
+     * @throws IOException If the cache can't be created or written
+     * @throws FileNotFoundException If the file could not be found inside the JAR.
+     */
+    public static synchronized File extractToCache(String path, File cache) throws IOException {
+        String[] parts = path.split("/");
+        String filename = parts[parts.length - 1];
+
+        // Key the library by its content
+        byte[] content;
+        try (InputStream is = NativeUtils.class.getResourceAsStream(path)) {
+            if (is == null)
+                throw new FileNotFoundException("File " + path + " was not found inside JAR.");
+            content = readFully(is);
+        }
+        String digest = sha256(content);
+        File dir = new File(cache, digest);
+        File library = new File(dir, filename);
+
+        // Fast path: a verified copy already exists
+        if (isCached(library, content.length, digest))
+            return library;
+
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Failed to create cache directory " + dir);
+
+        // Slow path: extract under an exclusive lock shared by the processes
+        File lock_file = new File(cache, digest + ".lock");
+        try (FileChannel channel = FileChannel.open(lock_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            if (isCached(library, content.length, digest))
+                return library;
+
+            File temp = File.createTempFile(filename, ".tmp", dir);
+            try {
+                try (FileOutputStream os = new FileOutputStream(temp)) {
+                    os.write(content);
+                    os.getFD().sync();
+                }
+                Files.move(temp.toPath(), library.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        }
+
+        return library;
+    }
+
+    /**
+     * Checks that a cached library exists and has the expected content
+     *
+     * @param library The cached library
+     * @param size The expected size
+     * @param digest The expected SHA-256 (hexadecimal)
+     * @return true if the library can be loaded
+     * @throws IOException If the library can't be read
+     */
+    private static boolean isCached(File library, long size, String digest) throws IOException {
+        if (!library.isFile() || library.length() != size)
+            return false;
+
+        return digest.equals(sha256(Files.readAllBytes(library.toPath())));
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = is.read(buffer)) >= 0)
+            os.write(buffer, 0, n);
+        return os.toByteArray();
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
     private static boolean isPosixCompliant() {
         try {
             return FileSystems.getDefault()
@@ -0,0 +1,19 @@
+package jhts_engine;
+
+/**
+ *  Listener receiving the audio produced by a streaming synthesis chunk by chunk.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public interface AudioChunkListener
+{
+    /**
+     *  Method called each time a new chunk of audio is available. The chunk contains 16-bit
+     *  signed little endian PCM samples. The array is reused for the next chunk so its content
+     *  has to be consumed or copied before returning.
+     *
+     *  @param pcm the array containing the chunk
+     *  @param length the number of valid bytes in the array
+     */
+    void onAudioChunk(byte[] pcm, int length);
+}
@@ -0,0 +1,104 @@
+package jhts_engine;
+
+// Stream
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Audio
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ *  Headers of the audio files written directly by the engine (see
+ *  {@link JHTSEngineWrapper#synthesizeTo}). The number of samples is known before the vocoder is
+ *  run, so the header is complete when it is written and the sink doesn't have to be seekable.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+final class AudioFileHeader
+{
+    /** The size of a WAVE header */
+    static final int WAVE_SIZE = 44;
+
+    /** The size of an AU header */
+    static final int AU_SIZE = 24;
+
+    /** The WAVE format tag of the linear PCM */
+    private static final short WAVE_FORMAT_PCM = 1;
+
+    /** The AU encoding of the 16-bit linear PCM */
+    private static final int AU_ENCODING_PCM16 = 3;
+
+    /**
+     *  No instance, only static utilities
+     *
+     */
+    private AudioFileHeader() {
+    }
+
+    /**
+     *  Method to know if a type of file can be written
+     *
+     *  @param type the type of the file
+     *  @return true if the type is WAVE or AU
+     */
+    static boolean isSupported(AudioFileFormat.Type type) {
+        return AudioFileFormat.Type.WAVE.equals(type) || AudioFileFormat.Type.AU.equals(type);
+    }
+
+    /**
+     *  Method to get the byte order of the samples in a type of file
+     *
+     *  @param type the type of the file
+     *  @return the byte order of the samples
+     */
+    static ByteOrder getByteOrder(AudioFileFormat.Type type) {
+        return AudioFileFormat.Type.AU.equals(type) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     *  Create the header of a file of 16-bit PCM samples
+     *
+     *  @param type the type of the file (WAVE or AU)
+     *  @param format the format of the samples
+     *  @param nb_samples the number of samples following the header
+     *  @return the header ready to be written
+     *  @throws IllegalArgumentException if the type is not supported
+     */
+    static ByteBuffer create(AudioFileFormat.Type type, AudioFormat format, int nb_samples) {
+        int sample_rate = (int) format.getSampleRate();
+        int channels = format.getChannels();
+        int frame_size = format.getFrameSize();
+        int data_size = nb_samples * frame_size;
+
+        ByteBuffer header;
+        if (AudioFileFormat.Type.WAVE.equals(type)) {
+            header = ByteBuffer.allocate(WAVE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(new byte[] {'R', 'I', 'F', 'F'});
+            header.putInt(WAVE_SIZE - 8 + data_size);
+            header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+            header.putInt(16);
+            header.putShort(WAVE_FORMAT_PCM);
+            header.putShort((short) channels);
+            header.putInt(sample_rate);
+            header.putInt(sample_rate * frame_size);
+            header.putShort((short) frame_size);
+            header.putShort((short) format.getSampleSizeInBits());
+            header.put(new byte[] {'d', 'a', 't', 'a'});
+            header.putInt(data_size);
+        } else if (AudioFileFormat.Type.AU.equals(type)) {
+            header = ByteBuffer.allocate(AU_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.put(new byte[] {'.', 's', 'n', 'd'});
+            header.putInt(AU_SIZE);
+            header.putInt(data_size);
+            header.putInt(AU_ENCODING_PCM16);
+            header.putInt(sample_rate);
+            header.putInt(channels);
+        } else {
+            throw new IllegalArgumentException("The type of audio file " + type + " is not supported, only WAVE and AU are");
+        }
+
+        header.flip();
+        return header;
+    }
+}
@@ -0,0 +1,188 @@
+package jhts_engine;
+
+// Collections
+import java.util.ArrayList;
+import java.util.List;
+
+// Concurrency
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Token used to stop syntheses from an other thread (see
+ *  {@link JHTSEngineWrapper#synthesize(String[], CancellationToken)}).
+ *
+ *  Cancelling the token sets the stop flag of the engines running a synthesis with it: the
+ *  vocoder and the block-wise parameter generation check this flag natively and the other stages
+ *  are checked in between. The synthesis then fails with a {@link SynthesisCancelledException}.
+ *  A token can also be cancelled automatically after a timeout. A cancelled token stays cancelled
+ *  and a synthesis started with it fails immediately.
+ *
+ *  The token is thread-safe and can be shared by several syntheses (for example the chunks of
+ *  one request).
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class CancellationToken
+{
+    /** The scheduler of the deadlines, created on demand */
+    private static ScheduledThreadPoolExecutor scheduler = null;
+
+    /** The engines currently running a synthesis with this token */
+    private final List<JHTSEngineWrapper> engines;
+
+    /** The cancellation scheduled at the deadline, null if none */
+    private ScheduledFuture<?> deadline;
+
+    /** Flag to indicate that the token is cancelled */
+    private boolean cancelled;
+
+    /** Flag to indicate that the token has been cancelled by its deadline */
+    private boolean deadline_exceeded;
+
+    /**
+     *  Constructor of a token only cancelled explicitly
+     *
+     */
+    public CancellationToken() {
+        this.engines = new ArrayList<JHTSEngineWrapper>(1);
+        this.deadline = null;
+        this.cancelled = false;
+        this.deadline_exceeded = false;
+    }
+
+    /**
+     *  Create a token cancelled automatically after a timeout
+     *
+     *  @param timeout the timeout
+     *  @param unit the unit of the timeout
+     *  @return the token
+     */
+    public static CancellationToken withTimeout(long timeout, TimeUnit unit) {
+        CancellationToken token = new CancellationToken();
+        synchronized (token) {
+            token.deadline = getScheduler().schedule(token::expire, timeout, unit);
+        }
+        return token;
+    }
+
+    /**
+     *  Get the scheduler of the deadlines (one daemon thread)
+     *
+     *  @return the scheduler
+     */
+    private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread thread = new Thread(r, "jhts_engine-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+
+        return scheduler;
+    }
+
+    /**********************************************************************
+     ***  Cancellation
+     **********************************************************************/
+    /**
+     *  Method to cancel the token, stopping the syntheses running with it
+     *
+     */
+    public void cancel() {
+        cancel(false);
+    }
+
+    /**
+     *  Cancel the token when its deadline is reached
+     *
+     */
+    private void expire() {
+        cancel(true);
+    }
+
+    /**
+     *  Cancel the token
+     *
+     *  @param by_deadline true if the cancellation is due to the deadline
+     */
+    private synchronized void cancel(boolean by_deadline) {
+        if (cancelled)
+            return;
+
+        cancelled = true;
+        deadline_exceeded = by_deadline;
+        for (JHTSEngineWrapper engine: engines)
+            engine.requestStop();
+        disarm();
+    }
+
+    /**
+     *  Method to know if the token is cancelled
+     *
+     *  @return true if the token is cancelled
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     *  Method to know if the token has been cancelled by its deadline
+     *
+     *  @return true if the deadline has been exceeded
+     */
+    public synchronized boolean isDeadlineExceeded() {
+        return deadline_exceeded;
+    }
+
+    /**
+     *  Method to drop the deadline, if any, once the work protected by the token is done
+     *
+     */
+    public synchronized void disarm() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    /**********************************************************************
+     ***  Engines
+     **********************************************************************/
+    /**
+     *  Register an engine starting a synthesis
+     *
+     *  @param engine the engine
+     *  @return false if the token is already cancelled (the engine is then not registered)
+     */
+    synchronized boolean attach(JHTSEngineWrapper engine) {
+        if (cancelled)
+            return false;
+
+        engines.add(engine);
+        return true;
+    }
+
+    /**
+     *  Unregister an engine which has finished its synthesis. The stop flag of the engine is not
+     *  set by the token anymore after this call.
+     *
+     *  @param engine the engine
+     */
+    synchronized void detach(JHTSEngineWrapper engine) {
+        engines.remove(engine);
+    }
+
+    /**
+     *  Create the exception thrown by a synthesis stopped by this token
+     *
+     *  @return the exception
+     */
+    synchronized SynthesisCancelledException toException() {
+        return new SynthesisCancelledException(deadline_exceeded ? "The deadline of the synthesis has been exceeded" : "The synthesis has been cancelled",
+                                               deadline_exceeded);
+    }
+}
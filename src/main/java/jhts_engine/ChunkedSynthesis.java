@@ -0,0 +1,278 @@
+package jhts_engine;
+
+// Collections
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Stream
+import java.io.ByteArrayInputStream;
+
+// Audio
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ *  Result of a synthesis split into chunks (see
+ *  {@link JHTSEnginePool#synthesizeChunked(String[], SynthesisConfig, boolean)}): the joined
+ *  speech and the joined durations.
+ *
+ *  The labels are split at the pauses (central phone "pau" or "sil") which are not at the
+ *  boundaries of the utterance. A pause ends a chunk and starts the next one, so it is synthesized
+ *  twice with the same context and the chunks are joined in its middle, using a short linear
+ *  crossfade. The timeline of the durations is joined at the same point so it is frame exact: a
+ *  shared pause keeps its duration and the labels of a chunk are shifted by the frames preceding
+ *  the pause.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class ChunkedSynthesis
+{
+    /** Minimal number of labels of a chunk, shorter chunks are merged with the next one */
+    public static final int MIN_CHUNK_LABELS = 10;
+
+    /** Duration of the crossfade between two chunks in milliseconds */
+    public static final int CROSSFADE_MS = 5;
+
+    /** The central phones of the labels at which the utterance can be split */
+    private static final String[] PAUSES = {"pau", "sil"};
+
+    /** The joined speech as 16-bit little endian PCM */
+    private final byte[] pcm;
+
+    /** The format of the speech */
+    private final AudioFormat format;
+
+    /** The joined durations */
+    private final DurationTable durations;
+
+    /** The number of chunks synthesized */
+    private final int nb_chunks;
+
+    /**
+     *  Constructor
+     *
+     *  @param pcm the joined speech as 16-bit little endian PCM
+     *  @param format the format of the speech
+     *  @param durations the joined durations
+     *  @param nb_chunks the number of chunks synthesized
+     */
+    private ChunkedSynthesis(byte[] pcm, AudioFormat format, DurationTable durations, int nb_chunks) {
+        this.pcm = pcm;
+        this.format = format;
+        this.durations = durations;
+        this.nb_chunks = nb_chunks;
+    }
+
+    /**********************************************************************
+     ***  Accessors
+     **********************************************************************/
+    /**
+     *  Method to get the joined speech
+     *
+     *  @return a new AudioStream on the joined speech
+     */
+    public AudioInputStream getAudio() {
+        return new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / 2);
+    }
+
+    /**
+     *  Method to get the number of samples of the joined speech
+     *
+     *  @return the number of samples
+     */
+    public int getNbSamples() {
+        return pcm.length / 2;
+    }
+
+    /**
+     *  Method to get the joined durations
+     *
+     *  @return the table of the durations of the whole utterance
+     */
+    public DurationTable getDurationTable() {
+        return durations;
+    }
+
+    /**
+     *  Method to get the number of chunks which have been synthesized
+     *
+     *  @return the number of chunks (1 if the utterance has not been split)
+     */
+    public int getNbChunks() {
+        return nb_chunks;
+    }
+
+    /**********************************************************************
+     ***  Splitting
+     **********************************************************************/
+    /**
+     *  Method to know if a label is a pause at which the utterance can be split
+     *
+     *  @param label the full context label (optionally preceded by its start and end)
+     *  @return true if the central phone of the label is a pause
+     */
+    public static boolean isPause(String label) {
+        String context = label.trim();
+        int space = context.lastIndexOf(' ');
+        if (space >= 0)
+            context = context.substring(space + 1);
+
+        int start = context.indexOf('-');
+        int end = context.indexOf('+', start + 1);
+        if ((start < 0) || (end < 0))
+            return false;
+
+        String phone = context.substring(start + 1, end);
+        for (String pause: PAUSES)
+            if (pause.equals(phone))
+                return true;
+
+        return false;
+    }
+
+    /**
+     *  Split the labels at the pauses. Two consecutive chunks share the pause at which they are
+     *  split. The chunks have at least min_labels labels (but the last one which is merged with
+     *  the previous one if it is too short).
+     *
+     *  @param label_lines the full context labels
+     *  @param min_labels the minimal number of labels of a chunk
+     *  @return the chunks
+     */
+    static List<String[]> split(String[] label_lines, int min_labels) {
+        List<String[]> chunks = new ArrayList<String[]>();
+        int start = 0;
+        for (int i=1; i<label_lines.length-1; i++) {
+            if ((i - start + 1 >= min_labels) && (label_lines.length - i >= min_labels) && isPause(label_lines[i])) {
+                chunks.add(Arrays.copyOfRange(label_lines, start, i + 1));
+                start = i;
+            }
+        }
+        chunks.add(Arrays.copyOfRange(label_lines, start, label_lines.length));
+
+        return chunks;
+    }
+
+    /**********************************************************************
+     ***  Joining
+     **********************************************************************/
+    /**
+     *  Synthesis of one chunk
+     *
+     */
+    static class Chunk
+    {
+        /** The samples of the chunk */
+        final short[] samples;
+
+        /** The durations of the chunk */
+        final DurationTable durations;
+
+        /** The format of the speech */
+        final AudioFormat format;
+
+        /** The frame period in samples */
+        final int frame_period;
+
+        /** The duration of a frame in HTK units */
+        final double rate;
+
+        /**
+         *  Constructor
+         *
+         *  @param samples the samples of the chunk
+         *  @param durations the durations of the chunk
+         *  @param format the format of the speech
+         *  @param frame_period the frame period in samples
+         *  @param rate the duration of a frame in HTK units
+         */
+        Chunk(short[] samples, DurationTable durations, AudioFormat format, int frame_period, double rate) {
+            this.samples = samples;
+            this.durations = durations;
+            this.format = format;
+            this.frame_period = frame_period;
+            this.rate = rate;
+        }
+    }
+
+    /**
+     *  Join the synthesized chunks
+     *
+     *  @param chunks the synthesized chunks in the order of the utterance
+     *  @return the result or null if the chunks can't be joined (a shared pause has not the same
+     *  duration in the two chunks, which happens if the labels contain their own alignment)
+     */
+    static ChunkedSynthesis join(List<Chunk> chunks) {
+        Chunk first = chunks.get(0);
+        int fperiod = first.frame_period;
+        int nb_states = first.durations.getNbStatesPerLabel();
+        int crossfade = (int) (first.format.getSampleRate() * CROSSFADE_MS / 1000);
+
+        // Compute the range of samples kept from each chunk and the size of the results
+        int nb_chunks = chunks.size();
+        int[] begin = new int[nb_chunks];
+        int[] end = new int[nb_chunks];
+        int[] half_pause = new int[nb_chunks];
+        int nb_samples = 0;
+        int nb_labels = 0;
+        for (int c=0; c<nb_chunks; c++) {
+            Chunk chunk = chunks.get(c);
+            DurationTable table = chunk.durations;
+            end[c] = chunk.samples.length;
+            nb_labels += table.size() - ((c > 0) ? 1 : 0);
+            if (c < nb_chunks - 1) {
+                int last = table.size() - 1;
+                DurationTable next = chunks.get(c + 1).durations;
+                long pause = table.getEndFrames()[last] - table.getStartFrames()[last];
+                if ((next.size() == 0) || (next.getEndFrames()[0] != pause))
+                    return null;
+
+                half_pause[c] = (int) (pause / 2);
+                end[c] = (int) (table.getStartFrames()[last] + half_pause[c]) * fperiod;
+                begin[c + 1] = half_pause[c] * fperiod;
+            }
+            nb_samples += end[c] - begin[c];
+        }
+
+        // Join the samples, the pause shared by two chunks being crossfaded around the junction
+        short[] samples = new short[nb_samples];
+        int offset = 0;
+        for (int c=0; c<nb_chunks; c++) {
+            System.arraycopy(chunks.get(c).samples, begin[c], samples, offset, end[c] - begin[c]);
+            offset += end[c] - begin[c];
+
+            if (c < nb_chunks - 1) {
+                short[] a = chunks.get(c).samples;
+                short[] b = chunks.get(c + 1).samples;
+                int half = Math.min(crossfade, 2 * half_pause[c] * fperiod) / 2;
+                for (int k=-half; k<half; k++) {
+                    double w = (k + half + 0.5) / (2 * half);
+                    samples[offset + k] = (short) Math.round((1 - w) * a[end[c] + k] + w * b[begin[c + 1] + k]);
+                }
+            }
+        }
+
+        // Join the durations, the shared pause being kept from the first chunk
+        String[] labels = new String[nb_labels];
+        int[] state_durations = new int[nb_labels * nb_states];
+        int l = 0;
+        for (int c=0; c<nb_chunks; c++) {
+            DurationTable table = chunks.get(c).durations;
+            int skip = (c > 0) ? 1 : 0;
+            int n = table.size() - skip;
+            System.arraycopy(table.getLabels(), skip, labels, l, n);
+            System.arraycopy(table.getStateDurations(), skip * nb_states, state_durations, l * nb_states, n * nb_states);
+            l += n;
+        }
+
+        // Encode the samples
+        byte[] pcm = new byte[2 * nb_samples];
+        for (int i=0; i<nb_samples; i++) {
+            pcm[2 * i] = (byte) (samples[i] & 0xff);
+            pcm[2 * i + 1] = (byte) ((samples[i] >> 8) & 0xff);
+        }
+
+        return new ChunkedSynthesis(pcm, first.format, new DurationTable(labels, state_durations, nb_states, first.rate), nb_chunks);
+    }
+}
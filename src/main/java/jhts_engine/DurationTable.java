@@ -0,0 +1,183 @@
+package jhts_engine;
+
+// Collections
+import java.util.ArrayList;
+
+/**
+ *  Columnar table of the durations generated for the labels of an utterance: one array per column
+ *  instead of one object per segment.
+ *
+ *  The positions are available in frames and in HTK units (100ns). The HTK positions are rounded
+ *  exactly as the ones of {@link FilledLabel}: the start is the truncated start frame converted in
+ *  HTK units and the end is the start plus the truncated converted duration.
+ *
+ *  The arrays returned by the accessors are the ones of the table, they are not copied.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class DurationTable
+{
+    /** The labels of the segments */
+    private final String[] labels;
+
+    /** The duration of each state in frames (nb_states_per_label consecutive states per segment) */
+    private final int[] state_durations;
+
+    /** The number of states per segment */
+    private final int nb_states_per_label;
+
+    /** The start of each segment in frames */
+    private final long[] start_frames;
+
+    /** The end of each segment in frames */
+    private final long[] end_frames;
+
+    /** The start of each segment in HTK units */
+    private final long[] start_times;
+
+    /** The end of each segment in HTK units */
+    private final long[] end_times;
+
+    /**
+     *  Constructor
+     *
+     *  @param labels the labels of the segments
+     *  @param state_durations the duration of each state in frames
+     *  @param nb_states_per_label the number of states per segment
+     *  @param rate the duration of a frame in HTK units
+     */
+    DurationTable(String[] labels, int[] state_durations, int nb_states_per_label, double rate) {
+        this.labels = labels;
+        this.state_durations = state_durations;
+        this.nb_states_per_label = nb_states_per_label;
+
+        int nb_labels = labels.length;
+        start_frames = new long[nb_labels];
+        end_frames = new long[nb_labels];
+        start_times = new long[nb_labels];
+        end_times = new long[nb_labels];
+
+        int state = 0;
+        long frame = 0;
+        for (int i=0; i<nb_labels; i++) {
+            long duration = 0;
+            for (int j=0; j<nb_states_per_label; j++)
+                duration += state_durations[state++];
+
+            start_frames[i] = frame;
+            end_frames[i] = frame + duration;
+            start_times[i] = (long) (frame * rate);
+            end_times[i] = start_times[i] + (long) (duration * rate);
+            frame += duration;
+        }
+    }
+
+    /**
+     *  Method to get the number of segments
+     *
+     *  @return the number of segments
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     *  Method to get the number of states per segment
+     *
+     *  @return the number of states per segment
+     */
+    public int getNbStatesPerLabel() {
+        return nb_states_per_label;
+    }
+
+    /**
+     *  Method to get the labels of the segments
+     *
+     *  @return the labels
+     */
+    public String[] getLabels() {
+        return labels;
+    }
+
+    /**
+     *  Method to get the start of the segments in frames
+     *
+     *  @return the start frames
+     */
+    public long[] getStartFrames() {
+        return start_frames;
+    }
+
+    /**
+     *  Method to get the end (excluded) of the segments in frames
+     *
+     *  @return the end frames
+     */
+    public long[] getEndFrames() {
+        return end_frames;
+    }
+
+    /**
+     *  Method to get the start of the segments in HTK units
+     *
+     *  @return the start times
+     */
+    public long[] getStartTimes() {
+        return start_times;
+    }
+
+    /**
+     *  Method to get the end of the segments in HTK units
+     *
+     *  @return the end times
+     */
+    public long[] getEndTimes() {
+        return end_times;
+    }
+
+    /**
+     *  Method to get the duration of each state in frames. The states of the segment i are the
+     *  states [i * getNbStatesPerLabel(), (i+1) * getNbStatesPerLabel()[
+     *
+     *  @return the state durations
+     */
+    public int[] getStateDurations() {
+        return state_durations;
+    }
+
+    /**
+     *  Method to get the duration of one state of a segment
+     *
+     *  @param i_label the index of the segment
+     *  @param i_state the index of the state in the segment
+     *  @return the duration in frames
+     */
+    public int getStateDuration(int i_label, int i_state) {
+        return state_durations[i_label * nb_states_per_label + i_state];
+    }
+
+    /**
+     *  Method to convert the table into a list of labels filled with their start and duration
+     *  (in HTK units)
+     *
+     *  @return the list of filled labels
+     */
+    public ArrayList<FilledLabel> toFilledLabels() {
+        ArrayList<FilledLabel> filled_labels = new ArrayList<FilledLabel>(labels.length);
+        for (int i=0; i<labels.length; i++)
+            filled_labels.add(new FilledLabel(labels[i], start_times[i], end_times[i] - start_times[i]));
+
+        return filled_labels;
+    }
+
+    /**
+     *  Convert the table into standard HTK label lines
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<labels.length; i++)
+            sb.append(start_times[i]).append(' ').append(end_times[i]).append(' ').append(labels[i]).append('\n');
+        return sb.toString();
+    }
+}
@@ -19,4 +19,14 @@ public class HTSEngineException extends Exception {
     public HTSEngineException(String message) {
         super(message);
     }
+
+    /**
+     *  Constructor with message and cause
+     *
+     *  @param message the message describing the reason of the exception
+     *  @param cause the exception at the origin of this one
+     */
+    public HTSEngineException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -0,0 +1,719 @@
+package jhts_engine;
+
+// Collections
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Concurrency
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Stream
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Audio
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ *  Pool of engines sharing one loaded voice.
+ *
+ *  The voice is loaded once in a model engine. The engines handed out by the pool only own their
+ *  synthesis condition and the per-utterance structures (label, state, parameter and generated
+ *  streams), so an extra engine costs the per-utterance working set and not a new copy of the
+ *  voice. Engines are created lazily up to the size of the pool.
+ *
+ *  An engine is not thread-safe: a borrowed engine should only be used by the borrowing thread
+ *  and has to be given back using {@link #release(JHTSEngineWrapper)}.
+ *
+ *  The pool also provides an asynchronous synthesis API which borrows and releases the engines on
+ *  behalf of the caller. The number of pending syntheses is bounded: submitting a synthesis blocks
+ *  the caller while the maximum number of pending syntheses is reached.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class JHTSEnginePool implements AutoCloseable
+{
+    /** The engine owning the voice model */
+    private final JHTSEngineWrapper model;
+
+    /** The maximum number of engines */
+    private final int size;
+
+    /** The engines ready to be borrowed */
+    private final Deque<JHTSEngineWrapper> idle;
+
+    /** All the engines created by the pool */
+    private final List<JHTSEngineWrapper> engines;
+
+    /** The engines currently borrowed */
+    private final Set<JHTSEngineWrapper> borrowed;
+
+    /** Flag to indicate that the pool is closed */
+    private boolean closed;
+
+    /** The permits of the pending asynchronous syntheses */
+    private final Semaphore pending;
+
+    /** The maximum number of pending asynchronous syntheses */
+    private final int max_pending;
+
+    /** The executor used when none is given, created on demand */
+    private ExecutorService default_executor;
+
+    /**
+     *  Constructor which loads the voice once
+     *
+     *  @param voice_path the path of the hts engine voice
+     *  @param size the maximum number of engines handed out at the same time
+     *  @throws HTSEngineException if the loading of the voice fails
+     */
+    public JHTSEnginePool(String voice_path, int size) throws HTSEngineException {
+        this(voice_path, size, 2 * size);
+    }
+
+    /**
+     *  Constructor which loads the voice once
+     *
+     *  @param voice_path the path of the hts engine voice
+     *  @param size the maximum number of engines handed out at the same time
+     *  @param max_pending the maximum number of asynchronous syntheses submitted and not completed yet
+     *  @throws HTSEngineException if the loading of the voice fails
+     */
+    public JHTSEnginePool(String voice_path, int size, int max_pending) throws HTSEngineException {
+        if (size <= 0)
+            throw new IllegalArgumentException("The size of the pool should be strictly positive and not: " + size);
+        if (max_pending <= 0)
+            throw new IllegalArgumentException("The maximum number of pending syntheses should be strictly positive and not: " + max_pending);
+
+        this.size = size;
+        this.max_pending = max_pending;
+        this.pending = new Semaphore(max_pending);
+        this.idle = new ArrayDeque<JHTSEngineWrapper>(size);
+        this.engines = new ArrayList<JHTSEngineWrapper>(size);
+        this.borrowed = Collections.newSetFromMap(new IdentityHashMap<JHTSEngineWrapper, Boolean>());
+        this.closed = false;
+
+        model = new JHTSEngineWrapper();
+        try {
+            model.setVoice(voice_path);
+        } catch (HTSEngineException ex) {
+            model.close();
+            throw ex;
+        }
+    }
+
+    /**********************************************************************
+     ***  Accessors
+     **********************************************************************/
+    /**
+     *  Method to get the maximum number of engines of the pool
+     *
+     *  @return the size of the pool
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     *  Method to get the number of engines already created by the pool
+     *
+     *  @return the number of created engines
+     */
+    public synchronized int getNbCreated() {
+        return engines.size();
+    }
+
+    /**
+     *  Method to get the number of engines ready to be borrowed without creating a new one
+     *
+     *  @return the number of idle engines
+     */
+    public synchronized int getNbIdle() {
+        return idle.size();
+    }
+
+    /**
+     *  Method to share a cache of the decision tree lookups between all the engines of the pool.
+     *  The cache should be set while no engine is borrowed.
+     *
+     *  @param state_cache the cache or null to always walk the decision trees
+     */
+    public synchronized void setStateCache(StateCache state_cache) {
+        model.setStateCache(state_cache);
+        for (JHTSEngineWrapper engine: engines)
+            engine.setStateCache(state_cache);
+    }
+
+    /**
+     *  Method to share a cache of the synthesis results between all the engines of the pool. The
+     *  cache should be set while no engine is borrowed.
+     *
+     *  @param synthesis_cache the cache or null to always run the engines
+     */
+    public synchronized void setSynthesisCache(SynthesisCache synthesis_cache) {
+        model.setSynthesisCache(synthesis_cache);
+        for (JHTSEngineWrapper engine: engines)
+            engine.setSynthesisCache(synthesis_cache);
+    }
+
+    /**
+     *  Method to allocate the per-utterance structures of each engine of the pool in its own arena
+     *  (see {@link JHTSEngineWrapper#setUtteranceArena(boolean, long)}). The arena should be set
+     *  while no engine is borrowed.
+     *
+     *  @param use_arena true to use the arenas, false to free them
+     *  @param max_retained_bytes the maximum number of bytes kept by each arena between two utterances
+     */
+    public synchronized void setUtteranceArena(boolean use_arena, long max_retained_bytes) {
+        model.setUtteranceArena(use_arena, max_retained_bytes);
+        for (JHTSEngineWrapper engine: engines)
+            engine.setUtteranceArena(use_arena, max_retained_bytes);
+    }
+
+    /**
+     *  Method to share an executor generating the parameter streams of the utterances concurrently
+     *  (see {@link JHTSEngineWrapper#setParameterGenerationExecutor(Executor)}) between all the
+     *  engines of the pool. The executor should be set while no engine is borrowed.
+     *
+     *  @param generation_executor the executor or null to generate the streams one after another
+     */
+    public synchronized void setParameterGenerationExecutor(Executor generation_executor) {
+        model.setParameterGenerationExecutor(generation_executor);
+        for (JHTSEngineWrapper engine: engines)
+            engine.setParameterGenerationExecutor(generation_executor);
+    }
+
+    /**
+     *  Method to set the listener receiving the metrics of the utterances synthesized by all the
+     *  engines of the pool, for example a {@link SynthesisStatistics}. The listener is called
+     *  concurrently by the engines so it has to be thread-safe. The listener should be set while
+     *  no engine is borrowed.
+     *
+     *  @param synthesis_listener the listener or null to disable the instrumentation
+     */
+    public synchronized void setSynthesisListener(SynthesisListener synthesis_listener) {
+        model.setSynthesisListener(synthesis_listener);
+        for (JHTSEngineWrapper engine: engines)
+            engine.setSynthesisListener(synthesis_listener);
+    }
+
+    /**********************************************************************
+     ***  Borrow/release
+     **********************************************************************/
+    /**
+     *  Method to borrow an engine. If no engine is available, the method waits until one is
+     *  released.
+     *
+     *  @return the borrowed engine
+     *  @throws HTSEngineException if a new engine can't be created
+     *  @throws IllegalStateException if the pool is closed, also while waiting
+     *  @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized JHTSEngineWrapper borrow() throws HTSEngineException, InterruptedException {
+        JHTSEngineWrapper engine;
+        while ((engine = tryBorrow()) == null)
+            wait();
+
+        return engine;
+    }
+
+    /**
+     *  Method to borrow an engine waiting at most the given time for one to be released.
+     *
+     *  @param timeout the maximum time to wait
+     *  @param unit the unit of the timeout
+     *  @return the borrowed engine or null if none has been available in time
+     *  @throws HTSEngineException if a new engine can't be created
+     *  @throws IllegalStateException if the pool is closed, also while waiting
+     *  @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized JHTSEngineWrapper borrow(long timeout, TimeUnit unit) throws HTSEngineException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        JHTSEngineWrapper engine;
+        while ((engine = tryBorrow()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return engine;
+    }
+
+    /**
+     *  Method to give back a borrowed engine. The engine is refreshed and goes back to the
+     *  configuration of the voice before being available again, so the next borrower doesn't
+     *  inherit the settings of the previous one. If the pool has been closed meanwhile, the engine
+     *  is closed instead.
+     *
+     *  @param engine the borrowed engine
+     *  @throws IllegalArgumentException if the engine has not been created by this pool or is not
+     *  borrowed (for example if it is released twice)
+     */
+    public void release(JHTSEngineWrapper engine) {
+        synchronized (this) {
+            if (!engines.contains(engine))
+                throw new IllegalArgumentException("The engine doesn't belong to this pool");
+            if (!borrowed.remove(engine))
+                throw new IllegalArgumentException("The engine is not borrowed, it may have been released already");
+        }
+
+        // Nobody else can take the engine until it is idle
+        boolean reusable = true;
+        engine.refresh();
+        try {
+            engine.setConfig(SynthesisConfig.DEFAULT);
+        } catch (HTSEngineException ex) {
+            // The engine is replaced by a new one
+            reusable = false;
+        }
+
+        synchronized (this) {
+            if (closed || !reusable)
+                closeEngine(engine);
+            else
+                idle.offer(engine);
+            notifyAll();
+        }
+    }
+
+    /**
+     *  Get an idle engine or create a new one if the pool is not full yet. The lock of the pool
+     *  has to be held.
+     *
+     *  @return the borrowed engine or null if the pool is full and no engine is idle
+     *  @throws HTSEngineException if a new engine can't be created
+     *  @throws IllegalStateException if the pool is closed
+     */
+    private JHTSEngineWrapper tryBorrow() throws HTSEngineException {
+        if (closed)
+            throw new IllegalStateException("The pool is closed");
+
+        JHTSEngineWrapper engine = idle.poll();
+        if (engine == null) {
+            if (engines.size() >= size)
+                return null;
+
+            engine = new JHTSEngineWrapper(model);
+            engines.add(engine);
+        }
+        borrowed.add(engine);
+
+        return engine;
+    }
+
+    /**********************************************************************
+     ***  Asynchronous synthesis
+     **********************************************************************/
+    /**
+     *  Method to get the maximum number of asynchronous syntheses submitted and not completed yet
+     *
+     *  @return the maximum number of pending syntheses
+     */
+    public int getMaxPending() {
+        return max_pending;
+    }
+
+    /**
+     *  Method to synthesize asynchronously using the executor of the pool (one thread per engine)
+     *
+     *  @param label_lines the full context labels
+     *  @return the future result of the synthesis
+     *  @throws HTSEngineException if the pool is closed
+     *  @throws InterruptedException if the thread is interrupted while waiting for a pending slot
+     */
+    public CompletableFuture<AudioInputStream> synthesizeAsync(String[] label_lines) throws HTSEngineException, InterruptedException {
+        return synthesizeAsync(label_lines, getDefaultExecutor());
+    }
+
+    /**
+     *  Method to synthesize asynchronously. The synthesis is run by the executor on an engine of
+     *  the pool. If the maximum number of pending syntheses is reached, the method waits until one
+     *  of them is completed.
+     *
+     *  @param label_lines the full context labels
+     *  @param executor the executor running the synthesis
+     *  @return the future result of the synthesis
+     *  @throws HTSEngineException if the pool is closed
+     *  @throws InterruptedException if the thread is interrupted while waiting for a pending slot
+     */
+    public CompletableFuture<AudioInputStream> synthesizeAsync(String[] label_lines, ExecutorService executor) throws HTSEngineException, InterruptedException {
+        return synthesizeAsync(label_lines, SynthesisConfig.DEFAULT, executor);
+    }
+
+    /**
+     *  Method to synthesize asynchronously with a given configuration using the executor of the
+     *  pool (one thread per engine)
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration of the synthesis
+     *  @return the future result of the synthesis
+     *  @throws HTSEngineException if the pool is closed
+     *  @throws InterruptedException if the thread is interrupted while waiting for a pending slot
+     */
+    public CompletableFuture<AudioInputStream> synthesizeAsync(String[] label_lines, SynthesisConfig config) throws HTSEngineException, InterruptedException {
+        return synthesizeAsync(label_lines, config, getDefaultExecutor());
+    }
+
+    /**
+     *  Method to synthesize asynchronously with a given configuration. The configuration is
+     *  applied to the engine running the synthesis, so the engines of the pool can serve requests
+     *  with different configurations.
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration of the synthesis
+     *  @param executor the executor running the synthesis
+     *  @return the future result of the synthesis
+     *  @throws HTSEngineException if the pool is closed
+     *  @throws InterruptedException if the thread is interrupted while waiting for a pending slot
+     */
+    public CompletableFuture<AudioInputStream> synthesizeAsync(String[] label_lines, SynthesisConfig config, ExecutorService executor) throws HTSEngineException, InterruptedException {
+        return submit(() -> synthesizeBorrowed(label_lines, config, null), executor);
+    }
+
+    /**
+     *  Method to synthesize asynchronously a request which can be abandoned. Cancelling the token
+     *  stops the synthesis if it is running (see
+     *  {@link JHTSEngineWrapper#synthesize(String[], CancellationToken)}) or skips it if it is
+     *  still waiting for an engine, so the engines are kept for the live requests. The future then
+     *  fails with a {@link SynthesisCancelledException}.
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration of the synthesis
+     *  @param token the token stopping the synthesis when cancelled
+     *  @return the future result of the synthesis
+     *  @throws HTSEngineException if the pool is closed
+     *  @throws InterruptedException if the thread is interrupted while waiting for a pending slot
+     */
+    public CompletableFuture<AudioInputStream> synthesizeAsync(String[] label_lines, SynthesisConfig config, CancellationToken token) throws HTSEngineException, InterruptedException {
+        return synthesizeAsync(label_lines, config, token, getDefaultExecutor());
+    }
+
+    /**
+     *  Method to synthesize asynchronously a request which can be abandoned (see
+     *  {@link #synthesizeAsync(String[], SynthesisConfig, CancellationToken)}), the synthesis
+     *  being run by the given executor.
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration of the synthesis
+     *  @param token the token stopping the synthesis when cancelled
+     *  @param executor the executor running the synthesis
+     *  @return the future result of the synthesis
+     *  @throws HTSEngineException if the pool is closed
+     *  @throws InterruptedException if the thread is interrupted while waiting for a pending slot
+     */
+    public CompletableFuture<AudioInputStream> synthesizeAsync(String[] label_lines, SynthesisConfig config, CancellationToken token, ExecutorService executor) throws HTSEngineException, InterruptedException {
+        if (token == null)
+            throw new IllegalArgumentException("The cancellation token can't be null");
+
+        return submit(() -> synthesizeBorrowed(label_lines, config, token), executor);
+    }
+
+    /**
+     *  Submit an asynchronous task using the pool, waiting for a pending slot if the maximum
+     *  number of pending tasks is reached
+     *
+     *  @param task the task
+     *  @param executor the executor running the task
+     *  @return the future result of the task
+     *  @throws HTSEngineException if the pool is closed
+     *  @throws InterruptedException if the thread is interrupted while waiting for a pending slot
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> task, ExecutorService executor) throws HTSEngineException, InterruptedException {
+        synchronized (this) {
+            if (closed)
+                throw new HTSEngineException("The pool is closed");
+        }
+
+        pending.acquire();
+        try {
+            return CompletableFuture.supplyAsync(task, executor)
+                .whenComplete((result, ex) -> pending.release());
+        } catch (RuntimeException ex) {
+            pending.release();
+            throw ex;
+        }
+    }
+
+    /**
+     *  Method to synthesize a batch of utterances using the executor of the pool (one thread per
+     *  engine)
+     *
+     *  @param utterances the full context labels of each utterance
+     *  @return the results in the order of the utterances
+     *  @throws HTSEngineException if one of the syntheses fails
+     *  @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<AudioInputStream> synthesizeAll(List<String[]> utterances) throws HTSEngineException, InterruptedException {
+        return synthesizeAll(utterances, getDefaultExecutor());
+    }
+
+    /**
+     *  Method to synthesize a batch of utterances. The syntheses are spread on the engines of the
+     *  pool and the submission is throttled by the maximum number of pending syntheses, so the
+     *  batch can be much larger than the pool.
+     *
+     *  @param utterances the full context labels of each utterance
+     *  @param executor the executor running the syntheses
+     *  @return the results in the order of the utterances
+     *  @throws HTSEngineException if one of the syntheses fails
+     *  @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<AudioInputStream> synthesizeAll(List<String[]> utterances, ExecutorService executor) throws HTSEngineException, InterruptedException {
+        List<CompletableFuture<AudioInputStream>> futures = new ArrayList<CompletableFuture<AudioInputStream>>(utterances.size());
+        try {
+            for (String[] label_lines: utterances)
+                futures.add(synthesizeAsync(label_lines, executor));
+
+            List<AudioInputStream> results = new ArrayList<AudioInputStream>(utterances.size());
+            for (CompletableFuture<AudioInputStream> future: futures)
+                results.add(future.get());
+
+            return results;
+        } catch (ExecutionException ex) {
+            for (CompletableFuture<AudioInputStream> future: futures)
+                future.cancel(false);
+
+            Throwable cause = ex.getCause();
+            if (cause instanceof HTSEngineException)
+                throw (HTSEngineException) cause;
+            throw new HTSEngineException("The batch synthesis failed", cause);
+        }
+    }
+
+    /**
+     *  Method to synthesize a long utterance split into chunks using the executor of the pool
+     *
+     *  @param label_lines the full context labels
+     *  @return the joined speech and durations
+     *  @throws HTSEngineException if the pool is closed or if one of the syntheses fails
+     *  @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public ChunkedSynthesis synthesizeChunked(String[] label_lines) throws HTSEngineException, InterruptedException {
+        return synthesizeChunked(label_lines, SynthesisConfig.DEFAULT, false, getDefaultExecutor());
+    }
+
+    /**
+     *  Method to synthesize a long utterance split at its pauses using the executor of the pool
+     *  (see {@link #synthesizeChunked(String[], SynthesisConfig, boolean, ExecutorService)})
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration of the synthesis
+     *  @param bit_exact true to synthesize the whole utterance on one engine
+     *  @return the joined speech and durations
+     *  @throws HTSEngineException if the pool is closed or if one of the syntheses fails
+     *  @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public ChunkedSynthesis synthesizeChunked(String[] label_lines, SynthesisConfig config, boolean bit_exact) throws HTSEngineException, InterruptedException {
+        return synthesizeChunked(label_lines, config, bit_exact, getDefaultExecutor());
+    }
+
+    /**
+     *  Method to synthesize a long utterance split at its pauses (see {@link ChunkedSynthesis}).
+     *  The chunks are synthesized concurrently on the engines of the pool and joined in the middle
+     *  of the pauses they share, so the latency is the one of the longest chunk.
+     *
+     *  The result is deterministic but, as the parameters are generated per chunk, it is not
+     *  bit-exact with the synthesis of the whole utterance. If bit_exact is true, or if the
+     *  utterance can't be split, the whole utterance is synthesized on one engine.
+     *
+     *  The chunks are submitted as the other asynchronous syntheses, throttled by the maximum
+     *  number of pending syntheses. Each chunk borrows an engine, so the method should neither be
+     *  called by a thread holding a borrowed engine nor by a thread of the executor.
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration of the synthesis
+     *  @param bit_exact true to synthesize the whole utterance on one engine
+     *  @param executor the executor running the syntheses of the chunks
+     *  @return the joined speech and durations
+     *  @throws HTSEngineException if the pool is closed or if one of the syntheses fails
+     *  @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public ChunkedSynthesis synthesizeChunked(String[] label_lines, SynthesisConfig config, boolean bit_exact, ExecutorService executor) throws HTSEngineException, InterruptedException {
+        synchronized (this) {
+            if (closed)
+                throw new HTSEngineException("The pool is closed");
+        }
+
+        List<String[]> chunks = bit_exact ? null : ChunkedSynthesis.split(label_lines, ChunkedSynthesis.MIN_CHUNK_LABELS);
+        if ((chunks != null) && (chunks.size() > 1)) {
+            List<CompletableFuture<ChunkedSynthesis.Chunk>> futures = new ArrayList<CompletableFuture<ChunkedSynthesis.Chunk>>(chunks.size());
+            try {
+                for (String[] chunk: chunks)
+                    futures.add(submit(() -> synthesizeChunk(chunk, config), executor));
+
+                List<ChunkedSynthesis.Chunk> results = new ArrayList<ChunkedSynthesis.Chunk>(chunks.size());
+                for (CompletableFuture<ChunkedSynthesis.Chunk> future: futures)
+                    results.add(future.get());
+
+                ChunkedSynthesis result = ChunkedSynthesis.join(results);
+                if (result != null)
+                    return result;
+            } catch (ExecutionException ex) {
+                for (CompletableFuture<ChunkedSynthesis.Chunk> future: futures)
+                    future.cancel(false);
+
+                Throwable cause = ex.getCause();
+                if (cause instanceof HTSEngineException)
+                    throw (HTSEngineException) cause;
+                throw new HTSEngineException("The chunked synthesis failed", cause);
+            }
+        }
+
+        // Whole utterance on one engine
+        List<ChunkedSynthesis.Chunk> whole = new ArrayList<ChunkedSynthesis.Chunk>(1);
+        try {
+            whole.add(synthesizeChunk(label_lines, config));
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof HTSEngineException)
+                throw (HTSEngineException) ex.getCause();
+            if (ex.getCause() instanceof InterruptedException)
+                throw (InterruptedException) ex.getCause();
+            throw ex;
+        }
+
+        return ChunkedSynthesis.join(whole);
+    }
+
+    /**
+     *  Synthesize a chunk using a borrowed engine and copy what is needed to join it
+     *
+     *  @param label_lines the full context labels of the chunk
+     *  @param config the configuration of the synthesis
+     *  @return the synthesized chunk
+     *  @throws CompletionException wrapping the reason of the failure
+     */
+    private ChunkedSynthesis.Chunk synthesizeChunk(String[] label_lines, SynthesisConfig config) {
+        try {
+            JHTSEngineWrapper engine = borrow();
+            try {
+                // The result may come from the cache of the engine, so it is read from the stream
+                AudioInputStream ais = engine.synthesize(label_lines, config);
+                byte[] pcm = new byte[2 * (int) ais.getFrameLength()];
+                new DataInputStream(ais).readFully(pcm);
+                short[] samples = new short[pcm.length / 2];
+                ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+
+                double rate = engine.getFramePeriod() * 1.0e+07 / engine.getSamplingFrequency();
+                return new ChunkedSynthesis.Chunk(samples, engine.getDurationTable(), engine.getAudioFormat(),
+                                                  engine.getFramePeriod(), rate);
+            } finally {
+                release(engine);
+            }
+        } catch (HTSEngineException ex) {
+            throw new CompletionException(ex);
+        } catch (IOException ex) {
+            throw new CompletionException(new HTSEngineException("The synthesized chunk can't be read", ex));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     *  Synthesize using a borrowed engine. The result doesn't depend on the engine anymore so the
+     *  engine is released before returning.
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration of the synthesis
+     *  @param token the token stopping the synthesis when cancelled, null if not cancellable
+     *  @return the result of the synthesis
+     *  @throws CompletionException wrapping the reason of the failure
+     */
+    private AudioInputStream synthesizeBorrowed(String[] label_lines, SynthesisConfig config, CancellationToken token) {
+        try {
+            if ((token != null) && token.isCancelled())
+                throw token.toException();
+
+            JHTSEngineWrapper engine = borrow();
+            try {
+                if (token == null)
+                    return engine.synthesize(label_lines, config);
+
+                engine.setConfig(config);
+                return engine.synthesize(label_lines, token);
+            } finally {
+                release(engine);
+            }
+        } catch (HTSEngineException ex) {
+            throw new CompletionException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     *  Get the executor of the pool, created on demand with one thread per engine
+     *
+     *  @return the executor of the pool
+     */
+    private synchronized ExecutorService getDefaultExecutor() {
+        if (default_executor == null) {
+            default_executor = Executors.newFixedThreadPool(size, r -> {
+                    Thread thread = new Thread(r, "jhts_engine-pool");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        }
+
+        return default_executor;
+    }
+
+    /**********************************************************************
+     *** Cleaning utils
+     **********************************************************************/
+    /**
+     *  Method to close the pool. The idle engines are freed at once. The borrowed engines, including
+     *  the ones of the running asynchronous syntheses, can still be used and are freed when they
+     *  are released. The voice is freed with the last engine. The threads waiting for an engine
+     *  fail and the executor of the pool, if any, stops once its syntheses are completed.
+     *
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        // The queued syntheses are run (and fail) so their futures complete
+        if (default_executor != null)
+            default_executor.shutdown();
+
+        if (engines.isEmpty())
+            model.close();
+        while (!idle.isEmpty())
+            closeEngine(idle.poll());
+
+        // Wake up the borrowers so they see the pool is closed
+        notifyAll();
+    }
+
+    /**
+     *  Free an engine, and the voice with the last engine of a closed pool. The lock of the pool
+     *  has to be held.
+     *
+     *  @param engine the engine which is neither idle nor borrowed anymore
+     */
+    private void closeEngine(JHTSEngineWrapper engine) {
+        engine.close();
+        engines.remove(engine);
+        if (closed && engines.isEmpty())
+            model.close();
+    }
+}
@@ -2,6 +2,14 @@ package jhts_engine;
 
 // List
 import java.util.ArrayList;
+import java.util.List;
+
+// Concurrency
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 // Library loading part
 import cz.adamh.utils.NativeUtils;
@@ -9,8 +17,30 @@ import cz.adamh.utils.NativeUtils;
 // Stream
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+// Checksum
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+// Matrix
+import org.ejml.data.DMatrixRMaj;
 
 // Audio
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 
@@ -23,7 +53,7 @@ import javax.sound.sampled.AudioInputStream;
  *
  *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
  */
-public class JHTSEngineWrapper
+public class JHTSEngineWrapper implements AutoCloseable
 {
     /* Loading library part */
     static {
@@ -46,9 +76,72 @@ public class JHTSEngineWrapper
         }
     }
 
+    /** Default number of frames vocoded at once by the streaming synthesis */
+    public static final int DEFAULT_CHUNK_FRAMES = 16;
+
+    /** Default number of bytes kept by the arena of the utterances between two utterances */
+    public static final long DEFAULT_ARENA_RETAINED_BYTES = 16L * 1024 * 1024;
+
     /** The internal HTS engine */
     private HTS_Engine engine;
 
+    /** The stream currently vocoding the generated parameters, null if none */
+    private VocoderInputStream active_stream = null;
+
+    /** The utterance prepared in the engine, null if none */
+    private Utterance prepared_utterance = null;
+
+    /** The minimal number of frames generated per block, 0 for the generation over the whole utterance */
+    private int generation_block_frames = 0;
+
+    /** The minimal number of context frames on each side of a generated block */
+    private int generation_lookahead_frames = 0;
+
+    /** The executor generating the parameter streams concurrently, null to generate them one after another */
+    private Executor generation_executor = null;
+
+    /** The cache of the decision tree lookups, null if not used */
+    private StateCache state_cache = null;
+
+    /** Indicate if the state sequence is generated using the compiled decision trees */
+    private boolean use_compiled_trees = false;
+
+    /** The packed synthesis condition of the voice (before any configuration), null if no voice is loaded */
+    private double[] voice_condition = null;
+
+    /** The configuration currently applied to the engine */
+    private SynthesisConfig config = SynthesisConfig.DEFAULT;
+
+    /** The identity of the loaded voice (size and checksum of its file), null if no voice is loaded */
+    private String voice_id = null;
+
+    /** The voice file to identify when the identity of the voice is first needed, null if none */
+    private Path voice_id_path = null;
+
+    /** The size of the voice file when it has been loaded */
+    private long voice_id_size = -1;
+
+    /** The modification time of the voice file when it has been loaded */
+    private FileTime voice_id_mtime = null;
+
+    /** The cache of the synthesis results, null if not cached */
+    private SynthesisCache synthesis_cache = null;
+
+    /** The cached result returned by the last synthesis, null if the engine has run it */
+    private SynthesisCache.Entry cached_result = null;
+
+    /** The listener receiving the metrics of the synthesized utterances, null if not instrumented */
+    private SynthesisListener synthesis_listener = null;
+
+    /** The wrapper owning the voice model when the model is shared, null otherwise */
+    private final JHTSEngineWrapper model;
+
+    /** The native resources of the engine, freed by the cleaner if the wrapper is not closed */
+    private final NativeState state;
+
+    /** The registration of the native resources in the cleaner */
+    private final NativeCleaner.Cleanable cleanable;
+
     /**
      *  Default constructor which initialize the engine
      *
@@ -56,6 +149,36 @@ public class JHTSEngineWrapper
     public JHTSEngineWrapper() {
         engine = new HTS_Engine();
         HTSEngine.HTS_Engine_initialize(engine);
+        model = null;
+        state = new NativeState(engine, null);
+        cleanable = NativeCleaner.register(this, state);
+    }
+
+    /**
+     *  Constructor of a lightweight engine which shares the (read-only) voice model already loaded
+     *  by an other wrapper. Only the synthesis condition and the per-utterance structures are owned
+     *  by the new engine. The model wrapper has to stay alive (and not be cleared) as long as the
+     *  new engine is used.
+     *
+     *  @param model the wrapper which has loaded the voice
+     *  @throws HTSEngineException if the model wrapper has no voice loaded
+     */
+    JHTSEngineWrapper(JHTSEngineWrapper model) throws HTSEngineException {
+        engine = new HTS_Engine();
+        HTSEngine.HTS_Engine_initialize(engine);
+        if (!HTSEngine.HTS_Engine_share_model(engine, model.engine))
+            throw new HTSEngineException("The voice can't be shared, no voice is loaded in the model engine");
+        this.model = model;
+        this.state = new NativeState(engine, model);
+        this.cleanable = NativeCleaner.register(this, state);
+        this.state.setUtteranceArena(model.state.useUtteranceArena(), model.state.getArenaRetainedBytes());
+        this.state_cache = model.state_cache;
+        this.use_compiled_trees = model.use_compiled_trees;
+        this.generation_executor = model.generation_executor;
+        this.synthesis_listener = model.synthesis_listener;
+        this.voice_condition = model.voice_condition;
+        this.config = model.config;
+        this.synthesis_cache = model.synthesis_cache;
     }
 
     /**********************************************************************
@@ -63,271 +186,2207 @@ public class JHTSEngineWrapper
      **********************************************************************/
     /**
      *  Method to set the voice given by its path. The engine is cleaned so all the other parameters
-     *  are reset at the same time
+     *  are reset at the same time: the configuration (see {@link #setConfig(SynthesisConfig)} and
+     *  the setters) goes back to the one of the voice
+     *
+     *  @param voice_path the path of the hts engine voice (or of its image)
+     *  @throws HTSEngineException if the loading of voice fails.
+     */
+    public void setVoice(String voice_path) throws HTSEngineException {
+        setVoice(Paths.get(voice_path), false);
+    }
+
+    /**
+     *  Method to set the cache of the decision tree lookups. The cache can be shared by the engines
+     *  using the same voice.
+     *
+     *  @param state_cache the cache or null to always walk the decision trees
+     */
+    public void setStateCache(StateCache state_cache) {
+        this.state_cache = state_cache;
+    }
+
+    /**
+     *  Method to get the cache of the decision tree lookups
+     *
+     *  @return the cache or null if not used
+     */
+    public StateCache getStateCache() {
+        return state_cache;
+    }
+
+    /**
+     *  Method to set the cache of the synthesis results. The cache is used by
+     *  {@link #synthesize(String[])} (and the methods relying on it): a result found in the cache
+     *  is returned without running the engine, the engine is then only refreshed and the durations
+     *  of the result are given by {@link #getDurationTable()}, but the generated parameters and
+     *  speech of the engine are not available.
+     *
+     *  @param synthesis_cache the cache or null to always run the engine
+     */
+    public void setSynthesisCache(SynthesisCache synthesis_cache) {
+        this.synthesis_cache = synthesis_cache;
+    }
+
+    /**
+     *  Method to get the cache of the synthesis results
+     *
+     *  @return the cache or null if not cached
+     */
+    public SynthesisCache getSynthesisCache() {
+        return synthesis_cache;
+    }
+
+    /**
+     *  Method to set the listener receiving the metrics (time spent in each stage, size of the
+     *  utterance, ...) of each utterance synthesized by {@link #synthesize(String[])} or whose
+     *  parameters are generated by {@link #generateAcousticParameters(String[])}. Without listener
+     *  the synthesis is not instrumented at all.
+     *
+     *  @param synthesis_listener the listener or null to disable the instrumentation
+     */
+    public void setSynthesisListener(SynthesisListener synthesis_listener) {
+        this.synthesis_listener = synthesis_listener;
+    }
+
+    /**
+     *  Method to get the listener receiving the metrics of the synthesized utterances
+     *
+     *  @return the listener or null if the synthesis is not instrumented
+     */
+    public SynthesisListener getSynthesisListener() {
+        return synthesis_listener;
+    }
+
+    /**
+     *  Method to set the voice given by its path
+     *
+     *  @param voice_path the path of the hts engine voice (or of its image)
+     *  @throws HTSEngineException if the loading of voice fails.
+     */
+    public void setVoice(Path voice_path) throws HTSEngineException {
+        setVoice(voice_path, false);
+    }
+
+    /**
+     *  Method to set the voice given by its path. The engine is cleaned so all the other parameters
+     *  are reset at the same time: the configuration (see {@link #setConfig(SynthesisConfig)} and
+     *  the setters) goes back to the one of the voice.
      *
-     *  @param voice_path the path of the hts engine voice
+     *  The file can either be a .htsvoice file, which is parsed, or an image compiled by
+     *  {@link VoiceImage}, which is loaded without any parsing. The PDFs of an image are used in
+     *  place: when mapped, the image is shared through the page cache by all the processes using
+     *  the same voice and it must not be modified or truncated as long as the voice is loaded.
+     *
+     *  @param voice_path the path of the hts engine voice (or of its image)
+     *  @param mmap true to map the image, false to read it in memory (ignored for a .htsvoice file)
      *  @throws HTSEngineException if the loading of voice fails.
      */
-    public void setVoice(String voice_path) throws Exception {
-        String[] voice = {voice_path};
+    public void setVoice(Path voice_path, boolean mmap) throws HTSEngineException {
+        if (isShared())
+            throw new HTSEngineException("The voice of an engine sharing its model can't be changed");
+
+        boolean is_image;
+        try {
+            is_image = VoiceImage.isImage(voice_path);
+        } catch (IOException ex) {
+            throw new HTSEngineException("The voice can't be read", ex);
+        }
+
+        // The compiled trees and the image belong to the previous voice
+        refresh();
+        state.deleteCompiledTrees();
+        state.releaseVoiceImage();
+        state.setModelBytes(0);
+
+        // The configuration belongs to the previous voice
+        voice_condition = null;
+        voice_id = null;
+        voice_id_path = null;
+        voice_id_size = -1;
+        voice_id_mtime = null;
+        config = SynthesisConfig.DEFAULT;
 
         // Load the voice
-        HTSEngine.HTS_Engine_load(engine, voice, 1);
+        if (is_image) {
+            ByteBuffer image = VoiceImage.open(voice_path, mmap);
+            state.image_arena = HTSEngine.HTS_Engine_load_image(engine, image);
+            if (state.image_arena == null)
+                throw new HTSEngineException("Loading of the image of the voice failed, recompile the voice on this platform");
+            state.voice_image = image;
+        } else {
+            String[] voice = {voice_path.toString()};
+            HTSEngine.HTS_Engine_load(engine, voice, 1);
+        }
 
         // Check that the voice has been loaded
         if (HTSEngine.HTS_Engine_get_nvoices(engine) <= 0) {
             throw new HTSEngineException("Loading of the voice failed");
         }
+
+        // Keep the condition of the voice which is the base of the configurations
+        double[] condition = new double[(int) HTSEngine.HTS_Engine_get_condition_size(engine)];
+        if (!HTSEngine.HTS_Engine_get_condition(engine, condition))
+            throw new HTSEngineException("The synthesis condition of the voice can't be read");
+        voice_condition = condition;
+
+        // Account the memory of the model (estimated by the size of its image)
+        state.setModelBytes(Math.max(HTSEngine.HTS_Engine_get_image_size(engine), 0));
+
+        // Identify the voice for the cache of the results: an image keeps the identity of its
+        // source, a voice file is read again now if the results are cached, when a result is
+        // first cached else (as long as the file is the one loaded)
+        try {
+            if (is_image) {
+                voice_id = VoiceImage.getSourceId(voice_path);
+            } else if (synthesis_cache != null) {
+                voice_id = VoiceImage.getVoiceId(Files.size(voice_path), VoiceImage.checksum(voice_path));
+            } else {
+                voice_id_size = Files.size(voice_path);
+                voice_id_mtime = Files.getLastModifiedTime(voice_path);
+                voice_id_path = voice_path;
+            }
+        } catch (IOException ex) {
+            throw new HTSEngineException("The voice can't be read", ex);
+        }
+
+        // The cached lookups belong to the previous voice
+        if (state_cache != null)
+            state_cache.clear();
     }
 
     /**
-     *  Method to set the period value
+     *  Method to know if the voice has been loaded from an image
      *
-     *  @param period the new period value
+     *  @return true if the voice of the engine (or of the engine sharing its model) is an image
      */
-    public void setPeriod(int period) {
+    public boolean isVoiceImage() {
+        if (isShared())
+            return model.isVoiceImage();
 
+        return state.image_arena != null;
     }
 
     /**
-     *  Method to set the alpha value
+     *  Save the loaded voice as a native image (without the header of the file)
      *
-     *  @param alpha the new alpha value
+     *  @return the direct buffer containing the image
+     *  @throws HTSEngineException if the voice can't be saved (no voice or several voices loaded)
      */
-    public void setAlpha(double alpha) {
-    }
+    ByteBuffer getVoiceImage() throws HTSEngineException {
+        long size = HTSEngine.HTS_Engine_get_image_size(engine);
+        if (size <= 0)
+            throw new HTSEngineException("The image of the voice can't be produced, one and only one voice should be loaded");
+        if (size > Integer.MAX_VALUE)
+            throw new HTSEngineException("The voice is too large to be saved as an image");
 
+        ByteBuffer image = ByteBuffer.allocateDirect((int) size);
+        if (HTSEngine.HTS_Engine_write_image(engine, image) != size)
+            throw new HTSEngineException("The image of the voice can't be produced");
+
+        return image;
+    }
 
     /**
-     *  Method to set the beta value
+     *  Method to get the number of native bytes held by the voice model of this engine, estimated
+     *  by the size of its image
      *
-     *  @param beta the new beta value
+     *  @return the number of bytes, 0 if no voice is loaded or if the model is shared
      */
-    public void setBeta(double beta) {
+    public long getModelBytes() {
+        return state.getModelBytes();
     }
 
     /**
-     *  Method to set the speed value
+     *  Method to get the number of native bytes held by the current utterance. The memory is
+     *  estimated (for the whole synthesis) once the state sequence is generated and is measured
+     *  once the synthesis is completed.
      *
-     *  @param speed the new speed value
+     *  @return the number of bytes, 0 if no utterance is held
      */
-    public void setSpeed(double speed) {
+    public long getUtteranceBytes() {
+        return state.getUtteranceBytes();
     }
 
     /**
-     *  Method to set the MSD threshold
+     *  Method to get the largest number of native bytes held by an utterance of this engine
      *
-     *  @param msd_threshold the MSD threshold
+     *  @return the number of bytes
      */
-    public void setMSDThreshold(double msd_threshold) {
+    public long getPeakUtteranceBytes() {
+        return state.getPeakUtteranceBytes();
     }
 
     /**
-     *  Method to set the volume (in dB)
+     *  Method to set the voice read from a stream (for example a voice packaged as a resource).
+     *
+     *  The engine can only parse a voice from a file, so the voice is spooled to a memory backed
+     *  file (in /dev/shm when available, in the temporary directory else) which is deleted as soon
+     *  as the voice is loaded.
      *
-     *  @param speed the new volume (in dB)
+     *  @param voice the stream containing the hts engine voice (not closed by this method)
+     *  @throws HTSEngineException if the reading or the loading of voice fails.
      */
-    public void setVolume(double volume) {
+    public void setVoice(InputStream voice) throws HTSEngineException {
+        Path voice_path = null;
+        try {
+            voice_path = createVoiceFile();
+            CheckedInputStream checked = new CheckedInputStream(voice, new CRC32());
+            long size = Files.copy(checked, voice_path, StandardCopyOption.REPLACE_EXISTING);
+            setVoice(voice_path);
+            setSpooledVoiceId(size, checked.getChecksum().getValue());
+        } catch (IOException ex) {
+            throw new HTSEngineException("The voice can't be read", ex);
+        } finally {
+            deleteVoiceFile(voice_path);
+        }
     }
 
-    /**********************************************************************
-     ***  operations
-     **********************************************************************/
     /**
-     *  Method to get the generated duration per segment
+     *  Method to set the voice contained in a buffer, from its position to its limit. The
+     *  position of the buffer is not modified.
      *
-     *  @return the array of labels filled with start and durations
+     *  The engine can only parse a voice from a file, so the voice is spooled to a memory backed
+     *  file (in /dev/shm when available, in the temporary directory else) which is deleted as soon
+     *  as the voice is loaded.
+     *
+     *  @param voice the buffer containing the hts engine voice
+     *  @throws HTSEngineException if the loading of voice fails.
      */
-    public ArrayList<FilledLabel> getDurations() {
-        ArrayList<FilledLabel> labels_with_dur = new ArrayList<FilledLabel>();
+    public void setVoice(ByteBuffer voice) throws HTSEngineException {
+        Path voice_path = null;
+        try {
+            voice_path = createVoiceFile();
+            CRC32 crc = new CRC32();
+            crc.update(voice.duplicate());
+            try (FileChannel channel = FileChannel.open(voice_path, StandardOpenOption.WRITE)) {
+                ByteBuffer content = voice.duplicate();
+                while (content.hasRemaining())
+                    channel.write(content);
+            }
+            setVoice(voice_path);
+            setSpooledVoiceId(voice.remaining(), crc.getValue());
+        } catch (IOException ex) {
+            throw new HTSEngineException("The voice can't be spooled", ex);
+        } finally {
+            deleteVoiceFile(voice_path);
+        }
+    }
 
-        // Get engine information
-        HTS_SStreamSet sss = engine.getSss();
-        HTS_Label lab_engine = engine.getLabel();
-        HTS_LabelString it = lab_engine.getHead();
+    /**
+     *  Identify a voice spooled to a file, by the size and the checksum computed while spooling,
+     *  as the file is deleted once the voice is loaded. An image keeps the identity of its source.
+     *
+     *  @param size the size of the voice
+     *  @param checksum the CRC32 of the voice
+     */
+    private void setSpooledVoiceId(long size, long checksum) {
+        voice_id_path = null;
+        voice_id_size = -1;
+        voice_id_mtime = null;
+        if (voice_id == null)
+            voice_id = VoiceImage.getVoiceId(size, checksum);
+    }
 
-        // Get the global duration information
-        double rate = engine.getCondition().getFperiod() * 1.0e+07 / engine.getCondition().getSampling_frequency();
-        int n_state = (int) engine.getMs().getNum_states();
-        SWIGTYPE_p_size_t durations = sss.getDuration();
-
-        // Get the label duration information
-        int state = 0;
-        int frame = 0;
-        for (int i=0; i < lab_engine.getSize(); i++) {
-            // Compute segment duration
-            int duration = 0;
-            for (int j=0; j < n_state; j++) {
-                duration += HTSEngine.size_array_getitem(durations, state);
-                state++;
-            }
+    /**
+     *  Get the identity of the voice used by the cache of the results, identifying the voice file
+     *  when first needed. An engine sharing its voice uses the identity of the owner of the voice.
+     *
+     *  @return the identity or null if no voice is loaded
+     *  @throws HTSEngineException if the voice file can't be read or has changed since the voice
+     *  has been loaded (the voice should then be loaded again to cache its results)
+     */
+    private synchronized String getVoiceId() throws HTSEngineException {
+        if (isShared())
+            return model.getVoiceId();
 
-            // Add label to the list
-            FilledLabel tmp = new FilledLabel(it.getName(),
-                                              (long) (frame * rate),
-                                              (long) (duration * rate));
-            labels_with_dur.add(tmp);
+        if (voice_id_path != null) {
+            try {
+                if ((Files.size(voice_id_path) != voice_id_size) ||
+                    (!Files.getLastModifiedTime(voice_id_path).equals(voice_id_mtime)))
+                    throw new HTSEngineException("The voice file \"" + voice_id_path + "\" has changed since it was loaded, its results can't be cached");
 
-            // Move to next label segment
-            it = it.getNext();
-            frame += duration;
+                voice_id = VoiceImage.getVoiceId(voice_id_size, VoiceImage.checksum(voice_id_path));
+            } catch (IOException ex) {
+                throw new HTSEngineException("The voice file \"" + voice_id_path + "\" can't be read, its results can't be cached", ex);
+            }
+            voice_id_path = null;
+            voice_id_mtime = null;
         }
 
-        return labels_with_dur;
+        return voice_id;
     }
 
     /**
-     *  Method to get the generated parameters corresponding to the stream which index is given in
-     *  parameter.
+     *  Create the file used to give a voice from memory to the engine, in the shared memory
+     *  filesystem if available
      *
-     *  @param i_stream the index of the stream
-     *  @return the generated parameter array
+     *  @return the path of the created (empty) file
+     *  @throws IOException if the file can't be created
      */
-    public double[][] getGeneratedParameterSequence(int i_stream) throws HTSEngineException{
-        // Get dimension
-        HTS_GStreamSet gss = engine.getGss();
-        if (gss == null)
-            throw new HTSEngineException("The engine is not initialized properly (run synthesize or generateParameters first !)");
+    private static Path createVoiceFile() throws IOException {
+        Path shm = Paths.get("/dev/shm");
+        if (Files.isDirectory(shm) && Files.isWritable(shm))
+            return Files.createTempFile(shm, "jhts_engine", ".htsvoice");
 
-        if (gss.getNstream() == 0)
-            throw new HTSEngineException("The engine is not initialized properly, there is no stream in the model set (run synthesize or generateParameters first !)");
-        int nb_frames = (int) HTSEngine.HTS_Engine_get_total_frame(engine);
-        int dim = (int) HTSEngine.HTS_GStreamSet_get_vector_length(gss, i_stream);
+        return Files.createTempFile("jhts_engine", ".htsvoice");
+    }
 
-        // Get values
-        double[][] out = new double[nb_frames][dim];
-        for (int t=0; t<nb_frames; t++)
-            for (int d=0; d<dim; d++)
-                out[t][d] = (float) HTSEngine.HTS_Engine_get_generated_parameter(engine, i_stream, t, d);
+    /**
+     *  Delete the file used to give a voice from memory to the engine
+     *
+     *  @param voice_path the path of the file, null if not created
+     */
+    private static void deleteVoiceFile(Path voice_path) {
+        if (voice_path == null)
+            return;
 
-        return out;
+        try {
+            Files.deleteIfExists(voice_path);
+        } catch (IOException ex) {
+            voice_path.toFile().deleteOnExit();
+        }
     }
 
     /**
-     *  Synthesis method
+     *  Method to know if the engine shares the voice model of an other wrapper
      *
-     *  @param labels the string containing the full context labels (so a multiple line string)
-     *  @return the AudioStream containing the result of the synthesis
-     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     *  @return true if the voice model is shared, false if the engine owns it
      */
-    public AudioInputStream synthesize(String labels) throws HTSEngineException {
-        return synthesize(labels.split("\n"));
+    public boolean isShared() {
+        return model != null;
     }
 
     /**
-     *  Synthesis method
+     *  Method to enable the compiled decision trees. The trees of the voice are flattened into
+     *  arrays once (at the first synthesis), the patterns of the questions are compiled and the
+     *  questions shared by several trees are only evaluated once per label. The generated state
+     *  sequence is the same as the one using the decision trees of the voice.
      *
-     *  @param label_lines the string containing the full context labels (so a multiple line string)
-     *  @return the AudioStream containing the result of the synthesis
-     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     *  The compiled trees are only used when the synthesis condition doesn't change the tree
+     *  lookups (single voice, default interpolation weights, speed, pitch shift and no phoneme
+     *  alignment).
+     *
+     *  @param use_compiled_trees true to use the compiled trees, false to walk the decision trees of the voice
      */
-    public AudioInputStream synthesize(String[] label_lines) throws HTSEngineException {
-        // Clear engine generated parameter
-        refresh();
-
-        // Achieve synthesis
-        HTSEngine.HTS_Engine_synthesize_from_strings(engine, label_lines, label_lines.length);
+    public void setCompiledTrees(boolean use_compiled_trees) {
+        this.use_compiled_trees = use_compiled_trees;
+    }
 
-        // Generate audio inputstream (FIXME:frequency hardcoded)
-        HTS_GStreamSet gss = engine.getGss();
-        SWIGTYPE_p_double x = gss.getGspeech();
-        int nb_samples = (int) gss.getTotal_nsample();
+    /**
+     *  Method to know if the compiled decision trees are used
+     *
+     *  @return true if the compiled trees are used
+     */
+    public boolean useCompiledTrees() {
+        return use_compiled_trees;
+    }
 
-        if (nb_samples <= 0) {
-            throw new HTSEngineException("Problem with the synthesis, the produced number of samples should be strictly positive and not: " + nb_samples);
-        }
+    /**
+     *  Method to set the block-wise parameter generation. Instead of solving the parameter
+     *  generation over the whole utterance, the parameters are generated block after block, each
+     *  block being solved with at least lookahead_frames frames of context on each side. The cost
+     *  and the working memory of one solve are then bounded by the size of the window and the
+     *  streaming synthesis produces its first samples as soon as the first block is generated.
+     *
+     *  The result is close to, but not exactly, the one of the generation over the whole utterance
+     *  (the global variance, if used by the voice, is applied per window).
+     *
+     *  @param block_frames the minimal number of frames generated per block, 0 to generate the
+     *  whole utterance at once
+     *  @param lookahead_frames the minimal number of context frames on each side of a block
+     */
+    public void setParameterGenerationWindow(int block_frames, int lookahead_frames) {
+        if ((block_frames < 0) || (lookahead_frames < 0))
+            throw new IllegalArgumentException("The generation window should be positive and not: " + block_frames + "/" + lookahead_frames);
 
-        //  1. Generate header
-        int sample_rate = 48000;
-        AudioFormat format = new AudioFormat(sample_rate, 16, 1, true, false);   // use 16-bit audio, mono, signed PCM, little Endian
+        generation_block_frames = block_frames;
+        generation_lookahead_frames = lookahead_frames;
+    }
 
+    /**
+     *  Method to generate the parameter streams (spectrum, F0, aperiodicity...) of an utterance
+     *  concurrently. The streams are independent, so each one is solved by its own task: the
+     *  calling thread solves the first stream while the executor solves the others. The result is
+     *  exactly the one of the sequential generation. A small executor shared by the engines, with
+     *  as many threads as the voice has streams minus one, is enough.
+     *
+     *  It only applies to the generation over the whole utterance, the block-wise generation (see
+     *  {@link #setParameterGenerationWindow}) stays sequential.
+     *
+     *  @param generation_executor the executor or null to generate the streams one after another
+     */
+    public void setParameterGenerationExecutor(Executor generation_executor) {
+        this.generation_executor = generation_executor;
+    }
 
-        //  2. fill data
-        byte[] data = new byte[2 * nb_samples];
-        for (int i = 0; i < nb_samples; i++) {
-            double tmp = HTSEngine.double_array_getitem(x, i);
-            if (tmp > 32767.0)
-                tmp = 32767;
-            else if (tmp < -32768.0)
-                tmp = -32768;
+    /**
+     *  Method to get the executor generating the parameter streams concurrently
+     *
+     *  @return the executor or null if the streams are generated one after another
+     */
+    public Executor getParameterGenerationExecutor() {
+        return generation_executor;
+    }
 
-            int x_i = (int) Math.round(tmp);
-            data[2*i + 0] = (byte) x_i;
-            data[2*i + 1] = (byte) (x_i >> 8);
-        }
+    /**
+     *  Method to allocate the per-utterance structures (state streams, generated streams and
+     *  speech of the contiguous and resynthesis paths) in an arena owned by the engine instead of
+     *  allocating and freeing them one by one. The arena keeps its blocks when the engine is
+     *  refreshed, so the next utterances of similar size are allocated without any malloc.
+     *
+     *  @param use_arena true to use the arena with {@link #DEFAULT_ARENA_RETAINED_BYTES} bytes kept, false to free it
+     */
+    public void setUtteranceArena(boolean use_arena) {
+        setUtteranceArena(use_arena, DEFAULT_ARENA_RETAINED_BYTES);
+    }
 
-        //  3. Get the stream
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        AudioInputStream ais = new AudioInputStream(bais, format, nb_samples);
+    /**
+     *  Method to allocate the per-utterance structures in an arena (see
+     *  {@link #setUtteranceArena(boolean)}). After an unusually large utterance, the blocks
+     *  beyond max_retained_bytes are freed when the engine is refreshed. The engine is refreshed.
+     *
+     *  @param use_arena true to use the arena, false to free it
+     *  @param max_retained_bytes the maximum number of bytes kept by the arena between two utterances
+     */
+    public void setUtteranceArena(boolean use_arena, long max_retained_bytes) {
+        if (max_retained_bytes < 0)
+            throw new IllegalArgumentException("The number of retained bytes should be positive and not: " + max_retained_bytes);
 
-        // Return the stream
-        return ais;
+        refresh();
+        state.setUtteranceArena(use_arena, max_retained_bytes);
     }
 
+    /**
+     *  Method to know if the per-utterance structures are allocated in an arena
+     *
+     *  @return true if the arena is used
+     */
+    public boolean useUtteranceArena() {
+        return state.useUtteranceArena();
+    }
 
     /**
-     *  Method to just generate the acoustic parameter features without going to the vocoder
-     *  process.
+     *  Method to get the number of bytes reserved by the arena of the utterances, in use or kept
+     *  for the next utterances
      *
+     *  @return the number of bytes, 0 if the arena is not used
+     */
+    public long getUtteranceArenaBytes() {
+        return state.getUtteranceArenaBytes();
+    }
+
+    /**
+     *  Method to get the minimal number of frames generated per block
      *
-     *  @param labels the string containing the full context labels (so a multiple line string)
-     *  @throws HTSEngineException if something goes wrong (see message for more information).
+     *  @return the number of frames per block, 0 if the whole utterance is generated at once
      */
-    public void generateAcousticParameters(String labels) throws HTSEngineException {
-        generateAcousticParameters(labels.split("\n"));
+    public int getParameterGenerationBlockFrames() {
+        return generation_block_frames;
     }
 
     /**
-     *  Method to just generate the acoustic parameter features without going to the vocoder
-     *  process.
+     *  Method to get the minimal number of context frames on each side of a generated block
      *
-     *  @param label_lines the label sequence to "synthesize"
-     *  @throws HTSEngineException if something goes wrong (see message for more information).
+     *  @return the number of context frames
      */
-    public void generateAcousticParameters(String[] label_lines) throws HTSEngineException {
-        // Clear engine generated parameter
-        refresh();
+    public int getParameterGenerationLookaheadFrames() {
+        return generation_lookahead_frames;
+    }
 
-        // Generate state sequence from the labels
-        boolean res = HTSEngine.HTS_Engine_generate_state_sequence_from_strings(engine, label_lines, label_lines.length);
-        if (! res) {
-            HTSEngine.HTS_Engine_refresh(engine);
-            throw new HTSEngineException("Generation of the state sequence failed. Check your voice and your labels");
-        }
+    /**
+     *  Method to apply a configuration to the engine. The configuration replaces the previous one:
+     *  the values which are not set by the configuration are reset to the ones of the voice. Nothing
+     *  is done if the configuration is equal to the one already applied.
+     *
+     *  @param config the configuration
+     *  @throws HTSEngineException if no voice is loaded or if the configuration can't be applied
+     *  @throws IllegalArgumentException if the configuration doesn't fit the voice
+     */
+    public void setConfig(SynthesisConfig config) throws HTSEngineException {
+        if (config.equals(this.config))
+            return;
+        if (voice_condition == null)
+            throw new HTSEngineException("No voice is loaded, the configuration can't be applied");
 
-        // Generate acoustic parameters
-        res = HTSEngine.HTS_Engine_generate_parameter_sequence(engine);
-        if (! res) {
-            HTSEngine.HTS_Engine_refresh(engine);
-            throw new HTSEngineException("Generation of the parameter sequence failed. Check your voice");
-        }
+        double[] condition = config.pack(voice_condition,
+                                         (int) HTSEngine.HTS_Engine_get_nstream(engine),
+                                         (int) HTSEngine.HTS_Engine_get_nvoices(engine));
+        if (!HTSEngine.HTS_Engine_set_condition(engine, condition))
+            throw new HTSEngineException("The configuration can't be applied: " + config);
+        this.config = config;
+    }
 
-        // Fill the datastructure accurately
-        res = HTSEngine.HTS_MinimalGStreamSet_create(engine.getGss(), engine.getPss(),
-                                                     engine.getCondition().getFperiod());
-        if (! res) {
-            HTSEngine.HTS_Engine_refresh(engine);
-            throw new HTSEngineException("Generation of the parameter sequence failed. Check your voice");
-        }
+    /**
+     *  Method to get the configuration currently applied to the engine
+     *
+     *  @return the configuration
+     */
+    public SynthesisConfig getConfig() {
+        return config;
     }
 
-    /**********************************************************************
-     *** Cleaning utils
-     **********************************************************************/
     /**
-     *  Method to refresh the engine = free the generated part of the structures
+     *  Method to get the sampling frequency used by the engine
      *
+     *  @return the sampling frequency in Hz
      */
-    public void refresh() {
-        HTSEngine.HTS_Engine_refresh(engine);
+    public int getSamplingFrequency() {
+        return (int) HTSEngine.HTS_Engine_get_sampling_frequency(engine);
     }
 
     /**
-     *  Method to clear the engine memory. Needs to be called before shutdown the java application
+     *  Method to get the frame period used by the engine
      *
+     *  @return the frame period in samples
      */
-    public void clear() {
-        HTSEngine.HTS_Engine_clear(engine);
+    public int getFramePeriod() {
+        return (int) HTSEngine.HTS_Engine_get_fperiod(engine);
     }
 
+    /**
+     *  Apply the configuration modified by one of the setters. The setters apply to the loaded
+     *  voice: a voice loaded afterwards resets the configuration.
+     *
+     *  @param config the modified configuration
+     *  @throws IllegalStateException if no voice is loaded
+     *  @throws IllegalArgumentException if the value can't be applied
+     */
+    private void applySetter(SynthesisConfig config) {
+        if (voice_condition == null)
+            throw new IllegalStateException("No voice is loaded, the voice has to be set before the synthesis parameters");
+
+        try {
+            setConfig(config);
+        } catch (HTSEngineException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     *  Method to set the period value
+     *
+     *  @param period the new period value
+     *  @throws IllegalStateException if no voice is loaded
+     */
+    public void setPeriod(int period) {
+        applySetter(config.withFramePeriod(period));
+    }
+
+    /**
+     *  Method to set the alpha value
+     *
+     *  @param alpha the new alpha value
+     *  @throws IllegalStateException if no voice is loaded
+     */
+    public void setAlpha(double alpha) {
+        applySetter(config.withAlpha(alpha));
+    }
+
+
+    /**
+     *  Method to set the beta value
+     *
+     *  @param beta the new beta value
+     *  @throws IllegalStateException if no voice is loaded
+     */
+    public void setBeta(double beta) {
+        applySetter(config.withBeta(beta));
+    }
+
+    /**
+     *  Method to set the speed value
+     *
+     *  @param speed the new speed value
+     *  @throws IllegalStateException if no voice is loaded
+     */
+    public void setSpeed(double speed) {
+        applySetter(config.withSpeed(speed));
+    }
+
+    /**
+     *  Method to set the MSD threshold of the log F0 stream (stream 1, as the -u option of
+     *  hts_engine)
+     *
+     *  @param msd_threshold the MSD threshold
+     *  @throws IllegalStateException if no voice is loaded
+     */
+    public void setMSDThreshold(double msd_threshold) {
+        applySetter(config.withMSDThreshold(1, msd_threshold));
+    }
+
+    /**
+     *  Method to set the volume (in dB)
+     *
+     *  @param volume the new volume (in dB)
+     *  @throws IllegalStateException if no voice is loaded
+     */
+    public void setVolume(double volume) {
+        applySetter(config.withVolume(volume));
+    }
+
+    /**********************************************************************
+     ***  operations
+     **********************************************************************/
+    /**
+     *  Method to get the generated duration per segment
+     *
+     *  @return the array of labels filled with start and durations
+     */
+    public ArrayList<FilledLabel> getDurations() {
+        return getDurationTable().toFilledLabels();
+    }
+
+    /**
+     *  Method to get the generated durations as a columnar table: the labels, their start and end
+     *  (in frames and in HTK units) and the duration of each state. The durations are exported
+     *  natively in one call.
+     *
+     *  @return the table of the generated durations (empty if no state sequence has been generated)
+     */
+    public DurationTable getDurationTable() {
+        if (cached_result != null)
+            return cached_result.getDurationTable();
+
+        double rate = engine.getCondition().getFperiod() * 1.0e+07 / engine.getCondition().getSampling_frequency();
+        int n_state = (int) engine.getMs().getNum_states();
+
+        // Export the labels and the durations of their states
+        String[] labels = new String[(int) engine.getLabel().getSize()];
+        int[] durations = new int[labels.length * n_state];
+        if ((HTSEngine.HTS_Engine_get_state_durations(engine, durations) != durations.length)
+            || (HTSEngine.HTS_Engine_get_label_names(engine, labels) != labels.length))
+            return new DurationTable(new String[0], new int[0], n_state, rate);
+
+        return new DurationTable(labels, durations, n_state, rate);
+    }
+
+    /**
+     *  Method to get the generated parameters corresponding to the stream which index is given in
+     *  parameter.
+     *
+     *  @param i_stream the index of the stream
+     *  @return the generated parameter array
+     */
+    public double[][] getGeneratedParameterSequence(int i_stream) throws HTSEngineException{
+        int dim = getGeneratedParameterDimension(i_stream);
+        double[] flat = getGeneratedParameters(i_stream);
+
+        // Split the frames
+        double[][] out = new double[flat.length / dim][dim];
+        for (int t=0; t<out.length; t++)
+            System.arraycopy(flat, t*dim, out[t], 0, dim);
+
+        return out;
+    }
+
+    /**
+     *  Method to get the dimension of the generated parameters corresponding to the stream which
+     *  index is given in parameter.
+     *
+     *  @param i_stream the index of the stream
+     *  @return the dimension of one frame of the stream
+     *  @throws HTSEngineException if the engine has not generated any parameter
+     */
+    public int getGeneratedParameterDimension(int i_stream) throws HTSEngineException {
+        HTS_GStreamSet gss = checkGeneratedStreamSet(i_stream);
+        return (int) HTSEngine.HTS_GStreamSet_get_vector_length(gss, i_stream);
+    }
+
+    /**
+     *  Method to get the generated parameters corresponding to the stream which index is given in
+     *  parameter as one flat row-major array (frame after frame). The copy is achieved natively in
+     *  one call.
+     *
+     *  @param i_stream the index of the stream
+     *  @return the generated parameters (nb_frames x dim values)
+     *  @throws HTSEngineException if the engine has not generated any parameter
+     */
+    public double[] getGeneratedParameters(int i_stream) throws HTSEngineException {
+        HTS_GStreamSet gss = checkGeneratedStreamSet(i_stream);
+        int nb_frames = (int) gss.getTotal_frame();
+        int dim = (int) HTSEngine.HTS_GStreamSet_get_vector_length(gss, i_stream);
+
+        double[] out = new double[nb_frames * dim];
+        HTSEngine.HTS_GStreamSet_get_parameters(gss, i_stream, out);
+
+        return out;
+    }
+
+    /**
+     *  Method to get the generated parameters corresponding to the stream which index is given in
+     *  parameter as an EJML matrix (one row per frame).
+     *
+     *  @param i_stream the index of the stream
+     *  @return the generated parameter matrix
+     *  @throws HTSEngineException if the engine has not generated any parameter
+     */
+    public DMatrixRMaj getGeneratedParameterMatrix(int i_stream) throws HTSEngineException {
+        int dim = getGeneratedParameterDimension(i_stream);
+        double[] flat = getGeneratedParameters(i_stream);
+        return DMatrixRMaj.wrap(flat.length / dim, dim, flat);
+    }
+
+    /**
+     *  Method to get a view, without any copy, on the native memory containing the generated
+     *  parameters of the stream which index is given in parameter. The values are stored row-major
+     *  (frame after frame).
+     *
+     *  The view is only available after generateAcousticParameters and is only valid until the next
+     *  synthesis, refresh or clear of the engine.
+     *
+     *  @param i_stream the index of the stream
+     *  @return the read-only view on the generated parameters
+     *  @throws HTSEngineException if the parameters have not been generated by generateAcousticParameters
+     */
+    public DoubleBuffer getGeneratedParameterBuffer(int i_stream) throws HTSEngineException {
+        HTS_GStreamSet gss = checkGeneratedStreamSet(i_stream);
+        if (!state.minimal_gss)
+            throw new HTSEngineException("The parameter view is only available after generateAcousticParameters");
+
+        ByteBuffer buffer = HTSEngine.HTS_MinimalGStreamSet_get_parameter_buffer(gss, i_stream);
+        if (buffer == null)
+            return DoubleBuffer.allocate(0).asReadOnlyBuffer();
+
+        return buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     *  Check that the generated stream set is available and contains the given stream
+     *
+     *  @param i_stream the index of the stream
+     *  @return the generated stream set
+     *  @throws HTSEngineException if the stream set is not available
+     */
+    private HTS_GStreamSet checkGeneratedStreamSet(int i_stream) throws HTSEngineException {
+        HTS_GStreamSet gss = engine.getGss();
+        if (gss == null)
+            throw new HTSEngineException("The engine is not initialized properly (run synthesize or generateParameters first !)");
+
+        if (gss.getNstream() == 0)
+            throw new HTSEngineException("The engine is not initialized properly, there is no stream in the model set (run synthesize or generateParameters first !)");
+
+        if ((i_stream < 0) || (i_stream >= gss.getNstream()))
+            throw new HTSEngineException("The stream index " + i_stream + " is not valid (number of streams: " + gss.getNstream() + ")");
+
+        return gss;
+    }
+
+    /**
+     *  Method to get the number of samples generated by the last synthesis
+     *
+     *  @return the number of generated samples
+     */
+    public int getNbSamples() {
+        return (int) engine.getGss().getTotal_nsample();
+    }
+
+    /**
+     *  Method to copy the generated speech, as 16-bit samples, into the given array. The samples
+     *  are clamped and rounded natively in one call.
+     *
+     *  @param pcm the destination array
+     *  @return the number of samples copied
+     */
+    public int getGeneratedSpeech(short[] pcm) {
+        return (int) HTSEngine.HTS_GStreamSet_get_speech_pcm16(engine.getGss(), pcm);
+    }
+
+    /**
+     *  Method to copy the generated speech, as 16-bit little endian PCM, into the given array. The
+     *  samples are clamped, rounded and packed natively in one call.
+     *
+     *  @param pcm the destination array (2 bytes per sample)
+     *  @return the number of samples copied
+     */
+    public int getGeneratedSpeech(byte[] pcm) {
+        return (int) HTSEngine.HTS_GStreamSet_get_speech_pcm16_le(engine.getGss(), pcm);
+    }
+
+    /**
+     *  Method to copy the generated speech, as 16-bit little endian PCM, into the given direct
+     *  buffer starting at its current position. The position is moved after the written samples.
+     *
+     *  @param pcm the destination direct buffer (2 bytes per sample)
+     *  @return the number of samples copied
+     *  @throws IllegalArgumentException if the buffer is not direct
+     */
+    public int getGeneratedSpeech(ByteBuffer pcm) {
+        if (!pcm.isDirect())
+            throw new IllegalArgumentException("The PCM buffer has to be a direct buffer");
+
+        int nb_samples = (int) HTSEngine.HTS_GStreamSet_get_speech_pcm16_le_direct(engine.getGss(), pcm.slice());
+        pcm.position(pcm.position() + 2 * nb_samples);
+        return nb_samples;
+    }
+
+    /**
+     *  Method to get the number of samples of the generated speech once resampled
+     *
+     *  @param sampling_rate the output sampling rate in Hz
+     *  @return the number of samples (the duration is truncated to a whole number of samples)
+     */
+    public int getNbSamples(int sampling_rate) {
+        checkSamplingRate(sampling_rate);
+        return (int) HTSEngine.HTS_Engine_get_converted_nsample(engine, sampling_rate);
+    }
+
+    /**
+     *  Method to copy the generated speech, resampled and encoded, into the given array. The
+     *  resampling (Kaiser windowed sinc, low pass filtered at the lowest Nyquist frequency) and the
+     *  encoding are done natively in one call, the speech is only encoded if the sampling rate is
+     *  the one of the engine.
+     *
+     *  @param output the destination array ({@link SampleEncoding#getSampleSize()} bytes per sample)
+     *  @param sampling_rate the output sampling rate in Hz
+     *  @param encoding the encoding of the samples
+     *  @return the number of samples copied
+     */
+    public int getGeneratedSpeech(byte[] output, int sampling_rate, SampleEncoding encoding) {
+        checkSamplingRate(sampling_rate);
+        return (int) HTSEngine.HTS_Engine_get_speech_converted(engine, sampling_rate, encoding.getCode(), output);
+    }
+
+    /**
+     *  Method to copy the generated speech, resampled and encoded (see
+     *  {@link #getGeneratedSpeech(byte[], int, SampleEncoding)}), into the given direct buffer
+     *  starting at its current position. The position is moved after the written samples.
+     *
+     *  @param output the destination direct buffer
+     *  @param sampling_rate the output sampling rate in Hz
+     *  @param encoding the encoding of the samples
+     *  @return the number of samples copied
+     *  @throws IllegalArgumentException if the buffer is not direct
+     */
+    public int getGeneratedSpeech(ByteBuffer output, int sampling_rate, SampleEncoding encoding) {
+        if (!output.isDirect())
+            throw new IllegalArgumentException("The output buffer has to be a direct buffer");
+        checkSamplingRate(sampling_rate);
+
+        int nb_samples = (int) HTSEngine.HTS_Engine_get_speech_converted_direct(engine, sampling_rate, encoding.getCode(), output.slice());
+        output.position(output.position() + encoding.getSampleSize() * nb_samples);
+        return nb_samples;
+    }
+
+    /**
+     *  Check an output sampling rate
+     *
+     *  @param sampling_rate the output sampling rate in Hz
+     *  @throws IllegalArgumentException if the sampling rate is not strictly positive
+     */
+    private static void checkSamplingRate(int sampling_rate) {
+        if (sampling_rate <= 0)
+            throw new IllegalArgumentException("The sampling rate should be strictly positive and not: " + sampling_rate);
+    }
+
+    /**
+     *  Synthesis method
+     *
+     *  @param labels the string containing the full context labels (so a multiple line string)
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesize(String labels) throws HTSEngineException {
+        return synthesize(labels.split("\n"));
+    }
+
+    /**
+     *  Synthesis method using a given configuration, which stays applied after the synthesis (see
+     *  {@link #setConfig(SynthesisConfig)})
+     *
+     *  @param label_lines the string containing the full context labels (so a multiple line string)
+     *  @param config the configuration of the synthesis
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesize(String[] label_lines, SynthesisConfig config) throws HTSEngineException {
+        setConfig(config);
+        return synthesize(label_lines);
+    }
+
+    /**
+     *  Synthesis method producing the speech at a given sampling rate and with a given encoding
+     *  (for example 8 kHz mu-law for telephony). The conversion is done natively when the speech
+     *  is exported, so the speech at the rate of the voice never reaches the heap.
+     *
+     *  @param label_lines the string containing the full context labels (so a multiple line string)
+     *  @param sampling_rate the output sampling rate in Hz
+     *  @param encoding the encoding of the samples
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesize(String[] label_lines, int sampling_rate, SampleEncoding encoding) throws HTSEngineException {
+        checkSamplingRate(sampling_rate);
+        SynthesisRecorder recorder = synthesizeSpeech(label_lines, null);
+
+        int nb_samples = getNbSamples(sampling_rate);
+        if (nb_samples <= 0) {
+            throw new HTSEngineException("Problem with the synthesis, the produced number of samples should be strictly positive and not: " + nb_samples);
+        }
+
+        byte[] data = new byte[encoding.getSampleSize() * nb_samples];
+        getGeneratedSpeech(data, sampling_rate, encoding);
+        if (recorder != null)
+            notifySynthesis(recorder, getNbSamples());
+
+        return new AudioInputStream(new ByteArrayInputStream(data), getAudioFormat(sampling_rate, encoding), nb_samples);
+    }
+
+    /**
+     *  Synthesis method
+     *
+     *  @param label_lines the string containing the full context labels (so a multiple line string)
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesize(String[] label_lines) throws HTSEngineException {
+        return synthesizeCached(label_lines, null);
+    }
+
+    /**
+     *  Synthesis method which can be stopped from an other thread by cancelling the given token.
+     *  The synthesis is run stage by stage and the token is checked between the stages, the
+     *  vocoder and the block-wise parameter generation also check it natively.
+     *
+     *  @param label_lines the string containing the full context labels (so a multiple line string)
+     *  @param token the token stopping the synthesis when cancelled
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws SynthesisCancelledException if the token is cancelled before the end of the
+     *  synthesis, the engine is then refreshed and reusable
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesize(String[] label_lines, CancellationToken token) throws HTSEngineException {
+        if (token == null)
+            throw new IllegalArgumentException("The cancellation token can't be null");
+
+        return synthesizeCached(label_lines, token);
+    }
+
+    /**
+     *  Synthesis method stopped if it is not completed before a timeout (see
+     *  {@link #synthesize(String[], CancellationToken)})
+     *
+     *  @param label_lines the string containing the full context labels (so a multiple line string)
+     *  @param timeout the maximum duration of the synthesis
+     *  @param unit the unit of the timeout
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws SynthesisCancelledException if the timeout is reached, the engine is then
+     *  refreshed and reusable
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesize(String[] label_lines, long timeout, TimeUnit unit) throws HTSEngineException {
+        CancellationToken token = CancellationToken.withTimeout(timeout, unit);
+        try {
+            return synthesizeCached(label_lines, token);
+        } finally {
+            token.disarm();
+        }
+    }
+
+    /**
+     *  Synthesize using the cache of the results if any
+     *
+     *  @param label_lines the full context labels
+     *  @param token the token stopping the synthesis when cancelled, null if not cancellable
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails or is cancelled
+     */
+    private AudioInputStream synthesizeCached(String[] label_lines, CancellationToken token) throws HTSEngineException {
+        // Look for the result in the cache
+        String cache_key = null;
+        String voice_id = (synthesis_cache != null) ? getVoiceId() : null;
+        if (voice_id != null) {
+            double[] condition = new double[(int) HTSEngine.HTS_Engine_get_condition_size(engine)];
+            HTSEngine.HTS_Engine_get_condition(engine, condition);
+            cache_key = SynthesisCache.key(voice_id, condition, generation_block_frames, generation_lookahead_frames, label_lines);
+
+            SynthesisCache.Entry entry = synthesis_cache.get(cache_key);
+            if (entry != null) {
+                refresh();
+                cached_result = entry;
+                return entry.getAudio();
+            }
+        }
+
+        // Achieve synthesis
+        SynthesisRecorder recorder = synthesizeSpeech(label_lines, token);
+
+        // Generate audio inputstream
+        byte[] data = getSynthesizedPCM();
+        AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(data), getAudioFormat(), data.length / 2);
+        if (recorder != null)
+            notifySynthesis(recorder, (int) ais.getFrameLength());
+
+        // Keep the result (the stream doesn't modify the samples)
+        if (cache_key != null) {
+            double rate = engine.getCondition().getFperiod() * 1.0e+07 / engine.getCondition().getSampling_frequency();
+            synthesis_cache.put(cache_key, new SynthesisCache.Entry(ByteBuffer.wrap(data), getSamplingFrequency(), getDurationTable(), rate));
+        }
+
+        // Return the stream
+        return ais;
+    }
+
+    /**
+     *  Run the whole synthesis, the speech being kept in the engine
+     *
+     *  @param label_lines the full context labels
+     *  @param token the token stopping the synthesis when cancelled, null if not cancellable
+     *  @return the recorder of the synthesis if it is instrumented, null otherwise
+     *  @throws SynthesisCancelledException if the token is cancelled before the end of the synthesis
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    private SynthesisRecorder synthesizeSpeech(String[] label_lines, CancellationToken token) throws HTSEngineException {
+        // Clear engine generated parameter
+        refresh();
+
+        // From now, cancelling the token sets the stop flag of the engine
+        if ((token != null) && !token.attach(this))
+            throw token.toException();
+
+        try {
+            // Achieve synthesis (stage by stage when a stage doesn't run as in the library)
+            SynthesisRecorder recorder = (synthesis_listener != null) ? new SynthesisRecorder() : null;
+            if (useStages(recorder, token)) {
+                generateStateSequence(label_lines, recorder);
+                checkCancelled(token);
+                generateParameterSequence();
+                if (recorder != null)
+                    recorder.mark(SynthesisStage.PARAMETER_GENERATION);
+                checkCancelled(token);
+                generateUtteranceSamples();
+                if (recorder != null)
+                    recorder.mark(SynthesisStage.VOCODER);
+                checkCancelled(token);
+            } else {
+                HTSEngine.HTS_Engine_synthesize_from_strings(engine, label_lines, label_lines.length);
+            }
+            updateUtteranceBytes();
+
+            return recorder;
+        } catch (SynthesisCancelledException ex) {
+            throw ex;
+        } catch (HTSEngineException ex) {
+            // A stage stopped natively fails with its own error
+            if ((token != null) && token.isCancelled()) {
+                refresh();
+                throw token.toException();
+            }
+            throw ex;
+        } finally {
+            // The token can't set the stop flag anymore, so it can be reset for the next synthesis
+            if (token != null) {
+                token.detach(this);
+                HTSEngine.HTS_Engine_set_stop_flag(engine, false);
+            }
+        }
+    }
+
+    /**
+     *  Method to know if the synthesis has to be run stage by stage instead of in one library call:
+     *  when it is instrumented, cancellable, accounted against a budget or when one of the stages
+     *  is replaced (state cache, compiled trees, block-wise or concurrent parameter generation,
+     *  allocation in the arena)
+     *
+     *  @param recorder the recorder of the stages or null
+     *  @param token the token of the synthesis or null
+     *  @return true if the synthesis is run stage by stage
+     */
+    private boolean useStages(SynthesisRecorder recorder, CancellationToken token) {
+        return (recorder != null) || (token != null) || NativeMemory.hasBudget() || (state_cache != null) ||
+            use_compiled_trees || (generation_block_frames > 0) || (generation_executor != null) ||
+            state.useUtteranceArena();
+    }
+
+    /**
+     *  Check the token of a cancellable synthesis between two stages
+     *
+     *  @param token the token, null if the synthesis is not cancellable
+     *  @throws SynthesisCancelledException if the token is cancelled, the engine is then refreshed
+     */
+    private void checkCancelled(CancellationToken token) throws SynthesisCancelledException {
+        if ((token != null) && token.isCancelled()) {
+            refresh();
+            throw token.toException();
+        }
+    }
+
+    /**
+     *  Set the stop flag of the engine, called by a cancelled token from an other thread. The
+     *  running stage stops as soon as it checks the flag.
+     *
+     */
+    void requestStop() {
+        HTSEngine.HTS_Engine_set_stop_flag(engine, true);
+    }
+
+    /**
+     *  Method to prepare an utterance: the labels are parsed and the state sequence is generated
+     *  and kept, so the parameter generation and the vocoder can then be run several times (see
+     *  {@link Utterance}) without redoing the first stage.
+     *
+     *  @param label_lines the full context labels
+     *  @return the handle on the prepared utterance
+     *  @throws HTSEngineException if the generation of the state sequence fails
+     */
+    public Utterance prepare(String[] label_lines) throws HTSEngineException {
+        return prepare(label_lines, config);
+    }
+
+    /**
+     *  Method to prepare an utterance using a given configuration (see {@link #prepare(String[])})
+     *
+     *  @param label_lines the full context labels
+     *  @param config the configuration
+     *  @return the handle on the prepared utterance
+     *  @throws HTSEngineException if the generation of the state sequence fails
+     */
+    public Utterance prepare(String[] label_lines, SynthesisConfig config) throws HTSEngineException {
+        setConfig(config);
+        refresh();
+        generateStateSequence(label_lines);
+
+        prepared_utterance = new Utterance(this, engine, config);
+        return prepared_utterance;
+    }
+
+    /**
+     *  Generate the parameters of the prepared utterance and vocode them
+     *
+     *  @param config the configuration (keeping the state sequence of the utterance)
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails, the utterance is then released
+     */
+    AudioInputStream synthesizePrepared(SynthesisConfig config) throws HTSEngineException {
+        try {
+            setConfig(config);
+            refreshParameters();
+
+            SynthesisRecorder recorder = (synthesis_listener != null) ? new SynthesisRecorder() : null;
+            generateParameterSequence();
+            if (recorder != null)
+                recorder.mark(SynthesisStage.PARAMETER_GENERATION);
+            generateSampleSequence();
+            if (recorder != null)
+                recorder.mark(SynthesisStage.VOCODER);
+            updateUtteranceBytes();
+
+            AudioInputStream ais = getSynthesizedAudio();
+            if (recorder != null)
+                notifySynthesis(recorder, (int) ais.getFrameLength());
+
+            return ais;
+        } catch (HTSEngineException ex) {
+            refresh();
+            throw ex;
+        }
+    }
+
+    /**
+     *  Generate the parameters of the prepared utterance without vocoding them
+     *
+     *  @param config the configuration (keeping the state sequence of the utterance)
+     *  @throws HTSEngineException if the generation fails, the utterance is then released
+     */
+    void generatePreparedParameters(SynthesisConfig config) throws HTSEngineException {
+        try {
+            setConfig(config);
+            refreshParameters();
+            generateParameterSequence();
+        } catch (HTSEngineException ex) {
+            refresh();
+            throw ex;
+        }
+
+        // Not in the arena: the streams are freed each time the parameters of the utterance are generated again
+        boolean res = HTSEngine.HTS_MinimalGStreamSet_create(engine.getGss(), engine.getPss(),
+                                                             engine.getCondition().getFperiod(), null);
+        state.minimal_gss = true;
+        if (! res) {
+            refresh();
+            throw new HTSEngineException("Generation of the parameter sequence failed. Check your voice");
+        }
+        updateUtteranceBytes();
+    }
+
+    /**
+     *  Vocoder-only synthesis: the given parameters replace the generated ones and only the vocoder
+     *  is run, so editing the parameters (for example the F0) costs only the vocoder stage.
+     *
+     *  One array is given per stream of the voice (usually the spectrum, the log F0 and the band
+     *  aperiodicity), in the layout of {@link #getGeneratedParameters(int)}: row-major, with
+     *  HTS_NODATA (-1.0E+10) for the unvoiced frames of the log F0. Each array is copied natively
+     *  in one call.
+     *
+     *  @param streams the parameters of each stream
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails
+     *  @throws IllegalArgumentException if the parameters don't fit the streams of the voice
+     */
+    public AudioInputStream resynthesize(double[]... streams) throws HTSEngineException {
+        int[] sizes = new int[streams.length];
+        for (int i=0; i<streams.length; i++)
+            sizes[i] = streams[i].length;
+        prepareResynthesis(sizes);
+
+        SynthesisRecorder recorder = (synthesis_listener != null) ? new SynthesisRecorder() : null;
+        HTS_GStreamSet gss = engine.getGss();
+        for (int i=0; i<streams.length; i++)
+            HTSEngine.HTS_GStreamSet_set_parameters(gss, i, streams[i]);
+
+        return vocodeResynthesis(recorder);
+    }
+
+    /**
+     *  Vocoder-only synthesis from direct buffers (see {@link #resynthesize(double[]...)}). Each
+     *  buffer contains, from its position to its limit, the parameters of one stream as doubles in
+     *  the native byte order (written through a view using {@link ByteOrder#nativeOrder()}). The
+     *  buffers are read natively in one call per stream.
+     *
+     *  The buffers returned by {@link #getGeneratedParameterBuffer(int)} can't be given directly
+     *  as they are released by the resynthesis: they have to be copied first.
+     *
+     *  @param streams the direct buffers containing the parameters of each stream
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails
+     *  @throws IllegalArgumentException if a buffer is not direct or if the parameters don't fit
+     *  the streams of the voice
+     */
+    public AudioInputStream resynthesize(ByteBuffer... streams) throws HTSEngineException {
+        int[] sizes = new int[streams.length];
+        for (int i=0; i<streams.length; i++) {
+            if (!streams[i].isDirect())
+                throw new IllegalArgumentException("The parameter buffer of the stream " + i + " has to be a direct buffer");
+            if ((streams[i].remaining() % 8) != 0)
+                throw new IllegalArgumentException("The parameter buffer of the stream " + i + " doesn't contain a whole number of doubles");
+            sizes[i] = streams[i].remaining() / 8;
+        }
+        prepareResynthesis(sizes);
+
+        SynthesisRecorder recorder = (synthesis_listener != null) ? new SynthesisRecorder() : null;
+        HTS_GStreamSet gss = engine.getGss();
+        for (int i=0; i<streams.length; i++)
+            HTSEngine.HTS_GStreamSet_set_parameters_direct(gss, i, streams[i].slice());
+
+        return vocodeResynthesis(recorder);
+    }
+
+    /**
+     *  Check the sizes of the parameters given for the resynthesis and allocate the generated
+     *  streams accordingly
+     *
+     *  @param sizes the number of values of each stream
+     *  @return the number of frames
+     *  @throws HTSEngineException if the streams can't be allocated
+     *  @throws IllegalArgumentException if the parameters don't fit the streams of the voice
+     */
+    private int prepareResynthesis(int[] sizes) throws HTSEngineException {
+        int nb_streams = (int) HTSEngine.HTS_Engine_get_nstream(engine);
+        if (sizes.length != nb_streams)
+            throw new IllegalArgumentException("The parameters of " + nb_streams + " streams are expected and not: " + sizes.length);
+
+        HTS_ModelSet ms = engine.getMs();
+        int nb_frames = -1;
+        for (int i=0; i<nb_streams; i++) {
+            int dim = (int) HTSEngine.HTS_ModelSet_get_vector_length(ms, i);
+            if ((sizes[i] % dim) != 0)
+                throw new IllegalArgumentException("The parameters of the stream " + i + " don't contain a whole number of frames of dimension " + dim);
+            if ((nb_frames >= 0) && (nb_frames != sizes[i] / dim))
+                throw new IllegalArgumentException("The streams don't have the same number of frames: " + nb_frames + " / " + (sizes[i] / dim));
+            nb_frames = sizes[i] / dim;
+        }
+        if (nb_frames <= 0)
+            throw new IllegalArgumentException("The parameters should contain at least one frame");
+
+        refresh();
+        if (!HTSEngine.HTS_Engine_prepare_resynthesis(engine, nb_frames, state.getUtteranceArena()))
+            throw new HTSEngineException("The streams of the resynthesis can't be prepared, check the voice");
+        state.minimal_gss = true;
+
+        return nb_frames;
+    }
+
+    /**
+     *  Run the vocoder over the parameters given for the resynthesis
+     *
+     *  @param recorder the recorder of the stages or null
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails
+     */
+    private AudioInputStream vocodeResynthesis(SynthesisRecorder recorder) throws HTSEngineException {
+        if (!HTSEngine.HTS_Engine_resynthesize(engine, state.getUtteranceArena())) {
+            refresh();
+            throw new HTSEngineException("The resynthesis failed");
+        }
+        updateUtteranceBytes();
+
+        AudioInputStream ais = getSynthesizedAudio();
+        if (recorder != null) {
+            recorder.mark(SynthesisStage.VOCODER);
+            notifySynthesis(recorder, (int) ais.getFrameLength());
+        }
+
+        return ais;
+    }
+
+    /**
+     *  Get the speech produced by the vocoder
+     *
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if no sample has been produced
+     */
+    private AudioInputStream getSynthesizedAudio() throws HTSEngineException {
+        byte[] data = getSynthesizedPCM();
+        return new AudioInputStream(new ByteArrayInputStream(data), getAudioFormat(), data.length / 2);
+    }
+
+    /**
+     *  Get the speech produced by the vocoder as 16-bit little endian PCM
+     *
+     *  @return the samples (clamped, rounded and packed natively in one call)
+     *  @throws HTSEngineException if no sample has been produced
+     */
+    private byte[] getSynthesizedPCM() throws HTSEngineException {
+        HTS_GStreamSet gss = engine.getGss();
+        int nb_samples = (int) gss.getTotal_nsample();
+
+        if (nb_samples <= 0) {
+            throw new HTSEngineException("Problem with the synthesis, the produced number of samples should be strictly positive and not: " + nb_samples);
+        }
+
+        byte[] data = new byte[2 * nb_samples];
+        HTSEngine.HTS_GStreamSet_get_speech_pcm16_le(gss, data);
+        return data;
+    }
+
+
+    /**
+     *  Streaming synthesis method. The state and parameter sequences are generated and the
+     *  returned stream runs the vocoder on demand, {@link #DEFAULT_CHUNK_FRAMES} frames at a
+     *  time, so the first samples are available without waiting for the whole waveform.
+     *
+     *  The stream is valid until the next synthesis, refresh or clear of the engine.
+     *
+     *  @param label_lines the full context labels
+     *  @return the AudioStream producing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesizeStreaming(String[] label_lines) throws HTSEngineException {
+        return synthesizeStreaming(label_lines, DEFAULT_CHUNK_FRAMES);
+    }
+
+    /**
+     *  Streaming synthesis method. The state and parameter sequences are generated and the
+     *  returned stream runs the vocoder on demand, chunk_frames frames at a time, so the first
+     *  samples are available without waiting for the whole waveform.
+     *
+     *  If a block-wise parameter generation is set (see {@link #setParameterGenerationWindow}),
+     *  the parameters are also generated on demand, block after block.
+     *
+     *  The stream is valid until the next synthesis, refresh or clear of the engine.
+     *
+     *  @param label_lines the full context labels
+     *  @param chunk_frames the number of frames vocoded at once
+     *  @return the AudioStream producing the result of the synthesis
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public AudioInputStream synthesizeStreaming(String[] label_lines, int chunk_frames) throws HTSEngineException {
+        SWIGTYPE_p_HTS_PStreamWindow window = null;
+        if (generation_block_frames > 0) {
+            // Only prepare the parameter generation, the blocks are generated by the stream
+            refresh();
+            generateStateSequence(label_lines);
+            window = HTSEngine.HTS_PStreamWindow_new(engine, generation_block_frames, generation_lookahead_frames, true);
+            if (window == null) {
+                refresh();
+                throw new HTSEngineException("Generation of the parameter sequence failed. Check your voice");
+            }
+            state.minimal_gss = true;
+        } else {
+            generateAcousticParameters(label_lines);
+        }
+
+        int nb_samples = (int) engine.getGss().getTotal_nsample();
+        if (nb_samples <= 0) {
+            if (window != null)
+                HTSEngine.HTS_PStreamWindow_delete(window);
+            refresh();
+            throw new HTSEngineException("Problem with the synthesis, the produced number of samples should be strictly positive and not: " + nb_samples);
+        }
+
+        try {
+            active_stream = new VocoderInputStream(this, engine, chunk_frames, window);
+        } catch (HTSEngineException ex) {
+            refresh();
+            throw ex;
+        }
+
+        return new AudioInputStream(active_stream, getAudioFormat(), nb_samples);
+    }
+
+    /**
+     *  Streaming synthesis method. The audio (16-bit signed little endian PCM) is given to the
+     *  listener chunk by chunk as soon as it is vocoded.
+     *
+     *  @param label_lines the full context labels
+     *  @param listener the listener receiving the chunks
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     */
+    public void synthesizeStreaming(String[] label_lines, AudioChunkListener listener) throws HTSEngineException {
+        AudioInputStream ais = synthesizeStreaming(label_lines, DEFAULT_CHUNK_FRAMES);
+        byte[] pcm = new byte[2 * DEFAULT_CHUNK_FRAMES * (int) engine.getCondition().getFperiod()];
+
+        try {
+            int n;
+            while ((n = ais.read(pcm)) > 0)
+                listener.onAudioChunk(pcm, n);
+            ais.close();
+        } catch (IOException ex) {
+            throw new HTSEngineException("Problem while streaming the synthesized audio", ex);
+        }
+    }
+
+    /**
+     *  Method to synthesize directly into an audio file (see
+     *  {@link #synthesizeTo(String[], WritableByteChannel, AudioFileFormat.Type)})
+     *
+     *  @param label_lines the full context labels
+     *  @param path the path of the file (created or truncated)
+     *  @param type the type of the file (WAVE or AU)
+     *  @return the number of samples written
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     *  @throws IOException if the file can't be written
+     */
+    public int synthesizeTo(String[] label_lines, Path path, AudioFileFormat.Type type) throws HTSEngineException, IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return synthesizeTo(label_lines, channel, type);
+        }
+    }
+
+    /**
+     *  Method to synthesize directly into an output stream (see
+     *  {@link #synthesizeTo(String[], WritableByteChannel, AudioFileFormat.Type)}). The stream is
+     *  not closed.
+     *
+     *  @param label_lines the full context labels
+     *  @param output the output stream
+     *  @param type the type of the file (WAVE or AU)
+     *  @return the number of samples written
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     *  @throws IOException if the stream can't be written
+     */
+    public int synthesizeTo(String[] label_lines, OutputStream output, AudioFileFormat.Type type) throws HTSEngineException, IOException {
+        return synthesizeTo(label_lines, Channels.newChannel(output), type);
+    }
+
+    /**
+     *  Method to synthesize directly into a channel. The header of the file is written first, then
+     *  the vocoder is run {@link #DEFAULT_CHUNK_FRAMES} frames at a time and each chunk is written
+     *  from the native (direct) buffer it has been produced in. The waveform is never held entirely
+     *  in memory, neither natively nor on the heap, and the parameters of the utterance are freed
+     *  once the file is written. The channel is not closed.
+     *
+     *  @param label_lines the full context labels
+     *  @param channel the channel
+     *  @param type the type of the file (WAVE or AU)
+     *  @return the number of samples written
+     *  @throws HTSEngineException if the synthesis fails. A message specify the reason.
+     *  @throws IOException if the channel can't be written
+     *  @throws IllegalArgumentException if the type of file is not supported
+     */
+    public int synthesizeTo(String[] label_lines, WritableByteChannel channel, AudioFileFormat.Type type) throws HTSEngineException, IOException {
+        if (!AudioFileHeader.isSupported(type))
+            throw new IllegalArgumentException("The type of audio file " + type + " is not supported, only WAVE and AU are");
+
+        AudioInputStream ais = synthesizeStreaming(label_lines, DEFAULT_CHUNK_FRAMES);
+        VocoderInputStream stream = active_stream;
+        try {
+            int nb_samples = (int) ais.getFrameLength();
+            writeFully(channel, AudioFileHeader.create(type, ais.getFormat(), nb_samples));
+
+            boolean swap = AudioFileHeader.getByteOrder(type) != ByteOrder.LITTLE_ENDIAN;
+            ByteBuffer chunk;
+            while ((chunk = stream.readChunk()) != null) {
+                if (swap) {
+                    for (int b=chunk.position(); b<chunk.limit()-1; b+=2) {
+                        byte low = chunk.get(b);
+                        chunk.put(b, chunk.get(b + 1));
+                        chunk.put(b + 1, low);
+                    }
+                }
+                writeFully(channel, chunk);
+            }
+
+            return nb_samples;
+        } finally {
+            refresh();
+        }
+    }
+
+    /**
+     *  Write a buffer entirely into a channel
+     *
+     *  @param channel the channel
+     *  @param buffer the buffer (consumed)
+     *  @throws IOException if the channel can't be written
+     */
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     *  Method to get the format of the produced audio: 16-bit signed little endian mono PCM at the
+     *  sampling frequency of the engine
+     *
+     *  @return the audio format
+     */
+    public AudioFormat getAudioFormat() {
+        return new AudioFormat(engine.getCondition().getSampling_frequency(), 16, 1, true, false);
+    }
+
+    /**
+     *  Method to get the format of the audio produced at a given sampling rate with a given
+     *  encoding (see {@link #synthesize(String[], int, SampleEncoding)})
+     *
+     *  @param sampling_rate the output sampling rate in Hz
+     *  @param encoding the encoding of the samples
+     *  @return the audio format
+     */
+    public AudioFormat getAudioFormat(int sampling_rate, SampleEncoding encoding) {
+        return encoding.getAudioFormat(sampling_rate);
+    }
+
+    /**
+     *  Method to just generate the acoustic parameter features without going to the vocoder
+     *  process.
+     *
+     *
+     *  @param labels the string containing the full context labels (so a multiple line string)
+     *  @throws HTSEngineException if something goes wrong (see message for more information).
+     */
+    public void generateAcousticParameters(String labels) throws HTSEngineException {
+        generateAcousticParameters(labels.split("\n"));
+    }
+
+    /**
+     *  Method to just generate the acoustic parameter features without going to the vocoder
+     *  process, using a given configuration which stays applied after the generation.
+     *
+     *  @param label_lines the label sequence to "synthesize"
+     *  @param config the configuration of the generation
+     *  @throws HTSEngineException if something goes wrong (see message for more information).
+     */
+    public void generateAcousticParameters(String[] label_lines, SynthesisConfig config) throws HTSEngineException {
+        setConfig(config);
+        generateAcousticParameters(label_lines);
+    }
+
+    /**
+     *  Method to just generate the acoustic parameter features without going to the vocoder
+     *  process.
+     *
+     *  @param label_lines the label sequence to "synthesize"
+     *  @throws HTSEngineException if something goes wrong (see message for more information).
+     */
+    public void generateAcousticParameters(String[] label_lines) throws HTSEngineException {
+        // Clear engine generated parameter
+        refresh();
+
+        // Generate state sequence from the labels
+        SynthesisRecorder recorder = (synthesis_listener != null) ? new SynthesisRecorder() : null;
+        generateStateSequence(label_lines, recorder);
+
+        // Generate acoustic parameters
+        generateParameterSequence();
+
+        // Fill the datastructure accurately
+        boolean res = HTSEngine.HTS_MinimalGStreamSet_create(engine.getGss(), engine.getPss(),
+                                                     engine.getCondition().getFperiod(), state.getUtteranceArena());
+        state.minimal_gss = true;
+        if (! res) {
+            refresh();
+            throw new HTSEngineException("Generation of the parameter sequence failed. Check your voice");
+        }
+        updateUtteranceBytes();
+
+        // No sample is produced without the vocoder
+        if (recorder != null) {
+            recorder.mark(SynthesisStage.PARAMETER_GENERATION);
+            notifySynthesis(recorder, 0);
+        }
+    }
+
+    /**
+     *  Generate the state sequence from the labels
+     *
+     *  @param label_lines the label sequence
+     *  @throws HTSEngineException if the generation fails
+     */
+    void generateStateSequence(String[] label_lines) throws HTSEngineException {
+        generateStateSequence(label_lines, null);
+    }
+
+    /**
+     *  Generate the state sequence from the labels, measuring the label parsing and the state
+     *  sequence generation if a recorder is given. The labels are parsed separately from the
+     *  state sequence generation only if no pitch shift is set, the engine applies the shift
+     *  while parsing the labels otherwise.
+     *
+     *  @param label_lines the label sequence
+     *  @param recorder the recorder of the stages or null
+     *  @throws HTSEngineException if the generation fails
+     */
+    private void generateStateSequence(String[] label_lines, SynthesisRecorder recorder) throws HTSEngineException {
+        boolean res;
+        boolean use_arena = state.useUtteranceArena();
+        boolean use_records = ((state_cache != null) || use_compiled_trees || use_arena) && HTSEngine.HTS_Engine_use_label_records(engine);
+        SWIGTYPE_p_HTS_CompiledTrees trees = (use_records && use_compiled_trees) ? getCompiledTrees() : null;
+        if (use_records && ((state_cache != null) || (trees != null) || use_arena)) {
+            res = generateStateSequenceFromRecords(label_lines, trees, recorder);
+        } else if ((recorder != null) && (engine.getCondition().getAdditional_half_tone() == 0.0)) {
+            res = HTSEngine.HTS_Engine_load_label_from_strings(engine, label_lines, label_lines.length);
+            recorder.mark(SynthesisStage.LABEL_PARSING);
+            res = res && HTSEngine.HTS_Engine_generate_state_sequence_from_label(engine);
+        } else {
+            res = HTSEngine.HTS_Engine_generate_state_sequence_from_strings(engine, label_lines, label_lines.length);
+        }
+
+        if (! res) {
+            refresh();
+            throw new HTSEngineException("Generation of the state sequence failed. Check your voice and your labels");
+        }
+
+        if (recorder != null)
+            recorder.mark(SynthesisStage.STATE_SEQUENCE);
+
+        // Reserve the memory of the whole synthesis, waiting for it if a budget is set
+        try {
+            state.reserveUtteranceBytes(HTSEngine.HTS_Engine_estimate_utterance_memory(engine));
+        } catch (NativeMemoryExceededException ex) {
+            refresh();
+            throw ex;
+        }
+    }
+
+    /**
+     *  Replace the estimated memory of the utterance by the memory actually held by the engine
+     *
+     */
+    private void updateUtteranceBytes() {
+        state.setUtteranceBytes(HTSEngine.HTS_Engine_get_utterance_memory(engine));
+    }
+
+    /**
+     *  Give the metrics of the utterance to the synthesis listener
+     *
+     *  @param recorder the recorder of the stages
+     *  @param nb_samples the number of synthesized samples
+     */
+    private void notifySynthesis(SynthesisRecorder recorder, int nb_samples) {
+        SynthesisMetrics metrics = recorder.getMetrics((int) engine.getLabel().getSize(),
+                                                       (int) engine.getSss().getTotal_state(),
+                                                       (int) engine.getGss().getTotal_frame(),
+                                                       nb_samples,
+                                                       (int) engine.getCondition().getSampling_frequency(),
+                                                       HTSEngine.HTS_Engine_get_utterance_memory(engine));
+        synthesis_listener.synthesisCompleted(metrics);
+    }
+
+    /**
+     *  Generate the state sequence from the records of the labels. The records which are not in
+     *  the cache (if any) are looked up in the (compiled if available) decision trees and added to
+     *  the cache.
+     *
+     *  @param label_lines the label sequence
+     *  @param trees the compiled trees or null to use the decision trees of the model set
+     *  @param recorder the recorder of the stages or null
+     *  @return true if the generation succeeded, false else
+     */
+    private boolean generateStateSequenceFromRecords(String[] label_lines, SWIGTYPE_p_HTS_CompiledTrees trees,
+                                                     SynthesisRecorder recorder) {
+        if (!HTSEngine.HTS_Engine_load_label_from_strings(engine, label_lines, label_lines.length))
+            return false;
+        if (recorder != null)
+            recorder.mark(SynthesisStage.LABEL_PARSING);
+        if (state_cache == null)
+            return HTSEngine.HTS_CompiledTrees_generate_state_sequence(trees, engine, state.getUtteranceArena());
+
+        HTS_Label label = engine.getLabel();
+        int nb_labels = (int) label.getSize();
+        int record_size = (int) HTSEngine.HTS_Engine_get_label_record_size(engine);
+        double[] records = new double[nb_labels * record_size];
+        for (int i=0; i<nb_labels; i++) {
+            String context = HTSEngine.HTS_Label_get_string(label, i);
+            double[] record = state_cache.get(context, record_size);
+            if (record == null) {
+                record = new double[record_size];
+                boolean res = (trees != null) ?
+                    HTSEngine.HTS_CompiledTrees_get_label_record(trees, engine, i, record) :
+                    HTSEngine.HTS_Engine_get_label_record(engine, i, record);
+                if (!res)
+                    return false;
+                state_cache.put(context, record);
+            }
+            System.arraycopy(record, 0, records, i * record_size, record_size);
+        }
+
+        return HTSEngine.HTS_Engine_generate_state_sequence_from_records(engine, records, state.getUtteranceArena());
+    }
+
+    /**
+     *  Get the compiled decision trees of the voice, compiling them if needed. An engine sharing
+     *  its voice uses the compiled trees of the owner of the voice.
+     *
+     *  @return the compiled trees or null if the trees can't be compiled
+     */
+    private SWIGTYPE_p_HTS_CompiledTrees getCompiledTrees() {
+        if (isShared())
+            return model.getCompiledTrees();
+
+        return state.getCompiledTrees();
+    }
+
+    /**
+     *  Generate the parameter sequence from the state sequence, over the whole utterance or block
+     *  after block depending on the generation window
+     *
+     *  @throws HTSEngineException if the generation fails
+     */
+    void generateParameterSequence() throws HTSEngineException {
+        boolean res;
+        if (generation_block_frames > 0)
+            res = HTSEngine.HTS_Engine_generate_parameter_sequence_windowed(engine, generation_block_frames, generation_lookahead_frames);
+        else if (generation_executor != null)
+            res = generateParameterStreams();
+        else
+            res = HTSEngine.HTS_Engine_generate_parameter_sequence(engine);
+
+        if (! res) {
+            refresh();
+            throw new HTSEngineException("Generation of the parameter sequence failed. Check your voice");
+        }
+    }
+
+    /**
+     *  Generate the parameter streams concurrently using the generation executor. All the tasks
+     *  are waited for, even if one fails, as they are filling the engine.
+     *
+     *  @return true if all the streams have been generated
+     */
+    private boolean generateParameterStreams() {
+        if (! HTSEngine.HTS_Engine_prepare_parameter_streams(engine))
+            return false;
+
+        // Submit the other streams, a rejected stream is solved by the calling thread
+        int nb_streams = (int) HTSEngine.HTS_Engine_get_nstream(engine);
+        List<CompletableFuture<Boolean>> tasks = new ArrayList<CompletableFuture<Boolean>>();
+        boolean res = true;
+        for (int i = 1; i < nb_streams; i++) {
+            final long stream_index = i;
+            try {
+                tasks.add(CompletableFuture.supplyAsync(() -> HTSEngine.HTS_Engine_generate_parameter_stream(engine, stream_index),
+                                                        generation_executor));
+            } catch (RejectedExecutionException ex) {
+                res &= HTSEngine.HTS_Engine_generate_parameter_stream(engine, stream_index);
+            }
+        }
+
+        // Solve the first stream and wait for the others
+        res &= HTSEngine.HTS_Engine_generate_parameter_stream(engine, 0);
+        for (CompletableFuture<Boolean> task: tasks) {
+            try {
+                res &= task.join();
+            } catch (CompletionException ex) {
+                res = false;
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     *  Generate the samples of an utterance synthesized at once, as
+     *  {@link #generateSampleSequence()} does. If the arena is used, the generated streams and the
+     *  speech are allocated in it: the parameters are copied into a contiguous generated stream
+     *  set and only the vocoder is run over them.
+     *
+     *  @throws HTSEngineException if the generation fails
+     */
+    private void generateUtteranceSamples() throws HTSEngineException {
+        SWIGTYPE_p_HTS_Arena arena = state.getUtteranceArena();
+        if (arena == null) {
+            generateSampleSequence();
+            return;
+        }
+
+        boolean res = HTSEngine.HTS_MinimalGStreamSet_create(engine.getGss(), engine.getPss(),
+                                                             engine.getCondition().getFperiod(), arena);
+        state.minimal_gss = true;
+        if (!res || !HTSEngine.HTS_Engine_resynthesize(engine, arena)) {
+            refresh();
+            throw new HTSEngineException("Generation of the sample sequence failed");
+        }
+    }
+
+    /**
+     *  Generate the samples from the generated parameter sequence (the vocoder stage)
+     *
+     *  @throws HTSEngineException if the generation fails
+     */
+    void generateSampleSequence() throws HTSEngineException {
+        if (! HTSEngine.HTS_Engine_generate_sample_sequence(engine)) {
+            refresh();
+            throw new HTSEngineException("Generation of the sample sequence failed");
+        }
+    }
+
+    /**********************************************************************
+     *** Cleaning utils
+     **********************************************************************/
+    /**
+     *  Free the parameter and generated streams but keep the labels and the state sequence
+     *
+     */
+    private void refreshParameters() {
+        if (active_stream != null) {
+            active_stream.close();
+            active_stream = null;
+        }
+
+        state.refreshParameters();
+    }
+
+    /**
+     *  Method to refresh the engine = free the generated part of the structures
+     *
+     */
+    public void refresh() {
+        cached_result = null;
+
+        // The prepared utterance is freed with the rest
+        if (prepared_utterance != null) {
+            prepared_utterance.invalidate();
+            prepared_utterance = null;
+        }
+
+        // The vocoding stream reads the generated parameters which are going to be freed
+        if (active_stream != null) {
+            active_stream.close();
+            active_stream = null;
+        }
+
+        state.refresh();
+    }
+
+    /**
+     *  Method to clear the engine memory: the voice is freed with the rest and the configuration
+     *  is reset. The engine can then be given a new voice. An engine sharing the voice of an other
+     *  one (see {@link JHTSEnginePool}) can't be cleared, it is released to its pool or closed
+     *  instead.
+     *
+     *  @throws IllegalStateException if the engine shares the voice of an other engine
+     */
+    public void clear() {
+        if (isShared())
+            throw new IllegalStateException("An engine sharing its voice can't be cleared, close it instead");
+
+        refresh();
+        state.clear();
+
+        // Nothing can be applied until a new voice is loaded
+        voice_condition = null;
+        voice_id = null;
+        voice_id_path = null;
+        voice_id_size = -1;
+        voice_id_mtime = null;
+        config = SynthesisConfig.DEFAULT;
+    }
+
+    /**
+     *  Method to free the engine memory for good. The engine can't be used anymore. An engine
+     *  which is not closed is freed once it is garbage collected, but the collector doesn't see
+     *  the native memory so this can happen late.
+     *
+     */
+    @Override
+    public void close() {
+        refresh();
+        cleanable.clean();
+    }
+
+    /**
+     *  The native resources of an engine. They are kept apart from the wrapper (which must not be
+     *  referenced from here) so the cleaner can free them once the wrapper is collected.
+     *
+     */
+    private static final class NativeState implements Runnable
+    {
+        /** The internal HTS engine */
+        private final HTS_Engine engine;
+
+        /** The wrapper owning the shared model, null if the engine owns its model. Keeping it
+            ensures that the model is freed after the engines sharing it */
+        private final JHTSEngineWrapper model;
+
+        /** Indicate if the generated stream set has been created by the minimal (contiguous) helper */
+        boolean minimal_gss = false;
+
+        /** The image of the voice used in place by the engine, null if the voice has been parsed */
+        ByteBuffer voice_image = null;
+
+        /** The structures of the model set loaded from the image, null if the voice has been parsed */
+        SWIGTYPE_p_HTS_Arena image_arena = null;
+
+        /** The compiled decision trees of the voice owned by this engine, compiled on demand */
+        private SWIGTYPE_p_HTS_CompiledTrees compiled_trees = null;
+
+        /** Indicate if the per-utterance structures are allocated in an arena */
+        private boolean use_arena = false;
+
+        /** The arena of the per-utterance structures, created on demand, null if not used */
+        private SWIGTYPE_p_HTS_Arena utterance_arena = null;
+
+        /** The maximum number of bytes kept by the arena between two utterances */
+        private long arena_retained_bytes = DEFAULT_ARENA_RETAINED_BYTES;
+
+        /** The number of bytes of the model accounted for this engine */
+        private long model_bytes = 0;
+
+        /** The number of bytes of the utterance accounted for this engine */
+        private long utterance_bytes = 0;
+
+        /** The largest number of bytes accounted for an utterance of this engine */
+        private long peak_utterance_bytes = 0;
+
+        /**
+         *  Constructor
+         *
+         *  @param engine the internal HTS engine
+         *  @param model the wrapper owning the shared model or null
+         */
+        NativeState(HTS_Engine engine, JHTSEngineWrapper model) {
+            this.engine = engine;
+            this.model = model;
+        }
+
+        /**
+         *  Free the parameter and generated streams but keep the labels and the state sequence
+         *
+         */
+        void refreshParameters() {
+            if (minimal_gss) {
+                HTSEngine.HTS_MinimalGStreamSet_clear(engine.getGss(), utterance_arena);
+                minimal_gss = false;
+            }
+
+            HTSEngine.HTS_Engine_refresh_parameters(engine);
+        }
+
+        /**
+         *  Free the generated part of the structures and release the memory of the utterance. The
+         *  arena, if used, is reset instead of being freed.
+         *
+         */
+        void refresh() {
+            // The contiguous generated stream set can't be freed by the engine
+            if (minimal_gss) {
+                HTSEngine.HTS_MinimalGStreamSet_clear(engine.getGss(), utterance_arena);
+                minimal_gss = false;
+            }
+
+            HTSEngine.HTS_Engine_refresh_arena(engine, utterance_arena, arena_retained_bytes);
+            setUtteranceBytes(0);
+        }
+
+        /**
+         *  Free the whole engine
+         *
+         */
+        void clear() {
+            refresh();
+
+            // A shared model is freed by its owner
+            if (model != null) {
+                HTSEngine.HTS_Engine_clear_shared(engine);
+            } else if (image_arena != null) {
+                deleteCompiledTrees();
+                releaseVoiceImage();
+            } else {
+                deleteCompiledTrees();
+                HTSEngine.HTS_Engine_clear(engine);
+            }
+            setModelBytes(0);
+
+            // The arena is created again by the next utterance
+            if (utterance_arena != null) {
+                HTSEngine.HTS_Arena_delete(utterance_arena);
+                utterance_arena = null;
+            }
+        }
+
+        /**
+         *  Free the engine when the wrapper has been collected
+         *
+         */
+        @Override
+        public void run() {
+            clear();
+        }
+
+        /**
+         *  Free the engine loaded from an image, if any. The model set is in the arena and in the
+         *  image so the engine can't free it by itself
+         *
+         */
+        void releaseVoiceImage() {
+            if (image_arena == null)
+                return;
+
+            refresh();
+            HTSEngine.HTS_Engine_clear_image(engine, image_arena);
+            image_arena = null;
+            voice_image = null;
+        }
+
+        /**
+         *  Set the use of the arena, the engine has to be refreshed
+         *
+         *  @param use_arena true to use the arena, false to free it
+         *  @param max_retained_bytes the maximum number of bytes kept by the arena between two utterances
+         */
+        void setUtteranceArena(boolean use_arena, long max_retained_bytes) {
+            this.use_arena = use_arena;
+            this.arena_retained_bytes = max_retained_bytes;
+            if (utterance_arena == null)
+                return;
+
+            if (use_arena) {
+                HTSEngine.HTS_Arena_reset(utterance_arena, max_retained_bytes);
+            } else {
+                HTSEngine.HTS_Arena_delete(utterance_arena);
+                utterance_arena = null;
+            }
+        }
+
+        /**
+         *  Get the arena of the per-utterance structures, creating it if needed
+         *
+         *  @return the arena or null if not used
+         */
+        SWIGTYPE_p_HTS_Arena getUtteranceArena() {
+            if (use_arena && (utterance_arena == null))
+                utterance_arena = HTSEngine.HTS_Arena_new(0);
+            return utterance_arena;
+        }
+
+        /**
+         *  @return true if the per-utterance structures are allocated in an arena
+         */
+        boolean useUtteranceArena() {
+            return use_arena;
+        }
+
+        /**
+         *  @return the maximum number of bytes kept by the arena between two utterances
+         */
+        long getArenaRetainedBytes() {
+            return arena_retained_bytes;
+        }
+
+        /**
+         *  @return the number of bytes reserved by the arena, 0 if not used
+         */
+        long getUtteranceArenaBytes() {
+            SWIGTYPE_p_HTS_Arena arena = utterance_arena;
+            return (arena != null) ? HTSEngine.HTS_Arena_get_size(arena) : 0;
+        }
+
+        /**
+         *  Get the compiled decision trees of the voice, compiling them if needed
+         *
+         *  @return the compiled trees or null if the trees can't be compiled
+         */
+        synchronized SWIGTYPE_p_HTS_CompiledTrees getCompiledTrees() {
+            if (compiled_trees == null)
+                compiled_trees = HTSEngine.HTS_CompiledTrees_new(engine);
+            return compiled_trees;
+        }
+
+        /**
+         *  Free the compiled decision trees owned by this engine
+         *
+         */
+        synchronized void deleteCompiledTrees() {
+            if (compiled_trees != null) {
+                HTSEngine.HTS_CompiledTrees_delete(compiled_trees);
+                compiled_trees = null;
+            }
+        }
+
+        /**
+         *  Account the memory of the model of the engine
+         *
+         *  @param bytes the number of bytes, 0 once the model is freed
+         */
+        synchronized void setModelBytes(long bytes) {
+            NativeMemory.addModelBytes(bytes - model_bytes);
+            model_bytes = bytes;
+        }
+
+        /**
+         *  Reserve the memory of the utterance, waiting for it if the budget is exceeded
+         *
+         *  @param bytes the number of bytes needed by the whole utterance
+         *  @throws NativeMemoryExceededException if the memory is not available
+         */
+        void reserveUtteranceBytes(long bytes) throws NativeMemoryExceededException {
+            // Wait outside of the lock, so the gauges of the engine can be read meanwhile
+            long reserved;
+            synchronized (this) {
+                reserved = utterance_bytes;
+            }
+            if (bytes > reserved)
+                NativeMemory.reserve(bytes - reserved);
+            else
+                NativeMemory.addUtteranceBytes(bytes - reserved);
+
+            synchronized (this) {
+                utterance_bytes = bytes;
+                peak_utterance_bytes = Math.max(peak_utterance_bytes, bytes);
+            }
+        }
+
+        /**
+         *  Account the memory of the utterance without checking the budget
+         *
+         *  @param bytes the number of bytes, 0 once the utterance is freed
+         */
+        synchronized void setUtteranceBytes(long bytes) {
+            NativeMemory.addUtteranceBytes(bytes - utterance_bytes);
+            utterance_bytes = bytes;
+            peak_utterance_bytes = Math.max(peak_utterance_bytes, bytes);
+        }
+
+        /**
+         *  @return the number of bytes of the model accounted for this engine
+         */
+        synchronized long getModelBytes() {
+            return model_bytes;
+        }
+
+        /**
+         *  @return the number of bytes of the utterance accounted for this engine
+         */
+        synchronized long getUtteranceBytes() {
+            return utterance_bytes;
+        }
+
+        /**
+         *  @return the largest number of bytes accounted for an utterance of this engine
+         */
+        synchronized long getPeakUtteranceBytes() {
+            return peak_utterance_bytes;
+        }
+    }
 }
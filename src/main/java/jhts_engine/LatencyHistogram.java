@@ -0,0 +1,104 @@
+package jhts_engine;
+
+// Concurrency
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Lock-free histogram of durations. The buckets are powers of two of microseconds (bucket i
+ *  contains the durations in [2^(i-1), 2^i[ microseconds), so the percentiles are approximated by
+ *  the upper bound of their bucket, which is at most twice the actual value.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class LatencyHistogram
+{
+    /** The number of buckets: the last one contains the durations above 2^38 microseconds */
+    public static final int NB_BUCKETS = 40;
+
+    /** The number of durations in each bucket */
+    private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+
+    /**
+     *  Method to add a duration
+     *
+     *  @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(NB_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+    }
+
+    /**
+     *  Method to get the number of recorded durations
+     *
+     *  @return the number of durations
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i=0; i<NB_BUCKETS; i++)
+            count += buckets.get(i);
+        return count;
+    }
+
+    /**
+     *  Method to get the number of durations of each bucket
+     *
+     *  @return the counts indexed by bucket
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[NB_BUCKETS];
+        for (int i=0; i<NB_BUCKETS; i++)
+            counts[i] = buckets.get(i);
+        return counts;
+    }
+
+    /**
+     *  Method to get the upper bound (excluded) of a bucket
+     *
+     *  @param bucket the index of the bucket
+     *  @return the upper bound in nanoseconds
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return (1L << bucket) * 1000;
+    }
+
+    /**
+     *  Method to get an approximation of a percentile of the recorded durations
+     *
+     *  @param percentile the percentile in [0, 100]
+     *  @return the upper bound of the bucket containing the percentile in nanoseconds, 0 if no
+     *  duration has been recorded
+     *  @throws IllegalArgumentException if the percentile is not in [0, 100]
+     */
+    public long getPercentile(double percentile) {
+        if ((percentile < 0) || (percentile > 100))
+            throw new IllegalArgumentException("The percentile should be in [0, 100] and not: " + percentile);
+
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c: counts)
+            total += c;
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i=0; i<NB_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return getBucketUpperBound(i);
+        }
+
+        return getBucketUpperBound(NB_BUCKETS - 1);
+    }
+
+    /**
+     *  Method to remove all the recorded durations
+     *
+     */
+    public void reset() {
+        for (int i=0; i<NB_BUCKETS; i++)
+            buckets.set(i, 0);
+    }
+}
@@ -0,0 +1,110 @@
+package jhts_engine;
+
+// Reference
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+
+// Collections
+import java.util.Collections;
+import java.util.Set;
+
+// Concurrency
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Safety net freeing the native memory of the objects which are dropped without being closed.
+ *  An action is registered for an object and is run by a daemon thread once the object is
+ *  phantom reachable. The action must not reference the object, otherwise it is never collected.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+final class NativeCleaner
+{
+    /** The queue receiving the references of the collected objects */
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    /** The registered cleanables, kept reachable until they are cleaned */
+    private static final Set<Cleanable> registered = Collections.newSetFromMap(new ConcurrentHashMap<Cleanable, Boolean>());
+
+    static {
+        Thread thread = new Thread(NativeCleaner::run, "jhts_engine-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     *  No instance, only static utilities
+     *
+     */
+    private NativeCleaner() {
+    }
+
+    /**
+     *  Register the action freeing the native memory of an object
+     *
+     *  @param object the object to monitor
+     *  @param action the action run once the object is collected (it must not reference the object)
+     *  @return the cleanable which can be used to run the action explicitly
+     */
+    static Cleanable register(Object object, Runnable action) {
+        Cleanable cleanable = new Cleanable(object, action);
+        registered.add(cleanable);
+        return cleanable;
+    }
+
+    /**
+     *  Run the actions of the collected objects
+     *
+     */
+    private static void run() {
+        while (true) {
+            try {
+                ((Cleanable) queue.remove()).clean();
+            } catch (InterruptedException ex) {
+                // The thread is a daemon, keep cleaning
+            } catch (RuntimeException ex) {
+                // A failing action shouldn't stop the cleaning of the others
+            }
+        }
+    }
+
+    /**
+     *  The registration of an action, run at most once: explicitly or after the collection of the
+     *  object.
+     *
+     */
+    static final class Cleanable extends PhantomReference<Object>
+    {
+        /** The action freeing the native memory, null once run */
+        private Runnable action;
+
+        /**
+         *  Constructor
+         *
+         *  @param object the object to monitor
+         *  @param action the action freeing the native memory
+         */
+        private Cleanable(Object object, Runnable action) {
+            super(object, queue);
+            this.action = action;
+        }
+
+        /**
+         *  Run the action if it hasn't been run yet and unregister it
+         *
+         */
+        void clean() {
+            Runnable action;
+            synchronized (this) {
+                action = this.action;
+                this.action = null;
+            }
+
+            if (action != null) {
+                registered.remove(this);
+                clear();
+                action.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package jhts_engine;
+
+// Concurrency
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Accounting of the native memory held by all the engines of the process, and optional budget
+ *  of this memory.
+ *
+ *  Two gauges are kept: the bytes of the loaded voice models and the bytes of the utterances
+ *  being synthesized. The memory of an utterance is estimated once its state sequence is known
+ *  (see {@link JHTSEngineWrapper#getUtteranceBytes()}) and is released when the engine is
+ *  refreshed.
+ *
+ *  When a budget is set, an utterance which doesn't fit in the budget waits for the memory
+ *  released by the others, at most for the given time, and is then rejected with a
+ *  {@link NativeMemoryExceededException}. The models are always loaded but their memory counts in
+ *  the budget.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public final class NativeMemory
+{
+    /** The lock of the gauges, notified when memory is released */
+    private static final Object lock = new Object();
+
+    /** The number of bytes held by the loaded models */
+    private static long model_bytes = 0;
+
+    /** The number of bytes held by the utterances */
+    private static long utterance_bytes = 0;
+
+    /** The largest number of bytes held by the utterances at the same time */
+    private static long peak_utterance_bytes = 0;
+
+    /** The maximum number of bytes held by the models and the utterances, 0 if unlimited */
+    private static long budget = 0;
+
+    /** The maximum time (in nanoseconds) an utterance waits for the memory */
+    private static long max_wait = 0;
+
+    /**
+     *  No instance, only static utilities
+     *
+     */
+    private NativeMemory() {
+    }
+
+    /**********************************************************************
+     ***  Gauges
+     **********************************************************************/
+    /**
+     *  Method to get the number of native bytes held by the loaded models
+     *
+     *  @return the number of bytes
+     */
+    public static long getModelBytes() {
+        synchronized (lock) {
+            return model_bytes;
+        }
+    }
+
+    /**
+     *  Method to get the number of native bytes held by the utterances being synthesized
+     *
+     *  @return the number of bytes
+     */
+    public static long getUtteranceBytes() {
+        synchronized (lock) {
+            return utterance_bytes;
+        }
+    }
+
+    /**
+     *  Method to get the largest number of native bytes held by the utterances at the same time
+     *  since the start (or the last reset)
+     *
+     *  @return the number of bytes
+     */
+    public static long getPeakUtteranceBytes() {
+        synchronized (lock) {
+            return peak_utterance_bytes;
+        }
+    }
+
+    /**
+     *  Method to get the number of native bytes held by the models and the utterances
+     *
+     *  @return the number of bytes
+     */
+    public static long getUsedBytes() {
+        synchronized (lock) {
+            return model_bytes + utterance_bytes;
+        }
+    }
+
+    /**
+     *  Reset the peak to the current number of bytes held by the utterances
+     *
+     */
+    public static void resetPeak() {
+        synchronized (lock) {
+            peak_utterance_bytes = utterance_bytes;
+        }
+    }
+
+    /**********************************************************************
+     ***  Budget
+     **********************************************************************/
+    /**
+     *  Method to set the budget of the native memory. The syntheses already running are not
+     *  affected.
+     *
+     *  @param max_bytes the maximum number of bytes held by the models and the utterances, 0 for no budget
+     *  @param max_wait the maximum time an utterance waits for the memory before being rejected, 0 to reject it immediately
+     *  @param unit the unit of the time
+     */
+    public static void setBudget(long max_bytes, long max_wait, TimeUnit unit) {
+        if (max_bytes < 0)
+            throw new IllegalArgumentException("The budget should be positive and not: " + max_bytes);
+        if (max_wait < 0)
+            throw new IllegalArgumentException("The waiting time should be positive and not: " + max_wait);
+
+        synchronized (lock) {
+            NativeMemory.budget = max_bytes;
+            NativeMemory.max_wait = unit.toNanos(max_wait);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     *  Method to get the budget of the native memory
+     *
+     *  @return the maximum number of bytes held by the models and the utterances, 0 if there is no budget
+     */
+    public static long getBudget() {
+        synchronized (lock) {
+            return budget;
+        }
+    }
+
+    /**
+     *  Method to know if a budget is set
+     *
+     *  @return true if the utterances are reserved against a budget
+     */
+    static boolean hasBudget() {
+        synchronized (lock) {
+            return budget > 0;
+        }
+    }
+
+    /**********************************************************************
+     ***  Accounting
+     **********************************************************************/
+    /**
+     *  Account the memory of a loaded (or freed if negative) model
+     *
+     *  @param bytes the number of bytes
+     */
+    static void addModelBytes(long bytes) {
+        synchronized (lock) {
+            model_bytes += bytes;
+            if (bytes < 0)
+                lock.notifyAll();
+        }
+    }
+
+    /**
+     *  Reserve the memory of an utterance, waiting for it if the budget is exceeded
+     *
+     *  @param bytes the number of bytes
+     *  @throws NativeMemoryExceededException if the memory is not available in time, or never can be
+     */
+    static void reserve(long bytes) throws NativeMemoryExceededException {
+        synchronized (lock) {
+            if (budget > 0) {
+                if (model_bytes + bytes > budget)
+                    throw new NativeMemoryExceededException("The utterance needs " + bytes + " bytes of native memory which exceeds the budget", bytes);
+
+                long deadline = System.nanoTime() + max_wait;
+                while ((budget > 0) && (model_bytes + utterance_bytes + bytes > budget)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        throw new NativeMemoryExceededException("The native memory needed by the utterance (" + bytes + " bytes) is not available", bytes);
+
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new NativeMemoryExceededException("Interrupted while waiting for the native memory of the utterance", bytes);
+                    }
+                }
+            }
+
+            addUtteranceBytes(bytes);
+        }
+    }
+
+    /**
+     *  Account the memory of an utterance (or release it if negative) without checking the budget
+     *
+     *  @param bytes the number of bytes
+     */
+    static void addUtteranceBytes(long bytes) {
+        synchronized (lock) {
+            utterance_bytes += bytes;
+            if (utterance_bytes > peak_utterance_bytes)
+                peak_utterance_bytes = utterance_bytes;
+            if (bytes < 0)
+                lock.notifyAll();
+        }
+    }
+}
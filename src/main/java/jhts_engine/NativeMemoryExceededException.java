@@ -0,0 +1,38 @@
+package jhts_engine;
+
+
+/**
+ *  Exception thrown when an utterance can't be synthesized within the native memory budget (see
+ *  {@link NativeMemory#setBudget(long, long, java.util.concurrent.TimeUnit)}). The engine is
+ *  refreshed and can be used for the next synthesis.
+ *
+ * @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class NativeMemoryExceededException extends HTSEngineException {
+
+    /** Serial ID needed for serializable classes */
+    private static final long serialVersionUID = -2085634417932046271L;
+
+    /** The number of native bytes requested by the utterance */
+    private final long requested_bytes;
+
+    /**
+     *  Constructor with message
+     *
+     *  @param message the message describing the reason of the exception
+     *  @param requested_bytes the number of native bytes requested by the utterance
+     */
+    public NativeMemoryExceededException(String message, long requested_bytes) {
+        super(message);
+        this.requested_bytes = requested_bytes;
+    }
+
+    /**
+     *  Method to get the number of native bytes which have been requested by the utterance
+     *
+     *  @return the number of requested bytes
+     */
+    public long getRequestedBytes() {
+        return requested_bytes;
+    }
+}
@@ -0,0 +1,80 @@
+package jhts_engine;
+
+// Audio
+import javax.sound.sampled.AudioFormat;
+
+/**
+ *  The encodings of the samples exported by the engine (see
+ *  {@link JHTSEngineWrapper#getGeneratedSpeech(byte[], int, SampleEncoding)}). The samples are
+ *  encoded natively, while being resampled if needed.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public enum SampleEncoding
+{
+    /** 16-bit signed little endian linear PCM */
+    PCM_16(0, 2),
+
+    /** 32-bit float little endian linear PCM, full scale being [-1, 1] (not clamped) */
+    PCM_FLOAT(1, 4),
+
+    /** 8-bit G.711 mu-law */
+    ULAW(2, 1),
+
+    /** 8-bit G.711 A-law */
+    ALAW(3, 1);
+
+    /** The native code of the encoding (HTS_ENCODING_* in jhts_helpers.h) */
+    private final int code;
+
+    /** The size of a sample in bytes */
+    private final int sample_size;
+
+    /**
+     *  Constructor
+     *
+     *  @param code the native code of the encoding
+     *  @param sample_size the size of a sample in bytes
+     */
+    SampleEncoding(int code, int sample_size) {
+        this.code = code;
+        this.sample_size = sample_size;
+    }
+
+    /**
+     *  Method to get the native code of the encoding
+     *
+     *  @return the native code
+     */
+    int getCode() {
+        return code;
+    }
+
+    /**
+     *  Method to get the size of a sample
+     *
+     *  @return the size of a sample in bytes
+     */
+    public int getSampleSize() {
+        return sample_size;
+    }
+
+    /**
+     *  Method to get the audio format of mono samples with this encoding
+     *
+     *  @param sampling_rate the sampling rate in Hz
+     *  @return the audio format
+     */
+    public AudioFormat getAudioFormat(float sampling_rate) {
+        switch (this) {
+        case PCM_FLOAT:
+            return new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sampling_rate, 32, 1, 4, sampling_rate, false);
+        case ULAW:
+            return new AudioFormat(AudioFormat.Encoding.ULAW, sampling_rate, 8, 1, 1, sampling_rate, false);
+        case ALAW:
+            return new AudioFormat(AudioFormat.Encoding.ALAW, sampling_rate, 8, 1, 1, sampling_rate, false);
+        default:
+            return new AudioFormat(sampling_rate, 16, 1, true, false);
+        }
+    }
+}
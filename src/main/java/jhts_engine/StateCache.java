@@ -0,0 +1,137 @@
+package jhts_engine;
+
+// Collections
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Bounded LRU cache of the decision tree lookups of the labels.
+ *
+ *  For each full-context label, the cache keeps the record selected by the decision trees: the
+ *  state duration means, the mean/variance (and MSD weight) of each state and stream and the
+ *  global variance information. A label found in the cache doesn't walk any decision tree anymore.
+ *
+ *  The records only depend on the label and the voice, so a cache can be shared by all the engines
+ *  using the same voice (for example the engines of a {@link JHTSEnginePool}). It should not be
+ *  shared between different voices. The cache is only used when the synthesis condition doesn't
+ *  change the records (single voice, default interpolation weights, speed, pitch shift and no
+ *  phoneme alignment); otherwise the engine falls back to the standard state sequence generation.
+ *
+ *  The cache is thread-safe.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class StateCache
+{
+    /** The maximum number of labels kept */
+    private final int capacity;
+
+    /** The records indexed by label, in access order */
+    private final LinkedHashMap<String, double[]> records;
+
+    /** The number of labels found in the cache */
+    private long nb_hits;
+
+    /** The number of labels not found in the cache */
+    private long nb_misses;
+
+    /**
+     *  Constructor
+     *
+     *  @param capacity the maximum number of labels kept
+     */
+    public StateCache(final int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity of the cache should be strictly positive and not: " + capacity);
+
+        this.capacity = capacity;
+        this.records = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+                    return size() > capacity;
+                }
+            };
+        this.nb_hits = 0;
+        this.nb_misses = 0;
+    }
+
+    /**********************************************************************
+     ***  Lookup
+     **********************************************************************/
+    /**
+     *  Get the record of a label
+     *
+     *  @param label the context of the label
+     *  @param record_size the expected size of the record
+     *  @return the record or null if the label is not cached (or cached for an other voice)
+     */
+    synchronized double[] get(String label, int record_size) {
+        double[] record = records.get(label);
+        if ((record == null) || (record.length != record_size)) {
+            nb_misses++;
+            return null;
+        }
+
+        nb_hits++;
+        return record;
+    }
+
+    /**
+     *  Add the record of a label
+     *
+     *  @param label the context of the label
+     *  @param record the record (not modified afterwards)
+     */
+    synchronized void put(String label, double[] record) {
+        records.put(label, record);
+    }
+
+    /**********************************************************************
+     ***  Accessors
+     **********************************************************************/
+    /**
+     *  Method to get the maximum number of labels kept
+     *
+     *  @return the capacity of the cache
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *  Method to get the number of labels currently kept
+     *
+     *  @return the number of cached labels
+     */
+    public synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     *  Method to get the number of labels found in the cache
+     *
+     *  @return the number of hits
+     */
+    public synchronized long getNbHits() {
+        return nb_hits;
+    }
+
+    /**
+     *  Method to get the number of labels which had to be looked up in the decision trees
+     *
+     *  @return the number of misses
+     */
+    public synchronized long getNbMisses() {
+        return nb_misses;
+    }
+
+    /**
+     *  Method to empty the cache and reset the counters
+     *
+     */
+    public synchronized void clear() {
+        records.clear();
+        nb_hits = 0;
+        nb_misses = 0;
+    }
+}
@@ -0,0 +1,681 @@
+package jhts_engine;
+
+// Collections
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Stream
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+// Checksum
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Audio
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ *  Cache of the results of the syntheses (see {@link JHTSEngineWrapper#setSynthesisCache}).
+ *
+ *  A result is identified by a SHA-256 of the voice (size and checksum of its file), of the
+ *  synthesis condition applied to the engine, of the parameter generation window and of the
+ *  labels. The cache keeps the PCM and the durations of the results in a LRU bounded by the size
+ *  of the kept samples. Optionally, the results evicted from memory are spilled into a directory,
+ *  in a second LRU bounded by size, and mapped (and kept in memory again) when they are requested
+ *  again. A hit returns a stream reading the cached samples in place.
+ *
+ *  The results only depend on the key, so a cache can be shared by engines using different voices
+ *  and configurations. The cache is thread-safe, the spill files are written and read without
+ *  holding its lock.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class SynthesisCache
+{
+    /** The extension of the spilled results */
+    private static final String SPILL_EXTENSION = ".jhtscache";
+
+    /** The pattern of the file names of the spilled results */
+    private static final String SPILL_PATTERN = "[0-9a-f]{64}\\" + SPILL_EXTENSION;
+
+    /** The maximum number of bytes kept in memory */
+    private final long max_bytes;
+
+    /** The directory of the spilled results, null if the results are not spilled */
+    private final Path spill_dir;
+
+    /** The maximum number of bytes kept in the spill directory */
+    private final long max_spill_bytes;
+
+    /** The results kept in memory indexed by key, in access order */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /** The size of the spilled results indexed by key, in access order */
+    private final LinkedHashMap<String, Long> spilled;
+
+    /** The keys whose spill file is being written or deleted */
+    private final Set<String> busy = new HashSet<String>();
+
+    /** The number of bytes kept in memory */
+    private long nb_bytes;
+
+    /** The number of bytes kept in the spill directory */
+    private long nb_spilled_bytes;
+
+    /** The number of results found in memory */
+    private long nb_hits;
+
+    /** The number of results found in the spill directory */
+    private long nb_spill_hits;
+
+    /** The number of results not found */
+    private long nb_misses;
+
+    /** The number of results evicted from memory */
+    private long nb_evictions;
+
+    /**
+     *  Constructor of a cache only kept in memory
+     *
+     *  @param max_bytes the maximum number of bytes kept in memory
+     */
+    public SynthesisCache(long max_bytes) {
+        if (max_bytes <= 0)
+            throw new IllegalArgumentException("The size of the cache should be strictly positive and not: " + max_bytes);
+
+        this.max_bytes = max_bytes;
+        this.spill_dir = null;
+        this.max_spill_bytes = 0;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.spilled = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    }
+
+    /**
+     *  Constructor of a cache spilling the results evicted from memory into a directory. The
+     *  directory should be on a local disk and dedicated to the cache: the spilled results are
+     *  deleted when they are evicted or when the cache is cleared. The results spilled in the
+     *  directory by a previous cache (for example by an earlier process) are indexed, the least
+     *  recently written first, and the oldest are deleted if they don't fit.
+     *
+     *  @param max_bytes the maximum number of bytes kept in memory
+     *  @param spill_dir the directory of the spilled results (created if needed)
+     *  @param max_spill_bytes the maximum number of bytes kept in the spill directory
+     *  @throws IOException if the directory can't be created or listed
+     */
+    public SynthesisCache(long max_bytes, Path spill_dir, long max_spill_bytes) throws IOException {
+        if (max_bytes <= 0)
+            throw new IllegalArgumentException("The size of the cache should be strictly positive and not: " + max_bytes);
+        if (max_spill_bytes <= 0)
+            throw new IllegalArgumentException("The size of the spill directory should be strictly positive and not: " + max_spill_bytes);
+
+        this.max_bytes = max_bytes;
+        this.spill_dir = Files.createDirectories(spill_dir);
+        this.max_spill_bytes = max_spill_bytes;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.spilled = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+        // Index the results spilled by a previous cache, the least recently written first
+        Map<Path, FileTime> spill_files = new HashMap<Path, FileTime>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.spill_dir, "*" + SPILL_EXTENSION)) {
+            for (Path path: stream)
+                if (path.getFileName().toString().matches(SPILL_PATTERN))
+                    spill_files.put(path, Files.getLastModifiedTime(path));
+        }
+        List<Path> paths = new ArrayList<Path>(spill_files.keySet());
+        paths.sort(Comparator.comparing(spill_files::get));
+        for (Path path: paths) {
+            String name = path.getFileName().toString();
+            long size = Files.size(path);
+            spilled.put(name.substring(0, name.length() - SPILL_EXTENSION.length()), size);
+            nb_spilled_bytes += size;
+        }
+        deleteSpillFiles(trimSpilled());
+    }
+
+    /**********************************************************************
+     ***  Keys
+     **********************************************************************/
+    /**
+     *  Compute the key of a synthesis
+     *
+     *  @param voice_id the identity of the voice
+     *  @param condition the packed synthesis condition applied to the engine
+     *  @param block_frames the block size of the parameter generation (0 if not windowed)
+     *  @param lookahead_frames the context of the parameter generation blocks
+     *  @param label_lines the full context labels
+     *  @return the key (hexadecimal SHA-256)
+     */
+    static String key(String voice_id, double[] condition, int block_frames, int lookahead_frames, String[] label_lines) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+
+        ByteBuffer values = ByteBuffer.allocate(8 * condition.length + 12);
+        for (double value: condition)
+            values.putDouble(value);
+        values.putInt(block_frames);
+        values.putInt(lookahead_frames);
+        values.putInt(label_lines.length);
+        digest.update(voice_id.getBytes(StandardCharsets.UTF_8));
+        digest.update(values.array());
+        for (String label: label_lines) {
+            digest.update(label.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+
+        StringBuilder key = new StringBuilder(64);
+        for (byte b: digest.digest())
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return key.toString();
+    }
+
+    /**********************************************************************
+     ***  Lookup
+     **********************************************************************/
+    /**
+     *  Get a result. A result found in the spill directory is mapped (without holding the lock of
+     *  the cache) and kept in memory again.
+     *
+     *  @param key the key of the synthesis
+     *  @return the result or null if not cached
+     */
+    Entry get(String key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                nb_hits++;
+                return entry;
+            }
+
+            if (spilled.get(key) == null) {
+                nb_misses++;
+                return null;
+            }
+        }
+
+        Entry entry;
+        try {
+            entry = Entry.read(spillPath(key));
+        } catch (IOException ex) {
+            // The spilled result is unusable (or has just been evicted), forget it
+            boolean forgotten;
+            synchronized (this) {
+                nb_misses++;
+                Long size = spilled.remove(key);
+                forgotten = (size != null) && busy.add(key);
+                if (size != null)
+                    nb_spilled_bytes -= size;
+            }
+            if (forgotten)
+                deleteSpillFiles(Collections.singletonList(key));
+            return null;
+        }
+
+        List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            nb_spill_hits++;
+            evicted = insert(key, entry);
+        }
+        spill(evicted);
+        return entry;
+    }
+
+    /**
+     *  Add a result. The least recently used results are evicted (and spilled) if needed.
+     *
+     *  @param key the key of the synthesis
+     *  @param entry the result (not modified afterwards)
+     */
+    void put(String key, Entry entry) {
+        List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            evicted = insert(key, entry);
+        }
+        spill(evicted);
+    }
+
+    /**
+     *  Keep a result in memory, the lock of the cache being held
+     *
+     *  @param key the key of the synthesis
+     *  @param entry the result
+     *  @return the results evicted from memory, to spill once the lock is released
+     */
+    private List<Map.Entry<String, Entry>> insert(String key, Entry entry) {
+        List<Map.Entry<String, Entry>> evicted = new ArrayList<Map.Entry<String, Entry>>();
+        if (entry.size() > max_bytes)
+            return evicted;
+
+        Entry previous = entries.put(key, entry);
+        if (previous != null)
+            nb_bytes -= previous.size();
+        nb_bytes += entry.size();
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((nb_bytes > max_bytes) && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            nb_bytes -= eldest.getValue().size();
+            nb_evictions++;
+            evicted.add(new AbstractMap.SimpleImmutableEntry<String, Entry>(eldest));
+        }
+
+        return evicted;
+    }
+
+    /**
+     *  Spill the results evicted from memory, if a spill directory is set. The files are written
+     *  without holding the lock of the cache. The least recently used spilled results are deleted
+     *  if needed.
+     *
+     *  @param evicted the results evicted from memory
+     */
+    private void spill(List<Map.Entry<String, Entry>> evicted) {
+        if (spill_dir == null)
+            return;
+
+        for (Map.Entry<String, Entry> result: evicted) {
+            String key = result.getKey();
+
+            // A result already spilled (or being written or deleted) is not written again
+            synchronized (this) {
+                if (spilled.containsKey(key) || !busy.add(key))
+                    continue;
+            }
+
+            long size;
+            try {
+                size = result.getValue().write(spillPath(key));
+            } catch (IOException ex) {
+                // The result is just not spilled
+                deleteSpillFiles(Collections.singletonList(key));
+                continue;
+            }
+
+            List<String> deleted;
+            synchronized (this) {
+                busy.remove(key);
+                spilled.put(key, size);
+                nb_spilled_bytes += size;
+                deleted = trimSpilled();
+            }
+            deleteSpillFiles(deleted);
+        }
+    }
+
+    /**
+     *  Forget the least recently used spilled results until the spill directory fits its
+     *  maximum size, the lock of the cache being held
+     *
+     *  @return the keys of the forgotten results, whose files should be deleted (using
+     *  {@link #deleteSpillFiles}) once the lock is released
+     */
+    private List<String> trimSpilled() {
+        List<String> deleted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> it = spilled.entrySet().iterator();
+        while ((nb_spilled_bytes > max_spill_bytes) && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            nb_spilled_bytes -= eldest.getValue();
+            if (busy.add(eldest.getKey()))
+                deleted.add(eldest.getKey());
+        }
+
+        return deleted;
+    }
+
+    /**
+     *  Delete the files of forgotten spilled results, marked as busy while the lock was held so
+     *  that they are not written again meanwhile
+     *
+     *  @param keys the keys of the results
+     */
+    private void deleteSpillFiles(List<String> keys) {
+        for (String key: keys) {
+            Path path = spillPath(key);
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                path.toFile().deleteOnExit();
+            }
+            synchronized (this) {
+                busy.remove(key);
+            }
+        }
+    }
+
+    /**
+     *  Get the file of a spilled result
+     *
+     *  @param key the key of the synthesis
+     *  @return the path of the file
+     */
+    private Path spillPath(String key) {
+        return spill_dir.resolve(key + SPILL_EXTENSION);
+    }
+
+    /**********************************************************************
+     ***  Accessors
+     **********************************************************************/
+    /**
+     *  Method to get the maximum number of bytes kept in memory
+     *
+     *  @return the capacity of the cache in bytes
+     */
+    public long getMaxBytes() {
+        return max_bytes;
+    }
+
+    /**
+     *  Method to get the number of results currently kept in memory
+     *
+     *  @return the number of results in memory
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     *  Method to get the number of bytes currently kept in memory
+     *
+     *  @return the number of bytes in memory
+     */
+    public synchronized long getNbBytes() {
+        return nb_bytes;
+    }
+
+    /**
+     *  Method to get the number of results currently spilled
+     *
+     *  @return the number of results in the spill directory
+     */
+    public synchronized int getNbSpilled() {
+        return spilled.size();
+    }
+
+    /**
+     *  Method to get the number of bytes currently spilled
+     *
+     *  @return the number of bytes in the spill directory
+     */
+    public synchronized long getNbSpilledBytes() {
+        return nb_spilled_bytes;
+    }
+
+    /**
+     *  Method to get the number of results found in memory
+     *
+     *  @return the number of memory hits
+     */
+    public synchronized long getNbHits() {
+        return nb_hits;
+    }
+
+    /**
+     *  Method to get the number of results found in the spill directory
+     *
+     *  @return the number of spill hits
+     */
+    public synchronized long getNbSpillHits() {
+        return nb_spill_hits;
+    }
+
+    /**
+     *  Method to get the number of syntheses which had to be run
+     *
+     *  @return the number of misses
+     */
+    public synchronized long getNbMisses() {
+        return nb_misses;
+    }
+
+    /**
+     *  Method to get the number of results evicted from memory
+     *
+     *  @return the number of evictions
+     */
+    public synchronized long getNbEvictions() {
+        return nb_evictions;
+    }
+
+    /**
+     *  Method to empty the cache (deleting the spilled results) and reset the counters
+     *
+     */
+    public void clear() {
+        List<String> deleted = new ArrayList<String>();
+        synchronized (this) {
+            entries.clear();
+            for (String key: spilled.keySet())
+                if (busy.add(key))
+                    deleted.add(key);
+            spilled.clear();
+            nb_bytes = 0;
+            nb_spilled_bytes = 0;
+            nb_hits = 0;
+            nb_spill_hits = 0;
+            nb_misses = 0;
+            nb_evictions = 0;
+        }
+        deleteSpillFiles(deleted);
+    }
+
+    /**********************************************************************
+     ***  Results
+     **********************************************************************/
+    /**
+     *  Cached result of a synthesis: the 16-bit little endian PCM and the durations
+     *
+     */
+    static final class Entry
+    {
+        /** The samples, on the heap or mapped */
+        private final ByteBuffer pcm;
+
+        /** The sampling frequency */
+        private final int sampling_frequency;
+
+        /** The durations */
+        private final DurationTable durations;
+
+        /** The duration of a frame in HTK units */
+        private final double rate;
+
+        /**
+         *  Constructor
+         *
+         *  @param pcm the samples (not modified afterwards)
+         *  @param sampling_frequency the sampling frequency
+         *  @param durations the durations
+         *  @param rate the duration of a frame in HTK units
+         */
+        Entry(ByteBuffer pcm, int sampling_frequency, DurationTable durations, double rate) {
+            this.pcm = pcm;
+            this.sampling_frequency = sampling_frequency;
+            this.durations = durations;
+            this.rate = rate;
+        }
+
+        /**
+         *  Get a stream reading the samples in place
+         *
+         *  @return the audio stream
+         */
+        AudioInputStream getAudio() {
+            AudioFormat format = new AudioFormat(sampling_frequency, 16, 1, true, false);
+            InputStream input;
+            if (pcm.hasArray())
+                input = new ByteArrayInputStream(pcm.array(), pcm.arrayOffset() + pcm.position(), pcm.remaining());
+            else
+                input = new BufferInputStream(pcm.duplicate());
+
+            return new AudioInputStream(input, format, pcm.remaining() / 2);
+        }
+
+        /**
+         *  Get the durations
+         *
+         *  @return the durations
+         */
+        DurationTable getDurationTable() {
+            return durations;
+        }
+
+        /**
+         *  Get the number of bytes of the result
+         *
+         *  @return the size of the samples and (approximately) of the durations
+         */
+        long size() {
+            long size = pcm.remaining() + 4 * durations.getStateDurations().length;
+            for (String label: durations.getLabels())
+                size += 2 * label.length();
+            return size;
+        }
+
+        /**
+         *  Write the result in a file: a header (sampling frequency, rate, number of labels, number
+         *  of states per label, number of samples), the labels, the state durations and the samples
+         *
+         *  @param path the path of the file
+         *  @return the size of the file
+         *  @throws IOException if the file can't be written
+         */
+        long write(Path path) throws IOException {
+            String[] labels = durations.getLabels();
+            int[] state_durations = durations.getStateDurations();
+            byte[][] names = new byte[labels.length][];
+            int size = 28 + 4 * state_durations.length;
+            for (int i=0; i<labels.length; i++) {
+                names[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+                size += 4 + names[i].length;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(sampling_frequency);
+            header.putDouble(rate);
+            header.putInt(labels.length);
+            header.putInt(durations.getNbStatesPerLabel());
+            header.putInt(pcm.remaining() / 2);
+            header.putInt(state_durations.length);
+            for (byte[] name: names)
+                header.putInt(name.length).put(name);
+            for (int duration: state_durations)
+                header.putInt(duration);
+            header.flip();
+
+            ByteBuffer samples = pcm.duplicate();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining())
+                    channel.write(header);
+                while (samples.hasRemaining())
+                    channel.write(samples);
+            }
+
+            return size + pcm.remaining();
+        }
+
+        /**
+         *  Read a result written by {@link #write(Path)}. The samples are mapped.
+         *
+         *  @param path the path of the file
+         *  @return the result
+         *  @throws IOException if the file can't be read or is not valid
+         */
+        static Entry read(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    int sampling_frequency = content.getInt();
+                    double rate = content.getDouble();
+                    String[] labels = new String[content.getInt()];
+                    int nb_states = content.getInt();
+                    int nb_samples = content.getInt();
+                    int[] state_durations = new int[content.getInt()];
+                    for (int i=0; i<labels.length; i++) {
+                        byte[] name = new byte[content.getInt()];
+                        content.get(name);
+                        labels[i] = new String(name, StandardCharsets.UTF_8);
+                    }
+                    for (int i=0; i<state_durations.length; i++)
+                        state_durations[i] = content.getInt();
+                    if (content.remaining() != 2 * nb_samples)
+                        throw new IOException("The cached result " + path + " is truncated");
+
+                    DurationTable durations = new DurationTable(labels, state_durations, nb_states, rate);
+                    return new Entry(content.slice(), sampling_frequency, durations, rate);
+                } catch (RuntimeException ex) {
+                    throw new IOException("The cached result " + path + " is not valid", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Input stream reading a buffer in place
+     *
+     */
+    private static final class BufferInputStream extends InputStream
+    {
+        /** The buffer read */
+        private final ByteBuffer buffer;
+
+        /**
+         *  Constructor
+         *
+         *  @param buffer the buffer read (its position is moved)
+         */
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining())
+                return -1;
+
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
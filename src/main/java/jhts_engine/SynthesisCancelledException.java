@@ -0,0 +1,38 @@
+package jhts_engine;
+
+
+/**
+ *  Exception thrown when a synthesis is stopped by its {@link CancellationToken}. The engine is
+ *  refreshed and can be used for the next synthesis.
+ *
+ * @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class SynthesisCancelledException extends HTSEngineException {
+
+    /** Serial ID needed for serializable classes */
+    private static final long serialVersionUID = 3618526190274136915L;
+
+    /** Indicate if the synthesis has been stopped by the deadline of the token */
+    private final boolean deadline_exceeded;
+
+    /**
+     *  Constructor with message
+     *
+     *  @param message the message describing the reason of the exception
+     *  @param deadline_exceeded true if the synthesis has been stopped by the deadline of the token
+     */
+    public SynthesisCancelledException(String message, boolean deadline_exceeded) {
+        super(message);
+        this.deadline_exceeded = deadline_exceeded;
+    }
+
+    /**
+     *  Method to know if the synthesis has been stopped by the deadline of its token (and not by
+     *  an explicit cancellation)
+     *
+     *  @return true if the deadline has been exceeded
+     */
+    public boolean isDeadlineExceeded() {
+        return deadline_exceeded;
+    }
+}
@@ -0,0 +1,475 @@
+package jhts_engine;
+
+// Collections
+import java.util.Arrays;
+
+/**
+ *  Immutable configuration of a synthesis (sampling frequency, frame period, volume, speed, all-pass
+ *  constant, postfiltering, pitch shift, MSD thresholds, GV weights and interpolation weights).
+ *
+ *  A configuration is built from {@link #DEFAULT} using the "with" methods and given per call to
+ *  the engine (see {@link JHTSEngineWrapper#synthesize(String[], SynthesisConfig)}) or to the pool.
+ *  A value which is not set keeps the one of the voice, so the same configuration can be used with
+ *  any voice. The configuration is applied to the engine in one native call and not applied at all
+ *  if it is equal to the configuration already applied, so one pool of engines can serve requests
+ *  with different configurations.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public final class SynthesisConfig
+{
+    /** The configuration of the voice (nothing is overridden) */
+    public static final SynthesisConfig DEFAULT = new SynthesisConfig();
+
+    /** Index of the sampling frequency in the packed condition */
+    private static final int SAMPLING_FREQUENCY = 0;
+
+    /** Index of the frame period in the packed condition */
+    private static final int FRAME_PERIOD = 1;
+
+    /** Index of the volume in the packed condition */
+    private static final int VOLUME = 2;
+
+    /** Index of the speed in the packed condition */
+    private static final int SPEED = 3;
+
+    /** Index of the all-pass constant in the packed condition */
+    private static final int ALPHA = 4;
+
+    /** Index of the postfiltering coefficient in the packed condition */
+    private static final int BETA = 5;
+
+    /** Index of the additional half tone in the packed condition */
+    private static final int HALF_TONE = 6;
+
+    /** Number of global values in the packed condition */
+    private static final int GLOBAL_SIZE = 7;
+
+    /** The global values (sampling frequency, ..., half tone), NaN to keep the value of the voice */
+    private final double[] globals;
+
+    /** The MSD threshold of each stream, NaN (or missing) to keep the value of the voice */
+    private final double[] msd_thresholds;
+
+    /** The GV weight of each stream, NaN (or missing) to keep the value of the voice */
+    private final double[] gv_weights;
+
+    /** The duration interpolation weight of each voice, null to keep the default ones */
+    private final double[] duration_iw;
+
+    /** The parameter interpolation weights [voice][stream], null to keep the default ones */
+    private final double[][] parameter_iw;
+
+    /** The GV interpolation weights [voice][stream], null to keep the default ones */
+    private final double[][] gv_iw;
+
+    /**
+     *  Constructor of the default configuration
+     *
+     */
+    private SynthesisConfig() {
+        globals = new double[GLOBAL_SIZE];
+        Arrays.fill(globals, Double.NaN);
+        msd_thresholds = new double[0];
+        gv_weights = new double[0];
+        duration_iw = null;
+        parameter_iw = null;
+        gv_iw = null;
+    }
+
+    /**
+     *  Constructor
+     *
+     *  @param globals the global values
+     *  @param msd_thresholds the MSD thresholds
+     *  @param gv_weights the GV weights
+     *  @param duration_iw the duration interpolation weights
+     *  @param parameter_iw the parameter interpolation weights
+     *  @param gv_iw the GV interpolation weights
+     */
+    private SynthesisConfig(double[] globals, double[] msd_thresholds, double[] gv_weights,
+                            double[] duration_iw, double[][] parameter_iw, double[][] gv_iw) {
+        this.globals = globals;
+        this.msd_thresholds = msd_thresholds;
+        this.gv_weights = gv_weights;
+        this.duration_iw = duration_iw;
+        this.parameter_iw = parameter_iw;
+        this.gv_iw = gv_iw;
+    }
+
+    /**********************************************************************
+     ***  Builders
+     **********************************************************************/
+    /**
+     *  Method to get a copy of the configuration with a global value changed
+     *
+     *  @param index the index of the value
+     *  @param value the new value
+     *  @return the new configuration
+     */
+    private SynthesisConfig withGlobal(int index, double value) {
+        double[] new_globals = globals.clone();
+        new_globals[index] = value;
+        return new SynthesisConfig(new_globals, msd_thresholds, gv_weights, duration_iw, parameter_iw, gv_iw);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different sampling frequency
+     *
+     *  @param sampling_frequency the sampling frequency in Hz
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if the sampling frequency is not strictly positive
+     */
+    public SynthesisConfig withSamplingFrequency(int sampling_frequency) {
+        if (sampling_frequency <= 0)
+            throw new IllegalArgumentException("The sampling frequency should be strictly positive and not: " + sampling_frequency);
+        return withGlobal(SAMPLING_FREQUENCY, sampling_frequency);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different frame period
+     *
+     *  @param frame_period the frame period in samples
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if the frame period is not strictly positive
+     */
+    public SynthesisConfig withFramePeriod(int frame_period) {
+        if (frame_period <= 0)
+            throw new IllegalArgumentException("The frame period should be strictly positive and not: " + frame_period);
+        return withGlobal(FRAME_PERIOD, frame_period);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different volume
+     *
+     *  @param volume the volume in dB
+     *  @return the new configuration
+     */
+    public SynthesisConfig withVolume(double volume) {
+        return withGlobal(VOLUME, volume);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different speed
+     *
+     *  @param speed the speed (1.0 for the speed of the voice)
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if the speed is not strictly positive
+     */
+    public SynthesisConfig withSpeed(double speed) {
+        if (!(speed > 0))
+            throw new IllegalArgumentException("The speed should be strictly positive and not: " + speed);
+        return withGlobal(SPEED, speed);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different all-pass constant
+     *
+     *  @param alpha the all-pass constant
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if alpha is not in [0, 1]
+     */
+    public SynthesisConfig withAlpha(double alpha) {
+        if (!((alpha >= 0) && (alpha <= 1)))
+            throw new IllegalArgumentException("The all-pass constant should be in [0, 1] and not: " + alpha);
+        return withGlobal(ALPHA, alpha);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different postfiltering coefficient
+     *
+     *  @param beta the postfiltering coefficient
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if beta is not in [0, 1]
+     */
+    public SynthesisConfig withBeta(double beta) {
+        if (!((beta >= 0) && (beta <= 1)))
+            throw new IllegalArgumentException("The postfiltering coefficient should be in [0, 1] and not: " + beta);
+        return withGlobal(BETA, beta);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different pitch shift
+     *
+     *  @param half_tone the number of half tones added to the log F0
+     *  @return the new configuration
+     */
+    public SynthesisConfig withHalfTone(double half_tone) {
+        return withGlobal(HALF_TONE, half_tone);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different MSD threshold for a stream
+     *
+     *  @param i_stream the index of the stream (1 for the log F0 stream of the usual voices)
+     *  @param msd_threshold the MSD threshold in [0, 1]
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if the stream index or the threshold is not valid
+     */
+    public SynthesisConfig withMSDThreshold(int i_stream, double msd_threshold) {
+        if (!((msd_threshold >= 0) && (msd_threshold <= 1)))
+            throw new IllegalArgumentException("The MSD threshold should be in [0, 1] and not: " + msd_threshold);
+        return new SynthesisConfig(globals, withStreamValue(msd_thresholds, i_stream, msd_threshold), gv_weights,
+                                   duration_iw, parameter_iw, gv_iw);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with a different GV weight for a stream
+     *
+     *  @param i_stream the index of the stream
+     *  @param gv_weight the GV weight (positive)
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if the stream index or the weight is not valid
+     */
+    public SynthesisConfig withGVWeight(int i_stream, double gv_weight) {
+        if (!(gv_weight >= 0))
+            throw new IllegalArgumentException("The GV weight should be positive and not: " + gv_weight);
+        return new SynthesisConfig(globals, msd_thresholds, withStreamValue(gv_weights, i_stream, gv_weight),
+                                   duration_iw, parameter_iw, gv_iw);
+    }
+
+    /**
+     *  Method to get a copy of the configuration with different interpolation weights. The weights
+     *  are only meaningful when several voices are loaded.
+     *
+     *  @param duration_iw the duration weight of each voice
+     *  @param parameter_iw the parameter weights indexed by [voice][stream]
+     *  @param gv_iw the GV weights indexed by [voice][stream]
+     *  @return the new configuration
+     *  @throws IllegalArgumentException if the number of voices of the weights is not consistent
+     */
+    public SynthesisConfig withInterpolationWeights(double[] duration_iw, double[][] parameter_iw, double[][] gv_iw) {
+        if ((parameter_iw.length != duration_iw.length) || (gv_iw.length != duration_iw.length))
+            throw new IllegalArgumentException("The interpolation weights should be given for the same number of voices");
+        return new SynthesisConfig(globals, msd_thresholds, gv_weights, duration_iw.clone(), deepClone(parameter_iw), deepClone(gv_iw));
+    }
+
+    /**
+     *  Copy per stream values setting one of them
+     *
+     *  @param values the values (NaN for the value of the voice)
+     *  @param i_stream the index of the stream to set
+     *  @param value the value of the stream
+     *  @return the new values
+     *  @throws IllegalArgumentException if the stream index is negative
+     */
+    private static double[] withStreamValue(double[] values, int i_stream, double value) {
+        if (i_stream < 0)
+            throw new IllegalArgumentException("The stream index should be positive and not: " + i_stream);
+
+        double[] new_values = Arrays.copyOf(values, Math.max(values.length, i_stream + 1));
+        for (int i=values.length; i<new_values.length; i++)
+            new_values[i] = Double.NaN;
+        new_values[i_stream] = value;
+        return new_values;
+    }
+
+    /**
+     *  Copy a matrix
+     *
+     *  @param matrix the matrix
+     *  @return the copy
+     */
+    private static double[][] deepClone(double[][] matrix) {
+        double[][] copy = new double[matrix.length][];
+        for (int i=0; i<matrix.length; i++)
+            copy[i] = matrix[i].clone();
+        return copy;
+    }
+
+    /**********************************************************************
+     ***  Accessors
+     **********************************************************************/
+    /**
+     *  Method to get the sampling frequency
+     *
+     *  @return the sampling frequency, 0 if the one of the voice is used
+     */
+    public int getSamplingFrequency() {
+        return Double.isNaN(globals[SAMPLING_FREQUENCY]) ? 0 : (int) globals[SAMPLING_FREQUENCY];
+    }
+
+    /**
+     *  Method to get the frame period
+     *
+     *  @return the frame period, 0 if the one of the voice is used
+     */
+    public int getFramePeriod() {
+        return Double.isNaN(globals[FRAME_PERIOD]) ? 0 : (int) globals[FRAME_PERIOD];
+    }
+
+    /**
+     *  Method to get the volume
+     *
+     *  @return the volume in dB, NaN if the one of the voice is used
+     */
+    public double getVolume() {
+        return globals[VOLUME];
+    }
+
+    /**
+     *  Method to get the speed
+     *
+     *  @return the speed, NaN if the one of the voice is used
+     */
+    public double getSpeed() {
+        return globals[SPEED];
+    }
+
+    /**
+     *  Method to get the all-pass constant
+     *
+     *  @return the all-pass constant, NaN if the one of the voice is used
+     */
+    public double getAlpha() {
+        return globals[ALPHA];
+    }
+
+    /**
+     *  Method to get the postfiltering coefficient
+     *
+     *  @return the postfiltering coefficient, NaN if the one of the voice is used
+     */
+    public double getBeta() {
+        return globals[BETA];
+    }
+
+    /**
+     *  Method to get the pitch shift
+     *
+     *  @return the number of half tones, NaN if the one of the voice is used
+     */
+    public double getHalfTone() {
+        return globals[HALF_TONE];
+    }
+
+    /**
+     *  Method to get the MSD threshold of a stream
+     *
+     *  @param i_stream the index of the stream
+     *  @return the MSD threshold, NaN if the one of the voice is used
+     */
+    public double getMSDThreshold(int i_stream) {
+        return (i_stream < msd_thresholds.length) ? msd_thresholds[i_stream] : Double.NaN;
+    }
+
+    /**
+     *  Method to get the GV weight of a stream
+     *
+     *  @param i_stream the index of the stream
+     *  @return the GV weight, NaN if the one of the voice is used
+     */
+    public double getGVWeight(int i_stream) {
+        return (i_stream < gv_weights.length) ? gv_weights[i_stream] : Double.NaN;
+    }
+
+    /**********************************************************************
+     ***  Packing
+     **********************************************************************/
+    /**
+     *  Pack the configuration as expected by HTS_Engine_set_condition, the values which are not set
+     *  being taken from the condition of the voice
+     *
+     *  @param voice_condition the packed condition of the voice
+     *  @param nb_streams the number of streams of the voice
+     *  @param nb_voices the number of voices loaded
+     *  @return the packed condition
+     *  @throws IllegalArgumentException if the configuration doesn't fit the voice
+     */
+    double[] pack(double[] voice_condition, int nb_streams, int nb_voices) {
+        if ((msd_thresholds.length > nb_streams) || (gv_weights.length > nb_streams))
+            throw new IllegalArgumentException("The configuration sets a stream which doesn't exist in the voice (number of streams: " + nb_streams + ")");
+        if ((duration_iw != null) && (duration_iw.length != nb_voices))
+            throw new IllegalArgumentException("The interpolation weights are given for " + duration_iw.length + " voices instead of " + nb_voices);
+
+        double[] condition = voice_condition.clone();
+        int offset = 0;
+        for (int i=0; i<GLOBAL_SIZE; i++)
+            set(condition, offset + i, globals[i]);
+        offset += GLOBAL_SIZE;
+        for (int i=0; i<msd_thresholds.length; i++)
+            set(condition, offset + i, msd_thresholds[i]);
+        offset += nb_streams;
+        for (int i=0; i<gv_weights.length; i++)
+            set(condition, offset + i, gv_weights[i]);
+        offset += nb_streams;
+
+        if (duration_iw != null) {
+            System.arraycopy(duration_iw, 0, condition, offset, nb_voices);
+            offset += nb_voices;
+            for (double[][] iw: new double[][][] {parameter_iw, gv_iw}) {
+                for (int v=0; v<nb_voices; v++) {
+                    if (iw[v].length != nb_streams)
+                        throw new IllegalArgumentException("The interpolation weights are given for " + iw[v].length + " streams instead of " + nb_streams);
+                    System.arraycopy(iw[v], 0, condition, offset, nb_streams);
+                    offset += nb_streams;
+                }
+            }
+        }
+
+        return condition;
+    }
+
+    /**
+     *  Check if an other configuration leads to the same state sequence: the speed, the pitch shift
+     *  and the interpolation weights are applied while generating the state sequence, the other
+     *  values only when generating the parameters or vocoding them
+     *
+     *  @param config the other configuration
+     *  @return true if the state sequence generated with this configuration is valid for the other one
+     */
+    boolean hasSameStateSequence(SynthesisConfig config) {
+        return (Double.compare(globals[SPEED], config.globals[SPEED]) == 0)
+            && (Double.compare(globals[HALF_TONE], config.globals[HALF_TONE]) == 0)
+            && Arrays.equals(duration_iw, config.duration_iw)
+            && Arrays.deepEquals(parameter_iw, config.parameter_iw)
+            && Arrays.deepEquals(gv_iw, config.gv_iw);
+    }
+
+    /**
+     *  Override a value of the packed condition if it is set
+     *
+     *  @param condition the packed condition
+     *  @param index the index of the value
+     *  @param value the value or NaN to keep the one of the condition
+     */
+    private static void set(double[] condition, int index, double value) {
+        if (!Double.isNaN(value))
+            condition[index] = value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof SynthesisConfig))
+            return false;
+
+        SynthesisConfig config = (SynthesisConfig) other;
+        return Arrays.equals(globals, config.globals)
+            && Arrays.equals(msd_thresholds, config.msd_thresholds)
+            && Arrays.equals(gv_weights, config.gv_weights)
+            && Arrays.equals(duration_iw, config.duration_iw)
+            && Arrays.deepEquals(parameter_iw, config.parameter_iw)
+            && Arrays.deepEquals(gv_iw, config.gv_iw);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Arrays.hashCode(globals);
+        hash = 31 * hash + Arrays.hashCode(msd_thresholds);
+        hash = 31 * hash + Arrays.hashCode(gv_weights);
+        hash = 31 * hash + Arrays.hashCode(duration_iw);
+        hash = 31 * hash + Arrays.deepHashCode(parameter_iw);
+        hash = 31 * hash + Arrays.deepHashCode(gv_iw);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SynthesisConfig(sampling_frequency=%d, frame_period=%d, volume=%s, speed=%s, alpha=%s, beta=%s, half_tone=%s, msd_thresholds=%s, gv_weights=%s, interpolation=%s)",
+                             getSamplingFrequency(), getFramePeriod(), getVolume(), getSpeed(), getAlpha(), getBeta(),
+                             getHalfTone(), Arrays.toString(msd_thresholds), Arrays.toString(gv_weights),
+                             (duration_iw == null) ? "default" : Arrays.toString(duration_iw));
+    }
+}
@@ -0,0 +1,21 @@
+package jhts_engine;
+
+/**
+ *  Listener receiving the metrics of each utterance synthesized by an engine (see
+ *  {@link JHTSEngineWrapper#setSynthesisListener(SynthesisListener)}).
+ *
+ *  The listener is called by the synthesizing thread once the utterance is synthesized, so it
+ *  should be fast and thread-safe if it is shared by several engines. {@link SynthesisStatistics}
+ *  is a listener accumulating the metrics.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public interface SynthesisListener
+{
+    /**
+     *  Method called once an utterance has been synthesized
+     *
+     *  @param metrics the metrics of the utterance
+     */
+    void synthesisCompleted(SynthesisMetrics metrics);
+}
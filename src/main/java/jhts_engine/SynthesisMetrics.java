@@ -0,0 +1,181 @@
+package jhts_engine;
+
+/**
+ *  Metrics of the synthesis of one utterance: wall and CPU time of each stage, size of the
+ *  utterance and native memory held by the utterance.
+ *
+ *  The CPU times are the CPU times of the synthesizing thread, they are 0 if the JVM doesn't
+ *  support the measurement of the thread CPU time.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public final class SynthesisMetrics
+{
+    /** The wall time of each stage in nanoseconds */
+    private final long[] wall_times;
+
+    /** The CPU time of each stage in nanoseconds */
+    private final long[] cpu_times;
+
+    /** The number of labels */
+    private final int nb_labels;
+
+    /** The number of states */
+    private final int nb_states;
+
+    /** The number of frames */
+    private final int nb_frames;
+
+    /** The number of samples */
+    private final int nb_samples;
+
+    /** The sampling frequency */
+    private final int sampling_frequency;
+
+    /** The estimated number of native bytes held by the utterance */
+    private final long native_bytes;
+
+    /**
+     *  Constructor
+     *
+     *  @param wall_times the wall time of each stage in nanoseconds (indexed by the stage ordinal)
+     *  @param cpu_times the CPU time of each stage in nanoseconds (indexed by the stage ordinal)
+     *  @param nb_labels the number of labels
+     *  @param nb_states the number of states
+     *  @param nb_frames the number of frames
+     *  @param nb_samples the number of samples
+     *  @param sampling_frequency the sampling frequency
+     *  @param native_bytes the estimated number of native bytes held by the utterance
+     */
+    SynthesisMetrics(long[] wall_times, long[] cpu_times, int nb_labels, int nb_states, int nb_frames,
+                     int nb_samples, int sampling_frequency, long native_bytes) {
+        this.wall_times = wall_times;
+        this.cpu_times = cpu_times;
+        this.nb_labels = nb_labels;
+        this.nb_states = nb_states;
+        this.nb_frames = nb_frames;
+        this.nb_samples = nb_samples;
+        this.sampling_frequency = sampling_frequency;
+        this.native_bytes = native_bytes;
+    }
+
+    /**
+     *  Method to get the wall time of a stage
+     *
+     *  @param stage the stage
+     *  @return the wall time in nanoseconds (0 if the stage has not been run)
+     */
+    public long getWallTime(SynthesisStage stage) {
+        return wall_times[stage.ordinal()];
+    }
+
+    /**
+     *  Method to get the CPU time of a stage
+     *
+     *  @param stage the stage
+     *  @return the CPU time in nanoseconds (0 if the stage has not been run)
+     */
+    public long getCpuTime(SynthesisStage stage) {
+        return cpu_times[stage.ordinal()];
+    }
+
+    /**
+     *  Method to get the wall time of the whole synthesis
+     *
+     *  @return the wall time in nanoseconds
+     */
+    public long getTotalWallTime() {
+        long total = 0;
+        for (long t: wall_times)
+            total += t;
+        return total;
+    }
+
+    /**
+     *  Method to get the CPU time of the whole synthesis
+     *
+     *  @return the CPU time in nanoseconds
+     */
+    public long getTotalCpuTime() {
+        long total = 0;
+        for (long t: cpu_times)
+            total += t;
+        return total;
+    }
+
+    /**
+     *  Method to get the number of labels of the utterance
+     *
+     *  @return the number of labels
+     */
+    public int getNbLabels() {
+        return nb_labels;
+    }
+
+    /**
+     *  Method to get the number of states of the utterance
+     *
+     *  @return the number of states
+     */
+    public int getNbStates() {
+        return nb_states;
+    }
+
+    /**
+     *  Method to get the number of frames of the utterance
+     *
+     *  @return the number of frames
+     */
+    public int getNbFrames() {
+        return nb_frames;
+    }
+
+    /**
+     *  Method to get the number of samples of the utterance
+     *
+     *  @return the number of samples
+     */
+    public int getNbSamples() {
+        return nb_samples;
+    }
+
+    /**
+     *  Method to get the duration of the synthesized audio
+     *
+     *  @return the duration in seconds
+     */
+    public double getAudioDuration() {
+        return (sampling_frequency > 0) ? ((double) nb_samples) / sampling_frequency : 0.0;
+    }
+
+    /**
+     *  Method to get the real-time factor: the time spent synthesizing divided by the duration of
+     *  the synthesized audio (below 1 means faster than real time)
+     *
+     *  @return the real-time factor (0 if no audio has been produced)
+     */
+    public double getRealTimeFactor() {
+        double duration = getAudioDuration();
+        return (duration > 0) ? (getTotalWallTime() * 1.0e-9) / duration : 0.0;
+    }
+
+    /**
+     *  Method to get an estimation of the number of native bytes held by the utterance (labels,
+     *  state, parameter and generated streams) at the end of the synthesis
+     *
+     *  @return the number of bytes
+     */
+    public long getNativeBytes() {
+        return native_bytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(nb_labels).append(" labels, ").append(nb_frames).append(" frames, ").append(nb_samples).append(" samples");
+        for (SynthesisStage stage: SynthesisStage.values())
+            sb.append(String.format(", %s %.3f ms (cpu %.3f ms)", stage, getWallTime(stage) * 1.0e-6, getCpuTime(stage) * 1.0e-6));
+        sb.append(String.format(", RTF %.4f, %d native bytes", getRealTimeFactor(), native_bytes));
+        return sb.toString();
+    }
+}
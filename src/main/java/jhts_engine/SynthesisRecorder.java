@@ -0,0 +1,90 @@
+package jhts_engine;
+
+// Management
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ *  Stopwatch measuring the stages of the synthesis of one utterance. Each mark attributes the
+ *  time elapsed since the previous mark to a stage. It is only created when a listener is set, so
+ *  the synthesis doesn't pay anything for the instrumentation otherwise.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+class SynthesisRecorder
+{
+    /** The bean giving the CPU time of the current thread */
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    /** Indicate if the CPU time of the current thread can be measured */
+    private static final boolean CPU_TIME = THREAD_BEAN.isCurrentThreadCpuTimeSupported();
+
+    /** The wall time of each stage */
+    private final long[] wall_times = new long[SynthesisStage.values().length];
+
+    /** The CPU time of each stage */
+    private final long[] cpu_times = new long[SynthesisStage.values().length];
+
+    /** The wall time of the previous mark */
+    private long wall_mark;
+
+    /** The CPU time of the previous mark */
+    private long cpu_mark;
+
+    /**
+     *  Constructor which starts the measurement
+     *
+     */
+    SynthesisRecorder() {
+        restart();
+    }
+
+    /**
+     *  Restart the measurement without attributing the elapsed time to any stage
+     *
+     */
+    void restart() {
+        wall_mark = System.nanoTime();
+        cpu_mark = cpuTime();
+    }
+
+    /**
+     *  Attribute the time elapsed since the previous mark to a stage
+     *
+     *  @param stage the stage which has just been achieved
+     */
+    void mark(SynthesisStage stage) {
+        long wall = System.nanoTime();
+        long cpu = cpuTime();
+        wall_times[stage.ordinal()] += wall - wall_mark;
+        cpu_times[stage.ordinal()] += cpu - cpu_mark;
+        wall_mark = wall;
+        cpu_mark = cpu;
+    }
+
+    /**
+     *  Get the metrics of the utterance
+     *
+     *  @param nb_labels the number of labels
+     *  @param nb_states the number of states
+     *  @param nb_frames the number of frames
+     *  @param nb_samples the number of samples
+     *  @param sampling_frequency the sampling frequency
+     *  @param native_bytes the estimated number of native bytes held by the utterance
+     *  @return the metrics
+     */
+    SynthesisMetrics getMetrics(int nb_labels, int nb_states, int nb_frames, int nb_samples,
+                                int sampling_frequency, long native_bytes) {
+        return new SynthesisMetrics(wall_times.clone(), cpu_times.clone(), nb_labels, nb_states, nb_frames,
+                                    nb_samples, sampling_frequency, native_bytes);
+    }
+
+    /**
+     *  Get the CPU time of the current thread
+     *
+     *  @return the CPU time in nanoseconds, 0 if not supported
+     */
+    private static long cpuTime() {
+        return CPU_TIME ? THREAD_BEAN.getCurrentThreadCpuTime() : 0;
+    }
+}
@@ -0,0 +1,22 @@
+package jhts_engine;
+
+/**
+ *  The stages of a synthesis measured by the instrumentation (see {@link SynthesisListener}).
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public enum SynthesisStage
+{
+    /** Parsing of the full context labels */
+    LABEL_PARSING,
+
+    /** Decision tree lookup and state duration computation. It also contains the parsing of the
+     *  labels when a pitch shift is set, the engine doing both in one step in this case */
+    STATE_SEQUENCE,
+
+    /** Parameter generation (MLPG, including the global variance) */
+    PARAMETER_GENERATION,
+
+    /** Vocoding of the generated parameters (MLSA filter and excitation) */
+    VOCODER
+}
@@ -0,0 +1,256 @@
+package jhts_engine;
+
+// Concurrency
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Management
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *  Listener accumulating the metrics of the synthesized utterances: counters, time spent in each
+ *  stage and latency histograms. The same instance can be shared by several engines (for example
+ *  all the engines of a {@link JHTSEnginePool}) and the statistics can be exposed through JMX
+ *  using {@link #register(String)}.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class SynthesisStatistics implements SynthesisListener, SynthesisStatisticsMBean
+{
+    /** The number of utterances */
+    private final LongAdder nb_utterances = new LongAdder();
+
+    /** The number of labels */
+    private final LongAdder nb_labels = new LongAdder();
+
+    /** The number of frames */
+    private final LongAdder nb_frames = new LongAdder();
+
+    /** The number of samples */
+    private final LongAdder nb_samples = new LongAdder();
+
+    /** The duration of the audio in microseconds */
+    private final LongAdder audio_micros = new LongAdder();
+
+    /** The wall time of each stage in nanoseconds */
+    private final LongAdder[] wall_times;
+
+    /** The CPU time of each stage in nanoseconds */
+    private final LongAdder[] cpu_times;
+
+    /** The histogram of the wall time of each stage */
+    private final LatencyHistogram[] stage_histograms;
+
+    /** The histogram of the wall time of the utterances */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** The largest number of native bytes held by an utterance */
+    private final LongAccumulator max_native_bytes = new LongAccumulator(Math::max, 0);
+
+    /**
+     *  Default constructor
+     *
+     */
+    public SynthesisStatistics() {
+        int nb_stages = SynthesisStage.values().length;
+        wall_times = new LongAdder[nb_stages];
+        cpu_times = new LongAdder[nb_stages];
+        stage_histograms = new LatencyHistogram[nb_stages];
+        for (int i=0; i<nb_stages; i++) {
+            wall_times[i] = new LongAdder();
+            cpu_times[i] = new LongAdder();
+            stage_histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void synthesisCompleted(SynthesisMetrics metrics) {
+        nb_utterances.increment();
+        nb_labels.add(metrics.getNbLabels());
+        nb_frames.add(metrics.getNbFrames());
+        nb_samples.add(metrics.getNbSamples());
+        audio_micros.add((long) (metrics.getAudioDuration() * 1.0e6));
+        for (SynthesisStage stage: SynthesisStage.values()) {
+            wall_times[stage.ordinal()].add(metrics.getWallTime(stage));
+            cpu_times[stage.ordinal()].add(metrics.getCpuTime(stage));
+            stage_histograms[stage.ordinal()].record(metrics.getWallTime(stage));
+        }
+        latency.record(metrics.getTotalWallTime());
+        max_native_bytes.accumulate(metrics.getNativeBytes());
+    }
+
+    /**********************************************************************
+     ***  JMX
+     **********************************************************************/
+    /**
+     *  Method to register the statistics in the platform MBean server
+     *
+     *  @param name the object name, for example "jhts_engine:type=SynthesisStatistics"
+     *  @return the object name of the registered bean
+     *  @throws JMException if the name is not valid or already registered
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName object_name = new ObjectName(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, object_name);
+        return object_name;
+    }
+
+    /**
+     *  Method to unregister the statistics from the platform MBean server
+     *
+     *  @param object_name the object name given by {@link #register(String)}
+     *  @throws JMException if the bean is not registered
+     */
+    public void unregister(ObjectName object_name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(object_name);
+    }
+
+    /**********************************************************************
+     ***  Accessors
+     **********************************************************************/
+    /**
+     *  Method to get the total wall time of a stage
+     *
+     *  @param stage the stage
+     *  @return the wall time in nanoseconds
+     */
+    public long getWallTime(SynthesisStage stage) {
+        return wall_times[stage.ordinal()].sum();
+    }
+
+    /**
+     *  Method to get the total CPU time of a stage
+     *
+     *  @param stage the stage
+     *  @return the CPU time in nanoseconds
+     */
+    public long getCpuTime(SynthesisStage stage) {
+        return cpu_times[stage.ordinal()].sum();
+    }
+
+    /**
+     *  Method to get the histogram of the wall time of a stage
+     *
+     *  @param stage the stage
+     *  @return the histogram
+     */
+    public LatencyHistogram getHistogram(SynthesisStage stage) {
+        return stage_histograms[stage.ordinal()];
+    }
+
+    /**
+     *  Method to get the histogram of the wall time of the utterances
+     *
+     *  @return the histogram
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    @Override
+    public long getUtteranceCount() {
+        return nb_utterances.sum();
+    }
+
+    @Override
+    public long getLabelCount() {
+        return nb_labels.sum();
+    }
+
+    @Override
+    public long getFrameCount() {
+        return nb_frames.sum();
+    }
+
+    @Override
+    public long getSampleCount() {
+        return nb_samples.sum();
+    }
+
+    @Override
+    public double getAudioSeconds() {
+        return audio_micros.sum() * 1.0e-6;
+    }
+
+    @Override
+    public double getTotalWallTimeMillis() {
+        long total = 0;
+        for (LongAdder t: wall_times)
+            total += t.sum();
+        return total * 1.0e-6;
+    }
+
+    @Override
+    public double getTotalCpuTimeMillis() {
+        long total = 0;
+        for (LongAdder t: cpu_times)
+            total += t.sum();
+        return total * 1.0e-6;
+    }
+
+    @Override
+    public double getLabelParsingTimeMillis() {
+        return getWallTime(SynthesisStage.LABEL_PARSING) * 1.0e-6;
+    }
+
+    @Override
+    public double getStateSequenceTimeMillis() {
+        return getWallTime(SynthesisStage.STATE_SEQUENCE) * 1.0e-6;
+    }
+
+    @Override
+    public double getParameterGenerationTimeMillis() {
+        return getWallTime(SynthesisStage.PARAMETER_GENERATION) * 1.0e-6;
+    }
+
+    @Override
+    public double getVocoderTimeMillis() {
+        return getWallTime(SynthesisStage.VOCODER) * 1.0e-6;
+    }
+
+    @Override
+    public double getRealTimeFactor() {
+        double audio = getAudioSeconds();
+        return (audio > 0) ? (getTotalWallTimeMillis() * 1.0e-3) / audio : 0.0;
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return latency.getPercentile(50) * 1.0e-6;
+    }
+
+    @Override
+    public double getLatencyP95Millis() {
+        return latency.getPercentile(95) * 1.0e-6;
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return latency.getPercentile(99) * 1.0e-6;
+    }
+
+    @Override
+    public long getMaxNativeBytes() {
+        return max_native_bytes.get();
+    }
+
+    @Override
+    public void reset() {
+        nb_utterances.reset();
+        nb_labels.reset();
+        nb_frames.reset();
+        nb_samples.reset();
+        audio_micros.reset();
+        for (int i=0; i<wall_times.length; i++) {
+            wall_times[i].reset();
+            cpu_times[i].reset();
+            stage_histograms[i].reset();
+        }
+        latency.reset();
+        max_native_bytes.reset();
+    }
+}
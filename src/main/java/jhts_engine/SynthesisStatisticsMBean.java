@@ -0,0 +1,61 @@
+package jhts_engine;
+
+/**
+ *  JMX view of the cumulative synthesis statistics (see {@link SynthesisStatistics}). The times
+ *  are given in milliseconds.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public interface SynthesisStatisticsMBean
+{
+    /** @return the number of synthesized utterances */
+    long getUtteranceCount();
+
+    /** @return the number of synthesized labels */
+    long getLabelCount();
+
+    /** @return the number of generated frames */
+    long getFrameCount();
+
+    /** @return the number of synthesized samples */
+    long getSampleCount();
+
+    /** @return the duration of the synthesized audio in seconds */
+    double getAudioSeconds();
+
+    /** @return the total wall time spent synthesizing */
+    double getTotalWallTimeMillis();
+
+    /** @return the total CPU time spent synthesizing */
+    double getTotalCpuTimeMillis();
+
+    /** @return the total wall time spent parsing the labels */
+    double getLabelParsingTimeMillis();
+
+    /** @return the total wall time spent generating the state sequences */
+    double getStateSequenceTimeMillis();
+
+    /** @return the total wall time spent generating the parameters */
+    double getParameterGenerationTimeMillis();
+
+    /** @return the total wall time spent in the vocoder */
+    double getVocoderTimeMillis();
+
+    /** @return the overall real-time factor (synthesis time divided by audio duration) */
+    double getRealTimeFactor();
+
+    /** @return the median synthesis latency */
+    double getLatencyP50Millis();
+
+    /** @return the 95th percentile of the synthesis latency */
+    double getLatencyP95Millis();
+
+    /** @return the 99th percentile of the synthesis latency */
+    double getLatencyP99Millis();
+
+    /** @return the largest number of native bytes held by an utterance */
+    long getMaxNativeBytes();
+
+    /** Reset all the statistics */
+    void reset();
+}
@@ -0,0 +1,269 @@
+package jhts_engine;
+
+// Audio
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ *  Handle on an utterance prepared by {@link JHTSEngineWrapper#prepare(String[])}: the labels
+ *  are parsed and the state sequence is generated once, then the parameter generation and the
+ *  vocoder can be run as many times as needed, with different configurations or after editing
+ *  the means and the durations of the states. The edits are kept from one run to the next.
+ *
+ *  The handle keeps the per-utterance structures of the engine alive. It is released by
+ *  {@link #close()} and is also invalidated by any other synthesis, refresh or clear of the
+ *  engine, as the engine only holds one utterance at a time.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class Utterance implements AutoCloseable
+{
+    /** The wrapper which has prepared the utterance */
+    private final JHTSEngineWrapper wrapper;
+
+    /** The engine containing the state sequence */
+    private final HTS_Engine engine;
+
+    /** The configuration used to generate the state sequence */
+    private final SynthesisConfig config;
+
+    /** Flag to indicate that the utterance is not held by the engine anymore */
+    private boolean released;
+
+    /**
+     *  Constructor
+     *
+     *  @param wrapper the wrapper which has prepared the utterance
+     *  @param engine the engine containing the state sequence
+     *  @param config the configuration used to generate the state sequence
+     */
+    Utterance(JHTSEngineWrapper wrapper, HTS_Engine engine, SynthesisConfig config) {
+        this.wrapper = wrapper;
+        this.engine = engine;
+        this.config = config;
+        this.released = false;
+    }
+
+    /**********************************************************************
+     ***  Accessors
+     **********************************************************************/
+    /**
+     *  Method to know if the utterance has been released (explicitly or by the engine)
+     *
+     *  @return true if the utterance can't be used anymore
+     */
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     *  Method to get the configuration used to generate the state sequence
+     *
+     *  @return the configuration
+     */
+    public SynthesisConfig getConfig() {
+        return config;
+    }
+
+    /**
+     *  Method to get the number of states of the utterance
+     *
+     *  @return the number of states
+     *  @throws HTSEngineException if the utterance has been released
+     */
+    public int getNbStates() throws HTSEngineException {
+        checkHeld();
+        return (int) HTSEngine.HTS_Engine_get_total_state(engine);
+    }
+
+    /**
+     *  Method to get the number of frames of the utterance (following the edited durations)
+     *
+     *  @return the number of frames
+     *  @throws HTSEngineException if the utterance has been released
+     */
+    public int getNbFrames() throws HTSEngineException {
+        checkHeld();
+        return (int) engine.getSss().getTotal_frame();
+    }
+
+    /**
+     *  Method to get the durations of the labels and of their states (following the edited
+     *  durations)
+     *
+     *  @return the table of the durations
+     *  @throws HTSEngineException if the utterance has been released
+     */
+    public DurationTable getDurationTable() throws HTSEngineException {
+        checkHeld();
+        return wrapper.getDurationTable();
+    }
+
+    /**
+     *  Method to get the duration of a state
+     *
+     *  @param i_state the index of the state in the utterance
+     *  @return the duration in frames
+     *  @throws HTSEngineException if the utterance has been released
+     */
+    public int getStateDuration(int i_state) throws HTSEngineException {
+        checkState(i_state);
+        return (int) HTSEngine.HTS_Engine_get_state_duration(engine, i_state);
+    }
+
+    /**
+     *  Method to override the duration of a state
+     *
+     *  @param i_state the index of the state in the utterance
+     *  @param duration the new duration in frames (at least 1)
+     *  @throws HTSEngineException if the utterance has been released
+     *  @throws IllegalArgumentException if the duration is not strictly positive
+     */
+    public void setStateDuration(int i_state, int duration) throws HTSEngineException {
+        checkState(i_state);
+        if (duration <= 0)
+            throw new IllegalArgumentException("The duration of a state should be strictly positive and not: " + duration);
+        HTSEngine.HTS_Engine_set_state_duration(engine, i_state, duration);
+    }
+
+    /**
+     *  Method to get a value of the mean vector of a state
+     *
+     *  @param i_stream the index of the stream
+     *  @param i_state the index of the state in the utterance
+     *  @param i_vector the index in the mean vector (statics then dynamics)
+     *  @return the mean value
+     *  @throws HTSEngineException if the utterance has been released
+     */
+    public double getStateMean(int i_stream, int i_state, int i_vector) throws HTSEngineException {
+        checkState(i_state);
+        return HTSEngine.HTS_Engine_get_state_mean(engine, i_stream, i_state, i_vector);
+    }
+
+    /**
+     *  Method to override a value of the mean vector of a state. For an MSD stream (the log F0),
+     *  only the voiced states are used by the parameter generation.
+     *
+     *  @param i_stream the index of the stream
+     *  @param i_state the index of the state in the utterance
+     *  @param i_vector the index in the mean vector (statics then dynamics)
+     *  @param value the new mean value
+     *  @throws HTSEngineException if the utterance has been released
+     */
+    public void setStateMean(int i_stream, int i_state, int i_vector, double value) throws HTSEngineException {
+        checkState(i_state);
+        HTSEngine.HTS_Engine_set_state_mean(engine, i_stream, i_state, i_vector, value);
+    }
+
+    /**********************************************************************
+     ***  Synthesis
+     **********************************************************************/
+    /**
+     *  Method to generate the parameters and vocode them using the configuration of the
+     *  preparation
+     *
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the utterance has been released or the synthesis fails
+     */
+    public AudioInputStream synthesize() throws HTSEngineException {
+        return synthesize(config);
+    }
+
+    /**
+     *  Method to generate the parameters and vocode them using a given configuration. The
+     *  configuration can change anything but the speed, the pitch shift and the interpolation
+     *  weights which are applied while preparing the state sequence.
+     *
+     *  @param config the configuration
+     *  @return the AudioStream containing the result of the synthesis
+     *  @throws HTSEngineException if the utterance has been released or the synthesis fails
+     *  @throws IllegalArgumentException if the configuration needs a new state sequence
+     */
+    public AudioInputStream synthesize(SynthesisConfig config) throws HTSEngineException {
+        checkConfig(config);
+        return wrapper.synthesizePrepared(config);
+    }
+
+    /**
+     *  Method to generate the parameters (available through the accessors of the engine, see
+     *  {@link JHTSEngineWrapper#generateAcousticParameters(String[])}) using the configuration of
+     *  the preparation
+     *
+     *  @throws HTSEngineException if the utterance has been released or the generation fails
+     */
+    public void generateAcousticParameters() throws HTSEngineException {
+        generateAcousticParameters(config);
+    }
+
+    /**
+     *  Method to generate the parameters using a given configuration (see
+     *  {@link #synthesize(SynthesisConfig)})
+     *
+     *  @param config the configuration
+     *  @throws HTSEngineException if the utterance has been released or the generation fails
+     *  @throws IllegalArgumentException if the configuration needs a new state sequence
+     */
+    public void generateAcousticParameters(SynthesisConfig config) throws HTSEngineException {
+        checkConfig(config);
+        wrapper.generatePreparedParameters(config);
+    }
+
+    /**********************************************************************
+     *** Cleaning utils
+     **********************************************************************/
+    /**
+     *  Method to release the utterance and free its structures in the engine. Nothing is done if
+     *  the utterance has already been released.
+     *
+     */
+    @Override
+    public void close() {
+        if (!released)
+            wrapper.refresh();
+    }
+
+    /**
+     *  Mark the utterance as released, called by the engine when its structures are freed
+     *
+     */
+    void invalidate() {
+        released = true;
+    }
+
+    /**
+     *  Check that the utterance is still held by the engine
+     *
+     *  @throws HTSEngineException if the utterance has been released
+     */
+    private void checkHeld() throws HTSEngineException {
+        if (released)
+            throw new HTSEngineException("The utterance has been released, prepare it again");
+    }
+
+    /**
+     *  Check that the utterance is still held by the engine and that a state exists
+     *
+     *  @param i_state the index of the state
+     *  @throws HTSEngineException if the utterance has been released
+     *  @throws IllegalArgumentException if the state doesn't exist
+     */
+    private void checkState(int i_state) throws HTSEngineException {
+        checkHeld();
+        int nb_states = (int) HTSEngine.HTS_Engine_get_total_state(engine);
+        if ((i_state < 0) || (i_state >= nb_states))
+            throw new IllegalArgumentException("The state index " + i_state + " is not valid (number of states: " + nb_states + ")");
+    }
+
+    /**
+     *  Check that the utterance is still held by the engine and that a configuration can be used
+     *  with its state sequence
+     *
+     *  @param config the configuration
+     *  @throws HTSEngineException if the utterance has been released
+     *  @throws IllegalArgumentException if the configuration needs a new state sequence
+     */
+    private void checkConfig(SynthesisConfig config) throws HTSEngineException {
+        checkHeld();
+        if (!this.config.hasSameStateSequence(config))
+            throw new IllegalArgumentException("The speed, the pitch shift and the interpolation weights can't be changed once the utterance is prepared");
+    }
+}
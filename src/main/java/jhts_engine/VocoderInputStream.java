@@ -0,0 +1,164 @@
+package jhts_engine;
+
+// Stream
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ *  Input stream producing the 16-bit little endian PCM samples of an utterance on demand. The
+ *  vocoder is run natively a few frames at a time when the previously produced chunk has been
+ *  consumed, so the memory used by the audio is bounded by the size of one chunk.
+ *
+ *  If a block-wise parameter generation is given, the parameters themselves are generated block
+ *  after block when the vocoder reaches the end of the frames generated so far.
+ *
+ *  The stream is only valid as long as the engine is not refreshed. Refreshing the engine closes
+ *  the stream.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+class VocoderInputStream extends InputStream
+{
+    /** The wrapper of the engine, kept so the engine is not freed while the stream is read */
+    private final JHTSEngineWrapper owner;
+
+    /** The engine containing the generated parameters */
+    private final HTS_Engine engine;
+
+    /** The native incremental vocoder, null once the stream is closed */
+    private SWIGTYPE_p_HTS_VocoderStream vocoder;
+
+    /** The native block-wise parameter generation, null if the parameters are already generated */
+    private SWIGTYPE_p_HTS_PStreamWindow window;
+
+    /** The chunk of produced samples (direct to be filled natively) */
+    private final ByteBuffer chunk;
+
+    /**
+     *  Constructor
+     *
+     *  @param owner the wrapper of the engine
+     *  @param engine the engine containing the generated parameters
+     *  @param chunk_frames the number of frames vocoded at once
+     *  @throws HTSEngineException if the vocoder can't be prepared
+     */
+    VocoderInputStream(JHTSEngineWrapper owner, HTS_Engine engine, int chunk_frames) throws HTSEngineException {
+        this(owner, engine, chunk_frames, null);
+    }
+
+    /**
+     *  Constructor which generates the parameters on demand
+     *
+     *  @param owner the wrapper of the engine
+     *  @param engine the engine containing the state sequence
+     *  @param chunk_frames the number of frames vocoded at once
+     *  @param window the block-wise parameter generation (owned by the stream) or null if the
+     *  parameters are already generated
+     *  @throws HTSEngineException if the vocoder can't be prepared
+     */
+    VocoderInputStream(JHTSEngineWrapper owner, HTS_Engine engine, int chunk_frames, SWIGTYPE_p_HTS_PStreamWindow window) throws HTSEngineException {
+        if (chunk_frames <= 0)
+            throw new IllegalArgumentException("The number of frames per chunk should be strictly positive and not: " + chunk_frames);
+
+        this.owner = owner;
+        this.engine = engine;
+        this.window = window;
+        this.vocoder = HTSEngine.HTS_VocoderStream_new(engine);
+        if (vocoder == null) {
+            close();
+            throw new HTSEngineException("The vocoder can't be prepared. Check your voice");
+        }
+        if (window != null)
+            HTSEngine.HTS_VocoderStream_set_end_frame(vocoder, engine, HTSEngine.HTS_PStreamWindow_get_frame(window));
+
+        int fperiod = (int) engine.getCondition().getFperiod();
+        this.chunk = ByteBuffer.allocateDirect(2 * fperiod * chunk_frames);
+        this.chunk.limit(0);
+    }
+
+    /**
+     *  Vocode the next chunk if the current one has been consumed. The next block of parameters is
+     *  generated if needed.
+     *
+     *  @return false if there is nothing left to read
+     *  @throws IOException if the generation of the parameters fails
+     */
+    private boolean fill() throws IOException {
+        if (chunk.hasRemaining())
+            return true;
+        if (vocoder == null)
+            return false;
+
+        chunk.clear();
+        int nb_samples = (int) HTSEngine.HTS_VocoderStream_synthesize_pcm16_le(vocoder, engine, chunk);
+        while ((nb_samples == 0) && (window != null) && !HTSEngine.HTS_PStreamWindow_is_finished(window, engine)) {
+            if (!HTSEngine.HTS_PStreamWindow_generate(window, engine))
+                throw new IOException("Generation of the parameter sequence failed. Check your voice");
+            HTSEngine.HTS_VocoderStream_set_end_frame(vocoder, engine, HTSEngine.HTS_PStreamWindow_get_frame(window));
+            nb_samples = (int) HTSEngine.HTS_VocoderStream_synthesize_pcm16_le(vocoder, engine, chunk);
+        }
+        chunk.limit(2 * nb_samples);
+
+        return nb_samples > 0;
+    }
+
+    /**
+     *  Vocode and get the next chunk without copying it. The chunk has to be consumed (its position
+     *  moved to its limit) before the next call.
+     *
+     *  @return the direct buffer of the next chunk (16-bit little endian PCM), null at the end
+     *  @throws IOException if the generation of the parameters fails
+     */
+    synchronized ByteBuffer readChunk() throws IOException {
+        if (!fill())
+            return null;
+
+        return chunk;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!fill())
+            return -1;
+
+        return chunk.get() & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+
+        int n = Math.min(len, chunk.remaining());
+        chunk.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        if (vocoder == null)
+            return chunk.remaining();
+
+        return chunk.remaining() + 2 * (int) HTSEngine.HTS_VocoderStream_get_remaining_nsample(vocoder, engine);
+    }
+
+    /**
+     *  Free the native vocoder and parameter generation. The samples which are already produced
+     *  can still be read.
+     *
+     */
+    @Override
+    public synchronized void close() {
+        if (vocoder != null) {
+            HTSEngine.HTS_VocoderStream_delete(vocoder);
+            vocoder = null;
+        }
+        if (window != null) {
+            HTSEngine.HTS_PStreamWindow_delete(window);
+            window = null;
+        }
+    }
+}
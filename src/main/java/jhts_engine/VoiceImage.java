@@ -0,0 +1,318 @@
+package jhts_engine;
+
+// Stream
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Checksum
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ *  Precompiled binary image of a voice.
+ *
+ *  An image is produced once from a .htsvoice file (using {@link #compile(Path, Path)} or the
+ *  command line tool {@link #main(String[])}) and is then loaded by
+ *  {@link JHTSEngineWrapper#setVoice(Path, boolean)} without any parsing: the PDFs are stored as
+ *  packed floats and the window coefficients as packed doubles which are used in place, the
+ *  decision trees and their questions are stored in preorder with the questions already resolved.
+ *
+ *  An image starts with a header of {@link #HEADER_SIZE} bytes (little endian) containing the
+ *  magic "JHTSIMG", the version of the format, the size and the CRC32 of the source voice, the size
+ *  and the CRC32 of the payload. The payload is the native image of the model set: it depends on
+ *  the word size and the byte order of the platform which has compiled it and is rejected on an
+ *  other platform.
+ *
+ *  Loading an image only checks its header (magic, version and size) so that a mapped image is
+ *  not read before being used. The checksum of the payload is checked by {@link #verify(Path)}.
+ *
+ *  @author <a href="mailto:slemaguer@coli.uni-saarland.de">Sébastien Le Maguer</a>
+ */
+public class VoiceImage
+{
+    /** The version of the format */
+    public static final int VERSION = 1;
+
+    /** The size of the header preceding the native image */
+    public static final int HEADER_SIZE = 64;
+
+    /** The magic number starting an image */
+    private static final byte[] MAGIC = {'J', 'H', 'T', 'S', 'I', 'M', 'G', 0};
+
+    /** Offset of the size of the source voice in the header */
+    private static final int SOURCE_OFFSET = 16;
+
+    /** Offset of the size of the payload in the header */
+    private static final int PAYLOAD_OFFSET = 32;
+
+    /**
+     *  No instance, only static utilities
+     *
+     */
+    private VoiceImage() {
+    }
+
+    /**********************************************************************
+     ***  Compilation
+     **********************************************************************/
+    /**
+     *  Method to compile a voice into an image. The image is written in a temporary file which is
+     *  then moved to its final path, so an image being loaded is never partially written.
+     *
+     *  @param voice_path the path of the hts engine voice
+     *  @param image_path the path of the image to produce
+     *  @throws HTSEngineException if the voice can't be loaded or the image can't be written
+     */
+    public static void compile(Path voice_path, Path image_path) throws HTSEngineException {
+        JHTSEngineWrapper wrapper = new JHTSEngineWrapper();
+        Path tmp_path = null;
+        try {
+            wrapper.setVoice(voice_path.toString());
+            ByteBuffer payload = wrapper.getVoiceImage();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(0);
+            header.putLong(Files.size(voice_path));
+            header.putLong(checksum(voice_path));
+            header.putLong(payload.remaining());
+            header.putLong(checksum(payload.duplicate()));
+            header.clear();
+
+            Path parent = image_path.toAbsolutePath().getParent();
+            tmp_path = Files.createTempFile(parent, image_path.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp_path, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining())
+                    channel.write(header);
+                while (payload.hasRemaining())
+                    channel.write(payload);
+            }
+            Files.move(tmp_path, image_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp_path = null;
+        } catch (IOException ex) {
+            throw new HTSEngineException("The image of the voice can't be written", ex);
+        } finally {
+            wrapper.close();
+            if (tmp_path != null)
+                tmp_path.toFile().delete();
+        }
+    }
+
+    /**
+     *  Compile a voice, or verify an image, from the command line
+     *
+     *  @param args the path of the voice and the path of the image, or --verify and the path of the image
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: java -cp jhts_engine.jar jhts_engine.VoiceImage <voice.htsvoice> <image>");
+            System.err.println("       java -cp jhts_engine.jar jhts_engine.VoiceImage --verify <image>");
+            System.exit(1);
+        }
+
+        try {
+            if (args[0].equals("--verify"))
+                verify(Paths.get(args[1]));
+            else
+                compile(Paths.get(args[0]), Paths.get(args[1]));
+        } catch (HTSEngineException ex) {
+            System.err.println(ex.getMessage() + ((ex.getCause() != null) ? ": " + ex.getCause().getMessage() : ""));
+            System.exit(1);
+        }
+    }
+
+    /**********************************************************************
+     ***  Loading
+     **********************************************************************/
+    /**
+     *  Method to know if a file is a voice image (and not a .htsvoice file)
+     *
+     *  @param path the path of the file
+     *  @return true if the file starts with the magic number of the images
+     *  @throws IOException if the file can't be read
+     */
+    public static boolean isImage(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && (channel.read(magic) >= 0));
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+
+    /**
+     *  Method to know if an image has been compiled from a given voice, using the size and the
+     *  checksum of the source kept in the image. This can be used to detect an outdated image.
+     *
+     *  @param image_path the path of the image
+     *  @param voice_path the path of the hts engine voice
+     *  @return true if the voice is the source of the image
+     *  @throws HTSEngineException if the image is not valid
+     *  @throws IOException if the files can't be read
+     */
+    public static boolean isCompiledFrom(Path image_path, Path voice_path) throws HTSEngineException, IOException {
+        ByteBuffer header;
+        try (FileChannel channel = FileChannel.open(image_path, StandardOpenOption.READ)) {
+            header = readHeader(channel);
+        }
+
+        return (header.getLong(SOURCE_OFFSET) == Files.size(voice_path))
+            && (header.getLong(SOURCE_OFFSET + 8) == checksum(voice_path));
+    }
+
+    /**
+     *  Get the identity of the source voice of an image, as {@link #getVoiceId(long, long)} gives
+     *  it for the source itself. Only the header is read.
+     *
+     *  @param image_path the path of the image
+     *  @return the identity of the source voice
+     *  @throws HTSEngineException if the image is not valid
+     *  @throws IOException if the image can't be read
+     */
+    static String getSourceId(Path image_path) throws HTSEngineException, IOException {
+        ByteBuffer header;
+        try (FileChannel channel = FileChannel.open(image_path, StandardOpenOption.READ)) {
+            header = readHeader(channel);
+        }
+
+        return getVoiceId(header.getLong(SOURCE_OFFSET), header.getLong(SOURCE_OFFSET + 8));
+    }
+
+    /**
+     *  Get the identity of a voice from its size and its checksum
+     *
+     *  @param size the size of the voice
+     *  @param checksum the CRC32 of the voice
+     *  @return the identity of the voice
+     */
+    static String getVoiceId(long size, long checksum) {
+        return size + ":" + Long.toHexString(checksum);
+    }
+
+    /**
+     *  Method to check the checksum of the payload of an image, for example after copying it. The
+     *  whole image is read.
+     *
+     *  @param image_path the path of the image
+     *  @throws HTSEngineException if the image is not valid or can't be read
+     */
+    public static void verify(Path image_path) throws HTSEngineException {
+        try (FileChannel channel = FileChannel.open(image_path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            if (header.getLong(PAYLOAD_OFFSET) != channel.size() - HEADER_SIZE)
+                throw new HTSEngineException("The image of the voice is truncated");
+
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            long position = HEADER_SIZE;
+            int n;
+            while ((n = channel.read(buffer, position)) > 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+                position += n;
+            }
+
+            if (crc.getValue() != header.getLong(PAYLOAD_OFFSET + 8))
+                throw new HTSEngineException("The image of the voice is corrupted");
+        } catch (IOException ex) {
+            throw new HTSEngineException("The image of the voice can't be read", ex);
+        }
+    }
+
+    /**
+     *  Open an image and check its header. The payload is not read (see {@link #verify(Path)}):
+     *  the native image is either mapped or read into a direct buffer, in both cases the buffer is
+     *  used in place by the engine and has to be kept as long as the voice is loaded.
+     *
+     *  @param image_path the path of the image
+     *  @param mmap true to map the image, false to read it in memory
+     *  @return the (direct) buffer containing the native image
+     *  @throws HTSEngineException if the image is not valid or can't be read
+     */
+    static ByteBuffer open(Path image_path, boolean mmap) throws HTSEngineException {
+        try (FileChannel channel = FileChannel.open(image_path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            long payload_size = header.getLong(PAYLOAD_OFFSET);
+            if ((payload_size != channel.size() - HEADER_SIZE) || (payload_size > Integer.MAX_VALUE))
+                throw new HTSEngineException("The image of the voice is truncated");
+
+            ByteBuffer payload;
+            if (mmap) {
+                payload = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, payload_size);
+            } else {
+                payload = ByteBuffer.allocateDirect((int) payload_size);
+                while (payload.hasRemaining() && (channel.read(payload, HEADER_SIZE + payload.position()) >= 0));
+                payload.flip();
+            }
+
+            return payload;
+        } catch (IOException ex) {
+            throw new HTSEngineException("The image of the voice can't be read", ex);
+        }
+    }
+
+    /**
+     *  Read and check the header of an image
+     *
+     *  @param channel the channel of the image
+     *  @return the header (little endian)
+     *  @throws HTSEngineException if the header is not the one of a supported image
+     *  @throws IOException if the image can't be read
+     */
+    private static ByteBuffer readHeader(FileChannel channel) throws HTSEngineException, IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && (channel.read(header, header.position()) >= 0));
+        if (header.hasRemaining())
+            throw new HTSEngineException("The image of the voice is truncated");
+
+        byte[] magic = new byte[MAGIC.length];
+        header.clear();
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new HTSEngineException("The file is not an image of voice");
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new HTSEngineException("The version of the image (" + version + ") is not supported, recompile the voice");
+
+        return header;
+    }
+
+    /**
+     *  Compute the CRC32 of a buffer from its position to its limit
+     *
+     *  @param buffer the buffer (consumed)
+     *  @return the checksum
+     */
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+
+    /**
+     *  Compute the CRC32 of a file
+     *
+     *  @param path the path of the file
+     *  @return the checksum
+     *  @throws IOException if the file can't be read
+     */
+    static long checksum(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[65536];
+        try (InputStream input = Files.newInputStream(path)) {
+            int n;
+            while ((n = input.read(buffer)) >= 0)
+                crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+}
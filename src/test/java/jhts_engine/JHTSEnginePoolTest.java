@@ -0,0 +1,292 @@
+package jhts_engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// IO
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import com.google.common.io.ByteStreams;
+
+// Audio
+import javax.sound.sampled.AudioInputStream;
+
+// Testing
+import org.testng.Assert;
+import org.testng.annotations.*;
+
+
+public class JHTSEnginePoolTest {
+
+    private static final File tmp_file = new File("/tmp/htsengine_test_pool_arctic_slt.htsvoice");
+    JHTSEnginePool pool;
+    String[] labels;
+
+    @BeforeClass
+    public void startPool() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(JHTSEngineWrapper.class.getResourceAsStream("arctic_slt.htsvoice"));
+        try (FileOutputStream fos = new FileOutputStream(tmp_file)) {
+            fos.write(bytes);
+        }
+
+        // Load voice once
+        pool = new JHTSEnginePool(tmp_file.toString(), 2);
+
+        // Load label
+        URL url_lab = JHTSEnginePoolTest.class.getResource("test.lab");
+        List<String> lines = Files.readAllLines(new File(url_lab.toURI()).toPath());
+        labels = lines.toArray(new String[0]);
+    }
+
+    @AfterClass
+    public void closePool() {
+        pool.close();
+        tmp_file.delete();
+    }
+
+    @Test
+    public void testSharedSynthesis() throws Exception {
+        JHTSEngineWrapper first = pool.borrow();
+        JHTSEngineWrapper second = pool.borrow();
+        try {
+            Assert.assertTrue(first.isShared());
+            Assert.assertNotSame(first, second);
+
+            // Both engines produce the same signal from the same model
+            first.synthesize(labels);
+            second.synthesize(labels);
+            short[] pcm_first = new short[first.getNbSamples()];
+            short[] pcm_second = new short[second.getNbSamples()];
+            first.getGeneratedSpeech(pcm_first);
+            second.getGeneratedSpeech(pcm_second);
+
+            Assert.assertEquals(pcm_first.length, pcm_second.length);
+            for (int s=0; s<pcm_first.length; s++) {
+                Assert.assertEquals(pcm_first[s], pcm_second[s]);
+            }
+
+            // Pool is full
+            Assert.assertNull(pool.borrow(10, TimeUnit.MILLISECONDS));
+        } finally {
+            pool.release(first);
+            pool.release(second);
+        }
+
+        Assert.assertEquals(pool.getNbCreated(), 2);
+        Assert.assertEquals(pool.getNbIdle(), 2);
+    }
+
+    @Test
+    public void testSynthesizeAll() throws Exception {
+        // Alternate two utterances to check the order of the results
+        String[] half = Arrays.copyOf(labels, labels.length / 2);
+        List<String[]> utterances = new ArrayList<String[]>();
+        for (int i=0; i<6; i++)
+            utterances.add(((i % 2) == 0) ? labels : half);
+
+        // Reference
+        JHTSEngineWrapper engine = pool.borrow();
+        byte[] ref_full, ref_half;
+        try {
+            ref_full = ByteStreams.toByteArray(engine.synthesize(labels));
+            ref_half = ByteStreams.toByteArray(engine.synthesize(half));
+        } finally {
+            pool.release(engine);
+        }
+
+        // Batch synthesis
+        List<AudioInputStream> results = pool.synthesizeAll(utterances);
+        Assert.assertEquals(results.size(), utterances.size());
+        for (int i=0; i<results.size(); i++) {
+            byte[] ref = ((i % 2) == 0) ? ref_full : ref_half;
+            Assert.assertEquals(ByteStreams.toByteArray(results.get(i)), ref);
+        }
+        Assert.assertTrue(pool.getNbCreated() <= pool.getSize());
+    }
+
+    @Test
+    public void testStateCache() throws Exception {
+        JHTSEngineWrapper engine = pool.borrow();
+        try {
+            // Reference without cache
+            byte[] ref_bytes = ByteStreams.toByteArray(engine.synthesize(labels));
+            engine.generateAcousticParameters(labels);
+            double[] ref_mgc = engine.getGeneratedParameters(0);
+            double[] ref_lf0 = engine.getGeneratedParameters(1);
+
+            // Cold then warm cache
+            StateCache cache = new StateCache(1000);
+            engine.setStateCache(cache);
+            engine.generateAcousticParameters(labels);
+            Assert.assertEquals(cache.getNbHits() + cache.getNbMisses(), labels.length);
+            long nb_misses = cache.getNbMisses();
+            engine.generateAcousticParameters(labels);
+            Assert.assertEquals(cache.getNbMisses(), nb_misses);
+            Assert.assertEquals(cache.getNbHits() + cache.getNbMisses(), 2 * labels.length);
+
+            // Same parameters as the tree lookups
+            double[] mgc = engine.getGeneratedParameters(0);
+            double[] lf0 = engine.getGeneratedParameters(1);
+            Assert.assertEquals(mgc.length, ref_mgc.length);
+            for (int i=0; i<mgc.length; i++)
+                Assert.assertEquals(mgc[i], ref_mgc[i], 0);
+            Assert.assertEquals(lf0.length, ref_lf0.length);
+            for (int t=0; t<lf0.length; t++)
+                Assert.assertEquals(lf0[t], ref_lf0[t], 0);
+
+            // The synthesis looks the states up in the cache too
+            long nb_hits = cache.getNbHits();
+            Assert.assertEquals(ByteStreams.toByteArray(engine.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(cache.getNbHits(), nb_hits + labels.length);
+        } finally {
+            engine.setStateCache(null);
+            pool.release(engine);
+        }
+    }
+
+    @Test
+    public void testSynthesizeChunked() throws Exception {
+        // Two sentences: the final pause of the first one is the split point
+        String[] two = new String[2 * labels.length];
+        System.arraycopy(labels, 0, two, 0, labels.length);
+        System.arraycopy(labels, 0, two, labels.length, labels.length);
+        Assert.assertTrue(ChunkedSynthesis.isPause(labels[0]));
+        Assert.assertFalse(ChunkedSynthesis.isPause(labels[1]));
+        Assert.assertEquals(ChunkedSynthesis.split(two, ChunkedSynthesis.MIN_CHUNK_LABELS).size(), 2);
+        Assert.assertEquals(ChunkedSynthesis.split(labels, ChunkedSynthesis.MIN_CHUNK_LABELS).size(), 1);
+
+        // Bit-exact mode is the synthesis of the whole utterance
+        ChunkedSynthesis whole = pool.synthesizeChunked(two, SynthesisConfig.DEFAULT, true);
+        Assert.assertEquals(whole.getNbChunks(), 1);
+        JHTSEngineWrapper engine = pool.borrow();
+        try {
+            Assert.assertEquals(ByteStreams.toByteArray(whole.getAudio()),
+                                ByteStreams.toByteArray(engine.synthesize(two)));
+        } finally {
+            pool.release(engine);
+        }
+
+        // Chunked synthesis has the same timeline and length as the whole utterance
+        ChunkedSynthesis chunked = pool.synthesizeChunked(two);
+        Assert.assertEquals(chunked.getNbChunks(), 2);
+        Assert.assertEquals(chunked.getNbSamples(), whole.getNbSamples());
+        DurationTable ref = whole.getDurationTable();
+        DurationTable table = chunked.getDurationTable();
+        Assert.assertEquals(table.size(), two.length);
+        for (int i=0; i<table.size(); i++) {
+            Assert.assertEquals(table.getLabels()[i], ref.getLabels()[i]);
+            Assert.assertEquals(table.getStartFrames()[i], ref.getStartFrames()[i]);
+            Assert.assertEquals(table.getEndFrames()[i], ref.getEndFrames()[i]);
+        }
+
+        // Deterministic
+        Assert.assertEquals(ByteStreams.toByteArray(pool.synthesizeChunked(two).getAudio()),
+                            ByteStreams.toByteArray(chunked.getAudio()));
+
+        // Same result with a single thread executor, the chunks waiting for their turn
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ChunkedSynthesis sequential = pool.synthesizeChunked(two, SynthesisConfig.DEFAULT, false, executor);
+            Assert.assertEquals(ByteStreams.toByteArray(sequential.getAudio()),
+                                ByteStreams.toByteArray(chunked.getAudio()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCloseWhileBorrowed() throws Exception {
+        JHTSEnginePool closing = new JHTSEnginePool(tmp_file.toString(), 1);
+        JHTSEngineWrapper engine = closing.borrow();
+        closing.close();
+
+        // The borrowed engine is usable until it is released, it is then freed
+        Assert.assertEquals(ByteStreams.toByteArray(engine.synthesize(labels)).length, 2 * engine.getNbSamples());
+        closing.release(engine);
+        Assert.assertEquals(closing.getNbCreated(), 0);
+        try {
+            closing.borrow(1, TimeUnit.SECONDS);
+            Assert.fail("A closed pool should not lend engines");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCloseWhileWaiting() throws Exception {
+        JHTSEnginePool closing = new JHTSEnginePool(tmp_file.toString(), 1);
+        JHTSEngineWrapper engine = closing.borrow();
+        CompletableFuture<JHTSEngineWrapper> waiting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return closing.borrow();
+                } catch (HTSEngineException | InterruptedException ex) {
+                    throw new CompletionException(ex);
+                }
+            });
+
+        // The waiting borrower fails instead of waiting forever
+        Thread.sleep(100);
+        closing.close();
+        try {
+            waiting.get(10, TimeUnit.SECONDS);
+            Assert.fail("The waiting borrower should fail");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        closing.release(engine);
+    }
+
+    @Test
+    public void testReleaseResetsConfig() throws Exception {
+        JHTSEngineWrapper engine = pool.borrow();
+        engine.setConfig(SynthesisConfig.DEFAULT.withSpeed(1.5));
+        pool.release(engine);
+
+        // Whichever engine is borrowed, it has the configuration of the voice
+        JHTSEngineWrapper first = pool.borrow();
+        JHTSEngineWrapper second = pool.borrow();
+        try {
+            Assert.assertEquals(first.getConfig(), SynthesisConfig.DEFAULT);
+            Assert.assertEquals(second.getConfig(), SynthesisConfig.DEFAULT);
+        } finally {
+            pool.release(first);
+            pool.release(second);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDoubleRelease() throws Exception {
+        JHTSEngineWrapper engine = pool.borrow();
+        pool.release(engine);
+        pool.release(engine);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testSharedVoiceCantBeCleared() throws Exception {
+        JHTSEngineWrapper engine = pool.borrow();
+        try {
+            engine.clear();
+        } finally {
+            pool.release(engine);
+        }
+    }
+
+    @Test(expectedExceptions = HTSEngineException.class)
+    public void testSharedVoiceCantChange() throws Exception {
+        JHTSEngineWrapper engine = pool.borrow();
+        try {
+            engine.setVoice(tmp_file.toString());
+        } finally {
+            pool.release(engine);
+        }
+    }
+}
@@ -2,8 +2,14 @@ package jhts_engine;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 // IO
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -11,7 +17,11 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import com.google.common.io.ByteStreams;
 
 // Audio
@@ -116,6 +126,834 @@ public class JHTSEngineWrapperTest {
     }
 
 
+    @Test
+    public void testVoiceFromMemory() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+        byte[] ref_bytes = ByteStreams.toByteArray(ew.synthesize(labels));
+
+        JHTSEngineWrapper from_stream = new JHTSEngineWrapper();
+        JHTSEngineWrapper from_buffer = new JHTSEngineWrapper();
+        try {
+            // Load the voices without any file on the caller side
+            from_stream.setVoice(JHTSEngineWrapper.class.getResourceAsStream("arctic_slt.htsvoice"));
+            byte[] voice = ByteStreams.toByteArray(JHTSEngineWrapper.class.getResourceAsStream("arctic_slt.htsvoice"));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(voice.length);
+            buffer.put(voice).flip();
+            from_buffer.setVoice(buffer);
+            Assert.assertEquals(buffer.remaining(), voice.length);
+
+            // Same synthesis
+            Assert.assertEquals(ByteStreams.toByteArray(from_stream.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(ByteStreams.toByteArray(from_buffer.synthesize(labels)), ref_bytes);
+        } finally {
+            from_stream.clear();
+            from_buffer.clear();
+        }
+    }
+
+    @Test
+    public void testVoiceImage() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+        byte[] ref_bytes = ByteStreams.toByteArray(ew.synthesize(labels));
+
+        // Compile the voice
+        File image_f = new File("/tmp/htsengine_test_default_arctic_slt.jhtsimg");
+        VoiceImage.compile(tmp_file.toPath(), image_f.toPath());
+        File corrupted_f = new File("/tmp/htsengine_test_default_arctic_slt_corrupted.jhtsimg");
+        JHTSEngineWrapper mapped = new JHTSEngineWrapper();
+        JHTSEngineWrapper read = new JHTSEngineWrapper();
+        try {
+            Assert.assertTrue(VoiceImage.isImage(image_f.toPath()));
+            Assert.assertFalse(VoiceImage.isImage(tmp_file.toPath()));
+            Assert.assertTrue(VoiceImage.isCompiledFrom(image_f.toPath(), tmp_file.toPath()));
+            VoiceImage.verify(image_f.toPath());
+
+            // Same synthesis from the mapped and the read image
+            mapped.setVoice(image_f.toPath(), true);
+            read.setVoice(image_f.toPath(), false);
+            Assert.assertTrue(mapped.isVoiceImage());
+            Assert.assertEquals(ByteStreams.toByteArray(mapped.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(ByteStreams.toByteArray(read.synthesize(labels)), ref_bytes);
+
+            // An image can be replaced by a parsed voice
+            read.setVoice(tmp_file.toPath(), true);
+            Assert.assertFalse(read.isVoiceImage());
+            Assert.assertEquals(ByteStreams.toByteArray(read.synthesize(labels)), ref_bytes);
+
+            // A corrupted payload is detected by the verification
+            read.clear();
+            byte[] image = Files.readAllBytes(image_f.toPath());
+            image[image.length - 1] ^= 1;
+            Files.write(corrupted_f.toPath(), image);
+            try {
+                VoiceImage.verify(corrupted_f.toPath());
+                Assert.fail("The corrupted image should be rejected");
+            } catch (HTSEngineException ex) {
+                // Expected
+            }
+        } finally {
+            mapped.clear();
+            read.clear();
+            image_f.delete();
+            corrupted_f.delete();
+        }
+    }
+
+    @Test
+    public void testPCMExport() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Synthesis
+        ew.synthesize(labels);
+        short[] pcm = new short[ew.getNbSamples()];
+        Assert.assertEquals(ew.getGeneratedSpeech(pcm), pcm.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(2 * pcm.length).order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(ew.getGeneratedSpeech(direct), pcm.length);
+        direct.flip();
+
+        // Load reference
+        URL url = JHTSEngineWrapperTest.class.getResource("test.wav");
+        AudioInputStream ref_ais = AudioSystem.getAudioInputStream(url);
+        byte[] ref_bytes = new byte[(int) (ref_ais.getFrameLength() * ref_ais.getFormat().getFrameSize())];
+        ref_ais.read(ref_bytes);
+        short[] ref_short = new short[ref_bytes.length / 2];
+        ByteBuffer.wrap(ref_bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(ref_short);
+
+        // Assert equality
+        Assert.assertEquals(pcm.length, ref_short.length);
+        for (int s=0; s<ref_short.length; s++) {
+            Assert.assertEquals(pcm[s], ref_short[s]);
+            Assert.assertEquals(direct.getShort(), ref_short[s]);
+        }
+    }
+
+    @Test
+    public void testStreamingSynthesis() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Reference synthesis
+        AudioInputStream ref_ais = ew.synthesize(labels);
+        byte[] ref_bytes = ByteStreams.toByteArray(ref_ais);
+
+        // Streaming synthesis
+        AudioInputStream ais = ew.synthesizeStreaming(labels, 3);
+        Assert.assertEquals(ais.getFrameLength(), ref_ais.getFrameLength());
+        byte[] rend_bytes = ByteStreams.toByteArray(ais);
+
+        // Assert equality
+        Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+        for (int b=0; b<ref_bytes.length; b++) {
+            Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+        }
+    }
+
+    @Test
+    public void testWindowedGeneration() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Reference generation
+        ew.generateAcousticParameters(labels);
+        double[] ref_mgc = ew.getGeneratedParameters(0);
+        double[] ref_lf0 = ew.getGeneratedParameters(1);
+        int nb_samples = ew.getNbSamples();
+
+        try {
+            // One block covering the whole utterance is the full generation
+            ew.setParameterGenerationWindow(ref_lf0.length, 50);
+            ew.generateAcousticParameters(labels);
+            double[] mgc = ew.getGeneratedParameters(0);
+            Assert.assertEquals(mgc.length, ref_mgc.length);
+            for (int i=0; i<mgc.length; i++)
+                Assert.assertEquals(mgc[i], ref_mgc[i], 0);
+
+            // Small blocks keep the frames and the voicing
+            ew.setParameterGenerationWindow(20, 50);
+            ew.generateAcousticParameters(labels);
+            double[] lf0 = ew.getGeneratedParameters(1);
+            Assert.assertEquals(lf0.length, ref_lf0.length);
+            for (int t=0; t<lf0.length; t++)
+                Assert.assertEquals(lf0[t] <= -1.0e+10, ref_lf0[t] <= -1.0e+10);
+
+            // The windowed parameters are freed by the refresh
+            ew.refresh();
+            Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)).length, 2 * nb_samples);
+            ew.refresh();
+
+            // Streaming with on demand generation
+            AudioInputStream ais = ew.synthesizeStreaming(labels, 3);
+            byte[] rend_bytes = ByteStreams.toByteArray(ais);
+            Assert.assertEquals(rend_bytes.length, 2 * nb_samples);
+            ew.refresh();
+        } finally {
+            ew.setParameterGenerationWindow(0, 0);
+        }
+    }
+
+    @Test
+    public void testCompiledTrees() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Load reference
+        URL url = JHTSEngineWrapperTest.class.getResource("test.wav");
+        AudioInputStream ref_ais = AudioSystem.getAudioInputStream(url);
+        byte[] ref_bytes = ByteStreams.toByteArray(ref_ais);
+        byte[] bytes = ByteStreams.toByteArray(JHTSEngineWrapperTest.class.getResourceAsStream("test.lf0"));
+        float[] f0_ref = new float[bytes.length / 4];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(f0_ref);
+
+        try {
+            ew.setCompiledTrees(true);
+
+            // Synthesis is bit-exact
+            byte[] rend_bytes = ByteStreams.toByteArray(ew.synthesize(labels));
+            Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+            for (int b=0; b<ref_bytes.length; b++)
+                Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+
+            // F0 is the same
+            ew.generateAcousticParameters(labels);
+            double[][] f0 = ew.getGeneratedParameterSequence(1);
+            Assert.assertEquals(f0.length, f0_ref.length);
+            for (int t=0; t<f0.length; t++)
+                Assert.assertEquals((float) f0[t][0], f0_ref[t], 0.00001);
+        } finally {
+            ew.setCompiledTrees(false);
+        }
+    }
+
+    @Test
+    public void testSynthesisMetrics() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Load reference
+        URL url = JHTSEngineWrapperTest.class.getResource("test.wav");
+        AudioInputStream ref_ais = AudioSystem.getAudioInputStream(url);
+        byte[] ref_bytes = ByteStreams.toByteArray(ref_ais);
+
+        List<SynthesisMetrics> all_metrics = new ArrayList<SynthesisMetrics>();
+        SynthesisStatistics statistics = new SynthesisStatistics();
+        try {
+            ew.setSynthesisListener(m -> { all_metrics.add(m); statistics.synthesisCompleted(m); });
+
+            // The instrumented synthesis is bit-exact
+            byte[] rend_bytes = ByteStreams.toByteArray(ew.synthesize(labels));
+            Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+            for (int b=0; b<ref_bytes.length; b++)
+                Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+
+            // The metrics describe the utterance
+            Assert.assertEquals(all_metrics.size(), 1);
+            SynthesisMetrics metrics = all_metrics.get(0);
+            Assert.assertEquals(metrics.getNbLabels(), labels.length);
+            Assert.assertEquals(metrics.getNbSamples(), ref_bytes.length / 2);
+            Assert.assertTrue(metrics.getNbFrames() > 0);
+            Assert.assertTrue(metrics.getNativeBytes() > 0);
+            for (SynthesisStage stage: SynthesisStage.values())
+                Assert.assertTrue(metrics.getWallTime(stage) > 0, stage.toString());
+            Assert.assertTrue(metrics.getRealTimeFactor() > 0);
+
+            // And are accumulated by the statistics
+            Assert.assertEquals(statistics.getUtteranceCount(), 1);
+            Assert.assertEquals(statistics.getSampleCount(), ref_bytes.length / 2);
+            Assert.assertTrue(statistics.getLatencyP99Millis() >= metrics.getTotalWallTime() * 1.0e-6);
+        } finally {
+            ew.setSynthesisListener(null);
+        }
+    }
+
+    @Test
+    public void testSynthesisConfig() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Load reference
+        URL url = JHTSEngineWrapperTest.class.getResource("test.wav");
+        AudioInputStream ref_ais = AudioSystem.getAudioInputStream(url);
+        byte[] ref_bytes = ByteStreams.toByteArray(ref_ais);
+
+        try {
+            // A faster speech is shorter
+            SynthesisConfig fast = SynthesisConfig.DEFAULT.withSpeed(1.5).withVolume(-6.0);
+            byte[] fast_bytes = ByteStreams.toByteArray(ew.synthesize(labels, fast));
+            Assert.assertEquals(ew.getConfig(), fast);
+            Assert.assertTrue(fast_bytes.length < ref_bytes.length);
+
+            // An equal configuration is already applied
+            ew.setConfig(SynthesisConfig.DEFAULT.withSpeed(1.5).withVolume(-6.0));
+            Assert.assertSame(ew.getConfig(), fast);
+
+            // Going back to the configuration of the voice is bit-exact
+            byte[] rend_bytes = ByteStreams.toByteArray(ew.synthesize(labels, SynthesisConfig.DEFAULT));
+            Assert.assertEquals(ew.getSamplingFrequency(), (int) ref_ais.getFormat().getSampleRate());
+            Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+            for (int b=0; b<ref_bytes.length; b++)
+                Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+        } finally {
+            ew.setConfig(SynthesisConfig.DEFAULT);
+        }
+
+        // The setters need a voice which resets them when loaded
+        try (JHTSEngineWrapper engine = new JHTSEngineWrapper()) {
+            try {
+                engine.setSpeed(1.5);
+                Assert.fail("A setter should be rejected without voice");
+            } catch (IllegalStateException ex) {
+                // Expected
+            }
+            engine.setVoice(tmp_file.toString());
+            engine.setSpeed(1.5);
+            Assert.assertEquals(engine.getConfig(), SynthesisConfig.DEFAULT.withSpeed(1.5));
+            engine.setVoice(tmp_file.toString());
+            Assert.assertEquals(engine.getConfig(), SynthesisConfig.DEFAULT);
+
+            // The cleared engine has no voice anymore
+            engine.setSpeed(1.5);
+            engine.clear();
+            Assert.assertEquals(engine.getConfig(), SynthesisConfig.DEFAULT);
+            try {
+                engine.setSpeed(1.5);
+                Assert.fail("A setter should be rejected once the voice is cleared");
+            } catch (IllegalStateException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testResynthesis() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Load reference
+        URL url = JHTSEngineWrapperTest.class.getResource("test.wav");
+        AudioInputStream ref_ais = AudioSystem.getAudioInputStream(url);
+        byte[] ref_bytes = ByteStreams.toByteArray(ref_ais);
+
+        // Generate the parameters
+        ew.generateAcousticParameters(labels);
+        double[][] streams = new double[3][];
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i=0; i<streams.length; i++) {
+            streams[i] = ew.getGeneratedParameters(i);
+            buffers[i] = ByteBuffer.allocateDirect(8 * streams[i].length).order(ByteOrder.nativeOrder());
+            buffers[i].asDoubleBuffer().put(streams[i]);
+        }
+
+        // The resynthesis of the unmodified parameters is bit-exact
+        byte[] rend_bytes = ByteStreams.toByteArray(ew.resynthesize(streams));
+        Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+        for (int b=0; b<ref_bytes.length; b++)
+            Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+
+        rend_bytes = ByteStreams.toByteArray(ew.resynthesize(buffers));
+        Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+        for (int b=0; b<ref_bytes.length; b++)
+            Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+
+        // Editing the F0 changes the speech but not its length
+        for (int t=0; t<streams[1].length; t++)
+            if (streams[1][t] > -1.0e+9)
+                streams[1][t] += Math.log(2);
+        rend_bytes = ByteStreams.toByteArray(ew.resynthesize(streams));
+        Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+        int nb_diff = 0;
+        for (int b=0; b<ref_bytes.length; b++)
+            if (rend_bytes[b] != ref_bytes[b])
+                nb_diff++;
+        Assert.assertTrue(nb_diff > 0);
+    }
+
+    @Test
+    public void testPreparedUtterance() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Load reference
+        URL url = JHTSEngineWrapperTest.class.getResource("test.wav");
+        AudioInputStream ref_ais = AudioSystem.getAudioInputStream(url);
+        byte[] ref_bytes = ByteStreams.toByteArray(ref_ais);
+
+        Utterance utt = ew.prepare(labels);
+        try {
+            // The synthesis of the prepared utterance is bit-exact
+            byte[] rend_bytes = ByteStreams.toByteArray(utt.synthesize());
+            Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+            for (int b=0; b<ref_bytes.length; b++)
+                Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+
+            // The volume is applied to the same state sequence
+            rend_bytes = ByteStreams.toByteArray(utt.synthesize(SynthesisConfig.DEFAULT.withVolume(-6.0)));
+            Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+
+            // The edited durations are kept
+            int nb_frames = utt.getNbFrames();
+            utt.setStateDuration(0, utt.getStateDuration(0) + 5);
+            Assert.assertEquals(utt.getNbFrames(), nb_frames + 5);
+            rend_bytes = ByteStreams.toByteArray(utt.synthesize(SynthesisConfig.DEFAULT));
+            Assert.assertEquals(rend_bytes.length, ref_bytes.length + 2 * 5 * ew.getFramePeriod());
+        } finally {
+            utt.close();
+            ew.setConfig(SynthesisConfig.DEFAULT);
+        }
+
+        // The released utterance can't be used anymore
+        Assert.assertTrue(utt.isReleased());
+        try {
+            utt.synthesize();
+            Assert.fail("A released utterance should not be synthesized");
+        } catch (HTSEngineException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSynthesisTo() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Reference synthesis
+        AudioInputStream ref_ais = ew.synthesize(labels);
+        byte[] ref_bytes = ByteStreams.toByteArray(ref_ais);
+
+        // Into a WAVE file
+        File wav_f = File.createTempFile("htsengine_test_synthesis_to", ".wav");
+        try {
+            Assert.assertEquals(ew.synthesizeTo(labels, wav_f.toPath(), AudioFileFormat.Type.WAVE), ref_bytes.length / 2);
+            Assert.assertEquals(wav_f.length(), 44 + ref_bytes.length);
+            AudioInputStream ais = AudioSystem.getAudioInputStream(wav_f);
+            Assert.assertEquals(ais.getFormat().getSampleRate(), ref_ais.getFormat().getSampleRate());
+            Assert.assertEquals(ais.getFrameLength(), ref_ais.getFrameLength());
+            byte[] rend_bytes = ByteStreams.toByteArray(ais);
+            ais.close();
+            Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+            for (int b=0; b<ref_bytes.length; b++) {
+                Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+            }
+        } finally {
+            wav_f.delete();
+        }
+
+        // Into an AU stream (big endian samples)
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Assert.assertEquals(ew.synthesizeTo(labels, baos, AudioFileFormat.Type.AU), ref_bytes.length / 2);
+        AudioInputStream ais = AudioSystem.getAudioInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        Assert.assertTrue(ais.getFormat().isBigEndian());
+        Assert.assertEquals(ais.getFrameLength(), ref_ais.getFrameLength());
+        byte[] rend_bytes = ByteStreams.toByteArray(ais);
+        Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+        for (int b=0; b<ref_bytes.length; b+=2) {
+            Assert.assertEquals(rend_bytes[b], ref_bytes[b + 1]);
+            Assert.assertEquals(rend_bytes[b + 1], ref_bytes[b]);
+        }
+    }
+
+    @Test
+    public void testOutputConversion() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Reference synthesis
+        byte[] ref_bytes = ByteStreams.toByteArray(ew.synthesize(labels));
+        short[] ref_short = new short[ref_bytes.length / 2];
+        ByteBuffer.wrap(ref_bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(ref_short);
+        int rate = ew.getSamplingFrequency();
+
+        // Same rate: only encoded
+        AudioInputStream ais = ew.synthesize(labels, rate, SampleEncoding.PCM_16);
+        Assert.assertEquals(ais.getFormat().getSampleRate(), (float) rate);
+        byte[] rend_bytes = ByteStreams.toByteArray(ais);
+        Assert.assertEquals(rend_bytes.length, ref_bytes.length);
+        for (int b=0; b<ref_bytes.length; b++) {
+            Assert.assertEquals(rend_bytes[b], ref_bytes[b]);
+        }
+
+        ais = ew.synthesize(labels, rate, SampleEncoding.PCM_FLOAT);
+        Assert.assertEquals(ais.getFormat().getEncoding(), AudioFormat.Encoding.PCM_FLOAT);
+        FloatBuffer rend_float = ByteBuffer.wrap(ByteStreams.toByteArray(ais)).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        Assert.assertEquals(rend_float.remaining(), ref_short.length);
+        for (int s=0; s<ref_short.length; s++) {
+            Assert.assertEquals(rend_float.get(s) * 32768.0, ref_short[s], 1.0);
+        }
+
+        // Downsampling
+        int low_rate = 8000;
+        AudioInputStream low_ais = ew.synthesize(labels, low_rate, SampleEncoding.PCM_16);
+        Assert.assertEquals(low_ais.getFormat().getSampleRate(), (float) low_rate);
+        Assert.assertEquals(low_ais.getFrameLength(), ((long) ref_short.length) * low_rate / rate);
+        short[] low_short = new short[(int) low_ais.getFrameLength()];
+        ByteBuffer.wrap(ByteStreams.toByteArray(low_ais)).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(low_short);
+
+        // G.711, checked against the decoders of the JDK
+        for (SampleEncoding encoding: new SampleEncoding[] {SampleEncoding.ULAW, SampleEncoding.ALAW}) {
+            ais = ew.synthesize(labels, low_rate, encoding);
+            Assert.assertEquals(ais.getFrameLength(), low_short.length);
+            AudioInputStream decoded = AudioSystem.getAudioInputStream(new AudioFormat(low_rate, 16, 1, true, false), ais);
+            short[] decoded_short = new short[low_short.length];
+            ByteBuffer.wrap(ByteStreams.toByteArray(decoded)).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(decoded_short);
+            for (int s=0; s<low_short.length; s++) {
+                Assert.assertEquals(decoded_short[s], low_short[s], 32 + Math.abs(low_short[s]) / 16.0);
+            }
+        }
+
+        try {
+            ew.synthesize(labels, 0, SampleEncoding.PCM_16);
+            Assert.fail("A null sampling rate should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSynthesisCache() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+        String half[] = lines.subList(0, lines.size() / 2).toArray(new String[0]);
+
+        // Reference synthesis
+        byte[] ref_bytes = ByteStreams.toByteArray(ew.synthesize(labels));
+        DurationTable ref_table = ew.getDurationTable();
+
+        Path spill_dir = Files.createTempDirectory("htsengine_test_cache");
+        try {
+            // Miss then hit
+            SynthesisCache cache = new SynthesisCache(1L << 26);
+            ew.setSynthesisCache(cache);
+            Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(cache.getNbMisses(), 1);
+            Assert.assertEquals(cache.size(), 1);
+            long entry_size = cache.getNbBytes();
+            Assert.assertTrue(entry_size >= ref_bytes.length);
+
+            Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(cache.getNbHits(), 1);
+            Assert.assertEquals(ew.getDurationTable().getEndFrames(), ref_table.getEndFrames());
+
+            // An other configuration is an other result
+            ew.synthesize(labels, SynthesisConfig.DEFAULT.withSpeed(1.2));
+            Assert.assertEquals(cache.getNbMisses(), 2);
+            ew.setConfig(SynthesisConfig.DEFAULT);
+
+            // Evicted results are spilled and mapped back
+            cache = new SynthesisCache(entry_size, spill_dir, 1L << 26);
+            ew.setSynthesisCache(cache);
+            ew.synthesize(labels);
+            ew.synthesize(half);
+            Assert.assertEquals(cache.getNbEvictions(), 1);
+            Assert.assertEquals(cache.getNbSpilled(), 1);
+
+            Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(cache.getNbSpillHits(), 1);
+            DurationTable table = ew.getDurationTable();
+            Assert.assertEquals(table.getLabels(), ref_table.getLabels());
+            Assert.assertEquals(table.getStateDurations(), ref_table.getStateDurations());
+
+            // The spill hit is kept in memory again
+            Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(cache.getNbHits(), 1);
+            Assert.assertEquals(cache.getNbSpilled(), 2);
+
+            // The spilled results are found by a later cache on the same directory
+            SynthesisCache later = new SynthesisCache(entry_size, spill_dir, 1L << 26);
+            Assert.assertEquals(later.getNbSpilled(), 2);
+            Assert.assertEquals(later.getNbSpilledBytes(), cache.getNbSpilledBytes());
+            ew.setSynthesisCache(later);
+            Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)), ref_bytes);
+            Assert.assertEquals(later.getNbSpillHits(), 1);
+            Assert.assertEquals(later.getNbMisses(), 0);
+
+            cache.clear();
+            Assert.assertEquals(cache.getNbSpilled(), 0);
+        } finally {
+            ew.setSynthesisCache(null);
+            Files.walk(spill_dir).sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testSynthesisCacheVoiceChanged() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        Path voice_copy = Files.createTempFile("htsengine_test_voice", ".htsvoice");
+        try (JHTSEngineWrapper engine = new JHTSEngineWrapper()) {
+            // A voice file changed after the loading can't be identified
+            Files.copy(tmp_file.toPath(), voice_copy, StandardCopyOption.REPLACE_EXISTING);
+            engine.setVoice(voice_copy.toString());
+            Files.write(voice_copy, new byte[] {'\n'}, StandardOpenOption.APPEND);
+
+            SynthesisCache cache = new SynthesisCache(1L << 26);
+            engine.setSynthesisCache(cache);
+            try {
+                engine.synthesize(labels);
+                Assert.fail("The results of a changed voice file should not be cached");
+            } catch (HTSEngineException ex) {
+                // expected
+            }
+            Assert.assertEquals(cache.size(), 0);
+
+            // A voice loaded while the results are cached is identified at once
+            Files.copy(tmp_file.toPath(), voice_copy, StandardCopyOption.REPLACE_EXISTING);
+            engine.setVoice(voice_copy.toString());
+            Files.delete(voice_copy);
+            engine.synthesize(labels);
+            Assert.assertEquals(cache.size(), 1);
+        } finally {
+            Files.deleteIfExists(voice_copy);
+        }
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Reference synthesis
+        byte[] ref_bytes = ByteStreams.toByteArray(ew.synthesize(labels));
+
+        // A token which is not cancelled doesn't change the result
+        CancellationToken token = new CancellationToken();
+        Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels, token)), ref_bytes);
+        token.cancel();
+        Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)), ref_bytes);
+
+        // Already cancelled
+        try {
+            ew.synthesize(labels, token);
+            Assert.fail("The synthesis should have been cancelled");
+        } catch (SynthesisCancelledException ex) {
+            Assert.assertFalse(ex.isDeadlineExceeded());
+        }
+
+        // Deadline
+        CancellationToken expired = CancellationToken.withTimeout(0, TimeUnit.MILLISECONDS);
+        while (!expired.isCancelled())
+            Thread.sleep(1);
+        try {
+            ew.synthesize(labels, expired);
+            Assert.fail("The synthesis should have been cancelled");
+        } catch (SynthesisCancelledException ex) {
+            Assert.assertTrue(ex.isDeadlineExceeded());
+        }
+
+        // Cancelled from an other thread while running
+        String[] long_labels = new String[20 * labels.length];
+        for (int i=0; i<20; i++)
+            System.arraycopy(labels, 0, long_labels, i * labels.length, labels.length);
+        CancellationToken running = new CancellationToken();
+        Thread canceller = new Thread(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    // cancel anyway
+                }
+                running.cancel();
+            });
+        canceller.start();
+        try {
+            ew.synthesize(long_labels, running);
+            Assert.fail("The synthesis should have been cancelled");
+        } catch (SynthesisCancelledException ex) {
+            Assert.assertFalse(ex.isDeadlineExceeded());
+        } finally {
+            canceller.join();
+        }
+
+        // The engine is still usable
+        Assert.assertEquals(ByteStreams.toByteArray(ew.synthesize(labels)), ref_bytes);
+    }
+
+    @Test
+    public void testNativeMemory() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        long model_bytes = NativeMemory.getModelBytes();
+        try (JHTSEngineWrapper engine = new JHTSEngineWrapper()) {
+            engine.setVoice(tmp_file.toString());
+            assertThat(engine.getModelBytes()).isPositive();
+            Assert.assertEquals(NativeMemory.getModelBytes(), model_bytes + engine.getModelBytes());
+
+            // The utterance is accounted as long as it is held by the engine
+            engine.synthesize(labels);
+            assertThat(engine.getUtteranceBytes()).isPositive();
+            assertThat(engine.getPeakUtteranceBytes()).isGreaterThanOrEqualTo(engine.getUtteranceBytes());
+            assertThat(NativeMemory.getUtteranceBytes()).isGreaterThanOrEqualTo(engine.getUtteranceBytes());
+            assertThat(NativeMemory.getPeakUtteranceBytes()).isGreaterThanOrEqualTo(NativeMemory.getUtteranceBytes());
+            engine.refresh();
+            Assert.assertEquals(engine.getUtteranceBytes(), 0);
+
+            // An utterance which doesn't fit in the budget is rejected once the waiting time is over
+            NativeMemory.setBudget(NativeMemory.getUsedBytes() + 1024, 10, TimeUnit.MILLISECONDS);
+            try {
+                engine.synthesize(labels);
+                Assert.fail("The synthesis should have been rejected");
+            } catch (NativeMemoryExceededException ex) {
+                assertThat(ex.getRequestedBytes()).isGreaterThan(1024);
+            } finally {
+                NativeMemory.setBudget(0, 0, TimeUnit.MILLISECONDS);
+            }
+            Assert.assertEquals(engine.getUtteranceBytes(), 0);
+
+            // Without budget the engine synthesizes again
+            assertThat(ByteStreams.toByteArray(engine.synthesize(labels))).isNotEmpty();
+        }
+
+        // The model is released by the engine when it is closed
+        Assert.assertEquals(NativeMemory.getModelBytes(), model_bytes);
+    }
+
+    @Test
+    public void testUtteranceArena() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        try (JHTSEngineWrapper engine = new JHTSEngineWrapper()) {
+            engine.setVoice(tmp_file.toString());
+            engine.setCompiledTrees(true);
+
+            // Reference without arena
+            byte[] ref_bytes = ByteStreams.toByteArray(engine.synthesize(labels));
+            engine.generateAcousticParameters(labels);
+            double[] ref_lf0 = engine.getGeneratedParameters(1);
+
+            // The arena doesn't change the result
+            engine.setUtteranceArena(true, 64L * 1024 * 1024);
+            Assert.assertTrue(engine.useUtteranceArena());
+            Assert.assertEquals(engine.getUtteranceArenaBytes(), 0);
+            Assert.assertEquals(ByteStreams.toByteArray(engine.synthesize(labels)), ref_bytes);
+            long synthesis_bytes = engine.getUtteranceArenaBytes();
+            assertThat(synthesis_bytes).isPositive();
+
+            // The next syntheses reuse the blocks of the arena
+            for (int i=0; i<3; i++) {
+                Assert.assertEquals(ByteStreams.toByteArray(engine.synthesize(labels)), ref_bytes);
+                Assert.assertEquals(engine.getUtteranceArenaBytes(), synthesis_bytes);
+            }
+            engine.generateAcousticParameters(labels);
+            double[] lf0 = engine.getGeneratedParameters(1);
+            Assert.assertEquals(lf0.length, ref_lf0.length);
+            for (int t=0; t<lf0.length; t++)
+                Assert.assertEquals(lf0[t], ref_lf0[t], 0);
+            long arena_bytes = engine.getUtteranceArenaBytes();
+            assertThat(arena_bytes).isPositive();
+
+            // The blocks are kept and reused by the next utterances
+            for (int i=0; i<3; i++) {
+                engine.generateAcousticParameters(labels);
+                lf0 = engine.getGeneratedParameters(1);
+                for (int t=0; t<lf0.length; t++)
+                    Assert.assertEquals(lf0[t], ref_lf0[t], 0);
+            }
+            engine.refresh();
+            Assert.assertEquals(engine.getUtteranceArenaBytes(), arena_bytes);
+
+            // The blocks beyond the retained size are released
+            engine.setUtteranceArena(true, 0);
+            Assert.assertEquals(engine.getUtteranceArenaBytes(), 0);
+            engine.setUtteranceArena(false);
+            Assert.assertFalse(engine.useUtteranceArena());
+            Assert.assertEquals(ByteStreams.toByteArray(engine.synthesize(labels)), ref_bytes);
+        }
+    }
+
+    @Test
+    public void testParallelParameterGeneration() throws Exception {
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (JHTSEngineWrapper engine = new JHTSEngineWrapper()) {
+            engine.setVoice(tmp_file.toString());
+
+            // Reference generated sequentially
+            byte[] ref_bytes = ByteStreams.toByteArray(engine.synthesize(labels));
+            engine.generateAcousticParameters(labels);
+            double[][] ref_streams = new double[3][];
+            for (int i=0; i<3; i++)
+                ref_streams[i] = engine.getGeneratedParameters(i);
+
+            // The concurrent generation gives exactly the same parameters and speech
+            engine.setParameterGenerationExecutor(executor);
+            for (int n=0; n<3; n++) {
+                engine.generateAcousticParameters(labels);
+                for (int i=0; i<3; i++) {
+                    double[] stream = engine.getGeneratedParameters(i);
+                    Assert.assertEquals(stream.length, ref_streams[i].length);
+                    for (int t=0; t<stream.length; t++)
+                        Assert.assertEquals(stream[t], ref_streams[i][t], 0);
+                }
+                Assert.assertEquals(ByteStreams.toByteArray(engine.synthesize(labels)), ref_bytes);
+            }
+
+            // A rejected stream is generated by the calling thread
+            executor.shutdown();
+            Assert.assertEquals(ByteStreams.toByteArray(engine.synthesize(labels)), ref_bytes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testLF0() throws Exception {
 
@@ -148,6 +986,35 @@ public class JHTSEngineWrapperTest {
     }
 
 
+    @Test
+    public void testContiguousParameters() throws Exception {
+
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Generate
+        ew.generateAcousticParameters(labels);
+        double[][] mgc = ew.getGeneratedParameterSequence(0);
+        double[] flat = ew.getGeneratedParameters(0);
+        DoubleBuffer view = ew.getGeneratedParameterBuffer(0);
+        int dim = ew.getGeneratedParameterDimension(0);
+
+        // Assert !
+        Assert.assertEquals(flat.length, mgc.length * dim);
+        Assert.assertEquals(view.remaining(), flat.length);
+        Assert.assertEquals(ew.getGeneratedParameterMatrix(0).getNumRows(), mgc.length);
+        for (int t=0; t<mgc.length; t++) {
+            for (int d=0; d<dim; d++) {
+                Assert.assertEquals(flat[t*dim + d], mgc[t][d], 0);
+                Assert.assertEquals(view.get(t*dim + d), mgc[t][d], 0);
+            }
+        }
+    }
+
+
     @Test
     public void testDurations() throws Exception {
 
@@ -176,4 +1043,36 @@ public class JHTSEngineWrapperTest {
         assertThat(gen_lines).containsExactlyElementsOf(ref_lines);
 
     }
+
+    @Test
+    public void testDurationTable() throws Exception {
+
+        // Load label
+        URL url_lab = JHTSEngineWrapperTest.class.getResource("test.lab");
+        File lab_f = new File(url_lab.toURI());
+        List<String> lines = Files.readAllLines(lab_f.toPath());
+        String labels[] = lines.toArray(new String[0]);
+
+        // Generate
+        ew.generateAcousticParameters(labels);
+        DurationTable table = ew.getDurationTable();
+        int nb_frames = ew.getGeneratedParameterSequence(0).length;
+
+        // Load reference
+        URL url_ref = JHTSEngineWrapperTest.class.getResource("test_lab_with_dur.lab");
+        File ref_f = new File(url_ref.toURI());
+        List<String> ref_lines = Files.readAllLines(ref_f.toPath());
+
+        // Assert !
+        Assert.assertEquals(table.size(), ref_lines.size());
+        for (int i=0; i<table.size(); i++)
+            Assert.assertEquals(table.getStartTimes()[i] + " " + table.getEndTimes()[i] + " " + table.getLabels()[i], ref_lines.get(i));
+
+        Assert.assertEquals(table.getStartFrames()[0], 0);
+        Assert.assertEquals(table.getEndFrames()[table.size() - 1], nb_frames);
+        int total = 0;
+        for (int d: table.getStateDurations())
+            total += d;
+        Assert.assertEquals(total, nb_frames);
+    }
 }
@@ -1,6 +1,7 @@
 
 %{
 #include "HTS_engine.h"
+#include "jhts_helpers.h"
   %}
 
 /******************************************************************************************************************/
@@ -75,6 +76,93 @@
 
 /******************************************************************************************************************/
 
+/* These typemaps give the native helpers a direct access to a java primitive array (no per element call) */
+%define JHTS_ARRAY_BUFFER(CTYPE, JNITYPE, JTYPE)
+%typemap(jni) (CTYPE *BUFFER, size_t BUFFER_SIZE) %{JNITYPE##Array%}
+%typemap(jtype) (CTYPE *BUFFER, size_t BUFFER_SIZE) %{JTYPE[]%}
+%typemap(jstype) (CTYPE *BUFFER, size_t BUFFER_SIZE) %{JTYPE[]%}
+%typemap(javain) (CTYPE *BUFFER, size_t BUFFER_SIZE) "$javainput"
+%typemap(in) (CTYPE *BUFFER, size_t BUFFER_SIZE) {
+  if (!$input) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaNullPointerException, "null array");
+    return $null;
+  }
+  $2 = (size_t) (*jenv)->GetArrayLength(jenv, $input);
+  $1 = (CTYPE *) (*jenv)->GetPrimitiveArrayCritical(jenv, $input, 0);
+  if (!$1)
+    return $null;
+ }
+%typemap(argout) (CTYPE *BUFFER, size_t BUFFER_SIZE) {
+  (*jenv)->ReleasePrimitiveArrayCritical(jenv, $input, $1, 0);
+ }
+%enddef
+
+JHTS_ARRAY_BUFFER(short, jshort, short)
+JHTS_ARRAY_BUFFER(unsigned char, jbyte, byte)
+JHTS_ARRAY_BUFFER(double, jdouble, double)
+JHTS_ARRAY_BUFFER(int, jint, int)
+
+/* These typemaps let the native helpers fill a java String array with strings they don't own (one array walk) */
+%typemap(jni) (char **STRING_BUFFER, size_t STRING_BUFFER_SIZE) "jobjectArray"
+%typemap(jtype) (char **STRING_BUFFER, size_t STRING_BUFFER_SIZE) "String[]"
+%typemap(jstype) (char **STRING_BUFFER, size_t STRING_BUFFER_SIZE) "String[]"
+%typemap(javain) (char **STRING_BUFFER, size_t STRING_BUFFER_SIZE) "$javainput"
+%typemap(in) (char **STRING_BUFFER, size_t STRING_BUFFER_SIZE) {
+  if (!$input) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaNullPointerException, "null array");
+    return $null;
+  }
+  $2 = (size_t) (*jenv)->GetArrayLength(jenv, $input);
+  $1 = (char **) calloc($2 + 1, sizeof(char *));
+  if (!$1) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaOutOfMemoryError, "the string array can't be allocated");
+    return $null;
+  }
+ }
+%typemap(argout) (char **STRING_BUFFER, size_t STRING_BUFFER_SIZE) {
+  size_t i;
+  jstring temp_string;
+  for (i = 0; i < $2 && $1[i] != NULL; i++) {
+    temp_string = (*jenv)->NewStringUTF(jenv, $1[i]);
+    (*jenv)->SetObjectArrayElement(jenv, $input, (jsize) i, temp_string);
+    (*jenv)->DeleteLocalRef(jenv, temp_string);
+  }
+ }
+%typemap(freearg) (char **STRING_BUFFER, size_t STRING_BUFFER_SIZE) {
+  free($1);
+ }
+
+/* These typemaps give the native helpers a direct access to the memory of a direct ByteBuffer */
+%typemap(jni) (char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE) "jobject"
+%typemap(jtype) (char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE) "java.nio.ByteBuffer"
+%typemap(jstype) (char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE) "java.nio.ByteBuffer"
+%typemap(javain) (char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE) "$javainput"
+%typemap(in) (char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE) {
+  if (!$input) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaNullPointerException, "null buffer");
+    return $null;
+  }
+  $1 = (char *) (*jenv)->GetDirectBufferAddress(jenv, $input);
+  if (!$1) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaIllegalArgumentException, "the buffer should be a direct buffer");
+    return $null;
+  }
+  $2 = (size_t) (*jenv)->GetDirectBufferCapacity(jenv, $input);
+ }
+
+/* These typemaps return a block of native memory as a direct ByteBuffer (null if the block is empty) */
+%typemap(jni) HTS_DirectBuffer "jobject"
+%typemap(jtype) HTS_DirectBuffer "java.nio.ByteBuffer"
+%typemap(jstype) HTS_DirectBuffer "java.nio.ByteBuffer"
+%typemap(javaout) HTS_DirectBuffer {
+  return $jnicall;
+ }
+%typemap(out) HTS_DirectBuffer {
+  $result = ($1.data != NULL) ? (*jenv)->NewDirectByteBuffer(jenv, $1.data, (jlong) $1.size) : NULL;
+ }
+
+/******************************************************************************************************************/
+
 
 /* audio ----------------------------------------------------------- */
 
@@ -452,7 +540,182 @@ void HTS_Engine_clear(HTS_Engine * engine);
 /* HTS_GStreamSet_get_static_length: get features length */
 size_t HTS_GStreamSet_get_vector_length(HTS_GStreamSet * gss, size_t stream_index);
 
+/* HTS_ModelSet_get_vector_length: get vector length */
+size_t HTS_ModelSet_get_vector_length(HTS_ModelSet * ms, size_t stream_index);
+
 
 /******************************************************************************************************************/
 
-HTS_Boolean HTS_MinimalGStreamSet_create(HTS_GStreamSet * gss, HTS_PStreamSet * pss, size_t fperiod);
+/* HTS_MinimalGStreamSet_create: provide just the parameter generation structure (contiguous per stream) without the vocoder part */
+HTS_Boolean HTS_MinimalGStreamSet_create(HTS_GStreamSet * gss, HTS_PStreamSet * pss, size_t fperiod, HTS_Arena * arena);
+
+/* HTS_MinimalGStreamSet_clear: free a structure created by HTS_MinimalGStreamSet_create (except its parts allocated in the arena) */
+void HTS_MinimalGStreamSet_clear(HTS_GStreamSet * gss, HTS_Arena * arena);
+
+/* HTS_MinimalGStreamSet_get_parameter_buffer: expose the contiguous parameters of a stream created by HTS_MinimalGStreamSet_create */
+HTS_DirectBuffer HTS_MinimalGStreamSet_get_parameter_buffer(HTS_GStreamSet * gss, size_t stream_index);
+
+/* HTS_GStreamSet_get_parameters: copy the frames of a generated stream row-major, return the number of copied frames */
+size_t HTS_GStreamSet_get_parameters(HTS_GStreamSet * gss, size_t stream_index, double *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_Engine_share_model: make engine use the (read-only) model set of model with its own copy of the synthesis condition */
+HTS_Boolean HTS_Engine_share_model(HTS_Engine * engine, HTS_Engine * model);
+
+/* HTS_Engine_clear_shared: free an engine prepared by HTS_Engine_share_model without freeing the shared model set */
+void HTS_Engine_clear_shared(HTS_Engine * engine);
+
+/* HTS_Label_get_string: get the context of a loaded label */
+const char *HTS_Label_get_string(HTS_Label * label, size_t index);
+
+/* HTS_Engine_get_condition_size: get the number of values of a packed synthesis condition */
+size_t HTS_Engine_get_condition_size(HTS_Engine * engine);
+
+/* HTS_Engine_get_condition: pack the synthesis condition of engine */
+HTS_Boolean HTS_Engine_get_condition(HTS_Engine * engine, double *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_Engine_set_condition: apply a packed synthesis condition in one call */
+HTS_Boolean HTS_Engine_set_condition(HTS_Engine * engine, double *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_Engine_use_label_records: check if the state sequence can be generated from label records */
+HTS_Boolean HTS_Engine_use_label_records(HTS_Engine * engine);
+
+/* HTS_Engine_get_label_record_size: get the number of values of the record of one label */
+size_t HTS_Engine_get_label_record_size(HTS_Engine * engine);
+
+/* HTS_Engine_load_label_from_strings: load the labels without generating the state sequence */
+HTS_Boolean HTS_Engine_load_label_from_strings(HTS_Engine * engine, char **lines, size_t num_lines);
+
+/* HTS_Engine_generate_state_sequence_from_label: generate the state sequence of the labels loaded by HTS_Engine_load_label_from_strings */
+HTS_Boolean HTS_Engine_generate_state_sequence_from_label(HTS_Engine * engine);
+
+/* HTS_Engine_refresh_parameters: free the parameter and generated streams but keep the labels and the state sequence */
+void HTS_Engine_refresh_parameters(HTS_Engine * engine);
+
+/* HTS_Engine_refresh_arena: free the per-utterance structures, resetting the arena (keeping up to max_size bytes) instead of freeing its allocations */
+void HTS_Engine_refresh_arena(HTS_Engine * engine, HTS_Arena * arena, size_t max_size);
+
+/* HTS_Engine_set_state_duration: override the duration (in frames, at least 1) of one state of the state sequence */
+HTS_Boolean HTS_Engine_set_state_duration(HTS_Engine * engine, size_t state_index, size_t duration);
+
+/* HTS_Engine_get_utterance_memory: estimate the number of bytes held by the per-utterance structures */
+size_t HTS_Engine_get_utterance_memory(HTS_Engine * engine);
+
+/* HTS_Engine_estimate_utterance_memory: estimate the number of bytes held for the utterance once its state sequence is generated */
+size_t HTS_Engine_estimate_utterance_memory(HTS_Engine * engine);
+
+/* HTS_Engine_get_label_record: fill the record (durations, state and GV pdfs) of one loaded label */
+HTS_Boolean HTS_Engine_get_label_record(HTS_Engine * engine, size_t label_index, double *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_Engine_generate_state_sequence_from_records: generate the state sequence of the loaded labels from their records */
+HTS_Boolean HTS_Engine_generate_state_sequence_from_records(HTS_Engine * engine, double *BUFFER, size_t BUFFER_SIZE, HTS_Arena * arena);
+
+/* HTS_CompiledTrees_new: compile the decision trees of the (single) voice of engine */
+HTS_CompiledTrees *HTS_CompiledTrees_new(HTS_Engine * engine);
+
+/* HTS_CompiledTrees_get_label_record: fill the record of one loaded label using compiled trees */
+HTS_Boolean HTS_CompiledTrees_get_label_record(HTS_CompiledTrees * ct, HTS_Engine * engine, size_t label_index, double *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_CompiledTrees_generate_state_sequence: generate the state sequence of the loaded labels using compiled trees (or the decision trees if NULL) */
+HTS_Boolean HTS_CompiledTrees_generate_state_sequence(HTS_CompiledTrees * ct, HTS_Engine * engine, HTS_Arena * arena);
+
+/* HTS_CompiledTrees_delete: free compiled trees */
+void HTS_CompiledTrees_delete(HTS_CompiledTrees * ct);
+
+/* HTS_Arena_new: create an arena allocating blocks of (at least) block_size bytes */
+HTS_Arena *HTS_Arena_new(size_t block_size);
+
+/* HTS_Arena_get_size: get the number of bytes reserved by an arena */
+size_t HTS_Arena_get_size(HTS_Arena * arena);
+
+/* HTS_Arena_reset: release all the allocations of an arena, keeping up to max_size bytes of blocks for the next ones */
+void HTS_Arena_reset(HTS_Arena * arena, size_t max_size);
+
+/* HTS_Arena_delete: free an arena and all its allocations */
+void HTS_Arena_delete(HTS_Arena * arena);
+
+/* HTS_Engine_get_image_size: get the size of the binary image of the (single) voice of engine, 0 if it can't be saved */
+size_t HTS_Engine_get_image_size(HTS_Engine * engine);
+
+/* HTS_Engine_write_image: save the binary image of the (single) voice of engine, return the number of written bytes (0 if failed) */
+size_t HTS_Engine_write_image(HTS_Engine * engine, char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE);
+
+/* HTS_Engine_load_image: load a voice from its binary image which has to stay valid until HTS_Engine_clear_image */
+HTS_Arena *HTS_Engine_load_image(HTS_Engine * engine, char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE);
+
+/* HTS_Engine_clear_image: free an engine loaded by HTS_Engine_load_image */
+void HTS_Engine_clear_image(HTS_Engine * engine, HTS_Arena * arena);
+
+/* HTS_PStreamWindow_new: prepare the block-wise parameter generation of the state sequence of engine */
+HTS_PStreamWindow *HTS_PStreamWindow_new(HTS_Engine * engine, size_t block_frame, size_t lookahead_frame, HTS_Boolean fill_gss);
+
+/* HTS_PStreamWindow_generate: generate the parameters of the next block */
+HTS_Boolean HTS_PStreamWindow_generate(HTS_PStreamWindow * pw, HTS_Engine * engine);
+
+/* HTS_PStreamWindow_is_finished: check if all the blocks have been generated */
+HTS_Boolean HTS_PStreamWindow_is_finished(HTS_PStreamWindow * pw, HTS_Engine * engine);
+
+/* HTS_PStreamWindow_get_frame: get the number of frames already generated */
+size_t HTS_PStreamWindow_get_frame(HTS_PStreamWindow * pw);
+
+/* HTS_PStreamWindow_delete: free a block-wise parameter generation */
+void HTS_PStreamWindow_delete(HTS_PStreamWindow * pw);
+
+/* HTS_Engine_generate_parameter_sequence_windowed: generate the parameter sequence block after block */
+HTS_Boolean HTS_Engine_generate_parameter_sequence_windowed(HTS_Engine * engine, size_t block_frame, size_t lookahead_frame);
+
+/* HTS_Engine_prepare_parameter_streams: prepare the generation of the parameter streams one by one */
+HTS_Boolean HTS_Engine_prepare_parameter_streams(HTS_Engine * engine);
+
+/* HTS_Engine_generate_parameter_stream: generate the parameters of one stream, the streams can be generated concurrently */
+HTS_Boolean HTS_Engine_generate_parameter_stream(HTS_Engine * engine, size_t stream_index);
+
+/* HTS_VocoderStream_new: prepare the incremental vocoding of the parameters generated by HTS_MinimalGStreamSet_create */
+HTS_VocoderStream *HTS_VocoderStream_new(HTS_Engine * engine);
+
+/* HTS_VocoderStream_synthesize_pcm16_le: vocode the next frames as 16-bit little endian bytes, return the number of written samples (0 at the end) */
+size_t HTS_VocoderStream_synthesize_pcm16_le(HTS_VocoderStream * vs, HTS_Engine * engine, char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE);
+
+/* HTS_VocoderStream_set_end_frame: limit the vocoding to the frames already generated */
+void HTS_VocoderStream_set_end_frame(HTS_VocoderStream * vs, HTS_Engine * engine, size_t end_frame);
+
+/* HTS_VocoderStream_get_remaining_nsample: get the number of samples still to be vocoded */
+size_t HTS_VocoderStream_get_remaining_nsample(HTS_VocoderStream * vs, HTS_Engine * engine);
+
+/* HTS_VocoderStream_delete: free an incremental vocoder */
+void HTS_VocoderStream_delete(HTS_VocoderStream * vs);
+
+/* HTS_Engine_prepare_resynthesis: allocate (as HTS_MinimalGStreamSet_create) the generated streams of nframe frames to be vocoded */
+HTS_Boolean HTS_Engine_prepare_resynthesis(HTS_Engine * engine, size_t nframe, HTS_Arena * arena);
+
+/* HTS_GStreamSet_set_parameters: fill the frames of a generated stream row-major, return the number of filled frames */
+size_t HTS_GStreamSet_set_parameters(HTS_GStreamSet * gss, size_t stream_index, double *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_GStreamSet_set_parameters_direct: same as HTS_GStreamSet_set_parameters but reading native doubles from a direct buffer */
+size_t HTS_GStreamSet_set_parameters_direct(HTS_GStreamSet * gss, size_t stream_index, char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE);
+
+/* HTS_Engine_resynthesize: run only the vocoder over the generated streams */
+HTS_Boolean HTS_Engine_resynthesize(HTS_Engine * engine, HTS_Arena * arena);
+
+/* HTS_GStreamSet_get_speech_pcm16: export the generated speech as 16-bit samples, return the number of written samples */
+size_t HTS_GStreamSet_get_speech_pcm16(HTS_GStreamSet * gss, short *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_GStreamSet_get_speech_pcm16_le: export the generated speech as 16-bit little endian bytes, return the number of written samples */
+size_t HTS_GStreamSet_get_speech_pcm16_le(HTS_GStreamSet * gss, unsigned char *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_GStreamSet_get_speech_pcm16_le_direct: same as HTS_GStreamSet_get_speech_pcm16_le but targetting a direct buffer */
+size_t HTS_GStreamSet_get_speech_pcm16_le_direct(HTS_GStreamSet * gss, char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE);
+
+/* HTS_Engine_get_converted_nsample: get the number of samples of the generated speech resampled to out_rate */
+size_t HTS_Engine_get_converted_nsample(HTS_Engine * engine, size_t out_rate);
+
+/* HTS_Engine_get_speech_converted: export the generated speech resampled to out_rate and encoded (HTS_ENCODING_*), return the number of written samples */
+size_t HTS_Engine_get_speech_converted(HTS_Engine * engine, size_t out_rate, int encoding, unsigned char *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_Engine_get_speech_converted_direct: same as HTS_Engine_get_speech_converted but targetting a direct buffer */
+size_t HTS_Engine_get_speech_converted_direct(HTS_Engine * engine, size_t out_rate, int encoding, char *DIRECT_BUFFER, size_t DIRECT_BUFFER_SIZE);
+
+/* HTS_Engine_get_state_durations: export the duration (in frames) of each generated state, return the number of written durations */
+size_t HTS_Engine_get_state_durations(HTS_Engine * engine, int *BUFFER, size_t BUFFER_SIZE);
+
+/* HTS_Engine_get_label_names: export the names of the loaded labels (owned by the engine), return the number of names */
+size_t HTS_Engine_get_label_names(HTS_Engine * engine, char **STRING_BUFFER, size_t STRING_BUFFER_SIZE);